@@ -0,0 +1,128 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line-oriented file that is only ever appended to, with every line synced to disk before
+ * {@link #append} returns. A line left without its newline by a crash is cut off when the log
+ * is next opened, so a torn record can never merge with the one written after it.
+ * {@link #rewrite} replaces the whole log atomically, for compaction.
+ */
+public class AppendOnlyLog {
+
+    public AppendOnlyLog(@NonNull final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns every complete line, drops a torn last line, and opens the log for appending.
+     */
+    @NonNull
+    public synchronized List<String> open() throws IOException {
+
+        close();
+        final List<String> lines = new ArrayList<>();
+        long validLength = 0;
+        if (file.exists()) {
+            final byte[] content = readAll();
+            int start = 0;
+            for (int i = 0; i < content.length; i++) {
+                if (content[i] != '\n') continue;
+                lines.add(new String(content, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+            validLength = start;
+        }
+        output = new FileOutputStream(file, true);
+        if (output.getChannel().size() > validLength) {
+            output.getChannel().truncate(validLength);
+            output.getFD().sync();
+        }
+        return lines;
+    }
+
+    public synchronized void append(@NonNull final String line) throws IOException {
+
+        if (output == null) throw new IOException("Log is not open: " + file);
+        write((checkLine(line) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Atomically replaces the log with {@code lines} and keeps it open for appending.
+     */
+    public synchronized void rewrite(@NonNull final List<String> lines) throws IOException {
+
+        close();
+        final File temporary = new File(file.getPath() + ".tmp");
+        try (FileOutputStream rewritten = new FileOutputStream(temporary, false)) {
+            final StringBuilder text = new StringBuilder();
+            for (final String line : lines)
+                text.append(checkLine(line)).append('\n');
+            rewritten.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            rewritten.getFD().sync();
+        }
+        if (!temporary.renameTo(file)) throw new IOException("Failed to replace " + file);
+        output = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Closes the log and deletes it.
+     */
+    public synchronized void delete() throws IOException {
+
+        close();
+        if (file.exists() && !file.delete()) throw new IOException("Failed to delete " + file);
+    }
+
+    public synchronized void close() throws IOException {
+
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+    }
+
+    /**
+     * Writes one encoded record and syncs it; the only place bytes reach an open log.
+     */
+    @VisibleForTesting
+    void write(@NonNull final byte[] record) throws IOException {
+
+        output.write(record);
+        output.getFD().sync();
+    }
+
+    @NonNull
+    private byte[] readAll() throws IOException {
+
+        final byte[] content = new byte[(int) file.length()];
+        try (FileInputStream input = new FileInputStream(file)) {
+            int read = 0;
+            while (read < content.length) {
+                final int count = input.read(content, read, content.length - read);
+                if (count < 0) break;
+                read += count;
+            }
+        }
+        return content;
+    }
+
+    @NonNull
+    private static String checkLine(@NonNull final String line) {
+
+        if (line.indexOf('\n') >= 0) throw new IllegalArgumentException("Log lines cannot contain newlines");
+        return line;
+    }
+
+    private final File file;
+    private FileOutputStream output;
+}
@@ -0,0 +1,150 @@
+package com.merabills.videorecorder;
+
+/**
+ * Derives audio presentation timestamps from the number of frames captured rather than from
+ * the wall-clock time each read happens to return, so scheduler jitter never reaches the PTS.
+ * <p>
+ * The frame clock is anchored once, ideally from {@code AudioRecord.getTimestamp} in the
+ * monotonic timebase, which is the same clock the virtual display stamps video frames with.
+ * Because the audio hardware's sample clock drifts against that clock, each read completion
+ * time is compared with where the frame clock says the chunk should have ended. Completion
+ * times only ever arrive late, so the minimum error over a block of reads is a jitter-free
+ * estimate of the drift. The output is slewed towards that estimate at a bounded rate,
+ * jumped forward when capture has fallen far behind (for example after an overrun), and
+ * always kept strictly increasing.
+ * <p>
+ * Not thread-safe; intended to be driven by the capture thread only.
+ */
+public class AudioTimestampGenerator {
+
+    public AudioTimestampGenerator(final int sampleRate) {
+        this(sampleRate, DEFAULT_BLOCK_US, DEFAULT_MAX_SLEW_PPM, DEFAULT_CATCH_UP_THRESHOLD_US);
+    }
+
+    /**
+     * @param blockUs              Audio duration over which read errors are reduced to a minimum.
+     * @param maxSlewPpm           Fastest rate at which corrections are applied, in parts per
+     *                             million of the audio duration.
+     * @param catchUpThresholdUs   A frame clock lagging by more than this is jumped forward
+     *                             rather than slewed.
+     */
+    public AudioTimestampGenerator(
+            final int sampleRate,
+            final long blockUs,
+            final long maxSlewPpm,
+            final long catchUpThresholdUs
+    ) {
+
+        if (sampleRate <= 0) throw new IllegalArgumentException("sampleRate must be positive");
+        this.sampleRate = sampleRate;
+        this.blockFrames = Math.max(1, blockUs * sampleRate / 1_000_000);
+        this.maxSlewPpm = maxSlewPpm;
+        this.catchUpThresholdUs = catchUpThresholdUs;
+    }
+
+    /**
+     * Anchors the frame clock: frame number {@code framePosition} (counted from the start of
+     * recording) was captured at {@code nanoTime} on the monotonic clock. Ignored once anchored.
+     */
+    public void anchor(final long framePosition, final long nanoTime) {
+
+        if (anchored) return;
+        anchorUs = nanoTime / 1000 - framesToUs(framePosition);
+        anchored = true;
+    }
+
+    public boolean isAnchored() {
+        return anchored;
+    }
+
+    /**
+     * Returns the presentation time of the first frame of a chunk that has just been read.
+     * If no anchor was provided, the end of the first chunk is anchored at its completion time.
+     *
+     * @param frames               Frames in the chunk.
+     * @param readCompletionNanos  {@code System.nanoTime()} when the read returned.
+     */
+    public long onChunkRead(final int frames, final long readCompletionNanos) {
+
+        if (!anchored) anchor(frameCount + frames, readCompletionNanos);
+
+        long presentationTimeUs = anchorUs + framesToUs(frameCount) + correctionUs;
+        frameCount += frames;
+        trackDrift(frames, readCompletionNanos / 1000 - (anchorUs + framesToUs(frameCount)));
+
+        if (hasOutput && presentationTimeUs <= lastPresentationTimeUs)
+            presentationTimeUs = lastPresentationTimeUs + 1;
+        lastPresentationTimeUs = presentationTimeUs;
+        hasOutput = true;
+        return presentationTimeUs;
+    }
+
+    /**
+     * Frames consumed so far.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Offset currently applied on top of the frame clock.
+     */
+    public long getCorrectionUs() {
+        return correctionUs;
+    }
+
+    public long framesToUs(final long frames) {
+        return frames * 1_000_000 / sampleRate;
+    }
+
+    private void trackDrift(final int frames, final long errorUs) {
+
+        if (errorUs < blockMinErrorUs) blockMinErrorUs = errorUs;
+        blockFrameCount += frames;
+        if (blockFrameCount >= blockFrames) {
+            if (hasBaseline) {
+                targetCorrectionUs = blockMinErrorUs - baselineErrorUs;
+            } else {
+                // The first block measures the fixed capture-to-read latency, not drift
+                baselineErrorUs = blockMinErrorUs;
+                hasBaseline = true;
+            }
+            blockMinErrorUs = Long.MAX_VALUE;
+            blockFrameCount = 0;
+        }
+
+        final long difference = targetCorrectionUs - correctionUs;
+        if (difference > catchUpThresholdUs) {
+            correctionUs = targetCorrectionUs;
+            return;
+        }
+        slewRemainderPpmUs += framesToUs(frames) * maxSlewPpm;
+        final long maxStepUs = slewRemainderPpmUs / 1_000_000;
+        slewRemainderPpmUs -= maxStepUs * 1_000_000;
+        correctionUs += Math.max(-maxStepUs, Math.min(maxStepUs, difference));
+    }
+
+    // Long enough that read jitter is almost always near zero somewhere within a block
+    private static final long DEFAULT_BLOCK_US = 1_000_000;
+    // 0.1%: ten times the worst crystal drift we expect, still inaudible as a rate change
+    private static final long DEFAULT_MAX_SLEW_PPM = 1_000;
+    private static final long DEFAULT_CATCH_UP_THRESHOLD_US = 100_000;
+
+    private final int sampleRate;
+    private final long blockFrames;
+    private final long maxSlewPpm;
+    private final long catchUpThresholdUs;
+
+    private boolean anchored = false;
+    private long anchorUs;
+    private long frameCount = 0;
+    private long correctionUs = 0;
+    private long targetCorrectionUs = 0;
+    private long slewRemainderPpmUs = 0;
+    private boolean hasBaseline = false;
+    private long baselineErrorUs;
+    private long blockMinErrorUs = Long.MAX_VALUE;
+    private long blockFrameCount = 0;
+    private boolean hasOutput = false;
+    private long lastPresentationTimeUs;
+}
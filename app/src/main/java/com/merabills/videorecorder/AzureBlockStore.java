@@ -0,0 +1,63 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * {@link BlockStore} backed by block blobs in an Azure Storage container.
+ */
+public class AzureBlockStore implements BlockStore {
+
+    public AzureBlockStore(@NonNull final BlobContainerClient containerClient) {
+        this.containerClient = containerClient;
+    }
+
+    @Override
+    public void stageBlock(
+            @NonNull String blobName,
+            @NonNull String blockId,
+            @NonNull ByteBuffer data
+    ) throws IOException {
+
+        try {
+            containerClient.getBlobClient(blobName)
+                    .getBlockBlobClient()
+                    .stageBlock(blockId, BinaryData.fromByteBuffer(data));
+        } catch (RuntimeException e) {
+            // The SDK reports HTTP and transport failures as unchecked exceptions
+            throw new IOException("Failed to stage block " + blockId + " of " + blobName, e);
+        }
+    }
+
+    @Override
+    public void commitBlockList(@NonNull String blobName, @NonNull List<String> blockIds) throws IOException {
+
+        try {
+            containerClient.getBlobClient(blobName)
+                    .getBlockBlobClient()
+                    .commitBlockList(blockIds, true);
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to commit " + blockIds.size() + " blocks of " + blobName, e);
+        }
+    }
+
+    @Override
+    public long getBlobSize(@NonNull String blobName) throws IOException {
+
+        try {
+            final BlobClient blobClient = containerClient.getBlobClient(blobName);
+            return blobClient.exists() ? blobClient.getProperties().getBlobSize() : -1;
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to look up " + blobName, e);
+        }
+    }
+
+    private final BlobContainerClient containerClient;
+}
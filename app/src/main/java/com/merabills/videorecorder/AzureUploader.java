@@ -1,15 +1,15 @@
 package com.merabills.videorecorder;
 
+import android.util.Log;
+
 import androidx.annotation.NonNull;
 
 import com.azure.core.credential.AzureSasCredential;
-import com.azure.storage.blob.BlobClient;
-import com.azure.storage.blob.BlobClientBuilder;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobContainerClientBuilder;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * Utility class to upload video files to Azure Blob Storage using SAS authentication.
@@ -18,6 +18,9 @@ public class AzureUploader {
 
     /**
      * Uploads the given video file to Azure Blob Storage with the specified blob name.
+     * The file is sent as parallel blocks; if the upload is interrupted, calling this again
+     * for the same file only sends the blocks that are still missing. Runs on the calling
+     * thread; use {@link UploadManager#enqueue} to upload in the background.
      *
      * @param videoFile The local video file to upload.
      * @param blobName  The name to assign to the blob in Azure Storage.
@@ -30,33 +33,40 @@ public class AzureUploader {
         // Validate input: check if the file exists and is not null
         if (!videoFile.exists()) {
 
-            System.err.println("Upload failed: File does not exist.");
+            Log.e(TAG, "Upload failed: " + videoFile + " does not exist");
             return;
         }
 
-        // Use try-with-resources to ensure the input stream is closed automatically
-        try (InputStream stream = new FileInputStream(videoFile)) {
-
-            // Build the BlobClient with endpoint, container, blob name, and SAS credentials
-            BlobClient blobClient = new BlobClientBuilder()
-                    .endpoint(Constants.AZURE_ENDPOINT)
-                    .containerName(Constants.AZURE_CONTAINER_NAME)
-                    .blobName(blobName)
-                    .credential(new AzureSasCredential(Constants.AZURE_SAS_CREDENTIALS))
-                    .buildClient();
+        try {
 
-            // Upload the file stream to Azure (overwrite if blob already exists)
-            blobClient.upload(stream, videoFile.length(), true);
+            // Stage the blocks and commit them (overwrites the blob if it already exists),
+            // reusing the process-wide client and block pool
+            final BlockBlobUploader.Result result = UploadManager.getInstance().upload(videoFile, blobName);
 
             // Log success message
-            System.out.println("Upload successful: " + blobName);
+            Log.i(TAG, "Upload successful: " + blobName + ", " + result);
 
         } catch (IOException io) {
-            // Handle file I/O errors (e.g., read permission issues)
-            System.err.println("Upload failed: Unable to read the file. " + io.getMessage());
+            // Handle file I/O and block upload errors; the journal is kept for a later resume
+            Log.e(TAG, "Upload of " + blobName + " failed", io);
         } catch (Exception e) {
-            // Catch all other exceptions during upload (e.g., auth/network issues)
-            System.err.println("Upload failed: " + e.getMessage());
+            // Catch all other exceptions during upload (e.g., auth/configuration issues)
+            Log.e(TAG, "Upload of " + blobName + " failed", e);
         }
     }
+
+    /**
+     * Builds a client for the recordings container with endpoint and SAS credentials.
+     */
+    @NonNull
+    public static BlobContainerClient createContainerClient() {
+
+        return new BlobContainerClientBuilder()
+                .endpoint(Constants.AZURE_ENDPOINT)
+                .containerName(Constants.AZURE_CONTAINER_NAME)
+                .credential(new AzureSasCredential(Constants.AZURE_SAS_CREDENTIALS))
+                .buildClient();
+    }
+
+    private static final String TAG = "AzureUploader";
 }
@@ -0,0 +1,138 @@
+package com.merabills.videorecorder;
+
+/**
+ * Decides the video encoder's target bitrate and frame rate from what the pipeline reports
+ * once per interval: bytes the encoder produced, how far its output lags behind capture, and
+ * how full the muxer's handoff queue is.
+ * <p>
+ * Backpressure wins over everything: a lagging encoder or a filling muxer queue cuts the
+ * bitrate multiplicatively, and the frame rate too if that is not enough. Without
+ * backpressure, the frame rate is restored first; then a stream that uses much less than its
+ * budget (a static screen) has the budget lowered towards what it uses, and a stream that
+ * saturates it (busy scrolling) has it raised quickly. Every change is followed by a short
+ * hold so the encoder's reaction is measured before the next one, and changes too small to
+ * matter are not issued.
+ * <p>
+ * Not thread-safe; intended to be driven by the encoder's output thread.
+ */
+public class BitrateController {
+
+    /**
+     * @param minBitrate    Lowest bitrate ever requested, in bits per second.
+     * @param maxBitrate    Highest bitrate ever requested.
+     * @param minFrameRate  Lowest frame rate the gate may be asked for.
+     * @param maxFrameRate  Capture frame rate, also the starting point.
+     */
+    public BitrateController(
+            final int minBitrate,
+            final int maxBitrate,
+            final int initialBitrate,
+            final int minFrameRate,
+            final int maxFrameRate
+    ) {
+
+        if (minBitrate <= 0 || minBitrate > maxBitrate || minFrameRate <= 0 || minFrameRate > maxFrameRate)
+            throw new IllegalArgumentException("Invalid bounds");
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.minFrameRate = minFrameRate;
+        this.maxFrameRate = maxFrameRate;
+        this.bitrate = clamp(initialBitrate, minBitrate, maxBitrate);
+        this.frameRate = maxFrameRate;
+    }
+
+    /**
+     * Feeds one interval of measurements.
+     *
+     * @param intervalUs      Length of the interval.
+     * @param encodedBytes    Bytes the encoder produced during it.
+     * @param encoderLagUs    Worst delay between capturing a frame and its encoded output.
+     * @param muxerBacklog    Fill level of the muxer's handoff queue, from 0 to 1.
+     * @return true if {@link #getBitrate()} or {@link #getFrameRate()} changed.
+     */
+    public boolean update(
+            final long intervalUs,
+            final long encodedBytes,
+            final long encoderLagUs,
+            final double muxerBacklog
+    ) {
+
+        if (intervalUs <= 0) return false;
+        final double actualBitrate = encodedBytes * 8.0 * 1_000_000 / intervalUs;
+        final int oldBitrate = bitrate;
+        final int oldFrameRate = frameRate;
+
+        if (encoderLagUs > LAG_HIGH_US || muxerBacklog > BACKLOG_HIGH) {
+            congestedIntervals++;
+            int target = (int) (bitrate * DECREASE_FACTOR);
+            // Fewer bits alone do not help an encoder that cannot keep up with the frames
+            if (bitrate == minBitrate || encoderLagUs > 2 * LAG_HIGH_US || congestedIntervals > 1)
+                frameRate = Math.max(minFrameRate, frameRate * 2 / 3);
+            setBitrate(target);
+            holdIntervals = HOLD_INTERVALS;
+        } else {
+            congestedIntervals = 0;
+            if (holdIntervals > 0) {
+                holdIntervals--;
+            } else if (frameRate < maxFrameRate && encoderLagUs < LAG_LOW_US && muxerBacklog < BACKLOG_LOW) {
+                frameRate = Math.min(maxFrameRate, frameRate + FRAME_RATE_STEP);
+                holdIntervals = HOLD_INTERVALS;
+            } else if (actualBitrate < UNDERUSE_RATIO * bitrate) {
+                // Static content: fall towards what is actually used, with headroom for motion
+                setBitrate((int) Math.max(actualBitrate * UNDERUSE_HEADROOM, bitrate * DECREASE_FACTOR));
+            } else if (actualBitrate > SATURATION_RATIO * bitrate) {
+                setBitrate((int) Math.max(bitrate * INCREASE_FACTOR, bitrate + maxBitrate / 10.0));
+                holdIntervals = INCREASE_HOLD_INTERVALS;
+            }
+        }
+
+        if (frameRate != oldFrameRate) return true;
+        if (Math.abs(bitrate - oldBitrate) < oldBitrate * MIN_CHANGE_RATIO) {
+            bitrate = oldBitrate;
+            return false;
+        }
+        return bitrate != oldBitrate;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    private void setBitrate(final int target) {
+        bitrate = clamp(target, minBitrate, maxBitrate);
+    }
+
+    private static int clamp(final int value, final int min, final int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    // Encoder output more than this far behind capture means it is not keeping up
+    private static final long LAG_HIGH_US = 200_000;
+    private static final long LAG_LOW_US = 66_000;
+    private static final double BACKLOG_HIGH = 0.5;
+    private static final double BACKLOG_LOW = 0.1;
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final double INCREASE_FACTOR = 2.0;
+    // Using less than half the budget counts as underuse; budget falls to twice the usage
+    private static final double UNDERUSE_RATIO = 0.5;
+    private static final double UNDERUSE_HEADROOM = 2.0;
+    private static final double SATURATION_RATIO = 0.9;
+    private static final double MIN_CHANGE_RATIO = 0.05;
+    private static final int FRAME_RATE_STEP = 5;
+    private static final int HOLD_INTERVALS = 2;
+    // Raising the budget is cheap to undo, so it needs only one interval to take effect
+    private static final int INCREASE_HOLD_INTERVALS = 1;
+
+    private final int minBitrate;
+    private final int maxBitrate;
+    private final int minFrameRate;
+    private final int maxFrameRate;
+    private int bitrate;
+    private int frameRate;
+    private int holdIntervals = 0;
+    private int congestedIntervals = 0;
+}
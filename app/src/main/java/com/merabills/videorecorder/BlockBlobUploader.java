@@ -0,0 +1,326 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a file to a {@link BlockStore} as fixed-size blocks staged in parallel, then commits
+ * the block list. Each staged block is recorded in an {@link UploadJournal}, so a later call for
+ * the same file, even from a new process, only stages the blocks that are still missing.
+ * Individual blocks are retried with exponential backoff before the upload gives up.
+ * <p>
+ * The journal is only trusted until a commit fails: the store may have dropped uncommitted
+ * blocks it lists, so the journal is then discarded and every block is staged again.
+ */
+public class BlockBlobUploader {
+
+    /**
+     * Outcome and throughput of one {@link #upload} call.
+     */
+    public static final class Result {
+
+        Result(
+                long bytesUploaded,
+                int blocksStaged,
+                int blocksResumed,
+                int retries,
+                long elapsedNanos
+        ) {
+
+            this.bytesUploaded = bytesUploaded;
+            this.blocksStaged = blocksStaged;
+            this.blocksResumed = blocksResumed;
+            this.retries = retries;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double getMegabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytesUploaded / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d bytes in %d blocks (%d resumed, %d retries) at %.2f MB/s",
+                    bytesUploaded, blocksStaged, blocksResumed, retries, getMegabytesPerSecond());
+        }
+
+        /** Bytes sent by this call, excluding blocks resumed from the journal. */
+        public final long bytesUploaded;
+        public final int blocksStaged;
+        public final int blocksResumed;
+        public final int retries;
+        public final long elapsedNanos;
+    }
+
+    /**
+     * Told when every block is staged, just before the block list is committed.
+     */
+    public interface CommitListener {
+
+        /**
+         * An exception thrown here fails the upload without committing it.
+         */
+        void onCommitting() throws IOException;
+    }
+
+    /**
+     * @param executor       Runs block uploads; at most {@code concurrency} are submitted at a
+     *                       time.
+     * @param blockSize      Raised to the store's minimum block size if that is larger.
+     * @param retryDelayMs   Delay before the first retry of a block, doubled on each further retry.
+     */
+    public BlockBlobUploader(
+            @NonNull final BlockStore store,
+            @NonNull final Executor executor,
+            final int blockSize,
+            final int concurrency,
+            final int maxRetries,
+            final long retryDelayMs
+    ) {
+
+        if (blockSize <= 0 || concurrency <= 0)
+            throw new IllegalArgumentException("blockSize and concurrency must be positive");
+        this.store = store;
+        this.executor = executor;
+        this.blockSize = Math.max(blockSize, store.getMinBlockSize());
+        this.concurrency = concurrency;
+        this.maxRetries = maxRetries;
+        this.retryDelayMs = retryDelayMs;
+    }
+
+    /**
+     * Uploads {@code file} as {@code blobName}, resuming from {@code journalFile} if it holds
+     * progress for the same file. The journal is deleted once the blob is committed, kept if
+     * staging fails and discarded if the commit fails.
+     */
+    @NonNull
+    public Result upload(
+            @NonNull final File file,
+            @NonNull final String blobName,
+            @NonNull final File journalFile
+    ) throws IOException {
+        return upload(file, blobName, journalFile, null);
+    }
+
+    /**
+     * As {@link #upload(File, String, File)}, telling {@code listener} before each commit.
+     */
+    @NonNull
+    public Result upload(
+            @NonNull final File file,
+            @NonNull final String blobName,
+            @NonNull final File journalFile,
+            @Nullable final CommitListener listener
+    ) throws IOException {
+
+        final long startNanos = System.nanoTime();
+        try {
+            return stageAndCommit(file, blobName, journalFile, listener, startNanos);
+        } catch (StaleJournalException e) {
+            // Some resumed block was gone from the store; the journal is discarded, so start over
+            return stageAndCommit(file, blobName, journalFile, listener, startNanos);
+        }
+    }
+
+    @NonNull
+    private Result stageAndCommit(
+            @NonNull final File file,
+            @NonNull final String blobName,
+            @NonNull final File journalFile,
+            @Nullable final CommitListener listener,
+            final long startNanos
+    ) throws IOException {
+
+        final long length = file.length();
+        final int blockCount = (int) Math.max(1, (length + blockSize - 1) / blockSize);
+        final UploadJournal journal = new UploadJournal(journalFile, blobName, file, blockSize);
+        final AtomicLong bytesUploaded = new AtomicLong();
+        final AtomicInteger retries = new AtomicInteger();
+        final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+        int blocksStaged = 0;
+        int blocksResumed = 0;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = input.getChannel();
+            final BitSet staged = journal.open();
+            final ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<>(executor);
+
+            IOException failure = null;
+            int nextBlock = 0;
+            int inFlight = 0;
+            while (true) {
+                while (failure == null && inFlight < concurrency && nextBlock < blockCount) {
+                    final int block = nextBlock++;
+                    if (staged.get(block)) {
+                        blocksResumed++;
+                        continue;
+                    }
+                    completion.submit(() -> {
+                        stageWithRetry(channel, blobName, block, length, buffers, bytesUploaded, retries);
+                        return block;
+                    });
+                    inFlight++;
+                }
+                if (inFlight == 0) break;
+
+                final Future<Integer> done = takeCompleted(completion);
+                inFlight--;
+                try {
+                    journal.recordStaged(done.get());
+                    blocksStaged++;
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = asIOException(e.getCause());
+                } catch (IOException e) {
+                    // Stop submitting, but let the blocks in flight finish before the channel closes
+                    if (failure == null) failure = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (failure == null) failure = new InterruptedIOException("Upload interrupted");
+                }
+            }
+            if (failure != null) throw failure;
+
+            final List<String> blockIds = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++)
+                blockIds.add(blockId(i));
+            if (listener != null) listener.onCommitting();
+            try {
+                store.commitFinalBlockList(blobName, blockIds);
+            } catch (IOException e) {
+                // A retry trusting the same journal would commit the same missing blocks
+                journal.discard();
+                if (blocksResumed > 0) throw new StaleJournalException(e);
+                throw e;
+            }
+            journal.complete();
+        } finally {
+            journal.close();
+        }
+        return new Result(bytesUploaded.get(), blocksStaged, blocksResumed, retries.get(),
+                System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Block IDs must all have the same length within a blob, so they are zero-padded.
+     */
+    @NonNull
+    public static String blockId(final int index) {
+
+        final String id = String.format(Locale.US, BLOCK_ID_PREFIX + "%08d", index);
+        return Base64.getEncoder().encodeToString(id.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Index encoded in an ID made by {@link #blockId}, or -1 if it is not one of those.
+     */
+    public static int blockIndex(@NonNull final String blockId) {
+
+        try {
+            final String id = new String(Base64.getDecoder().decode(blockId), StandardCharsets.US_ASCII);
+            return id.startsWith(BLOCK_ID_PREFIX) ? Integer.parseInt(id.substring(BLOCK_ID_PREFIX.length())) : -1;
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private void stageWithRetry(
+            @NonNull final FileChannel channel,
+            @NonNull final String blobName,
+            final int block,
+            final long length,
+            @NonNull final ConcurrentLinkedQueue<ByteBuffer> buffers,
+            @NonNull final AtomicLong bytesUploaded,
+            @NonNull final AtomicInteger retries
+    ) throws IOException, InterruptedException {
+
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) buffer = ByteBuffer.allocate(blockSize);
+        try {
+            final long offset = (long) block * blockSize;
+            final int size = (int) Math.min(blockSize, length - offset);
+            buffer.clear().limit(size);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, offset + buffer.position()) < 0)
+                    throw new IOException("File shrank during upload");
+
+            for (int attempt = 0; ; attempt++) {
+                buffer.position(0).limit(size);
+                try {
+                    store.stageBlock(blobName, blockId(block), buffer);
+                    bytesUploaded.addAndGet(size);
+                    return;
+                } catch (IOException e) {
+                    if (attempt >= maxRetries) throw e;
+                    retries.incrementAndGet();
+                    Thread.sleep(retryDelayMs << Math.min(attempt, MAX_BACKOFF_SHIFT));
+                }
+            }
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    @NonNull
+    private static Future<Integer> takeCompleted(@NonNull final ExecutorCompletionService<Integer> completion)
+            throws InterruptedIOException {
+
+        try {
+            return completion.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        }
+    }
+
+    @NonNull
+    private static IOException asIOException(final Throwable cause) {
+
+        if (cause instanceof IOException) return (IOException) cause;
+        return new IOException("Block upload failed", cause);
+    }
+
+    /**
+     * A commit failed after resuming blocks from the journal, which may name blocks the store
+     * no longer holds.
+     */
+    private static final class StaleJournalException extends IOException {
+
+        StaleJournalException(@NonNull final IOException cause) {
+            super(cause);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Caps the backoff at 2^6 times the initial delay
+    private static final int MAX_BACKOFF_SHIFT = 6;
+    private static final String BLOCK_ID_PREFIX = "block-";
+
+    private final BlockStore store;
+    private final Executor executor;
+    private final int blockSize;
+    private final int concurrency;
+    private final int maxRetries;
+    private final long retryDelayMs;
+}
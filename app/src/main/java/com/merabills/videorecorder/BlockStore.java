@@ -0,0 +1,58 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Storage that assembles a blob from separately staged blocks, in the manner of an Azure block
+ * blob. Staged blocks stay invisible until {@link #commitBlockList} names them. This is the
+ * interface every upload backend implements; see {@link StorageBackend} for the ones available.
+ * Implementations must be safe to call from several threads at once.
+ */
+public interface BlockStore {
+
+    /**
+     * Uploads the remaining bytes of {@code data} as block {@code blockId} of {@code blobName}.
+     * Staging the same block ID again replaces it.
+     */
+    void stageBlock(@NonNull String blobName, @NonNull String blockId, @NonNull ByteBuffer data)
+            throws IOException;
+
+    /**
+     * Makes the blob consist of exactly the given blocks, in order, replacing any previous
+     * content.
+     */
+    void commitBlockList(@NonNull String blobName, @NonNull List<String> blockIds) throws IOException;
+
+    /**
+     * Commits the blob for the last time, after which the store may discard what it kept to
+     * let the blob be extended, such as the staged blocks themselves.
+     */
+    default void commitFinalBlockList(@NonNull String blobName, @NonNull List<String> blockIds)
+            throws IOException {
+        commitBlockList(blobName, blockIds);
+    }
+
+    /**
+     * Size of the committed blob, or -1 if it does not exist.
+     */
+    long getBlobSize(@NonNull String blobName) throws IOException;
+
+    /**
+     * Smallest block the store accepts, other than the last block of a blob.
+     */
+    default int getMinBlockSize() {
+        return 1;
+    }
+
+    /**
+     * Whether a blob can be committed again with more blocks, which live uploads use to keep
+     * a growing prefix of the recording visible. Stores that cannot are only committed once.
+     */
+    default boolean canCommitRepeatedly() {
+        return true;
+    }
+}
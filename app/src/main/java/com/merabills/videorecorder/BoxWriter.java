@@ -0,0 +1,148 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable big-endian byte array for building ISO BMFF (MP4) boxes. A box is opened with
+ * {@link #startBox} and closed with {@link #endBox}, which patches its 32-bit size.
+ */
+public class BoxWriter {
+
+    public BoxWriter(final int initialCapacity) {
+        this.data = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * Opens a box and returns its offset, to be passed to {@link #endBox}.
+     */
+    public int startBox(@NonNull final String type) {
+
+        final int offset = size;
+        u32(0);
+        fourCc(type);
+        return offset;
+    }
+
+    public int startFullBox(@NonNull final String type, final int version, final int flags) {
+
+        final int offset = startBox(type);
+        u32((version << 24) | (flags & 0xFFFFFF));
+        return offset;
+    }
+
+    public void endBox(final int offset) {
+        patchU32(offset, size - offset);
+    }
+
+    public BoxWriter u8(final int value) {
+
+        ensure(1);
+        data[size++] = (byte) value;
+        return this;
+    }
+
+    public BoxWriter u16(final int value) {
+
+        ensure(2);
+        data[size++] = (byte) (value >>> 8);
+        data[size++] = (byte) value;
+        return this;
+    }
+
+    public BoxWriter u24(final int value) {
+        return u8(value >>> 16).u16(value);
+    }
+
+    public BoxWriter u32(final long value) {
+
+        ensure(4);
+        data[size++] = (byte) (value >>> 24);
+        data[size++] = (byte) (value >>> 16);
+        data[size++] = (byte) (value >>> 8);
+        data[size++] = (byte) value;
+        return this;
+    }
+
+    public BoxWriter u64(final long value) {
+        return u32(value >>> 32).u32(value);
+    }
+
+    public BoxWriter fourCc(@NonNull final String type) {
+        return bytes(type.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public BoxWriter bytes(@NonNull final byte[] bytes) {
+        return bytes(bytes, 0, bytes.length);
+    }
+
+    public BoxWriter bytes(@NonNull final byte[] bytes, final int offset, final int length) {
+
+        ensure(length);
+        System.arraycopy(bytes, offset, data, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Appends the remaining bytes of {@code buffer} without moving its position.
+     */
+    public BoxWriter bytes(@NonNull final ByteBuffer buffer) {
+
+        final int length = buffer.remaining();
+        ensure(length);
+        buffer.duplicate().get(data, size, length);
+        size += length;
+        return this;
+    }
+
+    public BoxWriter zeros(final int count) {
+
+        ensure(count);
+        Arrays.fill(data, size, size + count, (byte) 0);
+        size += count;
+        return this;
+    }
+
+    public void patchU32(final int offset, final long value) {
+
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    @NonNull
+    public byte[] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    public void writeTo(@NonNull final WritableByteChannel channel) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private void ensure(final int extra) {
+
+        if (size + extra > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+    }
+
+    private byte[] data;
+    private int size = 0;
+}
@@ -0,0 +1,134 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * {@link EncoderEngine} built on the codec's asynchronous mode. Output is handled directly on
+ * the callback thread as soon as it is available. Raw input, which may block on capture, is
+ * filled on a dedicated thread that sleeps until the codec reports a free input buffer.
+ */
+public class CallbackEncoderEngine implements EncoderEngine {
+
+    public CallbackEncoderEngine(@NonNull final String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void attach(
+            @NonNull final EncoderCodec codec,
+            @NonNull final Listener listener,
+            @Nullable final InputFiller inputFiller
+    ) {
+
+        this.codec = codec;
+        this.listener = listener;
+        this.inputFiller = inputFiller;
+        codec.setCallback(new EncoderCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(int index) {
+                // Indices are small, so boxing them hits the Integer cache
+                if (inputFiller != null) freeInputBuffers.offer(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(int index, @NonNull SampleInfo info) {
+                deliverOutput(index, info);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaFormat format) {
+                if (running) listener.onOutputFormatChanged(format);
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                if (running) listener.onError(error);
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+
+        running = true;
+        if (inputFiller != null) {
+            inputThread = new Thread(this::runInput, name);
+            inputThread.start();
+        }
+        codec.start();
+    }
+
+    @Override
+    public void stop() {
+
+        running = false;
+        if (inputThread != null) {
+            inputThread.interrupt();
+            try {
+                inputThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        freeInputBuffers.clear();
+    }
+
+    private void runInput() {
+
+        final SampleInfo inputInfo = new SampleInfo();
+        try {
+            while (running) {
+                final int index = freeInputBuffers.take();
+                final ByteBuffer inputBuffer = codec.getInputBuffer(index);
+                if (inputBuffer == null) continue;
+
+                inputBuffer.clear();
+                inputInfo.set(0, 0, 0, 0);
+                inputFiller.fillInput(inputBuffer, inputInfo);
+                codec.queueInputBuffer(
+                        index,
+                        inputInfo.offset,
+                        inputInfo.size,
+                        inputInfo.presentationTimeUs,
+                        inputInfo.flags
+                );
+            }
+        } catch (InterruptedException e) {
+            // stop() interrupts the wait for a free buffer
+        } catch (IllegalStateException e) {
+            if (running) listener.onError(e);
+        }
+    }
+
+    private void deliverOutput(final int index, @NonNull final SampleInfo info) {
+
+        try {
+            final ByteBuffer encodedData = codec.getOutputBuffer(index);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) info.size = 0;
+            if (running && encodedData != null && info.size > 0) {
+                encodedData.position(info.offset);
+                encodedData.limit(info.offset + info.size);
+                listener.onEncodedSample(encodedData, info);
+            }
+            codec.releaseOutputBuffer(index);
+        } catch (IllegalStateException e) {
+            // The codec may be stopped between this callback being posted and running
+            if (running) listener.onError(e);
+        }
+    }
+
+    private final String name;
+    private final LinkedBlockingQueue<Integer> freeInputBuffers = new LinkedBlockingQueue<>();
+    private EncoderCodec codec;
+    private Listener listener;
+    private InputFiller inputFiller;
+    private Thread inputThread;
+    private volatile boolean running = false;
+}
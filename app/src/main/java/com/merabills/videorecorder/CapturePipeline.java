@@ -0,0 +1,127 @@
+package com.merabills.videorecorder;
+
+import android.Manifest;
+import android.media.projection.MediaProjection;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.RequiresPermission;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The expensive half of a recording, kept warm between files: the media projection, its
+ * virtual display and audio capture, and the configured encoders.
+ * <p>
+ * Each recording attaches its own {@link MuxerCoordinator}, and several can be attached at
+ * once; while none is attached, encoded output is dropped. Starting the next file therefore
+ * costs one requested key frame instead of a new projection, display and pair of codecs.
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+public class CapturePipeline {
+
+    public CapturePipeline(
+            @NonNull final MediaProjection mediaProjection,
+            @NonNull final EncoderSelector.VideoConfig videoConfig,
+            @NonNull final EncoderSelector.AudioConfig audioConfig
+    ) {
+
+        this.mediaProjection = mediaProjection;
+        this.screenMicRecorder = new ScreenMicRecorder(mediaProjection, videoConfig);
+        this.internalAudioRecorder = new InternalAudioRecorder(mediaProjection, audioConfig);
+    }
+
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    public void start() throws IOException {
+
+        // Required before creating a virtual display, and tells us when the user revokes capture
+        mediaProjection.registerCallback(new MediaProjection.Callback() {
+            @Override
+            public void onStop() {
+                alive = false;
+                Log.i(TAG, "Media projection stopped");
+            }
+        }, new Handler(Looper.getMainLooper()));
+
+        final long startNanos = System.nanoTime();
+        screenMicRecorder.prepare();
+        internalAudioRecorder.prepare();
+        screenMicRecorder.start();
+        internalAudioRecorder.start();
+        Log.i(TAG, "Pipeline started in " + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Sends both tracks to {@code coordinator} alone, or drops them if null.
+     */
+    public void attach(@Nullable final MuxerCoordinator coordinator) {
+
+        internalAudioRecorder.setMuxer(coordinator);
+        screenMicRecorder.setMuxer(coordinator);
+    }
+
+    /**
+     * Sends both tracks to {@code coordinator} as well as any already attached, from the next
+     * video key frame on. Each sample is still encoded only once.
+     */
+    public void add(@NonNull final MuxerCoordinator coordinator) {
+
+        internalAudioRecorder.addMuxer(coordinator);
+        screenMicRecorder.addMuxer(coordinator);
+    }
+
+    public void remove(@NonNull final MuxerCoordinator coordinator) {
+
+        internalAudioRecorder.removeMuxer(coordinator);
+        screenMicRecorder.removeMuxer(coordinator);
+    }
+
+    /**
+     * Silent stretches of the audio track between {@code startUs} and {@code endUs}, for one of
+     * several recordings that overlap.
+     */
+    @NonNull
+    public List<SilenceSpans.Span> getSilenceSpans(final long startUs, final long endUs) {
+        return internalAudioRecorder.getSilenceSpans(startUs, endUs);
+    }
+
+    /**
+     * Forgets the silent stretches that ended before {@code beforeUs}.
+     */
+    public void pruneSilenceSpans(final long beforeUs) {
+        internalAudioRecorder.pruneSilenceSpans(beforeUs);
+    }
+
+    /**
+     * False once the projection has been stopped by the system or the user, after which the
+     * pipeline can only be released.
+     */
+    public boolean isAlive() {
+        return alive;
+    }
+
+    public void release() {
+
+        alive = false;
+        attach(null);
+        try {
+            screenMicRecorder.stop();
+            internalAudioRecorder.stop();
+        } catch (Exception e) {
+            Log.e(TAG, "Error while stopping recorders", e);
+        }
+        mediaProjection.stop();
+    }
+
+    private static final String TAG = "CapturePipeline";
+    private final MediaProjection mediaProjection;
+    private final ScreenMicRecorder screenMicRecorder;
+    private final InternalAudioRecorder internalAudioRecorder;
+    private volatile boolean alive = true;
+}
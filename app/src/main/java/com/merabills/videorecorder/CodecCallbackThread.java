@@ -0,0 +1,29 @@
+package com.merabills.videorecorder;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Process-wide thread on which every asynchronous encoder delivers its callbacks.
+ */
+public final class CodecCallbackThread {
+
+    @NonNull
+    public static synchronized Handler getHandler() {
+
+        if (handler == null) {
+            final HandlerThread thread = new HandlerThread("CodecCallbackThread", Process.THREAD_PRIORITY_AUDIO);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    private CodecCallbackThread() {
+    }
+
+    private static Handler handler;
+}
@@ -0,0 +1,177 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Recording commands waiting for the service's main thread, with bursts collapsed as they
+ * arrive.
+ * <p>
+ * Several recordings can run at once, so a command only replaces the one before it when that
+ * one could have no lasting effect: a repeat of the same command for the same file, or any
+ * start or restart followed by a restart, which ends every recording before starting its own.
+ * Replay dumps never merge, as each one saves a file of its own. The merged command keeps the
+ * earliest request time, so time to first frame is measured from when the caller first asked.
+ * Everyone waiting on a replaced command is answered together with the command that replaced
+ * it.
+ *
+ * @param <R> How a caller is answered.
+ */
+public class CommandQueue<R> {
+
+    public static final class Command<R> {
+
+        Command(
+                @NonNull final String action,
+                @NonNull final String fileName,
+                @Nullable final String videoQuality,
+                final long requestNanos,
+                final boolean bound
+        ) {
+
+            this.action = action;
+            this.fileName = fileName;
+            this.videoQuality = videoQuality;
+            this.requestNanos = requestNanos;
+            this.bound = bound;
+        }
+
+        @NonNull
+        public String getAction() {
+            return action;
+        }
+
+        @NonNull
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Name of the {@link EncoderSelector.Quality} asked for, or null for the default.
+         */
+        @Nullable
+        public String getVideoQuality() {
+            return videoQuality;
+        }
+
+        /**
+         * How many commands this one stands for.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Callers to answer once the command has run; one per merged command that had one.
+         */
+        @NonNull
+        public List<R> getReplyTo() {
+            return replyTo;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return action + " " + fileName + (count > 1 ? " (x" + count + ")" : "");
+        }
+
+        public final long requestNanos;
+        /** True if it came over the bound control channel rather than a start intent. */
+        public final boolean bound;
+        private String action;
+        private String fileName;
+        private String videoQuality;
+        private int count = 1;
+        private final List<R> replyTo = new ArrayList<>(1);
+    }
+
+    /**
+     * Queues a command, merging it into the last queued one if possible.
+     *
+     * @return true if it was merged.
+     */
+    public synchronized boolean offer(
+            @NonNull final String action,
+            @NonNull final String fileName,
+            @Nullable final String videoQuality,
+            final long requestNanos,
+            final boolean bound,
+            @Nullable final R replyTo
+    ) {
+
+        final Command<R> last = pending.isEmpty() ? null : pending.get(pending.size() - 1);
+        if (last != null && replaces(last, action, fileName, videoQuality)) {
+            last.action = action;
+            last.fileName = fileName;
+            last.videoQuality = videoQuality;
+            last.count++;
+            if (replyTo != null) last.replyTo.add(replyTo);
+            coalesced++;
+            return true;
+        }
+        final Command<R> command = new Command<>(action, fileName, videoQuality, requestNanos, bound);
+        if (replyTo != null) command.replyTo.add(replyTo);
+        pending.add(command);
+        return false;
+    }
+
+    /**
+     * Takes every queued command, oldest first.
+     */
+    @NonNull
+    public synchronized List<Command<R>> drain() {
+
+        final List<Command<R>> commands = new ArrayList<>(pending);
+        pending.clear();
+        return commands;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Commands absorbed by a later one so far.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    private static boolean replaces(
+            @NonNull final Command<?> last,
+            @NonNull final String action,
+            @NonNull final String fileName,
+            @Nullable final String videoQuality
+    ) {
+
+        // Each dump saves its own file
+        if (Constants.VALUE_DUMP_REPLAY.equals(action)) return false;
+        if (Constants.VALUE_RESTART.equals(action)) return isStartOrRestart(last.action);
+        return last.action.equals(action)
+                && last.fileName.equals(fileName)
+                && Objects.equals(last.videoQuality, videoQuality);
+    }
+
+    private static boolean isStartOrRestart(@NonNull final String action) {
+        return isStart(action) || Constants.VALUE_RESTART.equals(action);
+    }
+
+    /**
+     * Anything but the named actions starts a recording, as in the service's start intents.
+     */
+    private static boolean isStart(@NonNull final String action) {
+
+        return !Constants.VALUE_RESTART.equals(action)
+                && !Constants.VALUE_STOP.equals(action)
+                && !Constants.VALUE_DESTROY.equals(action)
+                && !Constants.VALUE_START_REPLAY.equals(action)
+                && !Constants.VALUE_DUMP_REPLAY.equals(action);
+    }
+
+    private final List<Command<R>> pending = new ArrayList<>();
+    private long coalesced = 0;
+}
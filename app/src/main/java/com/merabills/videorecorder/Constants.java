@@ -3,14 +3,134 @@ package com.merabills.videorecorder;
 public class Constants {
     static final String AZURE_ENDPOINT = "https://testrajat.blob.core.windows.net";
     static final String AZURE_CONTAINER_NAME = "videos";
+    // Used with StorageBackend.S3; the access keys are kept out of the public tree like the SAS token
+    static final String S3_ENDPOINT = "https://s3.ap-south-1.amazonaws.com";
+    static final String S3_REGION = "ap-south-1";
+    static final String S3_BUCKET = "videos";
     public static final String KEY_ACTION = "action";
     public static final String KEY_FILE_NAME = "file_name";
     public static final String VALUE_RESTART = "restart";
     public static final String VALUE_STOP = "stop";
     public static final String VALUE_DESTROY = "destroy";
+    // Keep only the last REPLAY_WINDOW_US of capture until VALUE_DUMP_REPLAY saves it as file_name
+    public static final String VALUE_START_REPLAY = "start_replay";
+    public static final String VALUE_DUMP_REPLAY = "dump_replay";
+    // Other apps bind ScreenRecorderService only with this permission, which is kept to apps signed
+    // with the same key
+    public static final String PERMISSION_CONTROL_RECORDING = "com.merabills.videorecorder.permission.CONTROL_RECORDING";
+    // Bound clients send MSG_GET_SESSION_METRICS; the reply carries the report under KEY_SESSION_METRICS
+    public static final int MSG_GET_SESSION_METRICS = 1;
+    public static final String KEY_SESSION_METRICS = "session_metrics";
+    // ...and time to first frame per command path under KEY_FIRST_FRAME_LATENCY
+    public static final String KEY_FIRST_FRAME_LATENCY = "first_frame_latency";
+    // ...and the running sessions' resource use under KEY_SESSION_RESOURCES
+    public static final String KEY_SESSION_RESOURCES = "session_resources";
+    // Bound clients send MSG_COMMAND with KEY_ACTION and KEY_FILE_NAME, as in a start intent; once
+    // it has run they get MSG_COMMAND_DONE with arg1 1 on success, and KEY_COALESCED if merged
+    public static final int MSG_COMMAND = 2;
+    public static final int MSG_COMMAND_DONE = 3;
+    public static final String KEY_COALESCED = "coalesced";
+    // Optional SystemClock.elapsedRealtimeNanos() at which a command was sent, for time to first frame
+    public static final String KEY_SENT_ELAPSED_NANOS = "sent_elapsed_nanos";
+    // Optional EncoderSelector.Quality name for a start; files at the same quality share one
+    // set of encoders, and only one quality can be captured at a time
+    public static final String KEY_VIDEO_QUALITY = "video_quality";
 
     public static final String CHANNEL_ID = "ScreenRecorderChannel";
     public static final String EXTENSION_MP4 = ".mp4";
+    public static final String EXTENSION_SEGMENT_MANIFEST = ".segments";
+    public static final String EXTENSION_SILENCE_SPANS = ".silence";
+    // Per-session performance report written next to the recording; see SessionMetrics
+    public static final String EXTENSION_SESSION_REPORT = ".metrics.json";
     public static final String NAME_RECORDING_FOLDER = "/ScreenRecords";
     public static CharSequence CHANNEL_NAME = "Screen Recorder";
+
+    // Samples held while waiting for every track to be added to the muxer
+    public static final long PRE_START_QUEUE_MAX_BYTES = 8L * 1024 * 1024;
+    // Sample descriptors that encoders can hand to the muxer writer thread without blocking
+    public static final int MUXER_QUEUE_CAPACITY = 1024;
+    // How far ahead of the slowest track the writer may buffer to interleave by timestamp
+    public static final long MUXER_REORDER_WINDOW_US = 250_000;
+    // Encoder, size and bitrate are picked per device for this target; see EncoderSelector
+    public static final EncoderSelector.Quality VIDEO_QUALITY = EncoderSelector.Quality.MEDIUM;
+    public static final int VIDEO_FRAME_RATE = 30;
+    // With ADAPTIVE_BITRATE the bitrate moves between this floor and the selected bitrate
+    public static final int VIDEO_MIN_BITRATE = 300 * 1024;
+    public static final int VIDEO_MIN_FRAME_RATE = 5;
+    public static final boolean ADAPTIVE_BITRATE = false;
+    public static final long BITRATE_ADAPT_INTERVAL_US = 1_000_000;
+    // Drop frames identical to the previous one, keeping one every FRAME_KEEP_ALIVE_US
+    public static final boolean FRAME_GATING = false;
+    public static final long FRAME_KEEP_ALIVE_US = 2_000_000;
+    public static final int FRAME_GATE_SAMPLE_STEP = 8;
+    public static final int FRAME_GATE_BLOCK_SIZE = 16;
+    public static final int AUDIO_CHANNEL_COUNT = 2;
+    public static final int AUDIO_BITRATE = 128_000;
+    // Encode confirmed silence as zeros at a low bitrate and save the spans next to the recording
+    public static final boolean SILENCE_COMPACTION = false;
+    public static final double SILENCE_THRESHOLD_DBFS = -60;
+    public static final long SILENCE_HOLD_US = 500_000;
+    public static final int AUDIO_SILENCE_BITRATE = 16_000;
+    // Mix the microphone into the playback audio track
+    public static final boolean MIX_MICROPHONE = false;
+    public static final float PLAYBACK_GAIN = 1.0f;
+    public static final float MICROPHONE_GAIN = 1.0f;
+    public static final long MICROPHONE_RING_US = 1_000_000;
+    // How long a playback chunk may wait for the microphone audio covering it
+    public static final long MICROPHONE_MAX_WAIT_NANOS = 30_000_000;
+    // Encoder capabilities probed on this build, kept in the app's private files directory
+    public static final String NAME_ENCODER_CAPABILITIES = "encoder_capabilities.txt";
+    // How long the projection and encoders stay warm after a stop, waiting for a restart
+    public static final long PIPELINE_IDLE_TIMEOUT_MS = 30_000;
+    // How encoders are driven; POLLING keeps the original dedicated dequeue loops
+    public static final EncoderEngine.Mode ENCODER_ENGINE_MODE = EncoderEngine.Mode.CALLBACK;
+
+    // Split recordings into rolling MP4 segments that are uploaded as soon as they are sealed
+    public static final boolean SEGMENTED_RECORDING = false;
+    public static final long SEGMENT_MAX_DURATION_US = 60_000_000;
+    public static final long SEGMENT_MAX_BYTES = 50L * 1024 * 1024;
+
+    // Write a fragmented MP4 and upload it while recording; takes precedence over segmenting
+    public static final boolean LIVE_UPLOAD = false;
+    public static final long FRAGMENT_DURATION_US = 2_000_000;
+    public static final long LIVE_UPLOAD_MIN_BLOCK_BYTES = 1024 * 1024;
+
+    // Write recordings and segments with ProgressiveMp4Muxer instead of MediaMuxer
+    public static final boolean PURE_JAVA_MUXER = false;
+    // Move the moov box ahead of the media data once a pure Java recording is finished
+    public static final boolean MP4_FASTSTART = true;
+    // At most this much of a pure Java recording is lost if the process is killed
+    public static final long MP4_CHECKPOINT_INTERVAL_US = 1_000_000;
+
+    // Replay buffer: sized for the window at the highest video bitrate, with room to spare
+    public static final long REPLAY_WINDOW_US = 60_000_000;
+    public static final int REPLAY_BUFFER_BYTES = 64 * 1024 * 1024;
+    public static final int REPLAY_MAX_SAMPLES = 16 * 1024;
+    // Map the replay buffer from a file in the cache directory instead of direct memory
+    public static final boolean REPLAY_BUFFER_ON_DISK = false;
+    public static final String NAME_REPLAY_BUFFER = "replay_buffer.bin";
+
+    // Where recordings are uploaded; LOCAL copies them into NAME_LOCAL_UPLOAD_FOLDER under Movies
+    public static final StorageBackend UPLOAD_BACKEND = StorageBackend.AZURE;
+    public static final String NAME_LOCAL_UPLOAD_FOLDER = "/ScreenRecordsUploaded";
+    // Re-encode finished recordings on metered networks before uploading them; see TranscodePolicy
+    public static final boolean TRANSCODE_BEFORE_UPLOAD = false;
+    public static final long TRANSCODE_MIN_BYTES = 4L * 1024 * 1024;
+    public static final int TRANSCODE_MIN_BATTERY_PERCENT = 30;
+    public static final int TRANSCODE_VIDEO_BITRATE = 1_000_000;
+    public static final double TRANSCODE_MIN_SAVING = 0.3;
+    // PowerManager thermal levels at which the pass is slowed down and paused
+    public static final int TRANSCODE_THROTTLE_THERMAL_STATUS = 2;
+    public static final int TRANSCODE_PAUSE_THERMAL_STATUS = 3;
+    public static final long TRANSCODE_MAX_PAUSE_MS = 5 * 60_000;
+    // Uploads are staged as blocks of this size, several at a time, and committed at the end
+    public static final int UPLOAD_BLOCK_SIZE = 4 * 1024 * 1024;
+    public static final int UPLOAD_CONCURRENCY = 4;
+    // Whole uploads in progress at once; each shares the UPLOAD_CONCURRENCY block slots
+    public static final int UPLOAD_WORKERS = 2;
+    public static final int UPLOAD_MAX_RETRIES = 5;
+    public static final long UPLOAD_RETRY_DELAY_MS = 500;
+    public static final String EXTENSION_UPLOAD_JOURNAL = ".upload";
+    // Durable upload queue, kept in the app's private files directory
+    public static final String NAME_UPLOAD_QUEUE = "upload_queue.log";
 }
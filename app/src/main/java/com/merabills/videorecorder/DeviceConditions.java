@@ -0,0 +1,43 @@
+package com.merabills.videorecorder;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Reads the network, battery and thermal state that the transcode pass depends on.
+ */
+public class DeviceConditions implements TranscodeScheduler.ConditionsSource {
+
+    public DeviceConditions(@NonNull final Context context) {
+
+        final Context application = context.getApplicationContext();
+        connectivity = application.getSystemService(ConnectivityManager.class);
+        battery = application.getSystemService(BatteryManager.class);
+        power = application.getSystemService(PowerManager.class);
+    }
+
+    @NonNull
+    @Override
+    public TranscodePolicy.Conditions current() {
+
+        // Assume the worst about the network and the best about the battery when unknown
+        final boolean metered = connectivity == null || connectivity.isActiveNetworkMetered();
+        final boolean charging = battery != null && battery.isCharging();
+        final int batteryPercent = battery != null
+                ? battery.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY)
+                : 100;
+        final int thermalStatus = power != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? power.getCurrentThermalStatus()
+                : 0;
+        return new TranscodePolicy.Conditions(metered, charging, batteryPercent, thermalStatus);
+    }
+
+    private final ConnectivityManager connectivity;
+    private final BatteryManager battery;
+    private final PowerManager power;
+}
@@ -0,0 +1,242 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the encoders a device offers, reduced to what {@link EncoderSelector} needs.
+ * <p>
+ * Probing {@code MediaCodecList} takes tens of milliseconds and can only change with a system
+ * update, so the snapshot is written to disk as text, one line per encoder, and stamped with
+ * the build fingerprint it was taken on:
+ * <pre>
+ * fingerprint=google/panther/panther:14/...
+ * codec name=c2.exynos.h264.encoder mime=video/avc hardware=true width=96-4096 height=96-4096
+ *       align=2x2 pixels=8912896 bitrate=1-120000000 fps=1-240 profiles=1:65536,2:65536,8:65536
+ * codec name=c2.android.aac.encoder mime=audio/mp4a-latm hardware=false bitrate=8000-960000
+ *       rates=8000,16000,44100,48000 channels=6 profiles=2:0
+ * </pre>
+ * Unknown keys are ignored, so fields can be added without invalidating older snapshots.
+ */
+public class EncoderCapabilities {
+
+    public static final class Codec {
+
+        public Codec(@NonNull final String name, @NonNull final String mime, final boolean hardware) {
+
+            this.name = name;
+            this.mime = mime;
+            this.hardware = hardware;
+        }
+
+        public boolean isVideo() {
+            return mime.startsWith("video/");
+        }
+
+        /**
+         * Highest level advertised for {@code profile}, or -1 if the profile is not supported.
+         * A level of 0 means the encoder did not report one.
+         */
+        public int getMaxLevel(final int profile) {
+
+            final Integer level = profileLevels.get(profile);
+            return level == null ? -1 : level;
+        }
+
+        public boolean isSizeSupported(final int width, final int height) {
+
+            return width >= minWidth && width <= maxWidth
+                    && height >= minHeight && height <= maxHeight
+                    && width % widthAlignment == 0 && height % heightAlignment == 0
+                    && (maxPixels == 0 || (long) width * height <= maxPixels);
+        }
+
+        public boolean isSampleRateSupported(final int sampleRate) {
+
+            if (sampleRates.length == 0) return true;
+            for (final int supported : sampleRates)
+                if (supported == sampleRate) return true;
+            return false;
+        }
+
+        @NonNull
+        public final String name;
+        @NonNull
+        public final String mime;
+        public final boolean hardware;
+        public int minWidth = 1;
+        public int maxWidth = Integer.MAX_VALUE;
+        public int minHeight = 1;
+        public int maxHeight = Integer.MAX_VALUE;
+        public int widthAlignment = 2;
+        public int heightAlignment = 2;
+        // Largest frame area the encoder accepts, or 0 if only the width and height ranges apply
+        public long maxPixels = 0;
+        public int minBitrate = 1;
+        public int maxBitrate = Integer.MAX_VALUE;
+        public int maxFrameRate = Integer.MAX_VALUE;
+        // Audio only; empty means any rate
+        public int[] sampleRates = new int[0];
+        public int maxChannels = 2;
+        // Profile to the highest level advertised for it
+        public final Map<Integer, Integer> profileLevels = new LinkedHashMap<>();
+    }
+
+    public EncoderCapabilities(@NonNull final String fingerprint, @NonNull final List<Codec> codecs) {
+
+        this.fingerprint = fingerprint;
+        this.codecs = Collections.unmodifiableList(new ArrayList<>(codecs));
+    }
+
+    @NonNull
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Encoders in the order they were listed, which is the platform's order of preference.
+     */
+    @NonNull
+    public List<Codec> getCodecs() {
+        return codecs;
+    }
+
+    @NonNull
+    public List<String> toLines() {
+
+        final List<String> lines = new ArrayList<>();
+        lines.add(KEY_FINGERPRINT + "=" + fingerprint);
+        for (final Codec codec : codecs) {
+            final StringBuilder line = new StringBuilder(RECORD_CODEC)
+                    .append(" name=").append(codec.name)
+                    .append(" mime=").append(codec.mime)
+                    .append(" hardware=").append(codec.hardware)
+                    .append(" bitrate=").append(codec.minBitrate).append('-').append(codec.maxBitrate);
+            if (codec.isVideo()) {
+                line.append(" width=").append(codec.minWidth).append('-').append(codec.maxWidth)
+                        .append(" height=").append(codec.minHeight).append('-').append(codec.maxHeight)
+                        .append(" align=").append(codec.widthAlignment).append('x').append(codec.heightAlignment)
+                        .append(" pixels=").append(codec.maxPixels)
+                        .append(" fps=1-").append(codec.maxFrameRate);
+            } else {
+                line.append(" rates=").append(join(codec.sampleRates))
+                        .append(" channels=").append(codec.maxChannels);
+            }
+            line.append(" profiles=");
+            String separator = "";
+            for (final Map.Entry<Integer, Integer> entry : codec.profileLevels.entrySet()) {
+                line.append(separator).append(entry.getKey()).append(':').append(entry.getValue());
+                separator = ",";
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Parses lines written by {@link #toLines}.
+     *
+     * @throws IllegalArgumentException if a line is malformed.
+     */
+    @NonNull
+    public static EncoderCapabilities fromLines(@NonNull final List<String> lines) {
+
+        String fingerprint = "";
+        final List<Codec> codecs = new ArrayList<>();
+        for (final String line : lines) {
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            if (trimmed.startsWith(KEY_FINGERPRINT + "=")) {
+                fingerprint = trimmed.substring(KEY_FINGERPRINT.length() + 1);
+            } else if (trimmed.startsWith(RECORD_CODEC + " ")) {
+                codecs.add(parseCodec(trimmed));
+            } else {
+                throw new IllegalArgumentException("Unknown record: " + line);
+            }
+        }
+        return new EncoderCapabilities(fingerprint, codecs);
+    }
+
+    @NonNull
+    private static Codec parseCodec(@NonNull final String line) {
+
+        final Map<String, String> fields = new LinkedHashMap<>();
+        for (final String token : line.split("\\s+")) {
+            final int equals = token.indexOf('=');
+            if (equals > 0) fields.put(token.substring(0, equals), token.substring(equals + 1));
+        }
+        final String name = fields.get("name");
+        final String mime = fields.get("mime");
+        if (name == null || mime == null) throw new IllegalArgumentException("Codec without a name or mime: " + line);
+
+        try {
+            final Codec codec = new Codec(name, mime, Boolean.parseBoolean(fields.get("hardware")));
+            final int[] bitrate = range(fields.get("bitrate"), codec.minBitrate, codec.maxBitrate);
+            codec.minBitrate = bitrate[0];
+            codec.maxBitrate = bitrate[1];
+            final int[] width = range(fields.get("width"), codec.minWidth, codec.maxWidth);
+            codec.minWidth = width[0];
+            codec.maxWidth = width[1];
+            final int[] height = range(fields.get("height"), codec.minHeight, codec.maxHeight);
+            codec.minHeight = height[0];
+            codec.maxHeight = height[1];
+            final String align = fields.get("align");
+            if (align != null) {
+                final int x = align.indexOf('x');
+                codec.widthAlignment = Integer.parseInt(align.substring(0, x));
+                codec.heightAlignment = Integer.parseInt(align.substring(x + 1));
+            }
+            if (fields.containsKey("pixels")) codec.maxPixels = Long.parseLong(fields.get("pixels"));
+            codec.maxFrameRate = range(fields.get("fps"), 1, codec.maxFrameRate)[1];
+            final String rates = fields.get("rates");
+            if (rates != null && !rates.isEmpty()) {
+                final String[] parts = rates.split(",");
+                codec.sampleRates = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) codec.sampleRates[i] = Integer.parseInt(parts[i]);
+            }
+            if (fields.containsKey("channels")) codec.maxChannels = Integer.parseInt(fields.get("channels"));
+            final String profiles = fields.get("profiles");
+            if (profiles != null && !profiles.isEmpty()) {
+                for (final String pair : profiles.split(",")) {
+                    final int colon = pair.indexOf(':');
+                    codec.profileLevels.put(
+                            Integer.parseInt(pair.substring(0, colon)),
+                            Integer.parseInt(pair.substring(colon + 1)));
+                }
+            }
+            return codec;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed codec: " + line, e);
+        }
+    }
+
+    @NonNull
+    private static int[] range(final String value, final int defaultMin, final int defaultMax) {
+
+        if (value == null) return new int[]{defaultMin, defaultMax};
+        final int dash = value.indexOf('-');
+        return new int[]{Integer.parseInt(value.substring(0, dash)), Integer.parseInt(value.substring(dash + 1))};
+    }
+
+    @NonNull
+    private static String join(@NonNull final int[] values) {
+
+        final StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) joined.append(',');
+            joined.append(values[i]);
+        }
+        return joined.toString();
+    }
+
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String RECORD_CODEC = "codec";
+
+    private final String fingerprint;
+    private final List<Codec> codecs;
+}
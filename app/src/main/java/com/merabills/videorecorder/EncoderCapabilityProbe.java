@@ -0,0 +1,146 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the device's {@link EncoderCapabilities} from {@link MediaCodecList}, caching the
+ * result on disk so that only the first start after install or a system update pays for it.
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+public class EncoderCapabilityProbe {
+
+    private EncoderCapabilityProbe() {
+    }
+
+    /**
+     * Returns the cached snapshot if it was taken on this build, otherwise probes and caches.
+     */
+    @NonNull
+    public static synchronized EncoderCapabilities load(@NonNull final File cacheFile) {
+
+        final AppendOnlyLog cache = new AppendOnlyLog(cacheFile);
+        try {
+            final List<String> lines = cache.open();
+            cache.close();
+            final EncoderCapabilities cached = EncoderCapabilities.fromLines(lines);
+            if (cached.getFingerprint().equals(Build.FINGERPRINT) && !cached.getCodecs().isEmpty())
+                return cached;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Discarding the encoder capability cache", e);
+        }
+
+        final long startNanos = System.nanoTime();
+        final EncoderCapabilities probed = probe();
+        Log.i(TAG, "Probed " + probed.getCodecs().size() + " encoders in "
+                + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+        try {
+            cache.rewrite(probed.toLines());
+            cache.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to cache encoder capabilities", e);
+        }
+        return probed;
+    }
+
+    @NonNull
+    private static EncoderCapabilities probe() {
+
+        final List<EncoderCapabilities.Codec> codecs = new ArrayList<>();
+        for (final MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder() || info.isAlias()) continue;
+            for (final String mime : info.getSupportedTypes()) {
+                if (!PROBED_MIMES.contains(mime)) continue;
+                try {
+                    codecs.add(describe(info, mime));
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Skipping " + info.getName() + " for " + mime, e);
+                }
+            }
+        }
+        return new EncoderCapabilities(Build.FINGERPRINT, codecs);
+    }
+
+    @NonNull
+    private static EncoderCapabilities.Codec describe(@NonNull final MediaCodecInfo info, @NonNull final String mime) {
+
+        final MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(mime);
+        final EncoderCapabilities.Codec codec = new EncoderCapabilities.Codec(
+                info.getName(), mime, info.isHardwareAccelerated() && !info.isSoftwareOnly());
+        for (final MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+            final int level = codec.profileLevels.containsKey(profileLevel.profile)
+                    ? Math.max(codec.profileLevels.get(profileLevel.profile), profileLevel.level)
+                    : profileLevel.level;
+            codec.profileLevels.put(profileLevel.profile, level);
+        }
+
+        final MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+        if (video != null) {
+            codec.minWidth = video.getSupportedWidths().getLower();
+            codec.maxWidth = video.getSupportedWidths().getUpper();
+            codec.minHeight = video.getSupportedHeights().getLower();
+            codec.maxHeight = video.getSupportedHeights().getUpper();
+            codec.widthAlignment = video.getWidthAlignment();
+            codec.heightAlignment = video.getHeightAlignment();
+            codec.maxFrameRate = video.getSupportedFrameRates().getUpper();
+            codec.minBitrate = video.getBitrateRange().getLower();
+            codec.maxBitrate = video.getBitrateRange().getUpper();
+            codec.maxPixels = maxPixels(video);
+        }
+        final MediaCodecInfo.AudioCapabilities audio = capabilities.getAudioCapabilities();
+        if (audio != null) {
+            codec.minBitrate = audio.getBitrateRange().getLower();
+            codec.maxBitrate = audio.getBitrateRange().getUpper();
+            codec.maxChannels = audio.getMaxInputChannelCount();
+            final int[] rates = audio.getSupportedSampleRates();
+            if (rates != null) {
+                codec.sampleRates = rates;
+            } else {
+                // Continuous range; record the standard rates it covers
+                final List<Integer> covered = new ArrayList<>();
+                for (final Range<Integer> range : audio.getSupportedSampleRateRanges())
+                    for (final int rate : STANDARD_SAMPLE_RATES)
+                        if (range.contains(rate)) covered.add(rate);
+                codec.sampleRates = covered.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * The width and height ranges hold independently, but most encoders also cap the frame
+     * area. The largest standard portrait or landscape size it accepts stands in for that cap.
+     */
+    private static long maxPixels(@NonNull final MediaCodecInfo.VideoCapabilities video) {
+
+        for (final int[] size : STANDARD_SIZES) {
+            if (video.isSizeSupported(size[0], size[1]) || video.isSizeSupported(size[1], size[0]))
+                return (long) size[0] * size[1];
+        }
+        return 0;
+    }
+
+    private static final String TAG = "EncoderCapabilityProbe";
+    private static final List<String> PROBED_MIMES = List.of(
+            MediaFormat.MIMETYPE_VIDEO_AVC,
+            MediaFormat.MIMETYPE_VIDEO_HEVC,
+            MediaFormat.MIMETYPE_AUDIO_AAC
+    );
+    // Largest first
+    private static final int[][] STANDARD_SIZES = {
+            {3840, 2160}, {2560, 1440}, {1920, 1080}, {1280, 720}, {960, 540}, {640, 360},
+    };
+    private static final int[] STANDARD_SAMPLE_RATES = {8_000, 16_000, 22_050, 32_000, 44_100, 48_000};
+}
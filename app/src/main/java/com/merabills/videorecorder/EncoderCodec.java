@@ -0,0 +1,53 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@link android.media.MediaCodec} that an {@link EncoderEngine} drives.
+ * Return codes and flags use the {@code MediaCodec} constants.
+ */
+public interface EncoderCodec {
+
+    /**
+     * Asynchronous notifications, delivered on a single callback thread.
+     */
+    interface Callback {
+
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, @NonNull SampleInfo info);
+
+        void onOutputFormatChanged(@NonNull MediaFormat format);
+
+        void onError(@NonNull Exception error);
+    }
+
+    /**
+     * Switches the codec to asynchronous mode. Must be called before the codec is configured.
+     */
+    void setCallback(@Nullable Callback callback);
+
+    void start();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    @Nullable
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(@NonNull SampleInfo info, long timeoutUs);
+
+    @Nullable
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    @NonNull
+    MediaFormat getOutputFormat();
+}
@@ -0,0 +1,73 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Moves buffers in and out of an {@link EncoderCodec} on behalf of a recorder.
+ * <p>
+ * Lifecycle: {@link #attach} before the codec is configured, {@link #start} once it is
+ * configured (this starts the codec), and {@link #stop} before the codec is stopped.
+ */
+public interface EncoderEngine {
+
+    enum Mode {
+        /** A dedicated thread per encoder polls with {@code dequeue*Buffer} timeouts. */
+        POLLING,
+        /** The codec reports buffer availability on the shared {@link CodecCallbackThread}. */
+        CALLBACK
+    }
+
+    /**
+     * Receives the encoder's output. Called from the engine's thread.
+     */
+    interface Listener {
+
+        void onOutputFormatChanged(@NonNull MediaFormat format);
+
+        /**
+         * {@code data} is positioned at the sample and limited to its end, and is only valid
+         * until this returns.
+         */
+        void onEncodedSample(@NonNull ByteBuffer data, @NonNull SampleInfo info);
+
+        void onError(@NonNull Exception error);
+    }
+
+    /**
+     * Supplies raw input for encoders that are not fed from a surface.
+     */
+    interface InputFiller {
+
+        /**
+         * Fills {@code buffer} (cleared, index 0 onwards) and describes the data in {@code info}.
+         * May block; always runs on a thread dedicated to input.
+         */
+        void fillInput(@NonNull ByteBuffer buffer, @NonNull SampleInfo info);
+    }
+
+    /**
+     * @param inputFiller Null for surface-input encoders.
+     */
+    void attach(
+            @NonNull EncoderCodec codec,
+            @NonNull Listener listener,
+            @Nullable InputFiller inputFiller
+    );
+
+    void start();
+
+    /**
+     * Stops moving buffers and waits for the engine's threads to finish.
+     */
+    void stop();
+
+    @NonNull
+    static EncoderEngine create(@NonNull final Mode mode, @NonNull final String name) {
+        return mode == Mode.CALLBACK ? new CallbackEncoderEngine(name) : new PollingEncoderEngine(name);
+    }
+}
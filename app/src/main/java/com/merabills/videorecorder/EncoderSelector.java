@@ -0,0 +1,330 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the encoders, sizes and rates a recording uses from an {@link EncoderCapabilities}
+ * snapshot.
+ * <p>
+ * Video prefers a hardware HEVC encoder, which needs about half the bitrate of AVC for the
+ * same quality, then hardware AVC, then software AVC; software HEVC is never chosen because
+ * it cannot keep up with real-time capture. The capture keeps the display's aspect ratio and
+ * is scaled so its short side matches the {@link Quality}, never upscaled, and shrunk further
+ * until the encoder accepts the size at the lowest level it advertises. The bitrate follows
+ * from a bits-per-pixel budget for the chosen codec.
+ */
+public class EncoderSelector {
+
+    public enum Quality {
+
+        LOW(480, 0.07),
+        MEDIUM(720, 0.1),
+        HIGH(1080, 0.1);
+
+        Quality(final int shortSide, final double avcBitsPerPixel) {
+
+            this.shortSide = shortSide;
+            this.avcBitsPerPixel = avcBitsPerPixel;
+        }
+
+        final int shortSide;
+        // Screen content is mostly flat areas and text, so it needs far less than camera video
+        final double avcBitsPerPixel;
+    }
+
+    public static final class VideoConfig {
+
+        VideoConfig(
+                @Nullable final String codecName,
+                @NonNull final String mime,
+                final int width,
+                final int height,
+                final int densityDpi,
+                final int frameRate,
+                final int bitrate,
+                final int profile,
+                final int level
+        ) {
+
+            this.codecName = codecName;
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+            this.densityDpi = densityDpi;
+            this.frameRate = frameRate;
+            this.bitrate = bitrate;
+            this.profile = profile;
+            this.level = level;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+
+            return String.format(Locale.US, "%s %s %dx%d@%d %ddpi %d bps profile %d level %d",
+                    codecName, mime, width, height, frameRate, densityDpi, bitrate, profile, level);
+        }
+
+        // Null when no encoder matched and the platform default for the mime should be used
+        @Nullable
+        public final String codecName;
+        @NonNull
+        public final String mime;
+        public final int width;
+        public final int height;
+        public final int densityDpi;
+        public final int frameRate;
+        public final int bitrate;
+        // 0 when the encoder's default should be used
+        public final int profile;
+        public final int level;
+    }
+
+    public static final class AudioConfig {
+
+        AudioConfig(
+                @Nullable final String codecName,
+                final int sampleRate,
+                final int channelCount,
+                final int bitrate
+        ) {
+
+            this.codecName = codecName;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.bitrate = bitrate;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %d Hz x%d %d bps", codecName, sampleRate, channelCount, bitrate);
+        }
+
+        @Nullable
+        public final String codecName;
+        public final int sampleRate;
+        public final int channelCount;
+        public final int bitrate;
+        public final int profile = CodecProfileLevel.AACObjectLC;
+    }
+
+    private EncoderSelector() {
+    }
+
+    /**
+     * @param displayWidth    Real display width in pixels, in the orientation being captured.
+     * @param allowedMimes    Video mimes the muxer can write.
+     */
+    @NonNull
+    public static VideoConfig selectVideo(
+            @NonNull final EncoderCapabilities capabilities,
+            final int displayWidth,
+            final int displayHeight,
+            final int densityDpi,
+            @NonNull final Quality quality,
+            final int frameRate,
+            @NonNull final Collection<String> allowedMimes
+    ) {
+
+        for (final EncoderCapabilities.Codec codec : videoCandidates(capabilities, allowedMimes)) {
+            final VideoConfig config = fit(codec, displayWidth, displayHeight, densityDpi, quality, frameRate);
+            if (config != null) return config;
+        }
+
+        // Nothing matched; let the platform pick an AVC encoder for the nominal size
+        final double scale = scaleFor(displayWidth, displayHeight, quality);
+        final int width = alignDown((int) Math.round(displayWidth * scale), 16);
+        final int height = alignDown((int) Math.round(displayHeight * scale), 16);
+        return new VideoConfig(null, MediaFormat.MIMETYPE_VIDEO_AVC, width, height,
+                scaledDensity(densityDpi, scale), frameRate,
+                bitrateFor(MediaFormat.MIMETYPE_VIDEO_AVC, width, height, frameRate, quality), 0, 0);
+    }
+
+    @NonNull
+    public static AudioConfig selectAudio(
+            @NonNull final EncoderCapabilities capabilities,
+            final int channelCount,
+            final int bitrate
+    ) {
+
+        for (final boolean hardware : new boolean[]{true, false}) {
+            for (final EncoderCapabilities.Codec codec : capabilities.getCodecs()) {
+                if (codec.hardware != hardware || !codec.mime.equals(MediaFormat.MIMETYPE_AUDIO_AAC)) continue;
+                if (!codec.profileLevels.isEmpty() && codec.getMaxLevel(CodecProfileLevel.AACObjectLC) < 0)
+                    continue;
+                if (codec.maxChannels < channelCount) continue;
+                for (final int sampleRate : AUDIO_SAMPLE_RATES) {
+                    if (codec.isSampleRateSupported(sampleRate))
+                        return new AudioConfig(codec.name, sampleRate, channelCount,
+                                clamp(bitrate, codec.minBitrate, codec.maxBitrate));
+                }
+            }
+        }
+        return new AudioConfig(null, AUDIO_SAMPLE_RATES[AUDIO_SAMPLE_RATES.length - 1], channelCount, bitrate);
+    }
+
+    /**
+     * Video encoders in the order they should be tried.
+     */
+    @NonNull
+    private static List<EncoderCapabilities.Codec> videoCandidates(
+            @NonNull final EncoderCapabilities capabilities,
+            @NonNull final Collection<String> allowedMimes
+    ) {
+
+        final List<EncoderCapabilities.Codec> candidates = new ArrayList<>();
+        addCandidates(candidates, capabilities, allowedMimes, MediaFormat.MIMETYPE_VIDEO_HEVC, true);
+        addCandidates(candidates, capabilities, allowedMimes, MediaFormat.MIMETYPE_VIDEO_AVC, true);
+        addCandidates(candidates, capabilities, allowedMimes, MediaFormat.MIMETYPE_VIDEO_AVC, false);
+        return candidates;
+    }
+
+    private static void addCandidates(
+            @NonNull final List<EncoderCapabilities.Codec> candidates,
+            @NonNull final EncoderCapabilities capabilities,
+            @NonNull final Collection<String> allowedMimes,
+            @NonNull final String mime,
+            final boolean hardware
+    ) {
+
+        if (!allowedMimes.contains(mime)) return;
+        for (final EncoderCapabilities.Codec codec : capabilities.getCodecs())
+            if (codec.mime.equals(mime) && codec.hardware == hardware) candidates.add(codec);
+    }
+
+    /**
+     * Largest size up to the quality target that {@code codec} accepts, or null if none does.
+     */
+    @Nullable
+    private static VideoConfig fit(
+            @NonNull final EncoderCapabilities.Codec codec,
+            final int displayWidth,
+            final int displayHeight,
+            final int densityDpi,
+            @NonNull final Quality quality,
+            final int requestedFrameRate
+    ) {
+
+        final int profile = pickProfile(codec);
+        if (profile < 0) return null;
+        final int maxLevel = codec.getMaxLevel(profile);
+        final int frameRate = Math.min(requestedFrameRate, codec.maxFrameRate);
+        final int widthAlignment = Math.max(2, codec.widthAlignment);
+        final int heightAlignment = Math.max(2, codec.heightAlignment);
+
+        double scale = scaleFor(displayWidth, displayHeight, quality);
+        for (int attempt = 0; attempt < MAX_SHRINK_STEPS; attempt++, scale *= SHRINK_FACTOR) {
+            final int width = alignDown((int) Math.round(displayWidth * scale), widthAlignment);
+            final int height = alignDown((int) Math.round(displayHeight * scale), heightAlignment);
+            if (!codec.isSizeSupported(width, height)) continue;
+
+            // A level of 0 means the encoder did not say, so leave the choice to it
+            final int level = maxLevel == 0 ? 0 : requiredLevel(codec.mime, width, height, frameRate);
+            if (level < 0 || level > maxLevel) continue;
+
+            final int bitrate = clamp(bitrateFor(codec.mime, width, height, frameRate, quality),
+                    codec.minBitrate, codec.maxBitrate);
+            return new VideoConfig(codec.name, codec.mime, width, height,
+                    scaledDensity(densityDpi, scale), frameRate, bitrate, profile, level);
+        }
+        return null;
+    }
+
+    private static int pickProfile(@NonNull final EncoderCapabilities.Codec codec) {
+
+        final int[] preferred = codec.mime.equals(MediaFormat.MIMETYPE_VIDEO_HEVC)
+                ? new int[]{CodecProfileLevel.HEVCProfileMain}
+                : new int[]{CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCProfileMain,
+                CodecProfileLevel.AVCProfileBaseline};
+        if (codec.profileLevels.isEmpty()) return 0;
+        for (final int profile : preferred)
+            if (codec.getMaxLevel(profile) >= 0) return profile;
+        return -1;
+    }
+
+    /**
+     * Lowest level whose frame size and sample rate limits cover the stream, or -1 if even
+     * the highest one in the table does not.
+     */
+    static int requiredLevel(@NonNull final String mime, final int width, final int height, final int frameRate) {
+
+        final long[][] table;
+        final long frameSize;
+        if (mime.equals(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
+            table = HEVC_LEVELS;
+            frameSize = (long) width * height;
+        } else {
+            table = AVC_LEVELS;
+            frameSize = (long) ((width + 15) / 16) * ((height + 15) / 16);
+        }
+        for (final long[] level : table)
+            if (frameSize <= level[1] && frameSize * frameRate <= level[2]) return (int) level[0];
+        return -1;
+    }
+
+    static int bitrateFor(
+            @NonNull final String mime,
+            final int width,
+            final int height,
+            final int frameRate,
+            @NonNull final Quality quality
+    ) {
+
+        double bitsPerPixel = quality.avcBitsPerPixel;
+        if (mime.equals(MediaFormat.MIMETYPE_VIDEO_HEVC)) bitsPerPixel /= 2;
+        return (int) Math.min(Integer.MAX_VALUE, (long) width * height * frameRate * bitsPerPixel);
+    }
+
+    private static double scaleFor(final int displayWidth, final int displayHeight, @NonNull final Quality quality) {
+        return Math.min(1.0, (double) quality.shortSide / Math.min(displayWidth, displayHeight));
+    }
+
+    private static int scaledDensity(final int densityDpi, final double scale) {
+        return Math.max(1, (int) Math.round(densityDpi * scale));
+    }
+
+    private static int alignDown(final int value, final int alignment) {
+        return Math.max(alignment, value / alignment * alignment);
+    }
+
+    private static int clamp(final int value, final int min, final int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    // Tried in order; both work with playback capture, 48 kHz avoids resampling on most devices
+    private static final int[] AUDIO_SAMPLE_RATES = {48_000, 44_100};
+    private static final int MAX_SHRINK_STEPS = 12;
+    private static final double SHRINK_FACTOR = 0.9;
+
+    // Level, max macroblocks per frame, max macroblocks per second (H.264 Table A-1)
+    private static final long[][] AVC_LEVELS = {
+            {CodecProfileLevel.AVCLevel3, 1_620, 40_500},
+            {CodecProfileLevel.AVCLevel31, 3_600, 108_000},
+            {CodecProfileLevel.AVCLevel32, 5_120, 216_000},
+            {CodecProfileLevel.AVCLevel4, 8_192, 245_760},
+            {CodecProfileLevel.AVCLevel42, 8_704, 522_240},
+            {CodecProfileLevel.AVCLevel5, 22_080, 589_824},
+            {CodecProfileLevel.AVCLevel51, 36_864, 983_040},
+            {CodecProfileLevel.AVCLevel52, 36_864, 2_073_600},
+    };
+    // Level, max luma samples per frame, max luma samples per second (H.265 Table A.8)
+    private static final long[][] HEVC_LEVELS = {
+            {CodecProfileLevel.HEVCMainTierLevel3, 552_960, 16_588_800},
+            {CodecProfileLevel.HEVCMainTierLevel31, 983_040, 33_177_600},
+            {CodecProfileLevel.HEVCMainTierLevel4, 2_228_224, 66_846_720},
+            {CodecProfileLevel.HEVCMainTierLevel41, 2_228_224, 133_693_440},
+            {CodecProfileLevel.HEVCMainTierLevel5, 8_912_896, 267_386_880},
+            {CodecProfileLevel.HEVCMainTierLevel51, 8_912_896, 534_773_760},
+            {CodecProfileLevel.HEVCMainTierLevel52, 8_912_896, 1_069_547_520},
+    };
+}
@@ -0,0 +1,356 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link SampleMuxer} that writes a fragmented MP4: an init segment (ftyp + moov without
+ * samples) followed by self-contained moof + mdat fragments, each starting at a video keyframe.
+ * Every byte already written stays valid, so the file can be read, or uploaded, while the
+ * recording is still running; a {@link Listener} is told each time a fragment is complete.
+ * <p>
+ * Samples are buffered in memory until their fragment is cut. Tracks must be AVC or AAC and
+ * timestamps must increase within a track, as the recorders' encoders produce no B-frames.
+ */
+public class FragmentedMp4Muxer implements SampleMuxer {
+
+    public interface Listener {
+
+        /**
+         * Called on the writing thread once the file holds {@code endOffset} bytes ending on a
+         * box boundary: first after the init segment, then after each fragment.
+         */
+        void onFragmentWritten(long endOffset);
+    }
+
+    /**
+     * @param fragmentDurationUs   Cut a fragment at the first video keyframe at least this far
+     *                             into the current one.
+     */
+    public FragmentedMp4Muxer(
+            @NonNull final File file,
+            final long fragmentDurationUs,
+            @NonNull final Listener listener
+    ) {
+
+        this.file = file;
+        this.fragmentDurationUs = fragmentDurationUs;
+        this.listener = listener;
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat format) {
+        return addTrack(TrackFormat.from(format));
+    }
+
+    public int addTrack(@NonNull TrackFormat format) {
+
+        if (output != null) throw new IllegalStateException("Tracks must be added before start");
+        Mp4Boxes.checkSupported(format);
+        final Track track = new Track(format, tracks.size() + 1);
+        tracks.add(track);
+        if (format.isVideo() && videoTrack == -1) videoTrack = tracks.size() - 1;
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+
+        try {
+            output = new FileOutputStream(file).getChannel();
+            writeInitSegment();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to start " + file, e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(
+            int trackIndex,
+            @NonNull ByteBuffer data,
+            long presentationTimeUs,
+            int flags
+    ) throws IOException {
+
+        if (output == null) throw new IllegalStateException("Muxer not started");
+        if (!data.hasRemaining() || (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+
+        final boolean keyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        final boolean cutPoint = videoTrack == -1 || (trackIndex == videoTrack && keyFrame);
+        if (cutPoint && pendingSamples > 0 && presentationTimeUs - fragmentStartUs >= fragmentDurationUs) {
+            tracks.get(trackIndex).nextPresentationTimeUs = presentationTimeUs;
+            writeFragment();
+        }
+
+        final Track track = tracks.get(trackIndex);
+        final int size = track.format.isVideo()
+                ? Mp4Boxes.appendLengthPrefixed(track.data, data)
+                : appendRaw(track.data, data);
+        track.add(presentationTimeUs, size, track.format.isVideo() && !keyFrame
+                ? Mp4Boxes.SAMPLE_FLAGS_NON_SYNC
+                : Mp4Boxes.SAMPLE_FLAGS_SYNC);
+        if (pendingSamples == 0 || presentationTimeUs < fragmentStartUs) fragmentStartUs = presentationTimeUs;
+        pendingSamples++;
+    }
+
+    @Override
+    public void stop() {
+
+        try {
+            if (output != null && pendingSamples > 0) writeFragment();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write the last fragment", e);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void release() {
+
+        if (output == null) return;
+        try {
+            output.close();
+        } catch (IOException ignored) {
+            // Nothing more can be written either way
+        }
+        output = null;
+    }
+
+    public int getFragmentCount() {
+        return sequenceNumber;
+    }
+
+    private void writeInitSegment() throws IOException {
+
+        header.reset();
+        Mp4Boxes.writeFtyp(header, "isom", "iso6", "mp41");
+        final int moov = header.startBox("moov");
+        Mp4Boxes.writeMvhd(header, 0, tracks.size() + 1);
+        for (final Track track : tracks) {
+            final int trak = header.startBox("trak");
+            Mp4Boxes.writeTkhd(header, track.format, track.id, 0);
+            final int mdia = header.startBox("mdia");
+            Mp4Boxes.writeMdhdAndHdlr(header, track.format, 0);
+            final int minf = header.startBox("minf");
+            Mp4Boxes.writeMediaHeader(header, track.format);
+            final int stbl = header.startBox("stbl");
+            Mp4Boxes.writeStsd(header, track.format);
+            // Sample tables stay empty; every sample is described by a fragment
+            writeEmptySampleTables();
+            header.endBox(stbl);
+            header.endBox(minf);
+            header.endBox(mdia);
+            header.endBox(trak);
+        }
+        final int mvex = header.startBox("mvex");
+        for (final Track track : tracks) {
+            final int trex = header.startFullBox("trex", 0, 0);
+            header.u32(track.id).u32(1).u32(0).u32(0).u32(0);
+            header.endBox(trex);
+        }
+        header.endBox(mvex);
+        header.endBox(moov);
+
+        header.writeTo(output);
+        listener.onFragmentWritten(output.position());
+    }
+
+    private void writeEmptySampleTables() {
+
+        for (final String type : new String[]{"stts", "stsc", "stco"}) {
+            final int table = header.startFullBox(type, 0, 0);
+            header.u32(0);
+            header.endBox(table);
+        }
+        final int stsz = header.startFullBox("stsz", 0, 0);
+        header.u32(0).u32(0);
+        header.endBox(stsz);
+    }
+
+    private void writeFragment() throws IOException {
+
+        if (!hasTimeBase) {
+            // The earliest first sample of any track becomes time zero
+            timeBaseUs = Long.MAX_VALUE;
+            for (final Track track : tracks)
+                if (track.count > 0) timeBaseUs = Math.min(timeBaseUs, track.presentationTimesUs[0]);
+            hasTimeBase = true;
+        }
+
+        header.reset();
+        final int moof = header.startBox("moof");
+        final int mfhd = header.startFullBox("mfhd", 0, 0);
+        header.u32(++sequenceNumber);
+        header.endBox(mfhd);
+
+        final int[] dataOffsetPositions = new int[tracks.size()];
+        for (int t = 0; t < tracks.size(); t++) {
+            final Track track = tracks.get(t);
+            if (track.count == 0) continue;
+            final long[] decodeTimes = track.decodeTimes(timeBaseUs);
+            final long lastDurationTicks = track.lastDurationTicks(decodeTimes[track.count - 1], timeBaseUs);
+
+            final int traf = header.startBox("traf");
+            // Flag 0x020000: data offsets are relative to the start of the moof
+            final int tfhd = header.startFullBox("tfhd", 0, 0x020000);
+            header.u32(track.id);
+            header.endBox(tfhd);
+            final int tfdt = header.startFullBox("tfdt", 1, 0);
+            header.u64(decodeTimes[0]);
+            header.endBox(tfdt);
+
+            // Flags: data offset, per-sample duration, size and flags
+            final int trun = header.startFullBox("trun", 0, 0x000701);
+            header.u32(track.count);
+            dataOffsetPositions[t] = header.size();
+            header.u32(0);
+            for (int i = 0; i < track.count; i++) {
+                final long durationTicks = i + 1 < track.count
+                        ? decodeTimes[i + 1] - decodeTimes[i]
+                        : lastDurationTicks;
+                header.u32(durationTicks).u32(track.sizes[i]).u32(track.flags[i]);
+            }
+            header.endBox(trun);
+            header.endBox(traf);
+            track.finishFragment(decodeTimes[track.count - 1], lastDurationTicks);
+        }
+        header.endBox(moof);
+
+        long dataOffset = header.size() + MDAT_HEADER_SIZE;
+        long mdatSize = MDAT_HEADER_SIZE;
+        for (int t = 0; t < tracks.size(); t++) {
+            final Track track = tracks.get(t);
+            if (track.count == 0) continue;
+            header.patchU32(dataOffsetPositions[t], dataOffset);
+            dataOffset += track.data.size();
+            mdatSize += track.data.size();
+        }
+        header.u32(mdatSize).fourCc("mdat");
+        header.writeTo(output);
+        for (final Track track : tracks) {
+            track.data.writeTo(output);
+            track.clear();
+        }
+        pendingSamples = 0;
+        listener.onFragmentWritten(output.position());
+    }
+
+    private static int appendRaw(@NonNull final BoxWriter writer, @NonNull final ByteBuffer data) {
+
+        writer.bytes(data);
+        return data.remaining();
+    }
+
+    /**
+     * Samples of one track waiting for the current fragment to be cut.
+     */
+    private static final class Track {
+
+        Track(@NonNull final TrackFormat format, final int id) {
+
+            this.format = format;
+            this.id = id;
+            this.timescale = Mp4Boxes.timescaleOf(format);
+            // One frame at 30 fps, or one 1024-sample AAC frame
+            this.defaultDurationTicks = format.isVideo() ? timescale / 30 : 1024;
+        }
+
+        void add(final long presentationTimeUs, final int size, final int sampleFlags) {
+
+            if (count == sizes.length) {
+                presentationTimesUs = Arrays.copyOf(presentationTimesUs, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                flags = Arrays.copyOf(flags, count * 2);
+            }
+            presentationTimesUs[count] = presentationTimeUs;
+            sizes[count] = size;
+            flags[count] = sampleFlags;
+            count++;
+        }
+
+        /**
+         * Decode times in track ticks, forced to increase so that durations are never zero.
+         */
+        @NonNull
+        long[] decodeTimes(final long timeBaseUs) {
+
+            final long[] times = new long[count];
+            long previous = lastDecodeTicks;
+            for (int i = 0; i < count; i++) {
+                final long ticks = toTicks(presentationTimesUs[i], timeBaseUs);
+                times[i] = previous < 0 ? ticks : Math.max(ticks, previous + 1);
+                previous = times[i];
+            }
+            return times;
+        }
+
+        long lastDurationTicks(final long lastDecodeTicks, final long timeBaseUs) {
+
+            if (nextPresentationTimeUs != Long.MIN_VALUE) {
+                final long duration = toTicks(nextPresentationTimeUs, timeBaseUs) - lastDecodeTicks;
+                if (duration > 0) return duration;
+            }
+            return lastDurationTicks > 0 ? lastDurationTicks : defaultDurationTicks;
+        }
+
+        /**
+         * The next fragment's first sample must not start before this one's last sample ends.
+         */
+        void finishFragment(final long lastTicks, final long lastDuration) {
+
+            lastDurationTicks = lastDuration;
+            lastDecodeTicks = lastTicks + lastDuration - 1;
+        }
+
+        void clear() {
+
+            data.reset();
+            count = 0;
+            nextPresentationTimeUs = Long.MIN_VALUE;
+        }
+
+        private long toTicks(final long presentationTimeUs, final long timeBaseUs) {
+            return Math.max(0, presentationTimeUs - timeBaseUs) * timescale / 1_000_000;
+        }
+
+        final TrackFormat format;
+        final int id;
+        final int timescale;
+        final long defaultDurationTicks;
+        final BoxWriter data = new BoxWriter(64 * 1024);
+        long[] presentationTimesUs = new long[64];
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        int count = 0;
+        long nextPresentationTimeUs = Long.MIN_VALUE;
+        long lastDurationTicks = 0;
+        long lastDecodeTicks = -1;
+    }
+
+    private static final int MDAT_HEADER_SIZE = 8;
+
+    private final File file;
+    private final long fragmentDurationUs;
+    private final Listener listener;
+    private final List<Track> tracks = new ArrayList<>();
+    private final BoxWriter header = new BoxWriter(4096);
+    private FileChannel output;
+    private int videoTrack = -1;
+    private int pendingSamples = 0;
+    private long fragmentStartUs;
+    private boolean hasTimeBase = false;
+    private long timeBaseUs;
+    private int sequenceNumber = 0;
+}
@@ -0,0 +1,103 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tells whether a captured RGBA frame differs from the previous one, cheaply enough to run on
+ * every frame. The frame is downscaled by sampling one pixel every {@code sampleStep} pixels in
+ * each direction, each sample is reduced to a coarsely quantised luma value so that dithering
+ * and compression noise do not count as change, and the samples are hashed in square blocks.
+ * A block whose hash differs from the previous frame's is a changed block.
+ * <p>
+ * Not thread-safe; intended to be driven by the thread that receives frames.
+ */
+public class FrameChangeDetector {
+
+    /**
+     * @param sampleStep   Distance in pixels between sampled pixels.
+     * @param blockSize    Side of a hashed block, in samples.
+     */
+    public FrameChangeDetector(
+            final int width,
+            final int height,
+            final int sampleStep,
+            final int blockSize
+    ) {
+
+        if (width <= 0 || height <= 0 || sampleStep <= 0 || blockSize <= 0)
+            throw new IllegalArgumentException("Dimensions must be positive");
+        this.sampleStep = sampleStep;
+        this.blockSize = blockSize;
+        this.samplesX = (width + sampleStep - 1) / sampleStep;
+        this.samplesY = (height + sampleStep - 1) / sampleStep;
+        this.blocksX = (samplesX + blockSize - 1) / blockSize;
+        this.blocksY = (samplesY + blockSize - 1) / blockSize;
+        this.hashes = new long[blocksX * blocksY];
+        this.previousHashes = new long[hashes.length];
+    }
+
+    /**
+     * Hashes a frame and compares it with the previous one.
+     *
+     * @param rgba          Pixels, 4 bytes each in R, G, B, A order, starting at index 0.
+     * @param rowStride     Bytes from one row to the next.
+     * @param pixelStride   Bytes from one pixel to the next.
+     * @return the number of changed blocks; every block counts as changed on the first frame.
+     */
+    public int update(@NonNull final ByteBuffer rgba, final int rowStride, final int pixelStride) {
+
+        Arrays.fill(hashes, FNV_OFFSET);
+        for (int sy = 0; sy < samplesY; sy++) {
+            final int rowOffset = sy * sampleStep * rowStride;
+            final int blockRow = (sy / blockSize) * blocksX;
+            for (int sx = 0; sx < samplesX; sx++) {
+                final int offset = rowOffset + sx * sampleStep * pixelStride;
+                final int r = rgba.get(offset) & 0xFF;
+                final int g = rgba.get(offset + 1) & 0xFF;
+                final int b = rgba.get(offset + 2) & 0xFF;
+                // BT.601 luma in fixed point, then quantised to 32 levels
+                final int luma = (77 * r + 150 * g + 29 * b) >>> (8 + LUMA_QUANTISATION_BITS);
+                final int block = blockRow + sx / blockSize;
+                hashes[block] = (hashes[block] ^ luma) * FNV_PRIME;
+            }
+        }
+
+        int changed = 0;
+        for (int i = 0; i < hashes.length; i++)
+            if (!hasPrevious || hashes[i] != previousHashes[i]) changed++;
+
+        final long[] swap = previousHashes;
+        previousHashes = hashes;
+        hashes = swap;
+        hasPrevious = true;
+        return changed;
+    }
+
+    public int getBlockCount() {
+        return previousHashes.length;
+    }
+
+    /**
+     * Forgets the previous frame, so the next one counts as entirely changed.
+     */
+    public void reset() {
+        hasPrevious = false;
+    }
+
+    private static final int LUMA_QUANTISATION_BITS = 3;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int sampleStep;
+    private final int blockSize;
+    private final int samplesX;
+    private final int samplesY;
+    private final int blocksX;
+    private final int blocksY;
+    private long[] hashes;
+    private long[] previousHashes;
+    private boolean hasPrevious = false;
+}
@@ -0,0 +1,195 @@
+package com.merabills.videorecorder;
+
+import android.graphics.PixelFormat;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stage between the virtual display and the encoder's input surface that drops frames the
+ * encoder does not need. The display renders into an {@link ImageReader}; each frame is checked
+ * with a {@link FrameChangeDetector}, and the frames a {@link FrameGatePolicy} keeps are handed
+ * to the encoder surface through an {@link ImageWriter}, which attaches the same buffer without
+ * copying it. Dropped frames are simply closed, so encoder work and output size follow screen
+ * activity rather than wall-clock time. The newest changed frame the rate limit drops is held
+ * back and sent once the limit allows, since a static display sends no later frame to carry it.
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+public class FrameGate implements ImageReader.OnImageAvailableListener {
+
+    public FrameGate(
+            final int width,
+            final int height,
+            @NonNull final Surface encoderSurface,
+            final long keepAliveUs,
+            final int frameRate
+    ) {
+
+        thread = new HandlerThread("FrameGateThread");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        policy = new FrameGatePolicy(keepAliveUs, frameRate);
+        detector = new FrameChangeDetector(width, height, Constants.FRAME_GATE_SAMPLE_STEP, Constants.FRAME_GATE_BLOCK_SIZE);
+
+        imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, MAX_IMAGES,
+                HardwareBuffer.USAGE_CPU_READ_OFTEN | HardwareBuffer.USAGE_VIDEO_ENCODE);
+        imageReader.setOnImageAvailableListener(this, handler);
+        imageWriter = ImageWriter.newInstance(encoderSurface, MAX_IMAGES, PixelFormat.RGBA_8888);
+    }
+
+    /**
+     * Surface for the virtual display to render into.
+     */
+    @NonNull
+    public Surface getInputSurface() {
+        return imageReader.getSurface();
+    }
+
+    /**
+     * Caps the frames passed to the encoder; may be called from any thread.
+     */
+    public void setFrameRate(final int frameRate) {
+        handler.post(() -> policy.setFrameRate(frameRate));
+    }
+
+    @Override
+    public void onImageAvailable(@NonNull ImageReader reader) {
+
+        final Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to acquire a frame", e);
+            return;
+        }
+        if (image == null) return;
+
+        final Image.Plane plane = image.getPlanes()[0];
+        final int changedBlocks = detector.update(plane.getBuffer(), plane.getRowStride(), plane.getPixelStride());
+        final long timestampUs = image.getTimestamp() / 1000;
+        if (released) {
+            image.close();
+        } else if (policy.shouldEncode(timestampUs, changedBlocks)) {
+            // This frame carries any change a held one had
+            closeHeld();
+            forward(image);
+        } else if (policy.hasPendingChange()) {
+            hold(image, timestampUs);
+        } else {
+            image.close();
+        }
+    }
+
+    /**
+     * Stops forwarding frames and releases the reader, writer and thread. Call after the
+     * virtual display has been released and before the encoder is.
+     */
+    public void release() {
+
+        handler.post(() -> {
+            released = true;
+            closeHeld();
+            imageReader.close();
+            imageWriter.close();
+            Log.i(TAG, "Frames sent " + policy.getSentCount()
+                    + ", unchanged dropped " + policy.getUnchangedDroppedCount()
+                    + ", rate dropped " + policy.getRateDroppedCount());
+        });
+        thread.quitSafely();
+    }
+
+    /**
+     * Keeps a changed frame the limiter dropped, replacing any older one, and schedules it to be
+     * sent once the rate limit allows unless a later frame is sent first.
+     */
+    private void hold(@NonNull final Image image, final long timestampUs) {
+
+        closeHeld();
+        held = image;
+        final long delayUs = policy.getFlushDelayUs(timestampUs);
+        heldFlushUs = timestampUs + delayUs;
+        handler.postDelayed(flushTask, (delayUs + 999) / 1000);
+    }
+
+    private void flushHeld() {
+
+        if (held == null || released) return;
+        final Image image = held;
+        held = null;
+        if (policy.flush(heldFlushUs)) {
+            forward(image);
+        } else {
+            image.close();
+        }
+    }
+
+    private void closeHeld() {
+
+        if (held == null) return;
+        handler.removeCallbacks(flushTask);
+        held.close();
+        held = null;
+    }
+
+    private void forward(@NonNull final Image image) {
+
+        try {
+            // Attaches the reader's buffer to the encoder surface; the image is closed for us
+            imageWriter.queueInputImage(image);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // The encoder surface cannot take this buffer directly, so copy it
+            copyAndQueue(image);
+        }
+    }
+
+    private void copyAndQueue(@NonNull final Image image) {
+
+        try {
+            final Image target = imageWriter.dequeueInputImage();
+            final Image.Plane source = image.getPlanes()[0];
+            final Image.Plane destination = target.getPlanes()[0];
+            final ByteBuffer from = source.getBuffer();
+            final ByteBuffer to = destination.getBuffer();
+            final int rowBytes = Math.min(source.getRowStride(), destination.getRowStride());
+            for (int row = 0; row < image.getHeight(); row++) {
+                from.limit(row * source.getRowStride() + rowBytes).position(row * source.getRowStride());
+                to.position(row * destination.getRowStride());
+                to.put(from);
+            }
+            target.setTimestamp(image.getTimestamp());
+            imageWriter.queueInputImage(target);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to forward a frame", e);
+        } finally {
+            image.close();
+        }
+    }
+
+    private static final String TAG = "FrameGate";
+    // Frames the reader and writer may hold at once
+    private static final int MAX_IMAGES = 3;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final FrameGatePolicy policy;
+    private final FrameChangeDetector detector;
+    private final ImageReader imageReader;
+    private final ImageWriter imageWriter;
+    private final Runnable flushTask = this::flushHeld;
+    // Only touched on the gate's thread
+    private boolean released = false;
+    // The newest changed frame the limiter dropped, sent later unless a newer frame goes first
+    private Image held;
+    private long heldFlushUs;
+}
@@ -0,0 +1,100 @@
+package com.merabills.videorecorder;
+
+/**
+ * Decides which captured frames reach the encoder. A frame with any changed block is sent,
+ * subject to the adaptive frame-rate limit; an unchanged frame is only sent once nothing has
+ * been sent for the keep-alive interval, so a static screen costs a frame every few seconds
+ * instead of a full frame rate. A change the limiter drops stays owed until a later frame is
+ * sent or the caller {@link #flush flushes} it once the limit allows.
+ * <p>
+ * Not thread-safe; intended to be driven by the thread that receives frames.
+ */
+public class FrameGatePolicy {
+
+    public FrameGatePolicy(final long keepAliveUs, final int frameRate) {
+
+        this.keepAliveUs = keepAliveUs;
+        this.limiter = new FrameRateLimiter(frameRate);
+    }
+
+    public void setFrameRate(final int frameRate) {
+        limiter.setFrameRate(frameRate);
+    }
+
+    /**
+     * @param changedBlocks   Blocks that differ from the previous captured frame.
+     * @return true if the frame captured at {@code timestampUs} should be encoded.
+     */
+    public boolean shouldEncode(final long timestampUs, final int changedBlocks) {
+
+        // A change on a frame the limiter dropped is still owed to the encoder
+        pendingChange |= changedBlocks > 0;
+        final boolean keepAliveDue = !hasSent || timestampUs - lastSentUs >= keepAliveUs;
+        if (!pendingChange && !keepAliveDue) {
+            unchangedDropped++;
+            return false;
+        }
+        if (!limiter.accept(timestampUs)) {
+            rateDropped++;
+            return false;
+        }
+        markSent(timestampUs);
+        return true;
+    }
+
+    /**
+     * @return true if a change the limiter dropped has not been sent yet.
+     */
+    public boolean hasPendingChange() {
+        return pendingChange;
+    }
+
+    /**
+     * @return how long after {@code timestampUs} an owed change may be {@link #flush flushed}.
+     */
+    public long getFlushDelayUs(final long timestampUs) {
+        return limiter.getDelayUs(timestampUs);
+    }
+
+    /**
+     * Sends the owed change from the last dropped frame when no later frame has arrived.
+     *
+     * @return true if that frame should now be encoded, counting it as sent instead of dropped.
+     */
+    public boolean flush(final long timestampUs) {
+
+        if (!pendingChange || !limiter.accept(timestampUs)) return false;
+        rateDropped--;
+        markSent(timestampUs);
+        return true;
+    }
+
+    public long getSentCount() {
+        return sent;
+    }
+
+    public long getUnchangedDroppedCount() {
+        return unchangedDropped;
+    }
+
+    public long getRateDroppedCount() {
+        return rateDropped;
+    }
+
+    private void markSent(final long timestampUs) {
+
+        pendingChange = false;
+        hasSent = true;
+        lastSentUs = timestampUs;
+        sent++;
+    }
+
+    private final long keepAliveUs;
+    private final FrameRateLimiter limiter;
+    private boolean pendingChange = false;
+    private boolean hasSent = false;
+    private long lastSentUs;
+    private long sent = 0;
+    private long unchangedDropped = 0;
+    private long rateDropped = 0;
+}
@@ -0,0 +1,49 @@
+package com.merabills.videorecorder;
+
+/**
+ * Decides which frames of a stream to keep so that at most a target number per second get
+ * through, spreading the kept frames evenly. A frame is kept once the previous kept one is at
+ * least one target interval old, with a small tolerance for capture jitter.
+ * <p>
+ * Not thread-safe; intended to be driven by the thread that receives frames.
+ */
+public class FrameRateLimiter {
+
+    public FrameRateLimiter(final int frameRate) {
+        setFrameRate(frameRate);
+    }
+
+    public void setFrameRate(final int frameRate) {
+
+        if (frameRate <= 0) throw new IllegalArgumentException("frameRate must be positive");
+        intervalUs = 1_000_000L / frameRate;
+    }
+
+    /**
+     * @return true if the frame captured at {@code timestampUs} should be encoded.
+     */
+    public boolean accept(final long timestampUs) {
+
+        if (hasKept && timestampUs - lastKeptUs < intervalUs - intervalUs / JITTER_DIVISOR) return false;
+        // Advance on the ideal grid so rounding never adds up to a lower rate
+        lastKeptUs = hasKept && timestampUs - lastKeptUs < 2 * intervalUs ? lastKeptUs + intervalUs : timestampUs;
+        hasKept = true;
+        return true;
+    }
+
+    /**
+     * @return how long after {@code timestampUs} a frame would next be kept; 0 if right away.
+     */
+    public long getDelayUs(final long timestampUs) {
+
+        if (!hasKept) return 0;
+        return Math.max(0, lastKeptUs + intervalUs - intervalUs / JITTER_DIVISOR - timestampUs);
+    }
+
+    // Frames up to an eighth of an interval early still count as on time
+    private static final int JITTER_DIVISOR = 8;
+
+    private long intervalUs;
+    private boolean hasKept = false;
+    private long lastKeptUs;
+}
@@ -5,30 +5,41 @@ import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioPlaybackCaptureConfiguration;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.os.Build;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.RequiresPermission;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Objects;
+import java.util.List;
 
 @RequiresApi(api = Build.VERSION_CODES.Q)
 public class InternalAudioRecorder {
 
     public InternalAudioRecorder(
             @NonNull final MediaProjection projection,
-            @NonNull final MuxerCoordinator muxerCoordinator
+            @NonNull final EncoderSelector.AudioConfig config
     ) {
+        this(projection, config, EncoderEngine.create(Constants.ENCODER_ENGINE_MODE, THREAD_NAME));
+    }
+
+    public InternalAudioRecorder(
+            @NonNull final MediaProjection projection,
+            @NonNull final EncoderSelector.AudioConfig config,
+            @NonNull final EncoderEngine engine
+    ) {
+
         this.mediaProjection = projection;
-        this.muxerCoordinator = muxerCoordinator;
+        this.encoderConfig = config;
+        this.engine = engine;
     }
 
     @RequiresPermission(Manifest.permission.RECORD_AUDIO)
@@ -38,10 +49,49 @@ public class InternalAudioRecorder {
                 .addMatchingUsage(AudioAttributes.USAGE_GAME)
                 .build();
 
-        final int sampleRate = 44100;
-        final int channelConfig = AudioFormat.CHANNEL_IN_STEREO;
+        final int sampleRate = encoderConfig.sampleRate;
+        final int channelCount = encoderConfig.channelCount;
+        final int channelConfig = channelCount == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
         final int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
-        final int bufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
+        final int bytesPerFrame = channelCount * 2;
+        final int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
+
+        final MediaFormat format = MediaFormat.createAudioFormat(
+                MediaFormat.MIMETYPE_AUDIO_AAC,
+                sampleRate,
+                channelCount
+        );
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, encoderConfig.profile);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, encoderConfig.bitrate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, minBufferSize);
+
+        audioEncoder = new MediaCodecEncoder(encoderConfig.codecName != null
+                ? MediaCodec.createByCodecName(encoderConfig.codecName)
+                : MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC));
+        engine.attach(audioEncoder, new EncoderEngine.Listener() {
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaFormat outputFormat) {
+                output.setFormat(outputFormat);
+            }
+
+            @Override
+            public void onEncodedSample(@NonNull ByteBuffer data, @NonNull SampleInfo info) {
+                output.write(data, info);
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                Log.e(TAG, "Audio encoder failed", error);
+            }
+        }, this::fillInput);
+        audioEncoder.configure(format);
+
+        // Reads are sized from the codec's input buffers, so let AudioRecord hold two of them
+        final MediaFormat inputFormat = audioEncoder.getInputFormat();
+        final int codecInputSize = inputFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? inputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                : minBufferSize;
+        final int bufferSize = Math.max(minBufferSize, 2 * codecInputSize);
 
         audioRecord = new AudioRecord.Builder()
                 .setAudioFormat(new AudioFormat.Builder()
@@ -52,116 +102,183 @@ public class InternalAudioRecorder {
                 .setBufferSizeInBytes(bufferSize)
                 .setAudioPlaybackCaptureConfig(config)
                 .build();
+        pcmReader = new PcmReader(audioRecord::read, bytesPerFrame, bufferSize);
+        timestampGenerator = new AudioTimestampGenerator(sampleRate);
 
-        final MediaFormat format = MediaFormat.createAudioFormat(
-                MediaFormat.MIMETYPE_AUDIO_AAC,
-                sampleRate,
-                2
-        );
-        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
+        if (Constants.SILENCE_COMPACTION) {
+            silenceDetector = new SilenceDetector(Constants.SILENCE_THRESHOLD_DBFS, Constants.SILENCE_HOLD_US,
+                    new SilenceDetector.Listener() {
+                        @Override
+                        public void onSilenceStarted(long presentationTimeUs) {
+                            silenceSpans.onSilenceStarted(presentationTimeUs);
+                            setBitrate(Math.min(Constants.AUDIO_SILENCE_BITRATE, encoderConfig.bitrate));
+                        }
+
+                        @Override
+                        public void onSilenceEnded(long presentationTimeUs) {
+                            silenceSpans.onSilenceEnded(presentationTimeUs);
+                            setBitrate(encoderConfig.bitrate);
+                        }
+                    });
+        }
 
-        audioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
-        audioEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        audioEncoder.start();
+        if (Constants.MIX_MICROPHONE) {
+            mixer = new PcmMixer(2, channelCount, Math.max(1, codecInputSize / bytesPerFrame));
+            mixer.setGain(SOURCE_PLAYBACK, Constants.PLAYBACK_GAIN);
+            mixer.setGain(SOURCE_MICROPHONE, Constants.MICROPHONE_GAIN);
+            microphoneRing = new PcmRing(sampleRate, channelCount,
+                    (int) (sampleRate * Constants.MICROPHONE_RING_US / 1_000_000));
+            microphone = new MicrophoneCapture(microphoneRing, sampleRate);
+        }
     }
 
     public void start() {
-        isRecording = true;
         audioRecord.startRecording();
-        recordingThread = new Thread(() -> {
-            final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-            final byte[] tempBuffer = new byte[4096];
+        if (microphone != null) microphone.start();
+        engine.start();
+    }
 
-            while (isRecording) {
+    /**
+     * Sends audio to {@code coordinator}, or drops it if null, without stopping the capture.
+     */
+    public void setMuxer(@Nullable final MuxerCoordinator coordinator) {
+        output.attach(coordinator);
+    }
 
-                final int inputBufferIndex = audioEncoder.dequeueInputBuffer(10000);
-                if (inputBufferIndex >= 0) {
+    /**
+     * Sends audio to {@code coordinator} as well.
+     */
+    public void addMuxer(@NonNull final MuxerCoordinator coordinator) {
+        output.add(coordinator);
+    }
 
-                    final ByteBuffer inputBuffer = audioEncoder.getInputBuffer(inputBufferIndex);
-                    if (inputBuffer != null) {
+    public void removeMuxer(@NonNull final MuxerCoordinator coordinator) {
+        output.remove(coordinator);
+    }
 
-                        inputBuffer.clear();
-                        final int readBytes = audioRecord.read(tempBuffer, 0, tempBuffer.length);
-                        if (readBytes > 0) {
+    /**
+     * Silent stretches of audio between {@code startUs} and {@code endUs}, which stay
+     * available to other recordings.
+     */
+    @NonNull
+    public List<SilenceSpans.Span> getSilenceSpans(final long startUs, final long endUs) {
+        return silenceSpans.get(startUs, endUs);
+    }
 
-                            inputBuffer.put(tempBuffer, 0, readBytes);
-                            final long presentationTimeUs = System.nanoTime() / 1000;
-                            audioEncoder.queueInputBuffer(inputBufferIndex, 0, readBytes, presentationTimeUs, 0);
-                        } else {
-                            audioEncoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, 0);
-                        }
-                    }
-                }
+    /**
+     * Forgets the silent stretches that ended before {@code beforeUs}.
+     */
+    public void pruneSilenceSpans(final long beforeUs) {
+        silenceSpans.prune(beforeUs);
+    }
 
-                int outputBufferIndex = audioEncoder.dequeueOutputBuffer(bufferInfo, 10000);
-                while (outputBufferIndex >= 0) {
+    public void stop() {
 
-                    final ByteBuffer outputBuffer = audioEncoder.getOutputBuffer(outputBufferIndex);
-                    if (outputBuffer != null) {
+        engine.stop();
 
-                        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                            bufferInfo.size = 0;
-                        }
+        if (audioRecord != null) {
+            audioRecord.stop();
+            audioRecord.release();
+        }
+        if (microphone != null) microphone.stop();
 
-                        if (bufferInfo.size > 0) {
+        if (audioEncoder != null) {
+            audioEncoder.stop();
+            audioEncoder.release();
+        }
+    }
+
+    /**
+     * Reads PCM straight into the codec's input buffer. Runs on the engine's input thread.
+     */
+    private void fillInput(@NonNull final ByteBuffer inputBuffer, @NonNull final SampleInfo info) {
 
-                            outputBuffer.position(bufferInfo.offset);
-                            outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+        if (mixer != null) {
+            fillMixedInput(inputBuffer, info);
+            return;
+        }
+        final int readBytes = pcmReader.readInto(inputBuffer);
+        if (readBytes <= 0) return;
 
-                            if (audioTrackIndex == -1) {
-                                final MediaFormat trackFormat = audioEncoder.getOutputFormat();
-                                audioTrackIndex = muxerCoordinator.addTrack(trackFormat);
-                            }
+        final long presentationTimeUs = stampChunk(readBytes / pcmReader.getBytesPerFrame());
+        compactSilence(inputBuffer, readBytes, presentationTimeUs);
+        info.set(0, readBytes, presentationTimeUs, 0);
+    }
 
-                            while (!muxerCoordinator.isStarted()) {
+    /**
+     * Reads a chunk of playback audio, takes the microphone audio captured over the same
+     * span, and mixes both into the codec's input buffer. Runs on the engine's input thread.
+     */
+    private void fillMixedInput(@NonNull final ByteBuffer inputBuffer, @NonNull final SampleInfo info) {
 
-                                try {
-                                    Thread.sleep(5);
-                                } catch (Exception e) {
-                                    Log.e(TAG, Objects.requireNonNull(e.getMessage()));
-                                }
-                            }
+        final int channelCount = encoderConfig.channelCount;
+        final int frames = Math.min(inputBuffer.capacity() / pcmReader.getBytesPerFrame(), mixer.getMaxFrames());
+        final int read = audioRecord.read(mixer.getSourceBuffer(SOURCE_PLAYBACK), 0, frames * channelCount);
+        if (read <= 0) return;
 
-                            muxerCoordinator.getMuxer().writeSampleData(audioTrackIndex, outputBuffer, bufferInfo);
-                        }
-                    }
-                    audioEncoder.releaseOutputBuffer(outputBufferIndex, false);
-                    outputBufferIndex = audioEncoder.dequeueOutputBuffer(bufferInfo, 0);
-                }
-            }
-        }, "InternalAudioRecorderThread");
-        recordingThread.start();
+        final int readFrames = read / channelCount;
+        final long presentationTimeUs = stampChunk(readFrames);
+        microphoneRing.read(mixer.getSourceBuffer(SOURCE_MICROPHONE), readFrames, presentationTimeUs,
+                Constants.MICROPHONE_MAX_WAIT_NANOS);
+        final int mixedBytes = mixer.mixInto(inputBuffer, readFrames);
+        compactSilence(inputBuffer, mixedBytes, presentationTimeUs);
+        info.set(0, mixedBytes, presentationTimeUs, 0);
     }
 
-    public void stop() {
-        isRecording = false;
-        if (recordingThread != null) {
-            try {
-                recordingThread.join();
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Recording thread join failed", e);
-            }
-        }
+    /**
+     * Replaces a chunk with digital silence once the stream is considered silent, so the
+     * encoder spends no bits on the noise floor.
+     */
+    private void compactSilence(@NonNull final ByteBuffer pcm, final int bytes, final long presentationTimeUs) {
 
-        if (audioRecord != null) {
-            audioRecord.stop();
-            audioRecord.release();
-        }
+        if (silenceDetector == null || !silenceDetector.update(pcm, 0, bytes / 2, presentationTimeUs)) return;
+        int i = 0;
+        for (; i + 8 <= bytes; i += 8) pcm.putLong(i, 0);
+        for (; i < bytes; i++) pcm.put(i, (byte) 0);
+    }
 
-        if (audioEncoder != null) {
-            audioEncoder.stop();
-            audioEncoder.release();
+    private void setBitrate(final int bitrate) {
+
+        try {
+            audioEncoder.setAudioBitrate(bitrate);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.w(TAG, "Audio encoder rejected a bitrate change", e);
         }
     }
 
+    /**
+     * Presentation time of a playback chunk that has just been read.
+     */
+    private long stampChunk(final int frames) {
+
+        final long readCompletionNanos = System.nanoTime();
+        if (!timestampGenerator.isAnchored()
+                && audioRecord.getTimestamp(audioTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                == AudioRecord.SUCCESS)
+            timestampGenerator.anchor(audioTimestamp.framePosition, audioTimestamp.nanoTime);
+
+        return timestampGenerator.onChunkRead(frames, readCompletionNanos);
+    }
+
     private static final String TAG = "InternalAudioRecorder";
+    private static final String THREAD_NAME = "InternalAudioRecorderThread";
+    private static final int SOURCE_PLAYBACK = 0;
+    private static final int SOURCE_MICROPHONE = 1;
     private final MediaProjection mediaProjection;
-    private final MuxerCoordinator muxerCoordinator;
+    private final TrackOutput output = new TrackOutput(false);
+    private final EncoderSelector.AudioConfig encoderConfig;
+    private final EncoderEngine engine;
+    private final AudioTimestamp audioTimestamp = new AudioTimestamp();
+    private final SilenceSpans silenceSpans = new SilenceSpans();
 
     private AudioRecord audioRecord;
-    private MediaCodec audioEncoder;
-    private Thread recordingThread;
-    private volatile boolean isRecording = false;
-    private int audioTrackIndex = -1;
+    private PcmReader pcmReader;
+    private AudioTimestampGenerator timestampGenerator;
+    private MediaCodecEncoder audioEncoder;
+    // Only set with SILENCE_COMPACTION
+    private SilenceDetector silenceDetector;
+    // Only set when the microphone is mixed in
+    private PcmMixer mixer;
+    private PcmRing microphoneRing;
+    private MicrophoneCapture microphone;
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.merabills.videorecorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free count/total/max accumulator for latencies recorded on hot paths.
+ * <p>
+ * A single-writer counter must only ever be recorded from one thread. It then skips the atomic
+ * read-modify-writes and only orders its stores, which costs about as much as plain field
+ * updates; readers on other threads may see its values a moment late.
+ */
+public class LatencyCounter {
+
+    public LatencyCounter() {
+        this(false);
+    }
+
+    public LatencyCounter(final boolean singleWriter) {
+        this.singleWriter = singleWriter;
+    }
+
+    public void record(final long nanos) {
+
+        if (singleWriter) {
+            count.lazySet(count.get() + 1);
+            totalNanos.lazySet(totalNanos.get() + nanos);
+            if (nanos > maxNanos.get()) maxNanos.lazySet(nanos);
+            return;
+        }
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()))
+            if (maxNanos.compareAndSet(max, nanos)) break;
+    }
+
+    /**
+     * Adds everything {@code other} has recorded so far, as if it had been recorded here.
+     */
+    public void add(final LatencyCounter other) {
+
+        count.addAndGet(other.count.get());
+        totalNanos.addAndGet(other.totalNanos.get());
+        final long otherMax = other.maxNanos.get();
+        long max;
+        while (otherMax > (max = maxNanos.get()))
+            if (maxNanos.compareAndSet(max, otherMax)) break;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanNanos() {
+
+        final long samples = count.get();
+        return samples == 0 ? 0 : totalNanos.get() / samples;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    // Read by LatencyHistogram too
+    final boolean singleWriter;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+}
@@ -0,0 +1,91 @@
+package com.merabills.videorecorder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link LatencyCounter} that also keeps the distribution, so percentiles can be reported.
+ * <p>
+ * Values are counted in log-linear buckets in the manner of HdrHistogram: exact below
+ * {@code 2 * SUB_BUCKETS}, then {@link #SUB_BUCKETS} linear buckets per power of two, which
+ * bounds the error of any percentile to about 3% of its value. Recording is a few atomic
+ * increments with no locks or allocation, so it is safe on encoder and writer threads.
+ */
+public class LatencyHistogram extends LatencyCounter {
+
+    public LatencyHistogram() {
+        this(false);
+    }
+
+    /**
+     * @param singleWriter True if only ever recorded from one thread; see {@link LatencyCounter}.
+     */
+    public LatencyHistogram(final boolean singleWriter) {
+
+        super(singleWriter);
+    }
+
+    @Override
+    public void record(final long nanos) {
+
+        super.record(nanos);
+        final int index = bucketIndex(Math.max(0, nanos));
+        if (singleWriter) counts.lazySet(index, counts.get(index) + 1);
+        else counts.incrementAndGet(index);
+    }
+
+    /**
+     * Adds {@code other}'s distribution too when it is a histogram.
+     */
+    @Override
+    public void add(final LatencyCounter other) {
+
+        super.add(other);
+        if (!(other instanceof LatencyHistogram)) return;
+        final AtomicLongArray otherCounts = ((LatencyHistogram) other).counts;
+        for (int i = 0; i < counts.length(); i++) {
+            final long count = otherCounts.get(i);
+            if (count != 0) counts.addAndGet(i, count);
+        }
+    }
+
+    /**
+     * Smallest value that at least {@code percentile} percent of the recorded values do not
+     * exceed, to bucket precision; 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(final double percentile) {
+
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+        if (total == 0) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestValueIn(i), getMaxNanos());
+        }
+        return getMaxNanos();
+    }
+
+    static int bucketIndex(final long value) {
+
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValueIn(final int index) {
+
+        if (index < 2 * SUB_BUCKETS) return index;
+        final int shift = index / SUB_BUCKETS - 1;
+        final long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for any non-negative long
+    private static final int BUCKET_COUNT = (65 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+}
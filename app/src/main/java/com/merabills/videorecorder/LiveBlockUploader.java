@@ -0,0 +1,225 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Uploads a file that is still being written, such as a fragmented MP4, as a block blob.
+ * Each time the writer reports a new box boundary, the bytes written since the last block are
+ * staged as a new block once there are at least {@code minBlockBytes} of them. Whenever the
+ * run of staged blocks from the start of the file grows, that prefix is committed, so the
+ * blob is always a playable file that lags the recording by a fragment or two, on stores
+ * that {@link BlockStore#canCommitRepeatedly can commit repeatedly}. When the recording
+ * stops, {@link #finish} stages the tail and commits the complete file.
+ */
+public class LiveBlockUploader implements FragmentedMp4Muxer.Listener {
+
+    /**
+     * @param executor         Stages blocks; must run them on other threads, never inline.
+     * @param minBlockBytes    Fragments are batched into blocks of at least this size, which
+     *                         keeps long recordings well under the service's block count limit.
+     *                         Raised to the store's minimum block size if that is larger.
+     */
+    public LiveBlockUploader(
+            @NonNull final BlockStore store,
+            @NonNull final Executor executor,
+            @NonNull final File file,
+            @NonNull final String blobName,
+            final long minBlockBytes,
+            final int maxRetries,
+            final long retryDelayMs
+    ) {
+
+        this.store = store;
+        this.executor = executor;
+        this.file = file;
+        this.blobName = blobName;
+        this.minBlockBytes = Math.max(minBlockBytes, store.getMinBlockSize());
+        this.maxRetries = maxRetries;
+        this.retryDelayMs = retryDelayMs;
+    }
+
+    @Override
+    public synchronized void onFragmentWritten(long endOffset) {
+
+        writtenBytes = endOffset;
+        if (failure == null && endOffset - blockStart >= minBlockBytes) submitBlock(endOffset);
+    }
+
+    /**
+     * Stages whatever has not been uploaded yet, waits for every block and commits the whole
+     * file. Call once the writer has been stopped.
+     *
+     * @return upload statistics; the elapsed time is measured from this call, which is how
+     * long the recording takes to become available after it stops.
+     */
+    @NonNull
+    public BlockBlobUploader.Result finish() throws IOException {
+
+        final long startNanos = System.nanoTime();
+        final List<String> blockIds;
+        final long bytes;
+        final int retryCount;
+        synchronized (this) {
+            finishing = true;
+            if (failure == null && writtenBytes > blockStart) submitBlock(writtenBytes);
+            try {
+                while (pendingBlocks > 0)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for blocks");
+            }
+            if (failure != null) throw failure;
+            blockIds = new ArrayList<>(blocks.size());
+            for (int i = 0; i < blocks.size(); i++)
+                blockIds.add(BlockBlobUploader.blockId(i));
+            bytes = uploadedBytes;
+            retryCount = retries;
+        }
+
+        synchronized (commitLock) {
+            store.commitFinalBlockList(blobName, blockIds);
+            synchronized (this) {
+                committedBlocks = blockIds.size();
+            }
+        }
+        return new BlockBlobUploader.Result(bytes, blockIds.size(), 0, retryCount,
+                System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Bytes of the file that the blob currently contains.
+     */
+    public synchronized long getCommittedBytes() {
+        return committedBlocks == 0 ? 0 : blocks.get(committedBlocks - 1).end;
+    }
+
+    public synchronized int getBlockCount() {
+        return blocks.size();
+    }
+
+    private void submitBlock(final long end) {
+
+        final int index = blocks.size();
+        final Block block = new Block(blockStart, end);
+        blocks.add(block);
+        blockStart = end;
+        pendingBlocks++;
+        executor.execute(() -> stage(index, block));
+    }
+
+    private void stage(final int index, @NonNull final Block block) {
+
+        IOException error = null;
+        int attempts = 0;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = input.getChannel();
+            final ByteBuffer data = ByteBuffer.allocate((int) (block.end - block.start));
+            while (data.hasRemaining())
+                if (channel.read(data, block.start + data.position()) < 0)
+                    throw new IOException("File is shorter than reported");
+
+            while (true) {
+                data.rewind();
+                try {
+                    store.stageBlock(blobName, BlockBlobUploader.blockId(index), data);
+                    break;
+                } catch (IOException e) {
+                    if (attempts >= maxRetries) throw e;
+                    Thread.sleep(retryDelayMs << Math.min(attempts++, MAX_BACKOFF_SHIFT));
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = new InterruptedIOException("Interrupted staging block " + index);
+        }
+
+        final int committable;
+        synchronized (this) {
+            retries += attempts;
+            pendingBlocks--;
+            if (error != null) {
+                if (failure == null) failure = error;
+            } else {
+                block.staged = true;
+                uploadedBytes += block.end - block.start;
+            }
+            int prefix = 0;
+            while (prefix < blocks.size() && blocks.get(prefix).staged)
+                prefix++;
+            committable = finishing || failure != null || !store.canCommitRepeatedly() ? 0 : prefix;
+            notifyAll();
+        }
+        if (committable > 0) commitPrefix(committable);
+    }
+
+    /**
+     * Commits the first {@code count} blocks unless a longer prefix is already committed.
+     * Failures are left for the final commit to retry.
+     */
+    private void commitPrefix(final int count) {
+
+        synchronized (commitLock) {
+            if (count <= committedBlocks) return;
+            final List<String> blockIds = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                blockIds.add(BlockBlobUploader.blockId(i));
+            try {
+                store.commitBlockList(blobName, blockIds);
+                synchronized (this) {
+                    committedBlocks = count;
+                }
+            } catch (IOException ignored) {
+                // The next block, or finish(), commits a longer prefix
+            }
+        }
+    }
+
+    private static final class Block {
+
+        Block(final long start, final long end) {
+
+            this.start = start;
+            this.end = end;
+        }
+
+        final long start;
+        final long end;
+        boolean staged = false;
+    }
+
+    // Caps the backoff at 2^6 times the initial delay
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private final BlockStore store;
+    private final Executor executor;
+    private final File file;
+    private final String blobName;
+    private final long minBlockBytes;
+    private final int maxRetries;
+    private final long retryDelayMs;
+    private final Object commitLock = new Object();
+
+    // Guarded by this
+    private final List<Block> blocks = new ArrayList<>();
+    private long writtenBytes = 0;
+    private long blockStart = 0;
+    private int pendingBlocks = 0;
+    private int committedBlocks = 0;
+    private long uploadedBytes = 0;
+    private int retries = 0;
+    private boolean finishing = false;
+    private IOException failure;
+}
@@ -0,0 +1,183 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link BlockStore} that keeps blobs as files in a local directory, such as removable storage
+ * or a mounted share, and doubles as a network-free backend for tests and benchmarks.
+ * <p>
+ * Blocks are written to a staging directory per blob. A commit concatenates the listed blocks
+ * into a temporary file and renames it over the blob, so readers never see a partial blob, and
+ * deletes staged blocks that the commit left out. Listed blocks are kept so that a later commit
+ * can extend the blob, as live uploads do, until the final commit deletes the blob's staging
+ * directory so the blob is not stored twice.
+ */
+public class LocalDirectoryStore implements BlockStore {
+
+    public LocalDirectoryStore(@NonNull final File directory) {
+
+        this.directory = directory;
+        this.stagingDirectory = new File(directory, STAGING_DIRECTORY);
+    }
+
+    @Override
+    public void stageBlock(
+            @NonNull String blobName,
+            @NonNull String blockId,
+            @NonNull ByteBuffer data
+    ) throws IOException {
+
+        final File blockFile = blockFile(blobName, blockId);
+        final File parent = blockFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+            throw new IOException("Failed to create " + parent);
+
+        final File temporary = new File(blockFile.getPath() + TEMPORARY_SUFFIX + Thread.currentThread().getId());
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            final FileChannel channel = output.getChannel();
+            while (data.hasRemaining())
+                channel.write(data);
+        }
+        replace(temporary, blockFile);
+    }
+
+    @Override
+    public synchronized void commitBlockList(@NonNull String blobName, @NonNull List<String> blockIds)
+            throws IOException {
+
+        final File blob = blobFile(blobName);
+        final File parent = blob.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+            throw new IOException("Failed to create " + parent);
+
+        final File temporary = new File(blob.getPath() + TEMPORARY_SUFFIX);
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            final FileChannel target = output.getChannel();
+            for (final String blockId : blockIds) {
+                final File blockFile = blockFile(blobName, blockId);
+                if (!blockFile.isFile()) throw new IOException("Block " + blockId + " was never staged");
+                try (RandomAccessFile input = new RandomAccessFile(blockFile, "r")) {
+                    final FileChannel source = input.getChannel();
+                    final long size = source.size();
+                    for (long position = 0; position < size; )
+                        position += source.transferTo(position, size - position, target);
+                }
+            }
+            output.getFD().sync();
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            throw e;
+        }
+        replace(temporary, blob);
+        deleteUnlisted(blobName, blockIds);
+    }
+
+    @Override
+    public synchronized void commitFinalBlockList(@NonNull String blobName, @NonNull List<String> blockIds)
+            throws IOException {
+
+        commitBlockList(blobName, blockIds);
+        deleteStaged(blobName);
+    }
+
+    @Override
+    public long getBlobSize(@NonNull String blobName) throws IOException {
+
+        final File blob = blobFile(blobName);
+        return blob.isFile() ? blob.length() : -1;
+    }
+
+    /**
+     * Deletes the staged blocks of {@code blobName} that are not in {@code blockIds}.
+     */
+    private void deleteUnlisted(@NonNull final String blobName, @NonNull final List<String> blockIds) {
+
+        final File[] files = stagingDirectory(blobName).listFiles();
+        if (files == null) return;
+        final Set<String> listed = new HashSet<>();
+        for (final String blockId : blockIds)
+            listed.add(fileName(blockId));
+        for (final File file : files)
+            if (!listed.contains(file.getName()) && !file.getName().contains(TEMPORARY_SUFFIX))
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+    }
+
+    /**
+     * Deletes the staging directory of {@code blobName} with every block left in it.
+     */
+    private void deleteStaged(@NonNull final String blobName) {
+
+        final File staging = stagingDirectory(blobName);
+        final File[] files = staging.listFiles();
+        if (files != null)
+            for (final File file : files)
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        staging.delete();
+    }
+
+    @NonNull
+    private File blobFile(@NonNull final String blobName) throws IOException {
+
+        checkName(blobName);
+        return new File(directory, blobName);
+    }
+
+    @NonNull
+    private File stagingDirectory(@NonNull final String blobName) {
+        return new File(stagingDirectory, fileName(blobName));
+    }
+
+    @NonNull
+    private File blockFile(@NonNull final String blobName, @NonNull final String blockId) {
+        return new File(stagingDirectory(blobName), fileName(blockId));
+    }
+
+    /**
+     * Block IDs and blob names as a single file name; they may hold any character.
+     */
+    @NonNull
+    private static String fileName(@NonNull final String name) {
+
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : name.getBytes(StandardCharsets.UTF_8))
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+
+    private static void checkName(@NonNull final String blobName) throws IOException {
+
+        for (final String part : blobName.split("/"))
+            if (part.isEmpty() || part.equals(".") || part.equals("..") || part.equals(STAGING_DIRECTORY))
+                throw new IOException("Invalid blob name: " + blobName);
+    }
+
+    private static void replace(@NonNull final File source, @NonNull final File target) throws IOException {
+
+        if (!source.renameTo(target)) {
+            //noinspection ResultOfMethodCallIgnored
+            source.delete();
+            throw new IOException("Failed to replace " + target);
+        }
+    }
+
+    private static final String STAGING_DIRECTORY = ".staging";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final File stagingDirectory;
+}
@@ -0,0 +1,170 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link EncoderCodec} backed by a platform {@link MediaCodec} encoder.
+ */
+public class MediaCodecEncoder implements EncoderCodec {
+
+    public MediaCodecEncoder(@NonNull final MediaCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void setCallback(@Nullable final Callback callback) {
+
+        if (callback == null) {
+            codec.setCallback(null);
+            return;
+        }
+        codec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec, int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(
+                    @NonNull MediaCodec mediaCodec,
+                    int index,
+                    @NonNull MediaCodec.BufferInfo bufferInfo
+            ) {
+
+                // Callbacks are serialised on one thread, so one SampleInfo can be reused
+                callbackInfo.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+                callback.onOutputBufferAvailable(index, callbackInfo);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec mediaCodec, @NonNull MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        }, CodecCallbackThread.getHandler());
+    }
+
+    public void configure(@NonNull final MediaFormat format) {
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @NonNull
+    public Surface createInputSurface() {
+        return codec.createInputSurface();
+    }
+
+    @NonNull
+    public MediaFormat getInputFormat() {
+        return codec.getInputFormat();
+    }
+
+    @Override
+    public void start() {
+        codec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        return codec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return codec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(
+            final int index,
+            final int offset,
+            final int size,
+            final long presentationTimeUs,
+            final int flags
+    ) {
+        codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(@NonNull final SampleInfo info, final long timeoutUs) {
+
+        final int index = codec.dequeueOutputBuffer(pollingInfo, timeoutUs);
+        info.set(pollingInfo.offset, pollingInfo.size, pollingInfo.presentationTimeUs, pollingInfo.flags);
+        return index;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    @NonNull
+    @Override
+    public MediaFormat getOutputFormat() {
+        return codec.getOutputFormat();
+    }
+
+    /**
+     * Changes the target bitrate of a running encoder, in bits per second.
+     */
+    public void setVideoBitrate(final int bitrate) {
+
+        final Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        codec.setParameters(parameters);
+    }
+
+    /**
+     * Best-effort change of a running audio encoder's bitrate. The key is only documented for
+     * video, but Codec2 maps it to the generic bitrate parameter, which its AAC encoder reads
+     * per frame; encoders that ignore it keep their configured bitrate.
+     */
+    public void setAudioBitrate(final int bitrate) {
+        setVideoBitrate(bitrate);
+    }
+
+    /**
+     * Asks a running video encoder to make its next frame a key frame.
+     */
+    public void requestSyncFrame() {
+
+        final Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        codec.setParameters(parameters);
+    }
+
+    public void signalEndOfInputStream() {
+        codec.signalEndOfInputStream();
+    }
+
+    public void stop() {
+        codec.stop();
+    }
+
+    public void release() {
+        codec.release();
+    }
+
+    private final MediaCodec codec;
+    // Only touched by the single polling thread
+    private final MediaCodec.BufferInfo pollingInfo = new MediaCodec.BufferInfo();
+    private final SampleInfo callbackInfo = new SampleInfo();
+}
@@ -0,0 +1,212 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Transcoder} built on MediaCodec. The video track is decoded straight onto the input
+ * surface of a new encoder, so frames never leave the GPU, and every other track is copied
+ * sample by sample, interleaved with the new video by timestamp.
+ */
+public class MediaCodecTranscoder implements Transcoder {
+
+    @NonNull
+    @Override
+    public TranscodePolicy.Recording probe(@NonNull File input) throws IOException {
+
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(input.getPath());
+            long durationUs = 0;
+            for (int track = 0; track < extractor.getTrackCount(); track++) {
+                final MediaFormat format = extractor.getTrackFormat(track);
+                if (format.containsKey(MediaFormat.KEY_DURATION))
+                    durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION));
+            }
+            return new TranscodePolicy.Recording(input.length(), durationUs);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    @Override
+    public boolean canEncode(@NonNull String videoMime) {
+
+        final MediaFormat format = MediaFormat.createVideoFormat(videoMime, PROBE_WIDTH, PROBE_HEIGHT);
+        return new MediaCodecList(MediaCodecList.REGULAR_CODECS).findEncoderForFormat(format) != null;
+    }
+
+    @Override
+    public void transcode(
+            @NonNull File input,
+            @NonNull File output,
+            @NonNull TranscodePolicy.Decision decision,
+            @NonNull Throttle throttle
+    ) throws IOException, InterruptedException {
+
+        final MediaExtractor videoExtractor = new MediaExtractor();
+        final MediaExtractor otherExtractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        MediaCodec encoder = null;
+        Surface surface = null;
+        MediaMuxer muxer = null;
+        try {
+            videoExtractor.setDataSource(input.getPath());
+            otherExtractor.setDataSource(input.getPath());
+            muxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+
+            MediaFormat inputFormat = null;
+            final int[] copiedTracks = new int[videoExtractor.getTrackCount()];
+            int maxSampleSize = DEFAULT_SAMPLE_SIZE;
+            for (int track = 0; track < videoExtractor.getTrackCount(); track++) {
+                final MediaFormat format = videoExtractor.getTrackFormat(track);
+                final String mime = format.getString(MediaFormat.KEY_MIME);
+                copiedTracks[track] = -1;
+                if (inputFormat == null && mime != null && mime.startsWith("video/")) {
+                    inputFormat = format;
+                    videoExtractor.selectTrack(track);
+                } else {
+                    copiedTracks[track] = muxer.addTrack(format);
+                    otherExtractor.selectTrack(track);
+                    if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE))
+                        maxSampleSize = Math.max(maxSampleSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+            }
+            if (inputFormat == null) throw new IOException("No video track in " + input);
+            if (inputFormat.containsKey(MediaFormat.KEY_ROTATION))
+                muxer.setOrientationHint(inputFormat.getInteger(MediaFormat.KEY_ROTATION));
+
+            final MediaFormat outputFormat = MediaFormat.createVideoFormat(decision.videoMime,
+                    inputFormat.getInteger(MediaFormat.KEY_WIDTH), inputFormat.getInteger(MediaFormat.KEY_HEIGHT));
+            outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, decision.videoBitrate);
+            outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, inputFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                    ? inputFormat.getInteger(MediaFormat.KEY_FRAME_RATE)
+                    : Constants.VIDEO_FRAME_RATE);
+            outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS);
+
+            encoder = MediaCodec.createEncoderByType(decision.videoMime);
+            encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = encoder.createInputSurface();
+            encoder.start();
+            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            decoder.configure(inputFormat, surface, null, 0);
+            decoder.start();
+
+            final ByteBuffer sample = ByteBuffer.allocate(maxSampleSize);
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            final MediaCodec.BufferInfo copyInfo = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            boolean decoderDone = false;
+            int videoTrack = -1;
+            while (true) {
+                throttle.checkpoint();
+
+                if (!inputDone) {
+                    final int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        final ByteBuffer buffer = decoder.getInputBuffer(index);
+                        final int size = buffer == null ? -1 : videoExtractor.readSampleData(buffer, 0);
+                        if (size < 0) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(index, 0, size, videoExtractor.getSampleTime(), 0);
+                            videoExtractor.advance();
+                        }
+                    }
+                }
+
+                if (!decoderDone) {
+                    final int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                    if (index >= 0) {
+                        decoder.releaseOutputBuffer(index, info.size > 0);
+                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            encoder.signalEndOfInputStream();
+                            decoderDone = true;
+                        }
+                    }
+                }
+
+                final int index = encoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    videoTrack = muxer.addTrack(encoder.getOutputFormat());
+                    muxer.start();
+                } else if (index >= 0) {
+                    final ByteBuffer encoded = encoder.getOutputBuffer(index);
+                    if (encoded != null && info.size > 0 && videoTrack >= 0
+                            && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        muxer.writeSampleData(videoTrack, encoded, info);
+                        copySamples(otherExtractor, muxer, copiedTracks, sample, copyInfo, info.presentationTimeUs);
+                    }
+                    encoder.releaseOutputBuffer(index, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+                }
+            }
+            if (videoTrack < 0) throw new IOException("Encoder produced no output");
+            copySamples(otherExtractor, muxer, copiedTracks, sample, copyInfo, Long.MAX_VALUE);
+            muxer.stop();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // MediaCodec and MediaMuxer report most failures as unchecked exceptions
+            throw new IOException("Transcoding " + input + " failed", e);
+        } finally {
+            if (decoder != null) decoder.release();
+            if (encoder != null) encoder.release();
+            if (surface != null) surface.release();
+            if (muxer != null) {
+                try {
+                    muxer.release();
+                } catch (IllegalStateException ignored) {
+                    // Not started, or stopping failed above
+                }
+            }
+            videoExtractor.release();
+            otherExtractor.release();
+        }
+    }
+
+    /**
+     * Copies the samples of the other tracks up to {@code untilUs}.
+     */
+    private static void copySamples(
+            @NonNull final MediaExtractor extractor,
+            @NonNull final MediaMuxer muxer,
+            @NonNull final int[] tracks,
+            @NonNull final ByteBuffer sample,
+            @NonNull final MediaCodec.BufferInfo info,
+            final long untilUs
+    ) {
+
+        while (true) {
+            final int track = extractor.getSampleTrackIndex();
+            final long timeUs = extractor.getSampleTime();
+            if (track < 0 || timeUs > untilUs) return;
+            final int size = extractor.readSampleData(sample, 0);
+            if (size >= 0 && tracks[track] >= 0) {
+                final int flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                        ? MediaCodec.BUFFER_FLAG_KEY_FRAME
+                        : 0;
+                info.set(0, size, timeUs, flags);
+                muxer.writeSampleData(tracks[track], sample, info);
+            }
+            extractor.advance();
+        }
+    }
+
+    private static final long TIMEOUT_US = 10_000;
+    private static final int I_FRAME_INTERVAL_SECONDS = 2;
+    private static final int DEFAULT_SAMPLE_SIZE = 256 * 1024;
+    private static final int PROBE_WIDTH = 1280;
+    private static final int PROBE_HEIGHT = 720;
+}
@@ -0,0 +1,55 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleMuxer} backed by the platform {@link MediaMuxer}.
+ */
+public class MediaMuxerAdapter implements SampleMuxer {
+
+    public MediaMuxerAdapter(@NonNull final MediaMuxer muxer) {
+        this.muxer = muxer;
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat format) {
+        return muxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+    }
+
+    @Override
+    public void writeSampleData(
+            int trackIndex,
+            @NonNull ByteBuffer data,
+            long presentationTimeUs,
+            int flags
+    ) {
+
+        // The coordinator serialises writes, so a single BufferInfo can be reused
+        bufferInfo.set(data.position(), data.remaining(), presentationTimeUs, flags);
+        muxer.writeSampleData(trackIndex, data, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        muxer.stop();
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+
+    private final MediaMuxer muxer;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+}
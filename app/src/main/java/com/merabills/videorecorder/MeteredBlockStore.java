@@ -0,0 +1,147 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps any {@link BlockStore} and measures it the same way, so that backends can be compared
+ * on equal terms: bytes and blocks staged, failures, and the latency of each call.
+ */
+public class MeteredBlockStore implements BlockStore {
+
+    public MeteredBlockStore(@NonNull final BlockStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void stageBlock(
+            @NonNull String blobName,
+            @NonNull String blockId,
+            @NonNull ByteBuffer data
+    ) throws IOException {
+
+        final int size = data.remaining();
+        final long startNanos = System.nanoTime();
+        try {
+            store.stageBlock(blobName, blockId, data);
+            stagedBytes.addAndGet(size);
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            stageLatency.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    @Override
+    public void commitBlockList(@NonNull String blobName, @NonNull List<String> blockIds) throws IOException {
+
+        final long startNanos = System.nanoTime();
+        try {
+            store.commitBlockList(blobName, blockIds);
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            commitLatency.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    @Override
+    public void commitFinalBlockList(@NonNull String blobName, @NonNull List<String> blockIds) throws IOException {
+
+        final long startNanos = System.nanoTime();
+        try {
+            store.commitFinalBlockList(blobName, blockIds);
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            commitLatency.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    @Override
+    public long getBlobSize(@NonNull String blobName) throws IOException {
+        return store.getBlobSize(blobName);
+    }
+
+    @Override
+    public int getMinBlockSize() {
+        return store.getMinBlockSize();
+    }
+
+    @Override
+    public boolean canCommitRepeatedly() {
+        return store.canCommitRepeatedly();
+    }
+
+    /**
+     * Bytes of blocks that were staged successfully.
+     */
+    public long getStagedBytes() {
+        return stagedBytes.get();
+    }
+
+    /**
+     * Stage and commit calls that failed, before any retry.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @NonNull
+    public LatencyCounter getStageLatency() {
+        return stageLatency;
+    }
+
+    @NonNull
+    public LatencyCounter getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Throughput of a single staging call, which is what a backend offers per connection;
+     * parallel staging multiplies it up to the backend's limit.
+     */
+    public double getMegabytesPerSecondPerStage() {
+
+        final long busyNanos = stageLatency.getMeanNanos() * stageLatency.getCount();
+        return busyNanos == 0 ? 0 : stagedBytes.get() / (1024.0 * 1024.0) / (busyNanos / 1e9);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%s: %d bytes in %d stages (%.2f MB/s each, max %d ms), %d commits (mean %d ms), %d failures",
+                store.getClass().getSimpleName(), stagedBytes.get(), stageLatency.getCount(),
+                getMegabytesPerSecondPerStage(), stageLatency.getMaxNanos() / 1_000_000,
+                commitLatency.getCount(), commitLatency.getMeanNanos() / 1_000_000, failures.get());
+    }
+
+    /**
+     * The same figures as {@link #toString()}, as a JSON object.
+     */
+    @NonNull
+    public String toJson() {
+        return String.format(Locale.US,
+                "{\"store\":\"%s\",\"stagedBytes\":%d,\"stages\":%d,\"megabytesPerSecondPerStage\":%.2f,"
+                        + "\"stageMeanMs\":%d,\"stageMaxMs\":%d,\"commits\":%d,\"commitMeanMs\":%d,\"failures\":%d}",
+                store.getClass().getSimpleName(), stagedBytes.get(), stageLatency.getCount(),
+                getMegabytesPerSecondPerStage(), stageLatency.getMeanNanos() / 1_000_000,
+                stageLatency.getMaxNanos() / 1_000_000, commitLatency.getCount(),
+                commitLatency.getMeanNanos() / 1_000_000, failures.get());
+    }
+
+    private final BlockStore store;
+    private final AtomicLong stagedBytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final LatencyCounter stageLatency = new LatencyCounter();
+    private final LatencyCounter commitLatency = new LatencyCounter();
+}
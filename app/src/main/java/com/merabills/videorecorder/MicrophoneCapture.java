@@ -0,0 +1,86 @@
+package com.merabills.videorecorder;
+
+import android.Manifest;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresPermission;
+
+/**
+ * Captures the microphone on its own thread into a {@link PcmRing}, stamped on the same
+ * monotonic clock as playback capture, so the mixer can line the voice up with app audio.
+ */
+public class MicrophoneCapture {
+
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    public MicrophoneCapture(@NonNull final PcmRing ring, final int sampleRate) {
+
+        this.ring = ring;
+        final int minBufferSize = AudioRecord.getMinBufferSize(
+                sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        audioRecord = new AudioRecord.Builder()
+                .setAudioSource(MediaRecorder.AudioSource.MIC)
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(AudioFormat.CHANNEL_IN_MONO)
+                        .build())
+                .setBufferSizeInBytes(2 * minBufferSize)
+                .build();
+        // Half the minimum buffer keeps reads short without waking up too often
+        chunk = new short[Math.max(1, minBufferSize / 4)];
+        timestampGenerator = new AudioTimestampGenerator(sampleRate);
+        thread = new Thread(this::run, "MicCaptureThread");
+    }
+
+    public void start() {
+
+        running = true;
+        audioRecord.startRecording();
+        thread.start();
+    }
+
+    public void stop() {
+
+        running = false;
+        try {
+            audioRecord.stop();
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to stop the microphone", e);
+        }
+        audioRecord.release();
+    }
+
+    private void run() {
+
+        while (running) {
+            final int read = audioRecord.read(chunk, 0, chunk.length);
+            if (read <= 0) {
+                if (read < 0) Log.e(TAG, "Microphone read failed: " + read);
+                continue;
+            }
+            final long readCompletionNanos = System.nanoTime();
+            if (!timestampGenerator.isAnchored()
+                    && audioRecord.getTimestamp(audioTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                    == AudioRecord.SUCCESS)
+                timestampGenerator.anchor(audioTimestamp.framePosition, audioTimestamp.nanoTime);
+            ring.write(chunk, read, 1, timestampGenerator.onChunkRead(read, readCompletionNanos));
+        }
+    }
+
+    private static final String TAG = "MicrophoneCapture";
+    private final PcmRing ring;
+    private final AudioRecord audioRecord;
+    private final short[] chunk;
+    private final AudioTimestampGenerator timestampGenerator;
+    private final AudioTimestamp audioTimestamp = new AudioTimestamp();
+    private final Thread thread;
+    private volatile boolean running = false;
+}
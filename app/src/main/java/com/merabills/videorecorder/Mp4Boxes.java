@@ -0,0 +1,279 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Box layouts shared by the MP4 writers: the file type box, track headers and sample
+ * descriptions for the codecs the recorders produce (AVC video, AAC audio), and conversion of
+ * encoder output from Annex-B start codes to the length-prefixed NAL units MP4 requires.
+ */
+public final class Mp4Boxes {
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    public static final int VIDEO_TIMESCALE = 90_000;
+    public static final int MOVIE_TIMESCALE = 1000;
+
+    /** Sample flags for a sync sample that depends on no other sample. */
+    public static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    /** Sample flags for a non-sync sample that depends on earlier samples. */
+    public static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private Mp4Boxes() {
+    }
+
+    public static void checkSupported(@NonNull final TrackFormat format) {
+
+        if (!MIME_AVC.equals(format.mime) && !MIME_AAC.equals(format.mime))
+            throw new IllegalArgumentException("Unsupported track type " + format.mime);
+    }
+
+    public static int timescaleOf(@NonNull final TrackFormat format) {
+        return format.isVideo() ? VIDEO_TIMESCALE : format.sampleRate;
+    }
+
+    public static void writeFtyp(@NonNull final BoxWriter writer, @NonNull final String... compatibleBrands) {
+
+        final int ftyp = writer.startBox("ftyp");
+        writer.fourCc("isom").u32(0x200);
+        for (final String brand : compatibleBrands)
+            writer.fourCc(brand);
+        writer.endBox(ftyp);
+    }
+
+    public static void writeMvhd(@NonNull final BoxWriter writer, final long durationMs, final int nextTrackId) {
+
+        final int mvhd = writer.startFullBox("mvhd", 0, 0);
+        writer.u32(0).u32(0).u32(MOVIE_TIMESCALE).u32(durationMs);
+        writer.u32(0x00010000).u16(0x0100).zeros(10);
+        writeMatrix(writer);
+        writer.zeros(24).u32(nextTrackId);
+        writer.endBox(mvhd);
+    }
+
+    public static void writeTkhd(
+            @NonNull final BoxWriter writer,
+            @NonNull final TrackFormat format,
+            final int trackId,
+            final long durationMs
+    ) {
+
+        // Flags: track enabled, in movie
+        final int tkhd = writer.startFullBox("tkhd", 0, 3);
+        writer.u32(0).u32(0).u32(trackId).u32(0).u32(durationMs);
+        writer.zeros(8).u16(0).u16(0).u16(format.isVideo() ? 0 : 0x0100).u16(0);
+        writeMatrix(writer);
+        writer.u32((long) format.width << 16).u32((long) format.height << 16);
+        writer.endBox(tkhd);
+    }
+
+    public static void writeMdhdAndHdlr(
+            @NonNull final BoxWriter writer,
+            @NonNull final TrackFormat format,
+            final long duration
+    ) {
+
+        final int mdhd = writer.startFullBox("mdhd", 0, 0);
+        // Language "und", packed as three 5-bit letters
+        writer.u32(0).u32(0).u32(timescaleOf(format)).u32(duration).u16(0x55C4).u16(0);
+        writer.endBox(mdhd);
+
+        final int hdlr = writer.startFullBox("hdlr", 0, 0);
+        writer.u32(0).fourCc(format.isVideo() ? "vide" : "soun").zeros(12);
+        writer.bytes((format.isVideo() ? "VideoHandle\0" : "SoundHandle\0").getBytes(StandardCharsets.US_ASCII));
+        writer.endBox(hdlr);
+    }
+
+    /**
+     * Writes the media header (vmhd/smhd) and data information boxes that open a minf box.
+     */
+    public static void writeMediaHeader(@NonNull final BoxWriter writer, @NonNull final TrackFormat format) {
+
+        if (format.isVideo()) {
+            final int vmhd = writer.startFullBox("vmhd", 0, 1);
+            writer.zeros(8);
+            writer.endBox(vmhd);
+        } else {
+            final int smhd = writer.startFullBox("smhd", 0, 0);
+            writer.zeros(4);
+            writer.endBox(smhd);
+        }
+
+        final int dinf = writer.startBox("dinf");
+        final int dref = writer.startFullBox("dref", 0, 0);
+        writer.u32(1);
+        // Flag 1: media data is in this file
+        writer.endBox(writer.startFullBox("url ", 0, 1));
+        writer.endBox(dref);
+        writer.endBox(dinf);
+    }
+
+    public static void writeStsd(@NonNull final BoxWriter writer, @NonNull final TrackFormat format) {
+
+        final int stsd = writer.startFullBox("stsd", 0, 0);
+        writer.u32(1);
+        if (format.isVideo()) writeAvc1(writer, format);
+        else writeMp4a(writer, format);
+        writer.endBox(stsd);
+    }
+
+    /**
+     * Splits Annex-B data into NAL units, without their start codes. Data that does not begin
+     * with a start code is returned as a single unit.
+     */
+    @NonNull
+    public static List<byte[]> splitNalUnits(@NonNull final byte[] data) {
+
+        final List<byte[]> units = new ArrayList<>();
+        int start = startCodeEnd(data, 0);
+        if (start < 0) {
+            units.add(data);
+            return units;
+        }
+        while (start < data.length) {
+            int next = start;
+            int end = data.length;
+            while (next + 2 < data.length) {
+                if (data[next] == 0 && data[next + 1] == 0 && data[next + 2] == 1) {
+                    end = next > start && data[next - 1] == 0 ? next - 1 : next;
+                    break;
+                }
+                next++;
+            }
+            final byte[] unit = new byte[end - start];
+            System.arraycopy(data, start, unit, 0, unit.length);
+            if (unit.length > 0) units.add(unit);
+            if (end == data.length) break;
+            start = next + 3;
+        }
+        return units;
+    }
+
+    /**
+     * Appends an encoded AVC access unit as 4-byte length-prefixed NAL units. Samples that
+     * do not start with a start code are assumed to be length-prefixed already.
+     *
+     * @return the number of bytes appended.
+     */
+    public static int appendLengthPrefixed(@NonNull final BoxWriter writer, @NonNull final ByteBuffer sample) {
+
+        final ByteBuffer data = sample.duplicate();
+        final int begin = data.position();
+        final int end = data.limit();
+        int start = startCodeEnd(data, begin);
+        if (start < 0) {
+            writer.bytes(data);
+            return end - begin;
+        }
+
+        final int sizeBefore = writer.size();
+        while (start < end) {
+            int next = start;
+            int unitEnd = end;
+            while (next + 2 < end) {
+                if (data.get(next) == 0 && data.get(next + 1) == 0 && data.get(next + 2) == 1) {
+                    unitEnd = next > start && data.get(next - 1) == 0 ? next - 1 : next;
+                    break;
+                }
+                next++;
+            }
+            if (unitEnd > start) {
+                writer.u32(unitEnd - start);
+                data.limit(unitEnd).position(start);
+                writer.bytes(data);
+                data.limit(end);
+            }
+            if (unitEnd == end) break;
+            start = next + 3;
+        }
+        return writer.size() - sizeBefore;
+    }
+
+    private static void writeAvc1(@NonNull final BoxWriter writer, @NonNull final TrackFormat format) {
+
+        final List<byte[]> units = new ArrayList<>();
+        if (format.csd0 != null) units.addAll(splitNalUnits(format.csd0));
+        if (format.csd1 != null) units.addAll(splitNalUnits(format.csd1));
+        final List<byte[]> sps = new ArrayList<>();
+        final List<byte[]> pps = new ArrayList<>();
+        for (final byte[] unit : units) {
+            final int type = unit[0] & 0x1F;
+            if (type == 7) sps.add(unit);
+            else if (type == 8) pps.add(unit);
+        }
+        if (sps.isEmpty() || sps.get(0).length < 4)
+            throw new IllegalArgumentException("AVC track has no SPS");
+
+        final int avc1 = writer.startBox("avc1");
+        writer.zeros(6).u16(1).zeros(16);
+        writer.u16(format.width).u16(format.height);
+        // 72 dpi, one frame per sample, empty compressor name, 24-bit colour
+        writer.u32(0x00480000).u32(0x00480000).u32(0).u16(1).zeros(32).u16(0x18).u16(0xFFFF);
+
+        final int avcC = writer.startBox("avcC");
+        final byte[] firstSps = sps.get(0);
+        // Version, profile, compatibility, level, then 4-byte NAL lengths
+        writer.u8(1).u8(firstSps[1]).u8(firstSps[2]).u8(firstSps[3]).u8(0xFF);
+        writer.u8(0xE0 | sps.size());
+        for (final byte[] unit : sps)
+            writer.u16(unit.length).bytes(unit);
+        writer.u8(pps.size());
+        for (final byte[] unit : pps)
+            writer.u16(unit.length).bytes(unit);
+        writer.endBox(avcC);
+        writer.endBox(avc1);
+    }
+
+    private static void writeMp4a(@NonNull final BoxWriter writer, @NonNull final TrackFormat format) {
+
+        final byte[] config = format.csd0 != null ? format.csd0 : new byte[0];
+
+        final int mp4a = writer.startBox("mp4a");
+        writer.zeros(6).u16(1).zeros(8);
+        writer.u16(format.channelCount).u16(16).u16(0).u16(0).u32((long) format.sampleRate << 16);
+
+        final int esds = writer.startFullBox("esds", 0, 0);
+        final int decoderSpecificLength = 2 + config.length;
+        final int decoderConfigLength = 13 + decoderSpecificLength;
+        // ES descriptor: ID 0, no flags; then decoder config, specific info and SL config
+        writer.u8(0x03).u8(3 + 2 + decoderConfigLength + 3).u16(0).u8(0);
+        // Object type AAC, stream type audio, no buffer size or bitrates declared
+        writer.u8(0x04).u8(decoderConfigLength).u8(0x40).u8(0x15).u24(0).u32(0).u32(0);
+        writer.u8(0x05).u8(config.length).bytes(config);
+        writer.u8(0x06).u8(1).u8(0x02);
+        writer.endBox(esds);
+        writer.endBox(mp4a);
+    }
+
+    private static void writeMatrix(@NonNull final BoxWriter writer) {
+        writer.u32(0x00010000).u32(0).u32(0).u32(0).u32(0x00010000).u32(0).u32(0).u32(0).u32(0x40000000);
+    }
+
+    /**
+     * Index just past a leading 3- or 4-byte start code, or -1 if there is none.
+     */
+    private static int startCodeEnd(@NonNull final byte[] data, final int offset) {
+
+        if (data.length - offset >= 3 && data[offset] == 0 && data[offset + 1] == 0) {
+            if (data[offset + 2] == 1) return offset + 3;
+            if (data.length - offset >= 4 && data[offset + 2] == 0 && data[offset + 3] == 1) return offset + 4;
+        }
+        return -1;
+    }
+
+    static int startCodeEnd(@NonNull final ByteBuffer data, final int offset) {
+
+        final int limit = data.limit();
+        if (limit - offset >= 3 && data.get(offset) == 0 && data.get(offset + 1) == 0) {
+            if (data.get(offset + 2) == 1) return offset + 3;
+            if (limit - offset >= 4 && data.get(offset + 2) == 0 && data.get(offset + 3) == 1) return offset + 4;
+        }
+        return -1;
+    }
+}
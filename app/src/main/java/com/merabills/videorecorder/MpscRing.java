@@ -0,0 +1,161 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Bounded lock-free multi-producer, single-consumer queue.
+ * Each slot carries a sequence number: producers claim a slot by advancing the tail with a
+ * CAS and publish it by bumping the slot's sequence, so the consumer never sees a slot
+ * before its element is written. {@link #offer} never blocks; it returns false when full.
+ * <p>
+ * A ring built with a factory allocates its elements up front and is used in place instead:
+ * producers {@link #claim} a slot, fill the element it holds and {@link #publish} it, and the
+ * consumer reads it with {@link #peek} and hands the slot back with {@link #advance}, so
+ * nothing is allocated per element.
+ */
+public class MpscRing<E> {
+
+    /**
+     * @param capacity Rounded up to the next power of two.
+     */
+    public MpscRing(final int capacity) {
+
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.capacity = Math.max(size, 2);
+        this.mask = this.capacity - 1;
+        this.elements = new Object[this.capacity];
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * @param capacity Rounded up to the next power of two.
+     * @param factory  Creates the element every slot holds for the ring's lifetime.
+     */
+    public MpscRing(final int capacity, @NonNull final Supplier<E> factory) {
+
+        this(capacity);
+        for (int i = 0; i < this.capacity; i++)
+            elements[i] = factory.get();
+    }
+
+    /**
+     * Safe to call from any number of threads.
+     *
+     * @return false if the ring is full.
+     */
+    public boolean offer(@NonNull final E element) {
+
+        final long position = claim();
+        if (position < 0) return false;
+        elements[(int) position & mask] = element;
+        publish(position);
+        return true;
+    }
+
+    /**
+     * Reserves the next slot for the caller to fill; safe to call from any number of threads.
+     *
+     * @return the slot's position, or -1 if the ring is full.
+     */
+    public long claim() {
+
+        while (true) {
+            final long position = tail.get();
+            final long delta = sequences.get((int) position & mask) - position;
+            if (delta == 0) {
+                if (tail.compareAndSet(position, position + 1)) return position;
+            } else if (delta < 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * The element held by a slot of a ring built with a factory.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    public E get(final long position) {
+        return (E) elements[(int) position & mask];
+    }
+
+    /**
+     * Hands a claimed slot, once filled, to the consumer.
+     */
+    public void publish(final long position) {
+        // Volatile write publishes the element to the consumer
+        sequences.set((int) position & mask, position + 1);
+    }
+
+    /**
+     * Must only be called from the single consumer thread.
+     */
+    @Nullable
+    public E poll() {
+
+        final E element = peek();
+        if (element == null) return null;
+        elements[(int) head & mask] = null;
+        advance();
+        return element;
+    }
+
+    /**
+     * The oldest published element, left in its slot; must only be called from the single
+     * consumer thread.
+     *
+     * @return null if the ring is empty.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public E peek() {
+
+        final long position = head;
+        final int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) return null;
+        return (E) elements[index];
+    }
+
+    /**
+     * Hands the slot of the element {@link #peek} returned back to producers for the next lap;
+     * must only be called from the single consumer thread.
+     */
+    public void advance() {
+
+        final long position = head;
+        sequences.set((int) position & mask, position + capacity);
+        head = position + 1;
+    }
+
+    /**
+     * Approximate number of queued elements; exact when producers are quiescent.
+     */
+    public int size() {
+
+        final long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+}
@@ -1,58 +1,461 @@
 package com.merabills.videorecorder;
 
+import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Owns the muxer shared by the video and audio encoders.
+ * <p>
+ * Encoder threads only copy each sample into a pooled direct buffer and fill in a descriptor
+ * slot of a lock-free ring, so they can return their codec buffers immediately and allocate
+ * nothing. A single writer thread
+ * drains the ring and is the only thread that ever writes to the muxer. It keeps a FIFO per
+ * track and always writes the track whose next sample has the lowest timestamp, holding
+ * samples for at most {@link Constants#MUXER_REORDER_WINDOW_US} of lead over a lagging track
+ * so the file is interleaved for progressive playback.
+ * <p>
+ * Samples that arrive before every expected track has been added are held by the writer in a
+ * byte-capped pre-start queue and flushed in timestamp order once the muxer starts.
+ */
 public class MuxerCoordinator {
+
+    /**
+     * What to do with a sample that would push the pre-start queue over its byte cap.
+     */
+    public enum DropPolicy {
+        /** Evict the oldest queued samples until the new one fits. */
+        DROP_OLDEST,
+        /** Keep the queue as it is and discard the incoming sample. */
+        DROP_NEWEST
+    }
+
     public MuxerCoordinator(
-            @NonNull final MediaMuxer muxer,
+            @NonNull final SampleMuxer muxer,
             final int expectedTracks
     ) {
+        this(muxer, expectedTracks, Constants.PRE_START_QUEUE_MAX_BYTES, DropPolicy.DROP_OLDEST);
+    }
+
+    public MuxerCoordinator(
+            @NonNull final SampleMuxer muxer,
+            final int expectedTracks,
+            final long preStartQueueMaxBytes,
+            @NonNull final DropPolicy dropPolicy
+    ) {
+        this(
+                muxer,
+                expectedTracks,
+                preStartQueueMaxBytes,
+                dropPolicy,
+                Constants.MUXER_QUEUE_CAPACITY,
+                Constants.MUXER_REORDER_WINDOW_US
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    public MuxerCoordinator(
+            @NonNull final SampleMuxer muxer,
+            final int expectedTracks,
+            final long preStartQueueMaxBytes,
+            @NonNull final DropPolicy dropPolicy,
+            final int queueCapacity,
+            final long reorderWindowUs
+    ) {
 
         this.muxer = muxer;
         this.expectedTracks = expectedTracks;
+        this.preStartQueueMaxBytes = preStartQueueMaxBytes;
+        this.dropPolicy = dropPolicy;
+        this.reorderWindowUs = reorderWindowUs;
+        this.bufferPool = new SampleBufferPool(preStartQueueMaxBytes);
+        this.ring = new MpscRing<>(queueCapacity, Sample::new);
+        this.metrics = new SessionMetrics(expectedTracks);
+        this.trackQueues = (ArrayDeque<Sample>[]) new ArrayDeque<?>[expectedTracks];
+        for (int i = 0; i < expectedTracks; i++)
+            trackQueues[i] = new ArrayDeque<>();
+
+        writerThread = new Thread(this::runWriter, "MuxerWriterThread");
+        writerThread.setDaemon(true);
+        writerThread.start();
     }
 
-    public synchronized int addTrack(MediaFormat format) {
+    public synchronized int addTrack(@NonNull MediaFormat format) {
 
         final int trackIndex = muxer.addTrack(format);
+        metrics.setTrackMime(trackIndex, format != null ? format.getString(MediaFormat.KEY_MIME) : null);
         addedTracks++;
         if (addedTracks == expectedTracks && !started) {
             muxer.start();
             started = true;
+            LockSupport.unpark(writerThread);
         }
         return trackIndex;
     }
 
-    public synchronized boolean isStarted() {
+    /**
+     * Hands an encoded sample to the writer thread. Never blocks and never waits for the muxer
+     * to start. {@code data} must be positioned at the sample and limited to its end; it is
+     * copied before this returns, so the caller may release its codec buffer straight away.
+     *
+     * @return false if the sample was dropped because the coordinator is stopping or the
+     * handoff ring is full.
+     */
+    public boolean writeSample(
+            final int trackIndex,
+            @NonNull final ByteBuffer data,
+            final long presentationTimeUs,
+            final int flags
+    ) {
+
+        final long enqueueStartNanos = System.nanoTime();
+        if (stopping || trackIndex < 0 || trackIndex >= expectedTracks) {
+            droppedSamples.incrementAndGet();
+            metrics.onSampleDropped(trackIndex);
+            return false;
+        }
+        metrics.onSampleQueued(trackIndex, presentationTimeUs,
+                (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0, enqueueStartNanos);
+
+        final ByteBuffer copy = bufferPool.copyOf(data);
+        final long position = ring.claim();
+        if (position < 0) {
+            bufferPool.release(copy);
+            droppedSamples.incrementAndGet();
+            metrics.onSampleDropped(trackIndex);
+            return false;
+        }
+        ring.get(position).set(trackIndex, copy, presentationTimeUs, flags);
+        ring.publish(position);
+        enqueuedSamples.incrementAndGet();
+        if (writerParked) LockSupport.unpark(writerThread);
+        enqueueLatency.record(System.nanoTime() - enqueueStartNanos);
+        return true;
+    }
+
+    public boolean isStarted() {
         return started;
     }
 
-    public MediaMuxer getMuxer() {
-        return muxer;
+    /**
+     * Descriptors handed off by encoders but not yet picked up by the writer thread.
+     */
+    public int getQueueDepth() {
+        return ring.size();
+    }
+
+    public int getQueueCapacity() {
+        return ring.capacity();
+    }
+
+    /**
+     * Samples the writer is holding, either before the muxer starts or to interleave tracks.
+     */
+    public int getPendingSampleCount() {
+        return pendingSamples;
+    }
+
+    public long getQueuedBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Samples discarded because the ring or the pre-start queue was full.
+     */
+    public long getDroppedSampleCount() {
+        return droppedSamples.get();
+    }
+
+    public long getFailedWriteCount() {
+        return failedWrites;
+    }
+
+    /**
+     * {@code System.nanoTime()} when the first sample reached the muxer, or -1 if none has.
+     */
+    public long getFirstSampleNanos() {
+        return firstSampleNanos;
+    }
+
+    /**
+     * Timestamp of the first sample written, where the file's timeline starts, or -1 if none
+     * has been.
+     */
+    public long getFirstPresentationTimeUs() {
+        return firstSampleNanos < 0 ? -1 : firstPresentationTimeUs;
+    }
+
+    /**
+     * Time an encoder thread spends inside {@link #writeSample}, copy included.
+     */
+    @NonNull
+    public LatencyCounter getEnqueueLatency() {
+        return enqueueLatency;
+    }
+
+    /**
+     * Counters for this recording; they stop changing once {@link #stopMuxer} returns.
+     */
+    @NonNull
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Drains every queued sample to the muxer, then stops and releases it.
+     * Samples offered after this call are rejected.
+     */
+    public void stopMuxer() {
+
+        stopping = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Writer thread join interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (started) {
+                try {
+
+                    muxer.stop();
+                    muxer.release();
+                    started = false;
+                } catch (Exception e) {
+                    Log.e(TAG, Objects.requireNonNull(e.getMessage()));
+                }
+            }
+        }
+        metrics.finish(System.nanoTime());
+    }
+
+    /**
+     * Blocks until the writer has consumed everything enqueued so far.
+     */
+    @VisibleForTesting
+    void awaitIdle() {
+
+        while (consumedSamples < enqueuedSamples.get() && writerThread.isAlive())
+            LockSupport.parkNanos(100_000);
+    }
+
+    private void runWriter() {
+
+        while (true) {
+            // Read the flag before draining so everything offered before stopMuxer() is written
+            final boolean stopRequested = stopping;
+            final boolean drainedAny = drainRing();
+            if (started) writeReadySamples(stopRequested);
+
+            if (stopRequested && ring.isEmpty()) break;
+            if (!drainedAny) {
+                writerParked = true;
+                if (ring.isEmpty() && !stopping) LockSupport.parkNanos(WRITER_PARK_NANOS);
+                writerParked = false;
+            }
+        }
+
+        for (final ArrayDeque<Sample> queue : trackQueues) {
+            Sample sample;
+            while ((sample = queue.pollFirst()) != null)
+                recycle(sample);
+        }
+        pendingSamples = 0;
+        pendingBytes = 0;
+    }
+
+    private boolean drainRing() {
+
+        boolean drainedAny = false;
+        Sample slot;
+        while ((slot = ring.peek()) != null) {
+            drainedAny = true;
+            // The slot goes straight back to the encoders; the writer holds on to a copy
+            final Sample sample = freeSamples.isEmpty() ? new Sample() : freeSamples.pollFirst();
+            sample.set(slot.trackIndex, slot.data, slot.presentationTimeUs, slot.flags);
+            slot.data = null;
+            ring.advance();
+            accept(sample);
+            consumedSamples++;
+        }
+        return drainedAny;
     }
 
-    public synchronized void stopMuxer() {
+    private void accept(@NonNull final Sample sample) {
+
+        final int size = sample.data.remaining();
+        if (size > preStartQueueMaxBytes) {
+            discard(sample);
+            return;
+        }
+        while (pendingBytes + size > preStartQueueMaxBytes) {
+            // Once started, make room by writing rather than dropping
+            if (started) {
+                writeHead(nextTrackToWrite());
+                continue;
+            }
+            if (dropPolicy == DropPolicy.DROP_NEWEST) {
+                discard(sample);
+                return;
+            }
+            final Sample evicted = trackQueues[nextTrackToWrite()].pollFirst();
+            pendingSamples--;
+            pendingBytes -= evicted.data.remaining();
+            discard(evicted);
+        }
+
+        trackQueues[sample.trackIndex].addLast(sample);
+        pendingSamples++;
+        pendingBytes += size;
+        if (sample.presentationTimeUs > newestPresentationTimeUs)
+            newestPresentationTimeUs = sample.presentationTimeUs;
+    }
 
-        if (started) {
-            try {
+    /**
+     * Writes samples in timestamp order for as long as the next one cannot be overtaken by a
+     * sample still to come on a lagging track.
+     */
+    private void writeReadySamples(final boolean flushAll) {
 
-                muxer.stop();
-                muxer.release();
-                started = false;
-            } catch (Exception e) {
-                Log.e("MuxerCoordinator", Objects.requireNonNull(e.getMessage()));
+        while (pendingSamples > 0) {
+            final int track = nextTrackToWrite();
+            if (!flushAll && !allTracksQueued()) {
+                final long presentationTimeUs = trackQueues[track].peekFirst().presentationTimeUs;
+                if (presentationTimeUs > newestPresentationTimeUs - reorderWindowUs) return;
             }
+            writeHead(track);
         }
     }
 
-    private final MediaMuxer muxer;
+    private void writeHead(final int track) {
+
+        final Sample sample = trackQueues[track].pollFirst();
+        pendingSamples--;
+        final int size = sample.data.remaining();
+        pendingBytes -= size;
+        try {
+            final long writeStartNanos = System.nanoTime();
+            muxer.writeSampleData(sample.trackIndex, sample.data, sample.presentationTimeUs, sample.flags);
+            final long writtenNanos = System.nanoTime();
+            metrics.onSampleWritten(sample.trackIndex, sample.presentationTimeUs, size, writtenNanos - writeStartNanos);
+            if (firstSampleNanos < 0) {
+                firstPresentationTimeUs = sample.presentationTimeUs;
+                firstSampleNanos = writtenNanos;
+            }
+        } catch (Exception e) {
+            failedWrites++;
+            Log.e(TAG, "Failed to write sample on track " + sample.trackIndex, e);
+        }
+        recycle(sample);
+    }
+
+    /**
+     * Track whose head sample has the lowest timestamp. Within a track samples stay in the
+     * order the encoder produced them, which is the decode order the muxer requires.
+     */
+    private int nextTrackToWrite() {
+
+        int next = -1;
+        long nextPresentationTimeUs = Long.MAX_VALUE;
+        for (int i = 0; i < trackQueues.length; i++) {
+            final Sample head = trackQueues[i].peekFirst();
+            if (head != null && (next == -1 || head.presentationTimeUs < nextPresentationTimeUs)) {
+                next = i;
+                nextPresentationTimeUs = head.presentationTimeUs;
+            }
+        }
+        return next;
+    }
+
+    private boolean allTracksQueued() {
+
+        for (final ArrayDeque<Sample> queue : trackQueues)
+            if (queue.isEmpty()) return false;
+        return true;
+    }
+
+    private void discard(@NonNull final Sample sample) {
+
+        droppedSamples.incrementAndGet();
+        metrics.onSampleDropped(sample.trackIndex);
+        recycle(sample);
+    }
+
+    /**
+     * Returns a sample the writer is done with, and its buffer, to their pools.
+     */
+    private void recycle(@NonNull final Sample sample) {
+
+        bufferPool.release(sample.data);
+        sample.data = null;
+        freeSamples.addLast(sample);
+    }
+
+    /**
+     * Descriptor of a queued sample; ring slots and the writer's queues reuse them.
+     */
+    private static final class Sample {
+
+        void set(
+                final int trackIndex,
+                @NonNull final ByteBuffer data,
+                final long presentationTimeUs,
+                final int flags
+        ) {
+
+            this.trackIndex = trackIndex;
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+
+        int trackIndex;
+        ByteBuffer data;
+        long presentationTimeUs;
+        int flags;
+    }
+
+    private static final String TAG = "MuxerCoordinator";
+    // Upper bound on how long a missed unpark can delay the writer
+    private static final long WRITER_PARK_NANOS = 10_000_000;
+
+    private final SampleMuxer muxer;
     private final int expectedTracks;
+    private final long preStartQueueMaxBytes;
+    private final DropPolicy dropPolicy;
+    private final long reorderWindowUs;
+    private final SampleBufferPool bufferPool;
+    private final MpscRing<Sample> ring;
+    private final Thread writerThread;
+    private final LatencyCounter enqueueLatency = new LatencyCounter();
+    private final SessionMetrics metrics;
+    private final AtomicLong enqueuedSamples = new AtomicLong();
+    private final AtomicLong droppedSamples = new AtomicLong();
     private int addedTracks = 0;
-    private boolean started = false;
+    private volatile boolean started = false;
+    private volatile boolean stopping = false;
+    private volatile boolean writerParked = false;
+
+    // Owned by the writer thread; volatile only so that getters can read them
+    private final ArrayDeque<Sample>[] trackQueues;
+    private final ArrayDeque<Sample> freeSamples = new ArrayDeque<>();
+    private volatile int pendingSamples = 0;
+    private volatile long pendingBytes = 0;
+    private volatile long consumedSamples = 0;
+    private volatile long failedWrites = 0;
+    private volatile long firstSampleNanos = -1;
+    // Published by the write to firstSampleNanos
+    private long firstPresentationTimeUs;
+    private long newestPresentationTimeUs = Long.MIN_VALUE;
 }
@@ -0,0 +1,121 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Mixes several 16-bit interleaved PCM sources of the same rate and channel layout into one.
+ * <p>
+ * Each source is read into its own preallocated buffer, and a mix adds the weighted sources
+ * into a 32-bit accumulator one source at a time. Those passes are plain counted loops over
+ * arrays, which the JIT can vectorise. The sum is then soft clipped, so loud overlaps are
+ * compressed smoothly instead of wrapping or clipping hard, and written straight into the
+ * codec's input buffer. Nothing is allocated per mix.
+ * <p>
+ * Not thread-safe; intended to be driven by the encoder's input thread.
+ */
+public class PcmMixer {
+
+    public PcmMixer(final int sourceCount, final int channelCount, final int maxFrames) {
+
+        if (sourceCount <= 0 || channelCount <= 0 || maxFrames <= 0)
+            throw new IllegalArgumentException("Counts must be positive");
+        this.channelCount = channelCount;
+        this.maxFrames = maxFrames;
+        this.sources = new short[sourceCount][maxFrames * channelCount];
+        this.gains = new int[sourceCount];
+        this.accumulator = new int[maxFrames * channelCount];
+        for (int i = 0; i < sourceCount; i++) gains[i] = UNITY_GAIN;
+    }
+
+    /**
+     * Buffer that source {@code source} must fill with interleaved samples before a mix.
+     */
+    @NonNull
+    public short[] getSourceBuffer(final int source) {
+        return sources[source];
+    }
+
+    public void setGain(final int source, final float gain) {
+        gains[source] = Math.round(gain * UNITY_GAIN);
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * Mixes the first {@code frames} frames of every source buffer into {@code out} as little
+     * endian PCM. On return the buffer is positioned at 0 and limited to the bytes written.
+     *
+     * @return bytes written.
+     */
+    public int mixInto(@NonNull final ByteBuffer out, final int frames) {
+
+        final int samples = Math.min(frames, maxFrames) * channelCount;
+        if (samples * 2 > out.capacity()) throw new IllegalArgumentException("Output buffer too small");
+
+        final int[] sum = accumulator;
+        final short[] first = sources[0];
+        final int firstGain = gains[0];
+        for (int i = 0; i < samples; i++)
+            sum[i] = first[i] * firstGain;
+        for (int source = 1; source < sources.length; source++) {
+            final short[] input = sources[source];
+            final int gain = gains[source];
+            for (int i = 0; i < samples; i++)
+                sum[i] += input[i] * gain;
+        }
+
+        out.clear();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        int clipped = 0;
+        for (int i = 0; i < samples; i++) {
+            int value = sum[i] >> GAIN_BITS;
+            if (value > KNEE || value < -KNEE) {
+                value = softClip(value);
+                clipped++;
+            }
+            out.putShort(i * 2, (short) value);
+        }
+        clippedSamples += clipped;
+        out.limit(samples * 2);
+        return samples * 2;
+    }
+
+    /**
+     * Samples that went above the knee and were compressed.
+     */
+    public long getClippedSampleCount() {
+        return clippedSamples;
+    }
+
+    /**
+     * Passes the knee unchanged and compresses everything above it towards full scale, which
+     * is approached but never reached, with no step in level or slope at the knee.
+     */
+    static int softClip(final int value) {
+
+        final long magnitude = Math.abs((long) value);
+        if (magnitude <= KNEE) return value;
+        final long excess = magnitude - KNEE;
+        final int clipped = (int) (KNEE + excess * HEADROOM / (excess + HEADROOM));
+        return value < 0 ? -clipped : clipped;
+    }
+
+    private static final int GAIN_BITS = 12;
+    private static final int UNITY_GAIN = 1 << GAIN_BITS;
+    // Three quarters of full scale; below this the mix is a plain sum
+    static final int KNEE = 24_576;
+    private static final long HEADROOM = Short.MAX_VALUE - KNEE;
+
+    private final int channelCount;
+    private final int maxFrames;
+    private final short[][] sources;
+    // Fixed point, UNITY_GAIN is 1.0
+    private final int[] gains;
+    private final int[] accumulator;
+    private long clippedSamples = 0;
+}
@@ -0,0 +1,53 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fills codec input buffers straight from a {@link PcmSource}, with no intermediate copy and
+ * no allocation per chunk. Each read is sized from the capacity of the buffer it fills,
+ * rounded down to whole frames and capped at {@code maxChunkBytes}.
+ */
+public class PcmReader {
+
+    public PcmReader(
+            @NonNull final PcmSource source,
+            final int bytesPerFrame,
+            final int maxChunkBytes
+    ) {
+
+        if (bytesPerFrame <= 0) throw new IllegalArgumentException("bytesPerFrame must be positive");
+        this.source = source;
+        this.bytesPerFrame = bytesPerFrame;
+        this.maxChunkBytes = Math.max(bytesPerFrame, maxChunkBytes - maxChunkBytes % bytesPerFrame);
+    }
+
+    /**
+     * Reads one chunk into {@code inputBuffer}. On success the buffer is positioned at 0 and
+     * limited to the bytes read.
+     *
+     * @return bytes read, or the source's error code if it is not positive.
+     */
+    public int readInto(@NonNull final ByteBuffer inputBuffer) {
+
+        final int capacity = inputBuffer.capacity();
+        final int chunkBytes = Math.min(capacity - capacity % bytesPerFrame, maxChunkBytes);
+        if (chunkBytes <= 0) return 0;
+
+        final int read = source.read(inputBuffer, chunkBytes);
+        if (read > 0) {
+            inputBuffer.limit(read);
+            inputBuffer.position(0);
+        }
+        return read;
+    }
+
+    public int getBytesPerFrame() {
+        return bytesPerFrame;
+    }
+
+    private final PcmSource source;
+    private final int bytesPerFrame;
+    private final int maxChunkBytes;
+}
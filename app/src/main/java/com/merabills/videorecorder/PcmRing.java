@@ -0,0 +1,189 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer, single-consumer ring of 16-bit interleaved PCM that is read by time rather
+ * than by position, so that a source captured on one thread can be lined up with another.
+ * <p>
+ * The producer appends chunks stamped with the presentation time of their first frame. Frames
+ * are assumed contiguous, so the stamps only anchor the ring's timeline; a stamp that disagrees
+ * with the timeline by more than {@link #REANCHOR_THRESHOLD_US}, as after an overrun, moves the
+ * timeline to it. The consumer asks for the frames covering a time window and gets silence for
+ * any part of it that has not been captured yet or has already been overwritten.
+ * <p>
+ * Sources with a different channel count are converted on write: mono is duplicated to every
+ * channel and extra channels are averaged down.
+ */
+public class PcmRing {
+
+    public PcmRing(final int sampleRate, final int channelCount, final int capacityFrames) {
+
+        if (sampleRate <= 0 || channelCount <= 0 || capacityFrames <= 0)
+            throw new IllegalArgumentException("Sizes must be positive");
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.capacityFrames = capacityFrames;
+        this.samples = new short[capacityFrames * channelCount];
+    }
+
+    /**
+     * Appends {@code frames} frames of {@code sourceChannels}-channel audio. Producer thread only.
+     */
+    public void write(
+            @NonNull final short[] source,
+            final int frames,
+            final int sourceChannels,
+            final long presentationTimeUs
+    ) {
+
+        final long written = writtenFrames;
+        if (!hasData) {
+            firstFrameUs = presentationTimeUs;
+        } else if (Math.abs(presentationTimeUs - frameToUs(written)) > REANCHOR_THRESHOLD_US) {
+            firstFrameUs = presentationTimeUs - framesToUs(written);
+            reanchorCount++;
+        }
+
+        for (int frame = 0; frame < frames; ) {
+            final int slot = (int) ((written + frame) % capacityFrames);
+            final int run = Math.min(frames - frame, capacityFrames - slot);
+            if (sourceChannels == channelCount) {
+                System.arraycopy(source, frame * channelCount, samples, slot * channelCount, run * channelCount);
+            } else {
+                convert(source, frame, sourceChannels, slot, run);
+            }
+            frame += run;
+        }
+        writtenFrames = written + frames;
+        hasData = true;
+    }
+
+    /**
+     * Copies the {@code frames} frames starting at {@code startUs} into {@code destination},
+     * waiting up to {@code waitNanos} for the end of the window to be captured. Consumer
+     * thread only.
+     *
+     * @return frames that were filled with captured audio rather than silence.
+     */
+    public int read(
+            @NonNull final short[] destination,
+            final int frames,
+            final long startUs,
+            final long waitNanos
+    ) {
+
+        if (!hasData) {
+            Arrays.fill(destination, 0, frames * channelCount, (short) 0);
+            return 0;
+        }
+        long startFrame = usToFrame(startUs);
+        final long endFrame = startFrame + frames;
+        if (writtenFrames < endFrame && waitNanos > 0) {
+            final long deadline = System.nanoTime() + waitNanos;
+            while (writtenFrames < endFrame && System.nanoTime() < deadline)
+                LockSupport.parkNanos(WAIT_POLL_NANOS);
+            // The window may have moved if the producer re-anchored meanwhile
+            startFrame = usToFrame(startUs);
+        }
+
+        final long written = writtenFrames;
+        final long from = Math.max(startFrame, Math.max(0, written - capacityFrames));
+        final long to = Math.min(startFrame + frames, written);
+        if (from >= to) {
+            Arrays.fill(destination, 0, frames * channelCount, (short) 0);
+            return 0;
+        }
+
+        final int leading = (int) (from - startFrame);
+        final int available = (int) (to - from);
+        Arrays.fill(destination, 0, leading * channelCount, (short) 0);
+        copyOut(from, available, destination, leading);
+        Arrays.fill(destination, (leading + available) * channelCount, frames * channelCount, (short) 0);
+
+        // Frames the producer overwrote while they were being copied are torn; silence them
+        final long overwrittenUpTo = writtenFrames - capacityFrames;
+        if (overwrittenUpTo > from) {
+            final int torn = (int) Math.min(available, overwrittenUpTo - from);
+            Arrays.fill(destination, leading * channelCount, (leading + torn) * channelCount, (short) 0);
+            return available - torn;
+        }
+        return available;
+    }
+
+    public long getWrittenFrames() {
+        return writtenFrames;
+    }
+
+    /**
+     * Times the timeline was moved because a chunk's stamp disagreed with it.
+     */
+    public long getReanchorCount() {
+        return reanchorCount;
+    }
+
+    private void copyOut(final long from, final int frames, @NonNull final short[] destination, final int offset) {
+
+        for (int frame = 0; frame < frames; ) {
+            final int slot = (int) ((from + frame) % capacityFrames);
+            final int run = Math.min(frames - frame, capacityFrames - slot);
+            System.arraycopy(samples, slot * channelCount, destination, (offset + frame) * channelCount, run * channelCount);
+            frame += run;
+        }
+    }
+
+    private void convert(
+            @NonNull final short[] source,
+            final int sourceFrame,
+            final int sourceChannels,
+            final int slot,
+            final int frames
+    ) {
+
+        for (int frame = 0; frame < frames; frame++) {
+            final int in = (sourceFrame + frame) * sourceChannels;
+            final int out = (slot + frame) * channelCount;
+            if (sourceChannels < channelCount) {
+                for (int channel = 0; channel < channelCount; channel++)
+                    samples[out + channel] = source[in + Math.min(channel, sourceChannels - 1)];
+            } else {
+                // Average the extra channels into the last one we keep
+                for (int channel = 0; channel < channelCount - 1; channel++)
+                    samples[out + channel] = source[in + channel];
+                int sum = 0;
+                for (int channel = channelCount - 1; channel < sourceChannels; channel++)
+                    sum += source[in + channel];
+                samples[out + channelCount - 1] = (short) (sum / (sourceChannels - channelCount + 1));
+            }
+        }
+    }
+
+    private long usToFrame(final long us) {
+        return Math.round((us - firstFrameUs) * (double) sampleRate / 1_000_000);
+    }
+
+    private long frameToUs(final long frame) {
+        return firstFrameUs + framesToUs(frame);
+    }
+
+    private long framesToUs(final long frames) {
+        return frames * 1_000_000 / sampleRate;
+    }
+
+    // Larger than any read jitter the timestamp generator lets through
+    static final long REANCHOR_THRESHOLD_US = 20_000;
+    private static final long WAIT_POLL_NANOS = 500_000;
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int capacityFrames;
+    private final short[] samples;
+    private volatile long firstFrameUs;
+    private volatile boolean hasData = false;
+    // Published after the samples it covers are written
+    private volatile long writtenFrames = 0;
+    private long reanchorCount = 0;
+}
@@ -0,0 +1,20 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A blocking source of interleaved PCM, shaped like
+ * {@link android.media.AudioRecord#read(ByteBuffer, int)}.
+ */
+public interface PcmSource {
+
+    /**
+     * Reads up to {@code sizeInBytes} bytes into {@code buffer} starting at index 0, without
+     * changing its position or limit.
+     *
+     * @return the number of bytes read, or a negative error code.
+     */
+    int read(@NonNull ByteBuffer buffer, int sizeInBytes);
+}
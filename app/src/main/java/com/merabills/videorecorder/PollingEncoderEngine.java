@@ -0,0 +1,125 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link EncoderEngine} that runs one thread per encoder, alternating between offering an
+ * input buffer (if the encoder takes raw input) and draining output, each with a timeout.
+ */
+public class PollingEncoderEngine implements EncoderEngine {
+
+    public PollingEncoderEngine(@NonNull final String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void attach(
+            @NonNull final EncoderCodec codec,
+            @NonNull final Listener listener,
+            @Nullable final InputFiller inputFiller
+    ) {
+
+        this.codec = codec;
+        this.listener = listener;
+        this.inputFiller = inputFiller;
+    }
+
+    @Override
+    public void start() {
+
+        codec.start();
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+
+        final SampleInfo inputInfo = new SampleInfo();
+        final SampleInfo outputInfo = new SampleInfo();
+        try {
+            while (running) {
+
+                if (inputFiller != null) {
+                    final int inputBufferIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (inputBufferIndex >= 0) {
+                        final ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+                        if (inputBuffer != null) {
+                            inputBuffer.clear();
+                            inputInfo.set(0, 0, 0, 0);
+                            inputFiller.fillInput(inputBuffer, inputInfo);
+                            codec.queueInputBuffer(
+                                    inputBufferIndex,
+                                    inputInfo.offset,
+                                    inputInfo.size,
+                                    inputInfo.presentationTimeUs,
+                                    inputInfo.flags
+                            );
+                        }
+                    }
+                }
+
+                // Wait for output only when there is no input to feed, then drain what is ready
+                int outputBufferIndex = codec.dequeueOutputBuffer(outputInfo, TIMEOUT_US);
+                while (outputBufferIndex != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        listener.onOutputFormatChanged(codec.getOutputFormat());
+                    } else if (outputBufferIndex >= 0) {
+                        final boolean endOfStream = deliverOutput(outputBufferIndex, outputInfo);
+                        if (endOfStream) return;
+                    }
+                    if (!running) return;
+                    outputBufferIndex = codec.dequeueOutputBuffer(outputInfo, 0);
+                }
+            }
+        } catch (IllegalStateException e) {
+            if (running) listener.onError(e);
+        }
+    }
+
+    /**
+     * @return true if this was the end of the stream.
+     */
+    private boolean deliverOutput(final int index, @NonNull final SampleInfo info) {
+
+        final ByteBuffer encodedData = codec.getOutputBuffer(index);
+        if (encodedData == null)
+            throw new IllegalStateException("encoderOutputBuffer " + index + " was null");
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) info.size = 0;
+        if (info.size > 0) {
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + info.size);
+            listener.onEncodedSample(encodedData, info);
+        }
+        codec.releaseOutputBuffer(index);
+        return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    private static final long TIMEOUT_US = 10_000;
+
+    private final String name;
+    private EncoderCodec codec;
+    private Listener listener;
+    private InputFiller inputFiller;
+    private Thread thread;
+    private volatile boolean running = false;
+}
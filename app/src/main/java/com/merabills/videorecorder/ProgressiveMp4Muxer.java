@@ -0,0 +1,909 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link SampleMuxer} that writes a regular, unfragmented MP4 in pure Java, using the same
+ * amount of memory however long the recording runs.
+ * <p>
+ * Samples go straight into the mdat box through a pooled direct buffer. Their sizes,
+ * timestamps and chunk offsets are not kept in memory but appended to an index file next to
+ * the recording, and the moov box is streamed from that index when the muxer stops. Until
+ * then the mdat box runs to the end of the file.
+ * <p>
+ * With faststart, the finished file is then rewritten with the moov box ahead of the media
+ * data, which is copied with {@link FileChannel#transferTo}, so that players can start before
+ * the whole file has been downloaded. The moov-last file is complete before the rewrite
+ * starts, and is only replaced once the rewrite has succeeded.
+ * <p>
+ * The index file starts with the track formats and is brought up to date, along with the
+ * media it describes, at least every {@code checkpointIntervalUs} of presentation time. If
+ * the process is killed, {@link #recover} rebuilds a playable file from the two.
+ * <p>
+ * Tracks must be AVC or AAC and timestamps must increase within a track, as for
+ * {@link FragmentedMp4Muxer}.
+ */
+public class ProgressiveMp4Muxer implements SampleMuxer {
+
+    public ProgressiveMp4Muxer(@NonNull final File file, final boolean faststart, final long checkpointIntervalUs) {
+        this(file, faststart, checkpointIntervalUs, BUFFERS);
+    }
+
+    /**
+     * @param checkpointIntervalUs how much presentation time may pass before the buffered
+     *                             samples and their index records are written out, which is at
+     *                             most what {@link #recover} loses if the process is killed.
+     */
+    public ProgressiveMp4Muxer(
+            @NonNull final File file,
+            final boolean faststart,
+            final long checkpointIntervalUs,
+            @NonNull final SampleBufferPool buffers
+    ) {
+
+        this.file = file;
+        this.indexFile = getIndexFile(file);
+        this.faststart = faststart;
+        this.checkpointIntervalUs = checkpointIntervalUs;
+        this.buffers = buffers;
+    }
+
+    /**
+     * Finishes a recording whose muxer never stopped, from the index file it left behind.
+     * Samples are kept up to the last one that is complete in both files; the media data is
+     * not read, only truncated after that sample.
+     *
+     * @return false, with the index deleted, if there was nothing to recover.
+     */
+    public static boolean recover(@NonNull final File file) throws IOException {
+        return recover(file, BUFFERS);
+    }
+
+    @VisibleForTesting
+    static boolean recover(@NonNull final File file, @NonNull final SampleBufferPool buffers) throws IOException {
+
+        final File orphan = new File(file.getPath() + ORPHAN_SUFFIX);
+        final File indexFile = getIndexFile(file);
+        // A rename that completed in an earlier attempt leaves only the orphan
+        if (indexFile.exists() && !indexFile.renameTo(orphan))
+            throw new IOException("Failed to move aside " + indexFile);
+        //noinspection ResultOfMethodCallIgnored
+        new File(file.getPath() + FASTSTART_SUFFIX).delete();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(orphan)))) {
+            final ProgressiveMp4Muxer muxer = new ProgressiveMp4Muxer(file, false, Long.MAX_VALUE, buffers);
+            final int trackCount;
+            try {
+                if (input.readInt() != INDEX_MAGIC) return false;
+                trackCount = input.readUnsignedByte();
+                for (int t = 0; t < trackCount; t++) muxer.addTrack(readFormat(input));
+            } catch (EOFException | IllegalArgumentException e) {
+                return false;
+            }
+            return muxer.resume(input, trackCount);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            orphan.delete();
+        }
+    }
+
+    @NonNull
+    static File getIndexFile(@NonNull final File file) {
+        return new File(file.getPath() + INDEX_SUFFIX);
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat format) {
+        return addTrack(TrackFormat.from(format));
+    }
+
+    public int addTrack(@NonNull TrackFormat format) {
+
+        if (output != null) throw new IllegalStateException("Tracks must be added before start");
+        Mp4Boxes.checkSupported(format);
+        tracks.add(new Track(format, tracks.size() + 1));
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+
+        try {
+            output = new RandomAccessFile(file, "rw").getChannel();
+            output.truncate(0);
+            index = new RandomAccessFile(indexFile, "rw").getChannel();
+            index.truncate(0);
+            staging = buffers.acquire(STAGING_BUFFER_SIZE);
+            staging.clear();
+            indexBuffer = buffers.acquire(INDEX_BUFFER_SIZE);
+            indexBuffer.clear();
+            target = output;
+
+            header.reset();
+            Mp4Boxes.writeFtyp(header, "isom", "iso2", "avc1", "mp41");
+            ftypSize = header.size();
+            // A free box keeps room for a 64-bit mdat header; until stop the mdat runs to the end
+            header.u32(8).fourCc("free").u32(0).fourCc("mdat");
+            header.writeTo(output);
+            position = header.size();
+            writeIndexHeader();
+        } catch (IOException e) {
+            release();
+            throw new IllegalStateException("Failed to start " + file, e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(
+            int trackIndex,
+            @NonNull ByteBuffer data,
+            long presentationTimeUs,
+            int flags
+    ) throws IOException {
+
+        if (output == null) throw new IllegalStateException("Muxer not started");
+        if (!data.hasRemaining() || (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+
+        final Track track = tracks.get(trackIndex);
+        final long offset = position;
+        final int size = track.format.isVideo() ? writeLengthPrefixed(data) : write(data.duplicate());
+        final boolean sync = !track.format.isVideo() || (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        addSample(trackIndex, offset, size, presentationTimeUs, sync);
+
+        if (presentationTimeUs - lastCheckpointUs >= checkpointIntervalUs) {
+            // Media first, so that every index record on disk points at data that is too
+            drain();
+            flushIndex();
+            lastCheckpointUs = presentationTimeUs;
+        }
+    }
+
+    @Override
+    public void stop() {
+
+        if (output == null) return;
+        try {
+            closeChunk();
+            drain();
+            flushIndex();
+            final long mdatEnd = position;
+            writeMdatHeader(mdatEnd);
+
+            // Decided once, so the moov box is the same size wherever it is written
+            largeOffsets = mdatEnd + estimateMoovSize() > 0xFFFFFFFFL;
+            final long moovSize = writeMoov(0);
+            drain();
+            if (faststart) rewriteMoovFirst(mdatEnd, moovSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to finish " + file, e);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void release() {
+
+        closeQuietly(output);
+        closeQuietly(index);
+        output = null;
+        index = null;
+        target = null;
+        if (staging != null) buffers.release(staging);
+        if (indexBuffer != null) buffers.release(indexBuffer);
+        staging = null;
+        indexBuffer = null;
+        //noinspection ResultOfMethodCallIgnored
+        indexFile.delete();
+    }
+
+    /**
+     * Counts a sample that starts at {@code offset} in the file and indexes it.
+     */
+    private void addSample(
+            final int trackIndex,
+            final long offset,
+            final int size,
+            final long presentationTimeUs,
+            final boolean sync
+    ) throws IOException {
+
+        if (trackIndex != chunkTrack) {
+            closeChunk();
+            chunkTrack = trackIndex;
+            chunkOffset = offset;
+        }
+        chunkSamples++;
+        appendIndex(RECORD_SAMPLE, trackIndex, sync ? 1 : 0, size, presentationTimeUs);
+        final Track track = tracks.get(trackIndex);
+        if (track.sampleCount == 0) track.firstPresentationTimeUs = presentationTimeUs;
+        track.sampleCount++;
+        if (sync) track.syncCount++;
+    }
+
+    /**
+     * Picks up an unfinished recording at its first sample, re-adds the samples whose records
+     * follow in {@code input} and whose data is all in the file, and finishes it.
+     */
+    private boolean resume(@NonNull final DataInputStream input, final int trackCount) throws IOException {
+
+        output = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            final ByteBuffer boxes = ByteBuffer.allocate(8);
+            if (!readAt(boxes, 0) || boxes.getInt(4) != fourCc("ftyp")) {
+                release();
+                return false;
+            }
+            ftypSize = boxes.getInt(0);
+            // Killed after the faststart copy replaced the recording, which is then complete
+            if (readAt(boxes, ftypSize) && boxes.getInt(4) == fourCc("moov")) {
+                release();
+                return true;
+            }
+            position = ftypSize + MDAT_HEADER_SPACE;
+            final long length = output.size();
+
+            index = new RandomAccessFile(indexFile, "rw").getChannel();
+            index.truncate(0);
+            staging = buffers.acquire(STAGING_BUFFER_SIZE);
+            staging.clear();
+            indexBuffer = buffers.acquire(INDEX_BUFFER_SIZE);
+            indexBuffer.clear();
+            target = output;
+            writeIndexHeader();
+
+            final byte[] record = new byte[RECORD_SIZE];
+            final ByteBuffer fields = ByteBuffer.wrap(record);
+            while (readRecord(input, record)) {
+                final int trackIndex = fields.get(1);
+                if (fields.get(0) != RECORD_SAMPLE || trackIndex < 0 || trackIndex >= trackCount) continue;
+                final long size = fields.getInt(4) & 0xFFFFFFFFL;
+                if (position + size > length) break;
+                final long offset = position;
+                position += size;
+                addSample(trackIndex, offset, (int) size, fields.getLong(8), fields.getShort(2) != 0);
+            }
+            if (position == ftypSize + MDAT_HEADER_SPACE) {
+                release();
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return false;
+            }
+            output.truncate(position);
+            output.position(position);
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        stop();
+        return true;
+    }
+
+    /**
+     * Fills {@code buffer} from {@code offset} in the recording.
+     *
+     * @return false if the file ends first.
+     */
+    private boolean readAt(@NonNull final ByteBuffer buffer, final long offset) throws IOException {
+
+        buffer.clear();
+        while (buffer.hasRemaining())
+            if (output.read(buffer, offset + buffer.position()) < 0) return false;
+        return true;
+    }
+
+    /**
+     * @return false at the end of the stream, including in the middle of a record.
+     */
+    private static boolean readRecord(@NonNull final DataInputStream input, @NonNull final byte[] record)
+            throws IOException {
+
+        try {
+            input.readFully(record);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Bytes of samples written so far, length prefixes included.
+     */
+    public long getMediaBytes() {
+        return output == null ? 0 : position - ftypSize - MDAT_HEADER_SPACE;
+    }
+
+    /**
+     * Appends an AVC access unit as 4-byte length-prefixed NAL units, converting from Annex-B
+     * start codes where needed, as {@link Mp4Boxes#appendLengthPrefixed} does for fragments.
+     */
+    private int writeLengthPrefixed(@NonNull final ByteBuffer sample) throws IOException {
+
+        final ByteBuffer data = sample.duplicate();
+        final int begin = data.position();
+        final int end = data.limit();
+        int start = Mp4Boxes.startCodeEnd(data, begin);
+        if (start < 0) return write(data);
+
+        int written = 0;
+        while (start < end) {
+            int next = start;
+            int unitEnd = end;
+            while (next + 2 < end) {
+                if (data.get(next) == 0 && data.get(next + 1) == 0 && data.get(next + 2) == 1) {
+                    unitEnd = next > start && data.get(next - 1) == 0 ? next - 1 : next;
+                    break;
+                }
+                next++;
+            }
+            if (unitEnd > start) {
+                put32(unitEnd - start);
+                position += 4;
+                data.limit(unitEnd).position(start);
+                written += 4 + write(data);
+                data.limit(end);
+            }
+            if (unitEnd == end) break;
+            start = next + 3;
+        }
+        return written;
+    }
+
+    /**
+     * Writes the remaining bytes of {@code source} through the staging buffer, or directly if
+     * they would not fit in it.
+     */
+    private int write(@NonNull final ByteBuffer source) throws IOException {
+
+        final int length = source.remaining();
+        position += length;
+        if (length > staging.remaining()) {
+            drain();
+            if (length >= staging.capacity()) {
+                writeFully(target, source);
+                return length;
+            }
+        }
+        staging.put(source);
+        return length;
+    }
+
+    private void put32(final long value) throws IOException {
+
+        if (staging.remaining() < 4) drain();
+        staging.putInt((int) value);
+    }
+
+    private void put64(final long value) throws IOException {
+
+        if (staging.remaining() < 8) drain();
+        staging.putLong(value);
+    }
+
+    private void drain() throws IOException {
+
+        staging.flip();
+        writeFully(target, staging);
+        staging.clear();
+    }
+
+    private void closeChunk() throws IOException {
+
+        if (chunkSamples == 0) return;
+        final Track track = tracks.get(chunkTrack);
+        if (chunkSamples != track.lastChunkSamples) track.chunkRuns++;
+        track.lastChunkSamples = chunkSamples;
+        track.chunkCount++;
+        appendIndex(RECORD_CHUNK, chunkTrack, 0, chunkSamples, chunkOffset);
+        chunkSamples = 0;
+    }
+
+    private void appendIndex(final int kind, final int track, final int flags, final long value, final long time)
+            throws IOException {
+
+        if (indexBuffer.remaining() < RECORD_SIZE) flushIndex();
+        indexBuffer.put((byte) kind).put((byte) track).putShort((short) flags).putInt((int) value).putLong(time);
+    }
+
+    /**
+     * Writes the track formats at the start of the index file, straight to disk, so that a
+     * recording can be recovered from its first checkpoint.
+     */
+    private void writeIndexHeader() throws IOException {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(INDEX_MAGIC);
+        header.writeByte(tracks.size());
+        for (final Track track : tracks) {
+            final TrackFormat format = track.format;
+            header.writeUTF(format.mime);
+            header.writeInt(format.width);
+            header.writeInt(format.height);
+            header.writeInt(format.sampleRate);
+            header.writeInt(format.channelCount);
+            writeBytes(header, format.csd0);
+            writeBytes(header, format.csd1);
+        }
+        writeFully(index, ByteBuffer.wrap(bytes.toByteArray()));
+        recordsOffset = bytes.size();
+    }
+
+    @NonNull
+    private static TrackFormat readFormat(@NonNull final DataInputStream input) throws IOException {
+
+        return new TrackFormat(
+                input.readUTF(),
+                input.readInt(),
+                input.readInt(),
+                input.readInt(),
+                input.readInt(),
+                readBytes(input),
+                readBytes(input)
+        );
+    }
+
+    private static void writeBytes(@NonNull final DataOutputStream output, @Nullable final byte[] bytes)
+            throws IOException {
+
+        output.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) output.write(bytes);
+    }
+
+    @Nullable
+    private static byte[] readBytes(@NonNull final DataInputStream input) throws IOException {
+
+        final int length = input.readInt();
+        if (length < 0) return null;
+        if (length > MAX_CODEC_CONFIG_BYTES) throw new IllegalArgumentException("Bad codec config length " + length);
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private void flushIndex() throws IOException {
+
+        indexBuffer.flip();
+        writeFully(index, indexBuffer);
+        indexBuffer.clear();
+    }
+
+    /**
+     * Gives the mdat box its real size, widening its header over the free box if needed.
+     */
+    private void writeMdatHeader(final long mdatEnd) throws IOException {
+
+        final long freeOffset = ftypSize;
+        final long mdatSize = mdatEnd - freeOffset - 8;
+        final ByteBuffer mdatHeader = ByteBuffer.allocate(MDAT_HEADER_SPACE);
+        if (mdatSize <= 0xFFFFFFFFL) {
+            mdatHeader.putInt(8).put(FREE).putInt((int) mdatSize).put(MDAT);
+        } else {
+            mdatHeader.putInt(1).put(MDAT).putLong(mdatEnd - freeOffset);
+        }
+        mdatHeader.flip();
+        while (mdatHeader.hasRemaining())
+            output.write(mdatHeader, freeOffset + mdatHeader.position());
+    }
+
+    /**
+     * Rewrites the finished file as ftyp, moov and then the media data, and swaps it in.
+     */
+    private void rewriteMoovFirst(final long mdatEnd, final long moovSize) throws IOException {
+
+        final File temporary = new File(file.getPath() + FASTSTART_SUFFIX);
+        try (FileChannel rewritten = new FileOutputStream(temporary).getChannel()) {
+            target = rewritten;
+            header.reset();
+            Mp4Boxes.writeFtyp(header, "isom", "iso2", "avc1", "mp41");
+            drain();
+            header.writeTo(rewritten);
+            // Everything after ftyp moves down by the size of the moov box
+            writeMoov(moovSize);
+            drain();
+
+            long copied = 0;
+            final long length = mdatEnd - ftypSize;
+            while (copied < length)
+                copied += output.transferTo(ftypSize + copied, length - copied, rewritten);
+            rewritten.force(false);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            throw e;
+        } finally {
+            target = output;
+        }
+        if (!temporary.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            throw new IOException("Failed to replace " + file + " with its faststart copy");
+        }
+    }
+
+    /**
+     * Upper bound on the moov size, used to pick 32- or 64-bit chunk offsets.
+     */
+    private long estimateMoovSize() {
+
+        long size = 64 * 1024;
+        for (final Track track : tracks)
+            size += 24L * track.sampleCount + 20L * track.chunkCount;
+        return size;
+    }
+
+    /**
+     * Streams the moov box to the current target, with every chunk offset moved by
+     * {@code offsetShift}.
+     *
+     * @return the size of the moov box.
+     */
+    private long writeMoov(final long offsetShift) throws IOException {
+
+        long timeBaseUs = Long.MAX_VALUE;
+        for (final Track track : tracks)
+            if (track.sampleCount > 0) timeBaseUs = Math.min(timeBaseUs, track.firstPresentationTimeUs);
+
+        final BoxWriter[] prefixes = new BoxWriter[tracks.size()];
+        long moovSize = 8;
+        long movieDurationMs = 0;
+        for (int t = 0; t < tracks.size(); t++) {
+            final Track track = tracks.get(t);
+            track.timeRuns = 0;
+            track.mediaDurationTicks = writeTimeToSample(t, timeBaseUs, false);
+            final long startOffsetMs = track.sampleCount == 0
+                    ? 0
+                    : (track.firstPresentationTimeUs - timeBaseUs) / 1000;
+            final long mediaDurationMs = track.mediaDurationTicks * 1000 / track.timescale;
+            prefixes[t] = buildTrackPrefix(track, startOffsetMs, mediaDurationMs);
+            moovSize += prefixes[t].size() + getTableSize(track);
+            movieDurationMs = Math.max(movieDurationMs, startOffsetMs + mediaDurationMs);
+        }
+        header.reset();
+        Mp4Boxes.writeMvhd(header, movieDurationMs, tracks.size() + 1);
+        moovSize += header.size();
+
+        put32(moovSize);
+        put32(fourCc("moov"));
+        drain();
+        header.writeTo(target);
+        for (int t = 0; t < tracks.size(); t++) {
+            drain();
+            prefixes[t].writeTo(target);
+            writeTables(t, timeBaseUs, offsetShift);
+        }
+        return moovSize;
+    }
+
+    /**
+     * Everything in a trak box before its sample tables, with the sizes of the boxes that
+     * enclose the tables already counting them.
+     */
+    @NonNull
+    private BoxWriter buildTrackPrefix(@NonNull final Track track, final long startOffsetMs, final long durationMs) {
+
+        final BoxWriter writer = new BoxWriter(1024);
+        final int trak = writer.startBox("trak");
+        Mp4Boxes.writeTkhd(writer, track.format, track.id, startOffsetMs + durationMs);
+        if (startOffsetMs > 0) {
+            // An empty edit delays the track to where it started relative to the others
+            final int edts = writer.startBox("edts");
+            final int elst = writer.startFullBox("elst", 0, 0);
+            writer.u32(2).u32(startOffsetMs).u32(0xFFFFFFFFL).u32(0x00010000);
+            writer.u32(durationMs).u32(0).u32(0x00010000);
+            writer.endBox(elst);
+            writer.endBox(edts);
+        }
+        final int mdia = writer.startBox("mdia");
+        Mp4Boxes.writeMdhdAndHdlr(writer, track.format, track.mediaDurationTicks);
+        final int minf = writer.startBox("minf");
+        Mp4Boxes.writeMediaHeader(writer, track.format);
+        final int stbl = writer.startBox("stbl");
+        Mp4Boxes.writeStsd(writer, track.format);
+        final long tableSize = getTableSize(track);
+        for (final int box : new int[]{trak, mdia, minf, stbl})
+            writer.patchU32(box, writer.size() - box + tableSize);
+        return writer;
+    }
+
+    private long getTableSize(@NonNull final Track track) {
+
+        long size = 16 + 8L * track.timeRuns;
+        if (track.syncCount < track.sampleCount) size += 16 + 4L * track.syncCount;
+        size += 20 + 4L * track.sampleCount;
+        size += 16 + 12L * track.chunkRuns;
+        size += 16 + (largeOffsets ? 8L : 4L) * track.chunkCount;
+        return size;
+    }
+
+    /**
+     * Writes stts, stss, stsz, stsc and stco (or co64) for one track, each in its own pass
+     * over the index.
+     */
+    private void writeTables(final int trackIndex, final long timeBaseUs, final long offsetShift)
+            throws IOException {
+
+        final Track track = tracks.get(trackIndex);
+        writeFullBoxHeader(16 + 8L * track.timeRuns, "stts");
+        put32(track.timeRuns);
+        writeTimeToSample(trackIndex, timeBaseUs, true);
+
+        if (track.syncCount < track.sampleCount) {
+            writeFullBoxHeader(16 + 4L * track.syncCount, "stss");
+            put32(track.syncCount);
+            final IndexReader reader = new IndexReader();
+            try {
+                long sampleNumber = 0;
+                while (reader.next())
+                    if (reader.kind == RECORD_SAMPLE && reader.track == trackIndex) {
+                        sampleNumber++;
+                        if (reader.flags != 0) put32(sampleNumber);
+                    }
+            } finally {
+                reader.close();
+            }
+        }
+
+        writeFullBoxHeader(20 + 4L * track.sampleCount, "stsz");
+        put32(0);
+        put32(track.sampleCount);
+        IndexReader reader = new IndexReader();
+        try {
+            while (reader.next())
+                if (reader.kind == RECORD_SAMPLE && reader.track == trackIndex) put32(reader.value);
+        } finally {
+            reader.close();
+        }
+
+        writeFullBoxHeader(16 + 12L * track.chunkRuns, "stsc");
+        put32(track.chunkRuns);
+        reader = new IndexReader();
+        try {
+            long chunkNumber = 0;
+            long previousSamples = -1;
+            while (reader.next())
+                if (reader.kind == RECORD_CHUNK && reader.track == trackIndex) {
+                    chunkNumber++;
+                    if (reader.value == previousSamples) continue;
+                    put32(chunkNumber);
+                    put32(reader.value);
+                    put32(1);
+                    previousSamples = reader.value;
+                }
+        } finally {
+            reader.close();
+        }
+
+        writeFullBoxHeader(16 + (largeOffsets ? 8L : 4L) * track.chunkCount, largeOffsets ? "co64" : "stco");
+        put32(track.chunkCount);
+        reader = new IndexReader();
+        try {
+            while (reader.next())
+                if (reader.kind == RECORD_CHUNK && reader.track == trackIndex) {
+                    if (largeOffsets) put64(reader.time + offsetShift);
+                    else put32(reader.time + offsetShift);
+                }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Walks a track's sample durations, counting them into {@code timeRuns} or, with
+     * {@code write}, writing them as stts entries. Decode times are forced to increase so that
+     * no duration is zero, and the last sample repeats the duration before it.
+     *
+     * @return the track's duration in its own timescale.
+     */
+    private long writeTimeToSample(final int trackIndex, final long timeBaseUs, final boolean write)
+            throws IOException {
+
+        final Track track = tracks.get(trackIndex);
+        long previousTicks = -1;
+        long runDuration = -1;
+        long runLength = 0;
+        long totalTicks = 0;
+        final IndexReader reader = new IndexReader();
+        try {
+            while (reader.next()) {
+                if (reader.kind != RECORD_SAMPLE || reader.track != trackIndex) continue;
+                final long rawTicks = Math.max(0, reader.time - timeBaseUs) * track.timescale / 1_000_000;
+                final long ticks = previousTicks < 0 ? rawTicks : Math.max(rawTicks, previousTicks + 1);
+                if (previousTicks >= 0) {
+                    final long duration = ticks - previousTicks;
+                    if (duration != runDuration && runLength > 0) {
+                        endRun(track, runLength, runDuration, write);
+                        runLength = 0;
+                    }
+                    runDuration = duration;
+                    runLength++;
+                    totalTicks += duration;
+                }
+                previousTicks = ticks;
+            }
+        } finally {
+            reader.close();
+        }
+        if (previousTicks < 0) return 0;
+
+        final long lastDuration = runDuration > 0 ? runDuration : track.defaultDurationTicks;
+        if (lastDuration != runDuration && runLength > 0) {
+            endRun(track, runLength, runDuration, write);
+            runLength = 0;
+        }
+        endRun(track, runLength + 1, lastDuration, write);
+        return totalTicks + lastDuration;
+    }
+
+    private void endRun(@NonNull final Track track, final long length, final long duration, final boolean write)
+            throws IOException {
+
+        if (!write) {
+            track.timeRuns++;
+            return;
+        }
+        put32(length);
+        put32(duration);
+    }
+
+    private void writeFullBoxHeader(final long size, @NonNull final String type) throws IOException {
+
+        put32(size);
+        put32(fourCc(type));
+        put32(0);
+    }
+
+    private static int fourCc(@NonNull final String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+
+    private static void writeFully(@NonNull final WritableByteChannel channel, @NonNull final ByteBuffer buffer)
+            throws IOException {
+
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void closeQuietly(final FileChannel channel) {
+
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing more can be written either way
+        }
+    }
+
+    /**
+     * Sequential pass over the index file through a pooled buffer.
+     */
+    private final class IndexReader {
+
+        IndexReader() {
+
+            buffer = buffers.acquire(INDEX_BUFFER_SIZE);
+            buffer.clear().flip();
+        }
+
+        boolean next() throws IOException {
+
+            if (buffer.remaining() < RECORD_SIZE) {
+                buffer.compact();
+                int read;
+                while (buffer.position() < RECORD_SIZE && (read = index.read(buffer, offset)) > 0)
+                    offset += read;
+                while (buffer.hasRemaining() && (read = index.read(buffer, offset)) > 0)
+                    offset += read;
+                buffer.flip();
+                if (buffer.remaining() < RECORD_SIZE) return false;
+            }
+            kind = buffer.get();
+            track = buffer.get();
+            flags = buffer.getShort();
+            value = buffer.getInt() & 0xFFFFFFFFL;
+            time = buffer.getLong();
+            return true;
+        }
+
+        void close() {
+            buffers.release(buffer);
+        }
+
+        private final ByteBuffer buffer;
+        private long offset = recordsOffset;
+        int kind;
+        int track;
+        int flags;
+        long value;
+        long time;
+    }
+
+    /**
+     * What is kept in memory about a track: counts, not tables.
+     */
+    private static final class Track {
+
+        Track(@NonNull final TrackFormat format, final int id) {
+
+            this.format = format;
+            this.id = id;
+            this.timescale = Mp4Boxes.timescaleOf(format);
+            // One frame at 30 fps, or one 1024-sample AAC frame
+            this.defaultDurationTicks = format.isVideo() ? timescale / 30 : 1024;
+        }
+
+        final TrackFormat format;
+        final int id;
+        final int timescale;
+        final long defaultDurationTicks;
+        long firstPresentationTimeUs;
+        long sampleCount = 0;
+        long syncCount = 0;
+        long chunkCount = 0;
+        long chunkRuns = 0;
+        long lastChunkSamples = -1;
+        long timeRuns = 0;
+        long mediaDurationTicks = 0;
+    }
+
+    public static final String INDEX_SUFFIX = ".index";
+    private static final String FASTSTART_SUFFIX = ".faststart";
+    // The index of a recording that is being recovered
+    private static final String ORPHAN_SUFFIX = ".index.orphan";
+    private static final int INDEX_MAGIC = 0x504D5831;
+    private static final int MAX_CODEC_CONFIG_BYTES = 64 * 1024;
+    private static final int RECORD_SAMPLE = 0;
+    private static final int RECORD_CHUNK = 1;
+    // kind u8, track u8, flags u16, size or sample count u32, timestamp or offset u64
+    private static final int RECORD_SIZE = 16;
+    private static final int STAGING_BUFFER_SIZE = 256 * 1024;
+    private static final int INDEX_BUFFER_SIZE = 64 * 1024;
+    // free (8) + mdat (8), or a single mdat header with a 64-bit size
+    private static final int MDAT_HEADER_SPACE = 16;
+    private static final byte[] FREE = {'f', 'r', 'e', 'e'};
+    private static final byte[] MDAT = {'m', 'd', 'a', 't'};
+    // Shared so that consecutive recordings reuse the same direct buffers
+    private static final SampleBufferPool BUFFERS = new SampleBufferPool(2 * (STAGING_BUFFER_SIZE + 2 * INDEX_BUFFER_SIZE));
+
+    private final File file;
+    private final File indexFile;
+    private final boolean faststart;
+    private final long checkpointIntervalUs;
+    private final SampleBufferPool buffers;
+    private final List<Track> tracks = new ArrayList<>();
+    private final BoxWriter header = new BoxWriter(512);
+    private FileChannel output;
+    private FileChannel index;
+    // Where the staging buffer drains: the recording, or its faststart copy
+    private WritableByteChannel target;
+    private ByteBuffer staging;
+    private ByteBuffer indexBuffer;
+    private int ftypSize;
+    private int recordsOffset;
+    private long lastCheckpointUs = Long.MIN_VALUE / 2;
+    private long position;
+    private boolean largeOffsets;
+    private int chunkTrack = -1;
+    private long chunkOffset;
+    private int chunkSamples = 0;
+}
@@ -0,0 +1,273 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The recordings running at once, keyed by file name, and the captures that feed them.
+ * <p>
+ * Each session has its own {@link MuxerCoordinator} and so its own file, but sessions that ask
+ * for the same encoder parameters share one {@link Capture}: its encoders run once and fan out
+ * to every session's coordinator. A capture is opened for the first session that needs it and
+ * released when the last one stops.
+ * <p>
+ * Not thread-safe; the service uses it from its main thread only.
+ *
+ * @param <K> Encoder parameters; captures are shared between sessions with equal keys.
+ * @param <S> The caller's session type, for whatever else it keeps per file.
+ */
+public class RecordingSessions<K, S extends RecordingSessions.Session<K>> {
+
+    /**
+     * Running encoders that can feed any number of coordinators.
+     */
+    public interface Capture {
+
+        /**
+         * Starts sending encoded samples to {@code coordinator}, video from the next key frame.
+         */
+        void add(@NonNull MuxerCoordinator coordinator);
+
+        /**
+         * Stops sending samples to {@code coordinator}; it is stopped only after this returns.
+         */
+        void remove(@NonNull MuxerCoordinator coordinator);
+
+        /**
+         * Called once no session uses the capture any more.
+         */
+        void release();
+    }
+
+    public interface CaptureFactory<K> {
+
+        @NonNull
+        Capture open(@NonNull K key) throws IOException;
+    }
+
+    public static class Session<K> {
+
+        public Session(
+                @NonNull final String name,
+                @NonNull final K key,
+                @NonNull final MuxerCoordinator coordinator,
+                final long requestNanos
+        ) {
+
+            this.name = name;
+            this.key = key;
+            this.coordinator = coordinator;
+            this.requestNanos = requestNanos;
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        @NonNull
+        public K getKey() {
+            return key;
+        }
+
+        @NonNull
+        public MuxerCoordinator getCoordinator() {
+            return coordinator;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name + " (" + key + ")";
+        }
+
+        /** When the session was asked for, on {@link System#nanoTime()}. */
+        public final long requestNanos;
+        private final String name;
+        private final K key;
+        private final MuxerCoordinator coordinator;
+    }
+
+    public RecordingSessions(@NonNull final CaptureFactory<K> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Attaches {@code session} to the capture for its key, opening one if no session is using
+     * it yet.
+     *
+     * @throws IllegalStateException if a session with the same name is already recording.
+     * @throws IOException           if the capture could not be opened; the session is not
+     *                               added and its coordinator is left as it was. The same goes
+     *                               for an exception thrown while attaching the coordinator.
+     */
+    public void start(@NonNull final S session) throws IOException {
+
+        if (sessions.containsKey(session.getName()))
+            throw new IllegalStateException("Already recording " + session.getName());
+        SharedCapture shared = captures.get(session.getKey());
+        final boolean opened = shared == null;
+        if (opened) {
+            shared = new SharedCapture(factory.open(session.getKey()));
+            capturesOpened++;
+        }
+        // Attach before registering anything, so a failure leaves no trace
+        try {
+            shared.capture.add(session.getCoordinator());
+        } catch (RuntimeException e) {
+            if (opened) shared.capture.release();
+            throw e;
+        }
+        if (opened) captures.put(session.getKey(), shared);
+        shared.users++;
+        sessions.put(session.getName(), session);
+        sessionsStarted++;
+    }
+
+    /**
+     * Detaches the session named {@code name}, stops its coordinator and releases its capture
+     * if no other session uses it.
+     *
+     * @return the session, or null if there is none by that name.
+     */
+    @Nullable
+    public S stop(@NonNull final String name) {
+
+        final S session = detach(name);
+        if (session != null) session.getCoordinator().stopMuxer();
+        return session;
+    }
+
+    /**
+     * Like {@link #stop}, but leaves the coordinator for the caller to stop, as closing a
+     * file can take long enough that it belongs on another thread.
+     *
+     * @return the session, or null if there is none by that name.
+     */
+    @Nullable
+    public S detach(@NonNull final String name) {
+
+        final S session = sessions.remove(name);
+        if (session == null) return null;
+        final SharedCapture shared = captures.get(session.getKey());
+        shared.capture.remove(session.getCoordinator());
+        if (--shared.users == 0) {
+            captures.remove(session.getKey());
+            shared.capture.release();
+        }
+        sessionsStopped++;
+        return session;
+    }
+
+    /**
+     * Stops every session, oldest first.
+     */
+    @NonNull
+    public List<S> stopAll() {
+
+        final List<S> stopped = new ArrayList<>(sessions.size());
+        for (final String name : new ArrayList<>(sessions.keySet()))
+            stopped.add(stop(name));
+        return stopped;
+    }
+
+    @Nullable
+    public S get(@NonNull final String name) {
+        return sessions.get(name);
+    }
+
+    /**
+     * The running sessions, oldest first.
+     */
+    @NonNull
+    public Collection<S> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    public boolean isEmpty() {
+        return sessions.isEmpty();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * The capture sessions with {@code key} are sharing, or null if there are none.
+     */
+    @Nullable
+    public Capture getCapture(@NonNull final K key) {
+
+        final SharedCapture shared = captures.get(key);
+        return shared != null ? shared.capture : null;
+    }
+
+    /**
+     * Captures open now; each is one set of encoders however many sessions it feeds.
+     */
+    public int getCaptureCount() {
+        return captures.size();
+    }
+
+    /**
+     * Sessions fed by the capture for {@code key}.
+     */
+    public int getCaptureUsers(@NonNull final K key) {
+
+        final SharedCapture shared = captures.get(key);
+        return shared != null ? shared.users : 0;
+    }
+
+    /**
+     * Bytes waiting in the running sessions' coordinators, the memory recording holds beyond
+     * what was allocated up front.
+     */
+    public long getQueuedBytes() {
+
+        long bytes = 0;
+        for (final S session : sessions.values())
+            bytes += session.getCoordinator().getQueuedBytes();
+        return bytes;
+    }
+
+    public long getSessionsStarted() {
+        return sessionsStarted;
+    }
+
+    public long getSessionsStopped() {
+        return sessionsStopped;
+    }
+
+    /**
+     * Captures opened so far, which is how many times a set of encoders was started.
+     */
+    public long getCapturesOpened() {
+        return capturesOpened;
+    }
+
+    private static final class SharedCapture {
+
+        SharedCapture(@NonNull final Capture capture) {
+            this.capture = capture;
+        }
+
+        final Capture capture;
+        int users = 0;
+    }
+
+    private final CaptureFactory<K> factory;
+    private final Map<String, S> sessions = new LinkedHashMap<>();
+    private final Map<K, SharedCapture> captures = new HashMap<>();
+    private long sessionsStarted = 0;
+    private long sessionsStopped = 0;
+    private long capturesOpened = 0;
+}
@@ -0,0 +1,291 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link SampleMuxer} that keeps only the most recent encoded samples, in a fixed-size circular
+ * store, so that the last stretch of a session can be saved on demand ("instant replay").
+ * <p>
+ * Sample data goes into one direct or memory-mapped buffer and its metadata into fixed arrays,
+ * all allocated up front, so memory use does not change however long the buffer runs. When
+ * either is full the oldest samples are evicted. Video key frames are indexed as they arrive,
+ * so that {@link #dump} can start the saved file on one.
+ * <p>
+ * Samples are written by the {@link MuxerCoordinator} writer thread, never by the encoders.
+ * A dump runs on the caller's thread and holds the lock only while it copies one sample at a
+ * time, so the writer is never held up for longer than that.
+ */
+public class ReplayBuffer implements SampleMuxer {
+
+    /**
+     * @param store      Holds the sample data; its whole capacity is used.
+     * @param maxSamples How many samples are indexed at most, whatever their size.
+     */
+    public ReplayBuffer(@NonNull final ByteBuffer store, final int maxSamples) {
+
+        this.store = store;
+        this.capacity = store.capacity();
+        this.maxSamples = maxSamples;
+        this.offsets = new int[maxSamples];
+        this.sizes = new int[maxSamples];
+        this.presentationTimesUs = new long[maxSamples];
+        this.flags = new int[maxSamples];
+        this.trackIndices = new byte[maxSamples];
+        this.keyFrames = new long[Math.max(MIN_KEY_FRAMES, maxSamples / 16)];
+        this.writeView = store.duplicate();
+        this.copies = new SampleBufferPool(2L * capacity / MAX_SAMPLE_FRACTION);
+    }
+
+    @NonNull
+    public static ReplayBuffer inMemory(final int capacityBytes, final int maxSamples) {
+        return new ReplayBuffer(ByteBuffer.allocateDirect(capacityBytes), maxSamples);
+    }
+
+    /**
+     * Keeps the sample data in {@code file}, mapped into memory, so that it counts against
+     * the page cache rather than the app's own memory. The file is scratch space and is
+     * overwritten.
+     */
+    @NonNull
+    public static ReplayBuffer mapped(@NonNull final File file, final int capacityBytes, final int maxSamples)
+            throws IOException {
+
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.setLength(capacityBytes);
+            // The mapping stays valid after the channel is closed
+            return new ReplayBuffer(access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes),
+                    maxSamples);
+        }
+    }
+
+    @Override
+    public int addTrack(@NonNull final MediaFormat format) {
+
+        final String mime = format != null ? format.getString(MediaFormat.KEY_MIME) : null;
+        return addTrack(format, mime != null && mime.startsWith("video/"));
+    }
+
+    @VisibleForTesting
+    synchronized int addTrack(@Nullable final MediaFormat format, final boolean video) {
+
+        formats.add(format);
+        if (video && videoTrack < 0) videoTrack = formats.size() - 1;
+        return formats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    /**
+     * Copies a sample into the store, evicting the oldest samples to make room. Samples
+     * larger than a quarter of the store are dropped.
+     */
+    @Override
+    public void writeSampleData(
+            final int trackIndex,
+            @NonNull final ByteBuffer data,
+            final long presentationTimeUs,
+            final int flags
+    ) {
+
+        // The codec config is carried by the track format
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        final int size = data.remaining();
+        if (size > capacity / MAX_SAMPLE_FRACTION) {
+            droppedSamples++;
+            return;
+        }
+
+        synchronized (this) {
+            int offset = writePosition;
+            if (offset + size > capacity) {
+                // Wrap around; what is left at the end of the store is older than its start
+                while (tail < head && offsets[slot(tail)] >= offset) tail++;
+                offset = 0;
+            }
+            while (tail < head && (head - tail == maxSamples || overlaps(slot(tail), offset, size))) tail++;
+
+            final int position = data.position();
+            writeView.limit(offset + size).position(offset);
+            writeView.put(data);
+            data.position(position);
+
+            final int slot = slot(head);
+            offsets[slot] = offset;
+            sizes[slot] = size;
+            presentationTimesUs[slot] = presentationTimeUs;
+            this.flags[slot] = flags;
+            trackIndices[slot] = (byte) trackIndex;
+            if (trackIndex == videoTrack && (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+                keyFrames[(int) (keyFrameCount++ % keyFrames.length)] = head;
+            writePosition = offset + size;
+            head++;
+        }
+    }
+
+    /**
+     * Keeps the samples for another {@link #dump}; only {@link #release} discards them.
+     */
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public synchronized void release() {
+
+        tail = head;
+        writePosition = 0;
+    }
+
+    /**
+     * Saves the last {@code windowUs} of the buffer to {@code file}, starting at the latest
+     * video key frame that gives at least that much, or at the oldest one if the buffer holds
+     * less. Samples added while the dump runs are not included.
+     *
+     * @return the number of samples saved.
+     * @throws IOException if there is nothing to save, if writing fails, or if the writer
+     *                     overtook the dump and evicted samples it had yet to copy; the file
+     *                     is deleted in each case.
+     */
+    public int dump(
+            @NonNull final File file,
+            final long windowUs,
+            @NonNull final SegmentingMuxer.MuxerFactory factory
+    ) throws IOException {
+
+        final long first;
+        final long end;
+        final List<MediaFormat> tracks;
+        synchronized (this) {
+            if (tail == head) throw new IOException("Replay buffer is empty");
+            first = findStart(presentationTimesUs[slot(head - 1)] - windowUs);
+            end = head;
+            tracks = new ArrayList<>(formats);
+        }
+
+        final SampleMuxer muxer = factory.create(file);
+        final ByteBuffer readView = store.duplicate();
+        boolean saved = false;
+        try {
+            final int[] muxerTracks = new int[tracks.size()];
+            for (int t = 0; t < tracks.size(); t++) muxerTracks[t] = muxer.addTrack(tracks.get(t));
+            muxer.start();
+
+            for (long sequence = first; sequence < end; sequence++) {
+                final ByteBuffer copy;
+                final int track;
+                final long presentationTimeUs;
+                final int sampleFlags;
+                synchronized (this) {
+                    if (sequence < tail) throw new IOException("Replay samples were evicted while being saved");
+                    final int slot = slot(sequence);
+                    readView.limit(offsets[slot] + sizes[slot]).position(offsets[slot]);
+                    copy = copies.copyOf(readView);
+                    track = trackIndices[slot];
+                    presentationTimeUs = presentationTimesUs[slot];
+                    sampleFlags = flags[slot];
+                }
+                try {
+                    muxer.writeSampleData(muxerTracks[track], copy, presentationTimeUs, sampleFlags);
+                } finally {
+                    copies.release(copy);
+                }
+            }
+            muxer.stop();
+            saved = true;
+            return (int) (end - first);
+        } finally {
+            muxer.release();
+            //noinspection ResultOfMethodCallIgnored
+            if (!saved) file.delete();
+        }
+    }
+
+    /**
+     * Presentation time from the oldest to the newest sample held.
+     */
+    public synchronized long getBufferedDurationUs() {
+        return tail == head ? 0 : presentationTimesUs[slot(head - 1)] - presentationTimesUs[slot(tail)];
+    }
+
+    public synchronized int getSampleCount() {
+        return (int) (head - tail);
+    }
+
+    /**
+     * Samples that were too large to keep.
+     */
+    public synchronized long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    /**
+     * First sample of a dump covering {@code startUs} onwards. Called with the lock held.
+     */
+    private long findStart(final long startUs) throws IOException {
+
+        if (videoTrack < 0) {
+            long sequence = tail;
+            while (sequence < head - 1 && presentationTimesUs[slot(sequence)] < startUs) sequence++;
+            return sequence;
+        }
+        long oldest = -1;
+        final long indexed = Math.min(keyFrameCount, keyFrames.length);
+        for (long k = keyFrameCount - 1; k >= keyFrameCount - indexed; k--) {
+            final long sequence = keyFrames[(int) (k % keyFrames.length)];
+            if (sequence < tail) break;
+            if (presentationTimesUs[slot(sequence)] <= startUs) return sequence;
+            oldest = sequence;
+        }
+        if (oldest < 0) throw new IOException("No key frame in the replay buffer");
+        return oldest;
+    }
+
+    private boolean overlaps(final int slot, final int offset, final int size) {
+        return offsets[slot] < offset + size && offset < offsets[slot] + sizes[slot];
+    }
+
+    private int slot(final long sequence) {
+        return (int) (sequence % maxSamples);
+    }
+
+    // Larger samples would evict too much of the window at once
+    private static final int MAX_SAMPLE_FRACTION = 4;
+    private static final int MIN_KEY_FRAMES = 64;
+
+    private final ByteBuffer store;
+    private final int capacity;
+    private final int maxSamples;
+    // Guarded by this, indexed by sample sequence number modulo maxSamples
+    private final int[] offsets;
+    private final int[] sizes;
+    private final long[] presentationTimesUs;
+    private final int[] flags;
+    private final byte[] trackIndices;
+    // Sequence numbers of video key frames, a ring of the most recent ones
+    private final long[] keyFrames;
+    private final ByteBuffer writeView;
+    private final SampleBufferPool copies;
+    private final List<MediaFormat> formats = new ArrayList<>();
+    private int videoTrack = -1;
+    private long keyFrameCount = 0;
+    // Samples [tail, head) are held; sequence numbers only grow
+    private long head = 0;
+    private long tail = 0;
+    private int writePosition = 0;
+    private long droppedSamples = 0;
+}
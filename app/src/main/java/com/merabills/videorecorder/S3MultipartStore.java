@@ -0,0 +1,519 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * {@link BlockStore} for any S3-compatible endpoint, built on multipart uploads and plain
+ * {@link HttpURLConnection} requests signed with AWS Signature Version 4.
+ * <p>
+ * Each blob gets a multipart upload on its first staged block, and each block becomes the part
+ * numbered after its index in {@link BlockBlobUploader#blockId}, so parts may arrive in any
+ * order and from several threads. A commit completes the upload with the listed parts. When a
+ * blob is first touched, an upload that an earlier process left unfinished is looked up and
+ * its parts are reused, which lets journalled uploads resume across restarts.
+ * <p>
+ * Completing a multipart upload ends it, so blobs can only be committed once, and every part
+ * but the last must be at least {@link #MIN_PART_SIZE}. Objects are addressed path-style, as
+ * {@code endpoint/bucket/key}, which S3 and the common self-hosted servers all accept.
+ */
+public class S3MultipartStore implements BlockStore {
+
+    public S3MultipartStore(
+            @NonNull final String endpoint,
+            @NonNull final String region,
+            @NonNull final String bucket,
+            @NonNull final String accessKeyId,
+            @NonNull final String secretAccessKey
+    ) {
+
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKeyId = accessKeyId;
+        this.secretAccessKey = secretAccessKey;
+    }
+
+    @Override
+    public void stageBlock(
+            @NonNull String blobName,
+            @NonNull String blockId,
+            @NonNull ByteBuffer data
+    ) throws IOException {
+
+        final int partNumber = partNumber(blockId);
+        final Upload upload = upload(blobName);
+        final Map<String, String> query = new HashMap<>();
+        query.put("partNumber", Integer.toString(partNumber));
+        query.put("uploadId", upload.uploadId);
+        final HttpURLConnection connection = send("PUT", blobName, query, data);
+        try {
+            final String etag = connection.getHeaderField("ETag");
+            if (etag == null) throw new IOException("No ETag for part " + partNumber + " of " + blobName);
+            upload.etags.put(partNumber, etag);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void commitBlockList(@NonNull String blobName, @NonNull List<String> blockIds) throws IOException {
+
+        final Upload upload = upload(blobName);
+        final StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+        int previous = 0;
+        for (final String blockId : blockIds) {
+            final int partNumber = partNumber(blockId);
+            if (partNumber <= previous) throw new IOException("Blocks of " + blobName + " are out of order");
+            final String etag = upload.etags.get(partNumber);
+            if (etag == null) throw new IOException("Block " + blockId + " was never staged");
+            body.append("<Part><PartNumber>").append(partNumber).append("</PartNumber><ETag>")
+                    .append(escape(etag)).append("</ETag></Part>");
+            previous = partNumber;
+        }
+        body.append("</CompleteMultipartUpload>");
+
+        final Map<String, String> query = new HashMap<>();
+        query.put("uploadId", upload.uploadId);
+        final String response = request("POST", blobName, query,
+                ByteBuffer.wrap(body.toString().getBytes(StandardCharsets.UTF_8)));
+        // Completion can fail after the status line has been sent as 200
+        if (response.contains("<Error>"))
+            throw new IOException("Failed to complete " + blobName + ": " + response);
+        uploads.remove(blobName);
+    }
+
+    @Override
+    public long getBlobSize(@NonNull String blobName) throws IOException {
+
+        final HttpURLConnection connection = open("HEAD", objectPath(blobName), new HashMap<>(), 0);
+        try {
+            final int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) return -1;
+            if (status >= 300) throw new IOException("HEAD " + blobName + " failed with HTTP " + status);
+            return connection.getContentLengthLong();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public int getMinBlockSize() {
+        return MIN_PART_SIZE;
+    }
+
+    @Override
+    public boolean canCommitRepeatedly() {
+        return false;
+    }
+
+    /**
+     * The blob's multipart upload: one left unfinished by an earlier process, or a new one.
+     */
+    @NonNull
+    private Upload upload(@NonNull final String blobName) throws IOException {
+
+        Upload upload = uploads.get(blobName);
+        if (upload != null) return upload;
+        synchronized (uploads) {
+            upload = uploads.get(blobName);
+            if (upload == null) {
+                upload = findUnfinishedUpload(blobName);
+                if (upload == null) {
+                    final Map<String, String> query = new HashMap<>();
+                    query.put("uploads", "");
+                    final String uploadId = firstValue(request("POST", blobName, query, null), "UploadId");
+                    if (uploadId == null) throw new IOException("No upload ID for " + blobName);
+                    upload = new Upload(uploadId);
+                }
+                uploads.put(blobName, upload);
+            }
+            return upload;
+        }
+    }
+
+    @Nullable
+    private Upload findUnfinishedUpload(@NonNull final String blobName) throws IOException {
+
+        final Map<String, String> query = new HashMap<>();
+        query.put("uploads", "");
+        query.put("prefix", blobName);
+        final String listing = get("/" + bucket, query);
+        String uploadId = null;
+        for (final String entry : values(listing, "Upload"))
+            if (blobName.equals(unescape(firstValue(entry, "Key")))) uploadId = firstValue(entry, "UploadId");
+        if (uploadId == null) return null;
+
+        final Upload upload = new Upload(uploadId);
+        String marker = "0";
+        while (marker != null) {
+            final Map<String, String> partQuery = new HashMap<>();
+            partQuery.put("uploadId", uploadId);
+            partQuery.put("part-number-marker", marker);
+            final String parts = get(objectPath(blobName), partQuery);
+            for (final String part : values(parts, "Part")) {
+                final String number = firstValue(part, "PartNumber");
+                final String etag = firstValue(part, "ETag");
+                if (number != null && etag != null) upload.etags.put(Integer.parseInt(number), unescape(etag));
+            }
+            marker = "true".equals(firstValue(parts, "IsTruncated")) ? firstValue(parts, "NextPartNumberMarker") : null;
+        }
+        return upload;
+    }
+
+    @NonNull
+    private String request(
+            @NonNull final String method,
+            @NonNull final String blobName,
+            @NonNull final Map<String, String> query,
+            @Nullable final ByteBuffer body
+    ) throws IOException {
+
+        final HttpURLConnection connection = send(method, blobName, query, body);
+        try {
+            return readBody(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @NonNull
+    private String get(@NonNull final String path, @NonNull final Map<String, String> query) throws IOException {
+
+        final HttpURLConnection connection = open("GET", path, query, 0);
+        try {
+            checkStatus(connection, "GET " + path);
+            return readBody(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Sends a request for an object and checks its status; the caller disconnects.
+     */
+    @NonNull
+    private HttpURLConnection send(
+            @NonNull final String method,
+            @NonNull final String blobName,
+            @NonNull final Map<String, String> query,
+            @Nullable final ByteBuffer body
+    ) throws IOException {
+
+        final int length = body == null ? 0 : body.remaining();
+        final HttpURLConnection connection = open(method, objectPath(blobName), query, length);
+        try {
+            if (connection.getDoOutput()) {
+                try (OutputStream output = connection.getOutputStream()) {
+                    if (body != null) write(body, output);
+                }
+            }
+            checkStatus(connection, method + " " + blobName);
+            return connection;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @NonNull
+    private HttpURLConnection open(
+            @NonNull final String method,
+            @NonNull final String path,
+            @NonNull final Map<String, String> query,
+            final int contentLength
+    ) throws IOException {
+
+        final String canonicalPath = encodePath(path);
+        final String canonicalQuery = canonicalQuery(query);
+        final URL url = new URL(endpoint + canonicalPath + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery));
+        final String amzDate = timestamp();
+
+        final SortedMap<String, String> headers = new TreeMap<>();
+        headers.put("host", url.getPort() == -1 || url.getPort() == url.getDefaultPort()
+                ? url.getHost()
+                : url.getHost() + ":" + url.getPort());
+        headers.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        headers.put("x-amz-date", amzDate);
+
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setRequestProperty("Authorization", authorization(
+                accessKeyId, secretAccessKey, region, method, canonicalPath, canonicalQuery,
+                headers, UNSIGNED_PAYLOAD, amzDate));
+        connection.setRequestProperty("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        connection.setRequestProperty("x-amz-date", amzDate);
+        if (method.equals("PUT") || method.equals("POST")) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(contentLength);
+        }
+        return connection;
+    }
+
+    @NonNull
+    private String objectPath(@NonNull final String blobName) {
+        return "/" + bucket + "/" + blobName;
+    }
+
+    /**
+     * The Authorization header value for a request, per AWS Signature Version 4.
+     *
+     * @param canonicalPath    Path, already URI-encoded.
+     * @param canonicalQuery   Query string, already encoded and sorted.
+     * @param headers          Signed headers by lowercase name.
+     */
+    @VisibleForTesting
+    @NonNull
+    static String authorization(
+            @NonNull final String accessKeyId,
+            @NonNull final String secretAccessKey,
+            @NonNull final String region,
+            @NonNull final String method,
+            @NonNull final String canonicalPath,
+            @NonNull final String canonicalQuery,
+            @NonNull final SortedMap<String, String> headers,
+            @NonNull final String payloadHash,
+            @NonNull final String amzDate
+    ) {
+
+        final StringBuilder canonicalHeaders = new StringBuilder();
+        final StringBuilder signedHeaders = new StringBuilder();
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+            if (signedHeaders.length() > 0) signedHeaders.append(';');
+            signedHeaders.append(header.getKey());
+        }
+        final String canonicalRequest = method + "\n" + canonicalPath + "\n" + canonicalQuery + "\n"
+                + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
+
+        final String date = amzDate.substring(0, 8);
+        final String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+        final String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                + hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+        byte[] key = hmac(("AWS4" + secretAccessKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, SERVICE);
+        key = hmac(key, "aws4_request");
+        final String signature = hex(hmac(key, stringToSign));
+
+        return ALGORITHM + " Credential=" + accessKeyId + "/" + scope
+                + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature;
+    }
+
+    /**
+     * Sorted, encoded query string; parameters without a value keep their {@code =}.
+     */
+    @NonNull
+    private static String canonicalQuery(@NonNull final Map<String, String> query) {
+
+        final SortedMap<String, String> sorted = new TreeMap<>();
+        for (final Map.Entry<String, String> parameter : query.entrySet())
+            sorted.put(encode(parameter.getKey(), true), encode(parameter.getValue(), true));
+        final StringBuilder result = new StringBuilder();
+        for (final Map.Entry<String, String> parameter : sorted.entrySet()) {
+            if (result.length() > 0) result.append('&');
+            result.append(parameter.getKey()).append('=').append(parameter.getValue());
+        }
+        return result.toString();
+    }
+
+    @NonNull
+    private static String encodePath(@NonNull final String path) {
+        return encode(path, false);
+    }
+
+    /**
+     * URI encoding as SigV4 defines it: everything but unreserved characters, and slashes
+     * unless {@code encodeSlash} is false.
+     */
+    @NonNull
+    private static String encode(@NonNull final String value, final boolean encodeSlash) {
+
+        final StringBuilder encoded = new StringBuilder();
+        for (final byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            final char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit((c >> 4) & 0xf, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static int partNumber(@NonNull final String blockId) throws IOException {
+
+        final int index = BlockBlobUploader.blockIndex(blockId);
+        if (index < 0 || index >= MAX_PARTS) throw new IOException("Block " + blockId + " has no part number");
+        return index + 1;
+    }
+
+    private static void checkStatus(@NonNull final HttpURLConnection connection, @NonNull final String request)
+            throws IOException {
+
+        final int status = connection.getResponseCode();
+        if (status < 300) return;
+        final InputStream error = connection.getErrorStream();
+        throw new IOException(request + " failed with HTTP " + status
+                + (error == null ? "" : ": " + readBody(error)));
+    }
+
+    private static void write(@NonNull final ByteBuffer data, @NonNull final OutputStream output) throws IOException {
+
+        if (data.hasArray()) {
+            output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            return;
+        }
+        final byte[] chunk = new byte[Math.min(data.remaining(), COPY_CHUNK_SIZE)];
+        while (data.hasRemaining()) {
+            final int size = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, size);
+            output.write(chunk, 0, size);
+        }
+    }
+
+    @NonNull
+    private static String readBody(@NonNull final InputStream input) throws IOException {
+
+        try (InputStream stream = input) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] chunk = new byte[4096];
+            int read;
+            while ((read = stream.read(chunk)) > 0)
+                body.write(chunk, 0, read);
+            return body.toString("UTF-8");
+        }
+    }
+
+    /**
+     * Contents of every {@code <tag>} element; enough for the flat responses S3 sends.
+     */
+    @NonNull
+    private static List<String> values(@NonNull final String xml, @NonNull final String tag) {
+
+        final List<String> values = new ArrayList<>();
+        final Matcher matcher = Pattern.compile("<" + tag + ">(.*?)</" + tag + ">", Pattern.DOTALL).matcher(xml);
+        while (matcher.find())
+            values.add(matcher.group(1));
+        return values;
+    }
+
+    @Nullable
+    private static String firstValue(@NonNull final String xml, @NonNull final String tag) {
+
+        final List<String> values = values(xml, tag);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @NonNull
+    private static String escape(@NonNull final String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    @Nullable
+    private static String unescape(@Nullable final String text) {
+
+        if (text == null) return null;
+        return text.replace("&quot;", "\"").replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+    }
+
+    @NonNull
+    private static String timestamp() {
+
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    @NonNull
+    private static byte[] sha256(@NonNull final byte[] data) {
+
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is unavailable", e);
+        }
+    }
+
+    @NonNull
+    private static byte[] hmac(@NonNull final byte[] key, @NonNull final String data) {
+
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is unavailable", e);
+        }
+    }
+
+    @NonNull
+    private static String hex(@NonNull final byte[] bytes) {
+
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+
+    private static final class Upload {
+
+        Upload(@NonNull final String uploadId) {
+            this.uploadId = uploadId;
+        }
+
+        final String uploadId;
+        final Map<Integer, String> etags = new ConcurrentHashMap<>();
+    }
+
+    // S3 rejects smaller parts, except the last one of an upload
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_PARTS = 10_000;
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    // Parts are sent over TLS, so the body is not hashed into the signature
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final int TIMEOUT_MS = 60_000;
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
+    private final String endpoint;
+    private final String region;
+    private final String bucket;
+    private final String accessKeyId;
+    private final String secretAccessKey;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,99 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct {@link ByteBuffer}s used to hold copies of encoded samples.
+ * Buffers are bucketed by power-of-two capacity so a released buffer can serve any
+ * later request of the same size class. Safe to use from several threads.
+ */
+public class SampleBufferPool {
+
+    /**
+     * @param maxRetainedBytes Upper bound on the bytes kept idle in the pool. Buffers released
+     *                         beyond this are left to the garbage collector.
+     */
+    public SampleBufferPool(final long maxRetainedBytes) {
+
+        this.maxRetainedBytes = maxRetainedBytes;
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Returns a cleared direct buffer with at least {@code size} bytes of capacity and its
+     * limit set to {@code size}.
+     */
+    @NonNull
+    public ByteBuffer acquire(final int size) {
+
+        final int bucket = bucketFor(size);
+        if (bucket < buckets.length) {
+            final ByteBuffer pooled = buckets[bucket].poll();
+            if (pooled != null) {
+                retainedBytes.addAndGet(-pooled.capacity());
+                pooled.clear();
+                pooled.limit(size);
+                return pooled;
+            }
+        }
+        final int capacity = bucket < buckets.length ? MIN_CAPACITY << bucket : size;
+        final ByteBuffer allocated = ByteBuffer.allocateDirect(capacity);
+        allocated.limit(size);
+        return allocated;
+    }
+
+    /**
+     * Copies the remaining bytes of {@code source} into a pooled buffer, leaving the source
+     * position unchanged. The returned buffer is flipped and ready to be read.
+     */
+    @NonNull
+    public ByteBuffer copyOf(@NonNull final ByteBuffer source) {
+
+        final ByteBuffer copy = acquire(source.remaining());
+        // Put and rewind rather than copying from a duplicate, which would allocate per sample
+        final int position = source.position();
+        copy.put(source);
+        source.position(position);
+        copy.flip();
+        return copy;
+    }
+
+    public void release(@NonNull final ByteBuffer buffer) {
+
+        final int capacity = buffer.capacity();
+        final int bucket = bucketFor(capacity);
+        if (!buffer.isDirect() || bucket >= buckets.length || (MIN_CAPACITY << bucket) != capacity)
+            return;
+        if (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-capacity);
+            return;
+        }
+        buckets[bucket].offer(buffer);
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    private static int bucketFor(final int size) {
+
+        if (size <= MIN_CAPACITY) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CAPACITY_SHIFT;
+    }
+
+    private static final int MIN_CAPACITY_SHIFT = 10;
+    private static final int MIN_CAPACITY = 1 << MIN_CAPACITY_SHIFT;
+    // 1 KiB .. 8 MiB; larger samples are allocated on demand and never pooled
+    private static final int BUCKET_COUNT = 14;
+
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedQueue<ByteBuffer>[] buckets =
+            (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[BUCKET_COUNT];
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final long maxRetainedBytes;
+}
@@ -0,0 +1,26 @@
+package com.merabills.videorecorder;
+
+/**
+ * Plain mirror of {@link android.media.MediaCodec.BufferInfo}, so that encoder pipelines can be
+ * driven on the JVM where the platform class cannot be instantiated.
+ */
+public class SampleInfo {
+
+    public void set(
+            final int offset,
+            final int size,
+            final long presentationTimeUs,
+            final int flags
+    ) {
+
+        this.offset = offset;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+}
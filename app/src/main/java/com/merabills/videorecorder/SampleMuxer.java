@@ -0,0 +1,35 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@link android.media.MediaMuxer} that {@link MuxerCoordinator} drives.
+ * Sample metadata is passed as plain values so that implementations (and test fakes)
+ * never need to construct a {@link android.media.MediaCodec.BufferInfo}.
+ */
+public interface SampleMuxer {
+
+    int addTrack(@NonNull MediaFormat format);
+
+    void start();
+
+    /**
+     * Writes one encoded sample. {@code data} is positioned at the first byte of the sample
+     * and limited to its end.
+     */
+    void writeSampleData(
+            int trackIndex,
+            @NonNull ByteBuffer data,
+            long presentationTimeUs,
+            int flags
+    ) throws IOException;
+
+    void stop();
+
+    void release();
+}
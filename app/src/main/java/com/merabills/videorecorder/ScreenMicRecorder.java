@@ -10,6 +10,7 @@ import android.util.Log;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import java.io.IOException;
@@ -19,34 +20,93 @@ import java.nio.ByteBuffer;
 public class ScreenMicRecorder {
     public ScreenMicRecorder(
             @NonNull final MediaProjection mediaProjection,
-            @NonNull final MuxerCoordinator muxerCoordinator
+            @NonNull final EncoderSelector.VideoConfig config
+    ) {
+        this(mediaProjection, config, EncoderEngine.create(Constants.ENCODER_ENGINE_MODE, THREAD_NAME));
+    }
+
+    public ScreenMicRecorder(
+            @NonNull final MediaProjection mediaProjection,
+            @NonNull final EncoderSelector.VideoConfig config,
+            @NonNull final EncoderEngine engine
     ) {
 
         this.mediaProjection = mediaProjection;
-        this.muxerCoordinator = muxerCoordinator;
+        this.config = config;
+        this.engine = engine;
+        this.targetFrameRate = config.frameRate;
+        this.bitrateController = Constants.ADAPTIVE_BITRATE
+                ? new BitrateController(
+                        Math.min(Constants.VIDEO_MIN_BITRATE, config.bitrate),
+                        config.bitrate,
+                        config.bitrate,
+                        Math.min(Constants.VIDEO_MIN_FRAME_RATE, config.frameRate),
+                        config.frameRate)
+                : null;
     }
 
     public void prepare() throws IOException {
 
+        Log.i(TAG, "Video encoder: " + config);
         final MediaFormat format =
                 MediaFormat.createVideoFormat(
-                        "video/avc",
-                        720,
-                        1280
+                        config.mime,
+                        config.width,
+                        config.height
                 );
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, 5 * 1024 * 1024);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.bitrate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.frameRate);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        // Virtual displays only produce frames on change, so keep the stream from stalling
+        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, Constants.FRAME_KEEP_ALIVE_US);
+
+        if (config.profile != 0) {
+            format.setInteger(MediaFormat.KEY_PROFILE, config.profile);
+            if (config.level != 0) format.setInteger(MediaFormat.KEY_LEVEL, config.level);
+        }
 
-        videoEncoder = MediaCodec.createEncoderByType("video/avc");
-        videoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        final Surface inputSurface = videoEncoder.createInputSurface();
-        videoEncoder.start();
+        videoEncoder = new MediaCodecEncoder(config.codecName != null
+                ? MediaCodec.createByCodecName(config.codecName)
+                : MediaCodec.createEncoderByType(config.mime));
+        engine.attach(videoEncoder, new EncoderEngine.Listener() {
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaFormat outputFormat) {
+                output.setFormat(outputFormat);
+            }
+
+            @Override
+            public void onEncodedSample(@NonNull ByteBuffer data, @NonNull SampleInfo info) {
+                output.write(data, info);
+                if (bitrateController != null) adaptRate(info);
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                Log.e(TAG, "Video encoder failed", error);
+            }
+        }, null);
+        try {
+            videoEncoder.configure(format);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // Some encoders advertise a profile they then refuse; fall back to their default
+            Log.w(TAG, "Encoder rejected profile " + config.profile + ", retrying without it", e);
+            format.removeKey(MediaFormat.KEY_PROFILE);
+            format.removeKey(MediaFormat.KEY_LEVEL);
+            videoEncoder.configure(format);
+        }
+        final Surface encoderSurface = videoEncoder.createInputSurface();
+        final Surface inputSurface;
+        if (Constants.FRAME_GATING) {
+            frameGate = new FrameGate(config.width, config.height, encoderSurface, Constants.FRAME_KEEP_ALIVE_US, targetFrameRate);
+            inputSurface = frameGate.getInputSurface();
+        } else {
+            inputSurface = encoderSurface;
+        }
 
         virtualDisplay = mediaProjection.createVirtualDisplay(
                 "ScreenRecorder",
-                720, 1280, 1,
+                config.width, config.height, config.densityDpi,
                 0,
                 inputSurface,
                 null, null
@@ -54,64 +114,84 @@ public class ScreenMicRecorder {
     }
 
     public void start() {
-        isRecording = true;
-        encodingThread = new Thread(() -> {
-
-            final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-
-            while (isRecording) {
+        engine.start();
+    }
 
-                final int outputBufferIndex = videoEncoder.dequeueOutputBuffer(bufferInfo, 10000);
+    /**
+     * Sends video to {@code coordinator} from the next key frame on, or drops it if null. The
+     * encoder keeps running either way, so switching files costs one key frame, not a restart.
+     */
+    public void setMuxer(@Nullable final MuxerCoordinator coordinator) {
 
-                if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    final MediaFormat newFormat = videoEncoder.getOutputFormat();
-                    videoTrackIndex = muxerCoordinator.addTrack(newFormat);
-                } else if (outputBufferIndex >= 0) {
-                    final ByteBuffer encodedData = videoEncoder.getOutputBuffer(outputBufferIndex);
-                    if (encodedData == null)
-                        throw new RuntimeException("encoderOutputBuffer " + outputBufferIndex + " was null");
+        output.attach(coordinator);
+        if (coordinator != null) requestSyncFrame();
+    }
 
-                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
-                        bufferInfo.size = 0;
+    /**
+     * Sends video to {@code coordinator} as well, from the next key frame on.
+     */
+    public void addMuxer(@NonNull final MuxerCoordinator coordinator) {
 
-                    if (bufferInfo.size != 0) {
+        output.add(coordinator);
+        requestSyncFrame();
+    }
 
-                        while (!muxerCoordinator.isStarted()) {
+    public void removeMuxer(@NonNull final MuxerCoordinator coordinator) {
+        output.remove(coordinator);
+    }
 
-                            try {
-                                Thread.sleep(10);
-                            } catch (InterruptedException e) {
-                                Log.e(TAG, "Waiting for muxer to start", e);
-                            }
-                        }
+    private void requestSyncFrame() {
 
-                        encodedData.position(bufferInfo.offset);
-                        encodedData.limit(bufferInfo.offset + bufferInfo.size);
-                        muxerCoordinator.getMuxer().writeSampleData(videoTrackIndex, encodedData, bufferInfo);
-                    }
+        if (videoEncoder == null) return;
+        try {
+            videoEncoder.requestSyncFrame();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to request a key frame", e);
+        }
+    }
 
-                    videoEncoder.releaseOutputBuffer(outputBufferIndex, false);
+    /**
+     * Frame rate the adaptive controller currently wants the capture to be limited to.
+     */
+    public int getTargetFrameRate() {
+        return targetFrameRate;
+    }
 
-                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
-                        break;
-                }
+    /**
+     * Accumulates output statistics and, once per interval, lets the controller retune the
+     * encoder. Runs on the encoder's output thread.
+     */
+    private void adaptRate(@NonNull SampleInfo info) {
+
+        // Surface frames are stamped with the monotonic clock, so this is capture-to-output lag
+        final long lagUs = System.nanoTime() / 1000 - info.presentationTimeUs;
+        intervalBytes += info.size;
+        intervalMaxLagUs = Math.max(intervalMaxLagUs, lagUs);
+        if (intervalStartUs < 0) intervalStartUs = info.presentationTimeUs;
+
+        final long intervalUs = info.presentationTimeUs - intervalStartUs;
+        if (intervalUs < Constants.BITRATE_ADAPT_INTERVAL_US) return;
+        // The encoder is shared, so it slows down for the slowest file
+        if (bitrateController.update(intervalUs, intervalBytes, intervalMaxLagUs, output.getBacklog())) {
+            try {
+                videoEncoder.setVideoBitrate(bitrateController.getBitrate());
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Failed to change the video bitrate", e);
             }
-        });
-        encodingThread.start();
+            targetFrameRate = bitrateController.getFrameRate();
+            if (frameGate != null) frameGate.setFrameRate(targetFrameRate);
+        }
+        intervalStartUs = info.presentationTimeUs;
+        intervalBytes = 0;
+        intervalMaxLagUs = 0;
     }
 
     public void stop() {
 
-        isRecording = false;
-        if (encodingThread != null) {
-            try {
-                encodingThread.join();
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Encoding thread join interrupted", e);
-            }
-        }
+        engine.stop();
 
         if (virtualDisplay != null) virtualDisplay.release();
+        if (frameGate != null) frameGate.release();
         if (videoEncoder != null) {
 
             videoEncoder.signalEndOfInputStream();
@@ -121,12 +201,19 @@ public class ScreenMicRecorder {
     }
 
     private static final String TAG = "ScreenMicRecorder";
+    private static final String THREAD_NAME = "ScreenMicRecorderThread";
     private final MediaProjection mediaProjection;
-    private final MuxerCoordinator muxerCoordinator;
-    private MediaCodec videoEncoder;
+    private final TrackOutput output = new TrackOutput(true);
+    private final EncoderSelector.VideoConfig config;
+    private final EncoderEngine engine;
+    private MediaCodecEncoder videoEncoder;
     private VirtualDisplay virtualDisplay;
-    private Thread encodingThread;
-    private boolean isRecording = false;
-    private int videoTrackIndex = -1;
+    private FrameGate frameGate;
+    private final BitrateController bitrateController;
+    private volatile int targetFrameRate;
+    // Owned by the encoder's output thread
+    private long intervalStartUs = -1;
+    private long intervalBytes = 0;
+    private long intervalMaxLagUs = 0;
 
 }
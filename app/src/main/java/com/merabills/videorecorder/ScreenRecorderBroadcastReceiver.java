@@ -6,6 +6,7 @@ import static com.merabills.videorecorder.MainActivity.KEY_RESULT_CODE;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -40,6 +41,9 @@ public class ScreenRecorderBroadcastReceiver extends BroadcastReceiver {
         final Intent serviceIntent = new Intent(context, ScreenRecorderService.class);
         serviceIntent.putExtra(Constants.KEY_ACTION, action);
         serviceIntent.putExtra(Constants.KEY_FILE_NAME, fileName);
+        // Time to first frame counts from the broadcast, unless the sender said when it sent it
+        serviceIntent.putExtra(Constants.KEY_SENT_ELAPSED_NANOS,
+                intent.getLongExtra(Constants.KEY_SENT_ELAPSED_NANOS, SystemClock.elapsedRealtimeNanos()));
         serviceIntent.putExtra(KEY_RESULT_CODE, MainActivity.resultCode);
         serviceIntent.putExtra(KEY_DATA, MainActivity.data);
 
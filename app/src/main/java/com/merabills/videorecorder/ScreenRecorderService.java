@@ -9,14 +9,27 @@ import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Rect;
+import android.hardware.display.DisplayManager;
+import android.media.MediaFormat;
+import android.media.MediaScannerConnection;
 import android.media.MediaMuxer;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
-import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Display;
+import android.view.WindowManager;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -25,17 +38,100 @@ import androidx.annotation.RequiresPermission;
 import androidx.core.app.NotificationCompat;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 public class ScreenRecorderService extends Service {
 
+    @Override
+    public void onCreate() {
+
+        super.onCreate();
+        final UploadManager uploads = UploadManager.getInstance();
+        uploads.setListener((file, blobName, result, error) -> {
+            if (error == null) Log.i(TAG, "Uploaded " + blobName + ": " + result + " (" + uploads.getStoreMetrics() + ")");
+            else Log.e(TAG, "Upload of " + blobName + " failed", error);
+        });
+        if (!uploads.hasQueue() && !resumingUploads) {
+            resumingUploads = true;
+            // Recovery can rewrite whole recordings, so it runs with the other finishing work
+            final File filesDir = getFilesDir();
+            FINISHER.execute(() -> resumeUploads(uploads, filesDir));
+        }
+        if (resumingUploads) {
+            // Recovery and reconcile would take the files new recordings write for abandoned ones
+            recovering = true;
+            FINISHER.execute(() -> handler.post(this::onRecovered));
+        }
+    }
+
+    /**
+     * Runs the commands that arrived while old recordings were being recovered.
+     */
+    private void onRecovered() {
+
+        recovering = false;
+        if (!commands.isEmpty()) runCommands();
+    }
+
+    /**
+     * Replays the durable upload queue and queues recordings that a killed process never
+     * got to upload. Runs on the finisher thread.
+     */
+    private static void resumeUploads(@NonNull UploadManager uploads, @NonNull File filesDir) {
+
+        recoverRecordings();
+        try {
+            final UploadQueue queue = new UploadQueue(new File(filesDir, Constants.NAME_UPLOAD_QUEUE));
+            queue.open();
+            final int added = queue.reconcile(getRecordingFolder(), file ->
+                    file.getName().endsWith(Constants.EXTENSION_MP4)
+                            || file.getName().endsWith(Constants.EXTENSION_SEGMENT_MANIFEST)
+                            || file.getName().endsWith(Constants.EXTENSION_SILENCE_SPANS)
+                            || file.getName().endsWith(Constants.EXTENSION_SESSION_REPORT));
+            if (added > 0) Log.i(TAG, "Found " + added + " recordings that were never uploaded");
+            uploads.attachQueue(queue);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open the upload queue", e);
+        } finally {
+            resumingUploads = false;
+        }
+    }
+
+    /**
+     * Finishes pure Java recordings that a killed process left without a moov box, so that
+     * they are uploaded playable.
+     */
+    private static void recoverRecordings() {
+
+        final File[] indexes = getRecordingFolder().listFiles((dir, name) ->
+                name.endsWith(Constants.EXTENSION_MP4 + ProgressiveMp4Muxer.INDEX_SUFFIX));
+        if (indexes == null) return;
+        for (final File index : indexes) {
+            final String path = index.getPath();
+            final File recording = new File(path.substring(0, path.length() - ProgressiveMp4Muxer.INDEX_SUFFIX.length()));
+            try {
+                if (ProgressiveMp4Muxer.recover(recording)) Log.i(TAG, "Recovered " + recording.getName());
+                else Log.w(TAG, "Nothing to recover in " + recording.getName());
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to recover " + recording.getName(), e);
+            }
+        }
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.Q)
     @RequiresPermission(allOf = {"android.permission.RECORD_AUDIO"})
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
 
+        final long requestNanos = System.nanoTime();
         if (intent == null) {
             Log.e(TAG, "Intent is null, cannot start service");
             return START_NOT_STICKY;
@@ -49,110 +145,841 @@ public class ScreenRecorderService extends Service {
             return START_NOT_STICKY;
         }
 
-        switch (Objects.requireNonNullElse(action, "")) {
+        keepGrant(intent.getIntExtra(MainActivity.KEY_RESULT_CODE, 0), getGrantData(intent));
+        enqueueCommand(
+                Objects.requireNonNullElse(action, ""),
+                fileName,
+                intent.getStringExtra(Constants.KEY_VIDEO_QUALITY),
+                toRequestNanos(intent.getLongExtra(Constants.KEY_SENT_ELAPSED_NANOS, 0), requestNanos),
+                false,
+                null
+        );
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Queues a command for the main thread, where it may be merged with others that arrive
+     * before it runs; see {@link CommandQueue}.
+     */
+    private void enqueueCommand(
+            @NonNull String action,
+            @NonNull String fileName,
+            @Nullable String videoQuality,
+            long requestNanos,
+            boolean bound,
+            @Nullable Messenger replyTo
+    ) {
+
+        commands.offer(action, fileName, videoQuality, requestNanos, bound, replyTo);
+        if (recovering) {
+            // A started foreground service must say so within seconds, however long recovery takes
+            if (!Constants.VALUE_STOP.equals(action) && !Constants.VALUE_DESTROY.equals(action))
+                startForeground(1, createNotification());
+            return;
+        }
+        if (commandsPosted) return;
+        commandsPosted = true;
+        // Runs after the messages already queued on the main thread, which can still merge
+        handler.post(this::runCommands);
+    }
+
+    @SuppressWarnings("MissingPermission")
+    private void runCommands() {
+
+        commandsPosted = false;
+        for (final CommandQueue.Command<Messenger> command : commands.drain()) {
+            if (command.getCount() > 1) Log.i(TAG, "Coalesced " + command);
+            final boolean done = runCommand(command);
+            for (final Messenger replyTo : command.getReplyTo())
+                acknowledge(replyTo, command, done);
+        }
+    }
+
+    /**
+     * @return whether the service is now doing what the command asked.
+     */
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    private boolean runCommand(@NonNull CommandQueue.Command<Messenger> command) {
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return false;
+        final String fileName = command.getFileName();
+        switch (command.getAction()) {
             case Constants.VALUE_RESTART:
-                initRecording(fileName);
-                break;
+                // Ends every recording, and may stand for a start it replaced
+                startForeground(1, createNotification());
+                stopAllRecordings();
+                return initRecording(fileName, getVideoQuality(command), command.requestNanos, command.bound);
             case Constants.VALUE_STOP:
-                stopRecording();
-                break;
+                if (sessions.get(fileName) != null) stopRecording(fileName);
+                else if (replayCoordinator != null) stopReplay();
+                else stopAllRecordings();
+                return true;
+            case Constants.VALUE_START_REPLAY:
+                startForeground(1, createNotification());
+                startReplay();
+                return replayCoordinator != null;
+            case Constants.VALUE_DUMP_REPLAY:
+                // Acknowledged once the dump has started; it runs on a thread of its own
+                return dumpReplay(fileName);
             case Constants.VALUE_DESTROY:
+                releasePipeline();
                 stopSelf();
-                break;
+                return true;
             default:
                 startForeground(1, createNotification());
-                initRecording(fileName);
-                break;
+                return initRecording(fileName, getVideoQuality(command), command.requestNanos, command.bound);
         }
-        return START_NOT_STICKY;
+    }
+
+    @NonNull
+    private static EncoderSelector.Quality getVideoQuality(@NonNull CommandQueue.Command<Messenger> command) {
+
+        final String name = command.getVideoQuality();
+        if (name == null) return Constants.VIDEO_QUALITY;
+        try {
+            return EncoderSelector.Quality.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unknown video quality " + name);
+            return Constants.VIDEO_QUALITY;
+        }
+    }
+
+    private void acknowledge(
+            @NonNull Messenger replyTo,
+            @NonNull CommandQueue.Command<Messenger> command,
+            boolean done
+    ) {
+
+        final Message reply = Message.obtain(null, Constants.MSG_COMMAND_DONE, done ? 1 : 0, 0);
+        final Bundle data = new Bundle();
+        data.putString(Constants.KEY_ACTION, command.getAction());
+        data.putString(Constants.KEY_FILE_NAME, command.getFileName());
+        data.putBoolean(Constants.KEY_COALESCED, command.getCount() > 1);
+        reply.setData(data);
+        try {
+            replyTo.send(reply);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Client went away before its command was acknowledged", e);
+        }
+    }
+
+    /**
+     * Holds on to the screen capture grant from the latest command that carried one, so that
+     * the pipeline can be restarted without going back to {@link MainActivity}.
+     */
+    private void keepGrant(int resultCode, @Nullable Intent data) {
+
+        if (data == null) return;
+        grantResultCode = resultCode;
+        grantData = data;
+    }
+
+    /**
+     * The screen capture grant an intent carries; the class-typed lookup is only reliable from
+     * API 34, as in {@code IntentCompat}.
+     */
+    @SuppressWarnings("deprecation")
+    @Nullable
+    private static Intent getGrantData(@NonNull Intent intent) {
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+            return intent.getParcelableExtra(MainActivity.KEY_DATA, Intent.class);
+        return intent.getParcelableExtra(MainActivity.KEY_DATA);
+    }
+
+    /**
+     * The screen capture grant a bound command carries, as in {@code BundleCompat}.
+     */
+    @SuppressWarnings("deprecation")
+    @Nullable
+    private static Intent getGrantData(@NonNull Bundle command) {
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+            return command.getParcelable(MainActivity.KEY_DATA, Intent.class);
+        return command.getParcelable(MainActivity.KEY_DATA);
+    }
+
+    /**
+     * When the caller sent a command, on {@link System#nanoTime()}, if it said so with
+     * {@link Constants#KEY_SENT_ELAPSED_NANOS}; otherwise when it arrived.
+     */
+    private static long toRequestNanos(long sentElapsedNanos, long receivedNanos) {
+
+        if (sentElapsedNanos <= 0) return receivedNanos;
+        final long inTransitNanos = SystemClock.elapsedRealtimeNanos() - sentElapsedNanos;
+        return inTransitNanos >= 0 ? receivedNanos - inTransitNanos : receivedNanos;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    @Override
+    public void onDestroy() {
+
+        stopAllRecordings();
+        stopReplay();
+        releasePipeline();
+        super.onDestroy();
+    }
+
+    /**
+     * Starts recording to a new file alongside any already recording, reusing the warm capture
+     * pipeline when there is one and otherwise initializing MediaProjection and the encoders
+     * first.
+     *
+     * @return whether the file is being recorded.
+     */
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private boolean initRecording(
+            @NonNull String fileName,
+            @NonNull EncoderSelector.Quality quality,
+            long requestNanos,
+            boolean bound
+    ) {
+
+        if (sessions.get(fileName) != null) {
+            Log.w(TAG, "Already recording " + fileName);
+            return true;
+        }
+        if (!preparePipeline(quality)) return false;
+        return startRecording(fileName, quality, requestNanos, bound);
+    }
+
+    /**
+     * Makes sure a live pipeline encoding at {@code quality} is running. One media projection
+     * drives one virtual display, so a pipeline at another quality is only replaced while
+     * nothing is using it.
+     */
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private boolean preparePipeline(@NonNull EncoderSelector.Quality quality) {
+
+        handler.removeCallbacks(releaseIdlePipeline);
+        if (pipeline != null && !pipeline.isAlive()) releasePipeline();
+        if (pipeline != null && pipelineQuality != quality) {
+            if (!sessions.isEmpty() || replayCoordinator != null) {
+                Log.e(TAG, "Screen capture is already running at " + pipelineQuality + " quality");
+                return false;
+            }
+            releasePipeline();
+        }
+        return pipeline != null || startPipeline(quality);
+    }
+
+    /**
+     * Opens the capture shared by the sessions recording at {@code quality}.
+     */
+    @SuppressWarnings("MissingPermission")
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    @NonNull
+    private RecordingSessions.Capture openCapture(@NonNull EncoderSelector.Quality quality) throws IOException {
+
+        if (!preparePipeline(quality)) throw new IOException("Screen capture is not available at " + quality + " quality");
+        return sharedPipeline;
     }
 
     /**
-     * Initializes MediaProjection and starts screen/audio recording.
+     * Lets the pipeline go after {@link Constants#PIPELINE_IDLE_TIMEOUT_MS} unless something
+     * starts using it again.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void onPipelineIdle() {
+
+        if (pipeline == null || !sessions.isEmpty() || replayCoordinator != null) return;
+        handler.postDelayed(releaseIdlePipeline, Constants.PIPELINE_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Feeds a replay buffer from the pipeline, alongside any recordings, so that only the last
+     * {@link Constants#REPLAY_WINDOW_US} is kept until it is dumped.
+     */
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void startReplay() {
+
+        if (replayCoordinator != null) return;
+        // Shares whatever capture the recordings are using
+        if (!preparePipeline(pipeline != null && pipeline.isAlive() ? pipelineQuality : Constants.VIDEO_QUALITY))
+            return;
+        try {
+            replayBuffer = Constants.REPLAY_BUFFER_ON_DISK
+                    ? ReplayBuffer.mapped(
+                            new File(getCacheDir(), Constants.NAME_REPLAY_BUFFER),
+                            Constants.REPLAY_BUFFER_BYTES,
+                            Constants.REPLAY_MAX_SAMPLES)
+                    : ReplayBuffer.inMemory(Constants.REPLAY_BUFFER_BYTES, Constants.REPLAY_MAX_SAMPLES);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create the replay buffer", e);
+            onPipelineIdle();
+            return;
+        }
+        replayCoordinator = new MuxerCoordinator(replayBuffer, 2); // 2 tracks: audio + video
+        pipeline.add(replayCoordinator);
+    }
+
+    /**
+     * Detaches and discards the replay buffer, if there is one.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void stopReplay() {
+
+        if (replayCoordinator == null) return;
+        if (pipeline != null) pipeline.remove(replayCoordinator);
+        replayCoordinator.stopMuxer();
+        replayCoordinator = null;
+        replayBuffer = null;
+        onPipelineIdle();
+    }
+
+    /**
+     * Saves the replay window as {@code fileName} and uploads it, on a thread of its own so
+     * that capture carries on meanwhile.
+     */
+    private boolean dumpReplay(@NonNull String fileName) {
+
+        final ReplayBuffer buffer = replayBuffer;
+        if (buffer == null) {
+            Log.w(TAG, "No replay buffer to save");
+            return false;
+        }
+        final File folder = getRecordingFolder();
+        if (!folder.exists() && !folder.mkdirs()) Log.w(TAG, "Failed to create parent directory");
+        final File file = new File(folder, fileName + Constants.EXTENSION_MP4);
+        final Context application = getApplicationContext();
+        new Thread(() -> {
+            try {
+                final long startNanos = System.nanoTime();
+                final int samples = buffer.dump(file, Constants.REPLAY_WINDOW_US, ScreenRecorderService::createMuxer);
+                Log.i(TAG, "Saved " + samples + " replay samples to " + file.getName() + " in "
+                        + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+                publishAndUpload(application, file);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to save the replay buffer", e);
+            }
+        }, "ReplayDumpThread").start();
+        return true;
+    }
+
+    /**
+     * Acquires the MediaProjection and starts the display, audio capture and encoders.
      */
     @RequiresPermission(Manifest.permission.RECORD_AUDIO)
     @RequiresApi(api = Build.VERSION_CODES.Q)
-    private void initRecording(@NonNull String fileName) {
+    private boolean startPipeline(@NonNull EncoderSelector.Quality quality) {
 
         final MediaProjectionManager mpm = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
 
         if (mpm == null) {
             Log.e(TAG, "MediaProjectionManager is null");
-            return;
+            return false;
         }
 
-        final int resultCode = MainActivity.resultCode;
-        final Intent data = MainActivity.data;
+        final int resultCode = grantData != null ? grantResultCode : MainActivity.resultCode;
+        final Intent data = grantData != null ? grantData : MainActivity.data;
 
         if (resultCode == RESULT_OK && data != null) {
 
-            mediaProjection = mpm.getMediaProjection(resultCode, data);
-            if (mediaProjection != null)
-                startRecording(fileName);
+            final MediaProjection mediaProjection = mpm.getMediaProjection(resultCode, data);
+            if (mediaProjection == null) return false;
+            try {
+                final EncoderCapabilities capabilities = EncoderCapabilityProbe.load(
+                        new File(getFilesDir(), Constants.NAME_ENCODER_CAPABILITIES));
+                pipeline = new CapturePipeline(
+                        mediaProjection,
+                        selectVideoConfig(capabilities, quality),
+                        EncoderSelector.selectAudio(capabilities, Constants.AUDIO_CHANNEL_COUNT, Constants.AUDIO_BITRATE)
+                );
+                pipelineQuality = quality;
+                pipeline.start();
+                return true;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to start the capture pipeline", e);
+                releasePipeline();
+                stopSelf();
+                return false;
+            }
         } else {
             Log.e(TAG, "MediaProjection initialization failed");
+            return false;
         }
     }
 
     /**
-     * Sets up muxer, file paths, and starts screen and audio recorders.
+     * Stops capture and gives up the MediaProjection.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void releasePipeline() {
+
+        handler.removeCallbacks(releaseIdlePipeline);
+        if (pipeline != null) {
+            pipeline.release();
+            pipeline = null;
+        }
+    }
+
+    /**
+     * Sets up muxer and file paths, and adds them to the running pipeline's outputs.
      */
-    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
     @RequiresApi(api = Build.VERSION_CODES.Q)
-    private void startRecording(@NonNull String fileName) {
+    private boolean startRecording(
+            @NonNull String fileName,
+            @NonNull EncoderSelector.Quality quality,
+            long requestNanos,
+            boolean bound
+    ) {
         try {
 
-            outputFile = new File(Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_MOVIES + Constants.NAME_RECORDING_FOLDER),
-                    fileName + Constants.EXTENSION_MP4);
+            final File outputFile = getOutputFile(fileName);
 
             File parent = outputFile.getParentFile();
             if (parent != null && !parent.exists()) {
                 boolean created = parent.mkdirs();
                 if (!created) Log.w(TAG, "Failed to create parent directory");
             }
-            final MediaMuxer muxer = new MediaMuxer(
-                    outputFile.getAbsolutePath(),
-                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4
-            );
-            muxerCoordinator = new MuxerCoordinator(muxer, 2); // 2 tracks: audio + video
-            screenMicRecorder = new ScreenMicRecorder(mediaProjection, muxerCoordinator);
-            internalAudioRecorder = new InternalAudioRecorder(mediaProjection, muxerCoordinator);
-            screenMicRecorder.prepare();
-            internalAudioRecorder.prepare();
-            screenMicRecorder.start();
-            internalAudioRecorder.start();
+            final SampleMuxer muxer;
+            SegmentingMuxer segmentingMuxer = null;
+            LiveBlockUploader liveUploader = null;
+            if (Constants.LIVE_UPLOAD) {
+                final UploadManager uploads = UploadManager.getInstance();
+                liveUploader = new LiveBlockUploader(
+                        uploads.getStore(),
+                        uploads.getBlockExecutor(),
+                        outputFile,
+                        outputFile.getName(),
+                        Constants.LIVE_UPLOAD_MIN_BLOCK_BYTES,
+                        Constants.UPLOAD_MAX_RETRIES,
+                        Constants.UPLOAD_RETRY_DELAY_MS
+                );
+                muxer = new FragmentedMp4Muxer(outputFile, Constants.FRAGMENT_DURATION_US, liveUploader);
+            } else if (Constants.SEGMENTED_RECORDING) {
+                segmentingMuxer = new SegmentingMuxer(
+                        parent,
+                        getBaseName(outputFile),
+                        Constants.SEGMENT_MAX_DURATION_US,
+                        Constants.SEGMENT_MAX_BYTES,
+                        ScreenRecorderService::createMuxer,
+                        segment -> publishAndUpload(getApplicationContext(), segment.file)
+                );
+                muxer = segmentingMuxer;
+            } else {
+                muxer = createMuxer(outputFile);
+            }
+            final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 2); // 2 tracks: audio + video
+            sessions.start(new FileSession(
+                    fileName, quality, coordinator, requestNanos, bound, outputFile, segmentingMuxer, liveUploader));
+            Log.i(TAG, "Recording " + fileName + " (" + sessions.size() + " sessions on "
+                    + sessions.getCaptureCount() + " captures)");
+            return true;
 
         } catch (Exception e) {
             Log.e(TAG, "Failed to start recording", e);
-            stopSelf();
+            // Other recordings carry on
+            if (sessions.isEmpty() && replayCoordinator == null) stopSelf();
+            return false;
+        }
+    }
+
+    /**
+     * The file to record {@code fileName} into. While an earlier recording to that name is
+     * still being finished, as right after a restart, the new one is numbered like
+     * {@code name-2.mp4} instead of overwriting it.
+     */
+    @NonNull
+    private static File getOutputFile(@NonNull String fileName) {
+
+        final File folder = getRecordingFolder();
+        File file = new File(folder, fileName + Constants.EXTENSION_MP4);
+        for (int number = 2; FINISHING.contains(file.getPath()); number++)
+            file = new File(folder, fileName + "-" + number + Constants.EXTENSION_MP4);
+        return file;
+    }
+
+    /**
+     * Picks the video encoder and capture size for the real display size and density.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    @NonNull
+    private EncoderSelector.VideoConfig selectVideoConfig(
+            @NonNull EncoderCapabilities capabilities,
+            @NonNull EncoderSelector.Quality quality
+    ) {
+
+        final Display display = getSystemService(DisplayManager.class).getDisplay(Display.DEFAULT_DISPLAY);
+        final int width;
+        final int height;
+        final int densityDpi;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // A service is not a visual context, so ask a window context for the display's bounds
+            final Context windowContext = createWindowContext(
+                    display, WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY, null);
+            final Rect bounds = windowContext.getSystemService(WindowManager.class).getMaximumWindowMetrics().getBounds();
+            width = bounds.width();
+            height = bounds.height();
+            densityDpi = windowContext.getResources().getConfiguration().densityDpi;
+        } else {
+            final DisplayMetrics metrics = getRealMetrics(display);
+            width = metrics.widthPixels;
+            height = metrics.heightPixels;
+            densityDpi = metrics.densityDpi;
         }
+
+        // The pure Java MP4 writers only know how to describe AVC
+        final List<String> mimes = Constants.LIVE_UPLOAD || Constants.PURE_JAVA_MUXER
+                ? List.of(MediaFormat.MIMETYPE_VIDEO_AVC)
+                : List.of(MediaFormat.MIMETYPE_VIDEO_HEVC, MediaFormat.MIMETYPE_VIDEO_AVC);
+        return EncoderSelector.selectVideo(
+                capabilities,
+                width,
+                height,
+                densityDpi,
+                quality,
+                Constants.VIDEO_FRAME_RATE,
+                mimes
+        );
+    }
+
+    /**
+     * The whole display's size and density, for API levels without window metrics.
+     */
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private static DisplayMetrics getRealMetrics(@NonNull Display display) {
+
+        final DisplayMetrics metrics = new DisplayMetrics();
+        display.getRealMetrics(metrics);
+        return metrics;
     }
 
     /**
-     * Stops all recorders, closes the muxer, and uploads the file to Azure.
+     * Stops every recording; see {@link #stopRecording(String)}.
      */
     @RequiresApi(api = Build.VERSION_CODES.Q)
-    private void stopRecording() {
+    private void stopAllRecordings() {
+
+        for (final FileSession session : new ArrayList<>(sessions.getSessions()))
+            stopRecording(session.getName());
+    }
+
+    /**
+     * Detaches the file's muxer from the pipeline, then closes it and uploads the file to Azure
+     * on the finisher thread. The pipeline stays warm for a restart until it has been idle for
+     * a while.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void stopRecording(@NonNull String fileName) {
+        // Audio is stamped on the monotonic clock, so this cuts off a silent span still open now
+        final long endUs = System.nanoTime() / 1000;
+        final FileSession session = sessions.detach(fileName);
+        if (session == null) return;
+        File silenceSpans = null;
         try {
-            if (screenMicRecorder != null) screenMicRecorder.stop();
-            if (internalAudioRecorder != null) internalAudioRecorder.stop();
-            if (muxerCoordinator != null) muxerCoordinator.stopMuxer();
+            final MuxerCoordinator coordinator = session.getCoordinator();
+            reportTimeToFirstFrame(session);
+            silenceSpans = writeSilenceSpans(session.outputFile, coordinator, endUs);
+            lastSessionMetrics = coordinator.getMetrics();
         } catch (Exception e) {
             Log.e(TAG, "Error while stopping recorders", e);
         }
-        if (outputFile != null && outputFile.exists()) {
 
-            // Update media store so the video is visible in gallery apps
-            Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-            mediaScanIntent.setData(Uri.fromFile(outputFile));
-            sendBroadcast(mediaScanIntent);
+        // Closing the muxer can copy the whole file to move its index to the front
+        final Context application = getApplicationContext();
+        final File spans = silenceSpans;
+        final String path = session.outputFile.getPath();
+        FINISHING.add(path);
+        FINISHER.execute(() -> {
+            try {
+                finishRecording(application, session, spans);
+            } finally {
+                FINISHING.remove(path);
+            }
+        });
+    }
+
+    /**
+     * Closes a detached session's file, then publishes and uploads it with its sidecars. Runs
+     * on the finisher thread.
+     */
+    private static void finishRecording(
+            @NonNull Context context,
+            @NonNull FileSession session,
+            @Nullable File silenceSpans
+    ) {
+
+        File sessionReport = null;
+        try {
+            final MuxerCoordinator coordinator = session.getCoordinator();
+            coordinator.stopMuxer();
+            sessionReport = writeSessionReport(session.outputFile, coordinator.getMetrics());
+        } catch (Exception e) {
+            Log.e(TAG, "Error while closing " + session.outputFile.getName(), e);
+        }
+        final File outputFile = session.outputFile;
+        if (session.liveUploader != null) {
+
+            // Most of the file is already in storage; only the tail and the final commit remain
+            publish(context, outputFile);
+            UploadManager.getInstance().enqueueLiveFinish(session.liveUploader, outputFile, outputFile.getName());
+        } else if (session.segmentingMuxer != null) {
 
-            // Upload to Azure asynchronously
-            executor.submit(() -> AzureUploader.uploadVideoToAzure(outputFile, outputFile.getName()));
+            // Segments were uploaded as they were sealed; the manifest completes the set
+            final File manifest = session.segmentingMuxer.getManifestFile();
+            if (manifest.exists())
+                UploadManager.getInstance().enqueue(manifest, manifest.getName());
+        } else if (outputFile.exists()) {
+            publishAndUpload(context, outputFile);
         } else {
             Log.w(TAG, "No output file to broadcast or upload");
         }
+        if (silenceSpans != null) UploadManager.getInstance().enqueue(silenceSpans, silenceSpans.getName());
+        if (sessionReport != null) UploadManager.getInstance().enqueue(sessionReport, sessionReport.getName());
+    }
+
+    /**
+     * Saves the silent stretches of the session's audio next to the recording, in
+     * microseconds from the start of the file, so players and processing can skip them.
+     *
+     * @return the file written, or null if there was nothing to write.
+     */
+    @Nullable
+    private File writeSilenceSpans(@NonNull File outputFile, @NonNull MuxerCoordinator coordinator, long endUs) {
+
+        final long originUs = coordinator.getFirstPresentationTimeUs();
+        final List<SilenceSpans.Span> spans = pipeline != null && originUs >= 0
+                ? pipeline.getSilenceSpans(originUs, endUs)
+                : List.of();
+        pruneSilenceSpans(endUs);
+        if (!Constants.SILENCE_COMPACTION || originUs < 0) return null;
+
+        final File file = getSidecarFile(outputFile, Constants.EXTENSION_SILENCE_SPANS);
+        final AppendOnlyLog log = new AppendOnlyLog(file);
+        try {
+            log.rewrite(SilenceSpans.toLines(spans, originUs));
+            log.close();
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save the silence spans", e);
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the silent stretches that no running recording covers.
+     */
+    private void pruneSilenceSpans(long endUs) {
+
+        if (pipeline == null) return;
+        long oldestUs = endUs;
+        for (final FileSession session : sessions.getSessions()) {
+            final long originUs = session.getCoordinator().getFirstPresentationTimeUs();
+            if (originUs >= 0) oldestUs = Math.min(oldestUs, originUs);
+        }
+        pipeline.pruneSilenceSpans(oldestUs);
+    }
+
+    /**
+     * Saves the session's performance report next to the recording.
+     *
+     * @return the file written, or null if it could not be written.
+     */
+    @Nullable
+    private static File writeSessionReport(@NonNull File outputFile, @NonNull SessionMetrics metrics) {
+
+        final File file = getSidecarFile(outputFile, Constants.EXTENSION_SESSION_REPORT);
+        final AppendOnlyLog log = new AppendOnlyLog(file);
+        try {
+            log.rewrite(List.of(getSessionReport(metrics)));
+            log.close();
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save the session report", e);
+            return null;
+        }
+    }
+
+    @NonNull
+    private static String getSessionReport(@NonNull SessionMetrics metrics) {
+        return metrics.toJson(UploadManager.getInstance().getStoreMetrics().toJson());
+    }
+
+    /**
+     * File named like {@code recording} with its extension replaced by {@code extension}.
+     */
+    @NonNull
+    private static File getSidecarFile(@NonNull File recording, @NonNull String extension) {
+
+        final String path = recording.getPath();
+        return new File(path.substring(0, path.length() - Constants.EXTENSION_MP4.length()) + extension);
+    }
+
+    @NonNull
+    private static String getBaseName(@NonNull File recording) {
+
+        final String name = recording.getName();
+        return name.substring(0, name.length() - Constants.EXTENSION_MP4.length());
+    }
+
+    /**
+     * Answers bound clients on the main thread, where the session state is owned.
+     */
+    private boolean handleMessage(@NonNull Message message) {
+
+        if (message.what == Constants.MSG_COMMAND) {
+            final long receivedNanos = System.nanoTime();
+            final Bundle command = message.getData();
+            final String fileName = command.getString(Constants.KEY_FILE_NAME);
+            if (fileName == null || fileName.trim().isEmpty()) {
+                Log.e(TAG, "File name is missing");
+                return true;
+            }
+            keepGrant(command.getInt(MainActivity.KEY_RESULT_CODE, 0), getGrantData(command));
+            enqueueCommand(
+                    Objects.requireNonNullElse(command.getString(Constants.KEY_ACTION), ""),
+                    fileName,
+                    command.getString(Constants.KEY_VIDEO_QUALITY),
+                    toRequestNanos(command.getLong(Constants.KEY_SENT_ELAPSED_NANOS, 0), receivedNanos),
+                    true,
+                    message.replyTo
+            );
+            return true;
+        }
+        if (message.what != Constants.MSG_GET_SESSION_METRICS) return false;
+        // The newest running session's, or the last finished one's
+        FileSession newest = null;
+        for (final FileSession session : sessions.getSessions()) newest = session;
+        final SessionMetrics metrics = newest != null ? newest.getCoordinator().getMetrics() : lastSessionMetrics;
+        final Bundle data = new Bundle();
+        // Null until the first session has started
+        data.putString(Constants.KEY_SESSION_METRICS, metrics != null ? getSessionReport(metrics) : null);
+        data.putString(Constants.KEY_FIRST_FRAME_LATENCY, getFirstFrameLatencyReport());
+        data.putString(Constants.KEY_SESSION_RESOURCES, getSessionResourceReport());
+        final Message reply = Message.obtain(null, Constants.MSG_GET_SESSION_METRICS);
+        reply.setData(data);
+        try {
+            if (message.replyTo != null) message.replyTo.send(reply);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Client went away before the session metrics were sent", e);
+        }
+        return true;
+    }
+
+    /**
+     * Logs how long the session took from its start command to its first written sample.
+     */
+    private void reportTimeToFirstFrame(@NonNull FileSession session) {
+
+        final long firstSampleNanos = session.getCoordinator().getFirstSampleNanos();
+        if (firstSampleNanos < 0) {
+            Log.w(TAG, "Session ended before any sample was written");
+            return;
+        }
+        final long elapsedNanos = firstSampleNanos - session.requestNanos;
+        final LatencyHistogram timeToFirstFrame = session.bound ? firstFrameAfterBoundCommand : firstFrameAfterIntent;
+        timeToFirstFrame.record(elapsedNanos);
+        Log.i(TAG, "Time to first frame " + elapsedNanos / 1_000_000 + " ms after "
+                + (session.bound ? "bound command" : "start intent") + " (mean "
+                + timeToFirstFrame.getMeanNanos() / 1_000_000 + " ms, max "
+                + timeToFirstFrame.getMaxNanos() / 1_000_000 + " ms over "
+                + timeToFirstFrame.getCount() + " sessions)");
+    }
+
+    /**
+     * Time to first frame of this service's sessions, split by how they were requested.
+     */
+    @NonNull
+    private String getFirstFrameLatencyReport() {
+
+        final StringBuilder json = new StringBuilder("{\"intent\":");
+        SessionMetrics.appendHistogram(json, firstFrameAfterIntent);
+        json.append(",\"bound\":");
+        SessionMetrics.appendHistogram(json, firstFrameAfterBoundCommand);
+        return json.append('}').toString();
+    }
+
+    /**
+     * What the running sessions hold: how many there are, how many sets of encoders feed them,
+     * and the bytes waiting in their muxer queues.
+     */
+    @NonNull
+    private String getSessionResourceReport() {
+
+        return String.format(Locale.US,
+                "{\"sessions\":%d,\"captures\":%d,\"queued_bytes\":%d,"
+                        + "\"sessions_started\":%d,\"captures_opened\":%d}",
+                sessions.size(), sessions.getCaptureCount(), sessions.getQueuedBytes(),
+                sessions.getSessionsStarted(), sessions.getCapturesOpened());
+    }
+
+    /**
+     * Makes a finished MP4 visible to gallery apps and queues it for upload, after the
+     * transcode pass when that is enabled.
+     */
+    private static void publishAndUpload(@NonNull Context context, @NonNull File file) {
+
+        if (Constants.TRANSCODE_BEFORE_UPLOAD) {
+            getTranscodeScheduler(context).submit(file);
+            return;
+        }
+        publish(context, file);
+
+        // Upload to Azure asynchronously
+        UploadManager.getInstance().enqueue(file, file.getName());
+    }
+
+    /**
+     * The process-wide transcode pass, which outlives any one service instance; recordings
+     * it has not finished when the process dies are uploaded as they are at the next start.
+     */
+    @NonNull
+    private static synchronized TranscodeScheduler getTranscodeScheduler(@NonNull Context context) {
+
+        if (transcodeScheduler == null) {
+            final Context application = context.getApplicationContext();
+            transcodeScheduler = new TranscodeScheduler(
+                    new TranscodePolicy(
+                            Constants.TRANSCODE_MIN_BYTES,
+                            Constants.TRANSCODE_MIN_BATTERY_PERCENT,
+                            Constants.TRANSCODE_VIDEO_BITRATE,
+                            Constants.AUDIO_BITRATE,
+                            Constants.TRANSCODE_MIN_SAVING
+                    ),
+                    new DeviceConditions(application),
+                    new MediaCodecTranscoder(),
+                    (file, result) -> {
+                        Log.i(TAG, "Transcode pass for " + file.getName() + ": " + result);
+                        publish(application, file);
+                        UploadManager.getInstance().enqueue(file, file.getName());
+                    },
+                    Constants.TRANSCODE_THROTTLE_THERMAL_STATUS,
+                    Constants.TRANSCODE_PAUSE_THERMAL_STATUS,
+                    Constants.TRANSCODE_MAX_PAUSE_MS
+            );
+        }
+        return transcodeScheduler;
+    }
+
+    /**
+     * Updates the media store so the video, which is in shared storage, is visible in gallery
+     * apps.
+     */
+    private static void publish(@NonNull Context context, @NonNull File file) {
+        MediaScannerConnection.scanFile(context, new String[]{file.getPath()}, null, null);
+    }
+
+    @NonNull
+    private static File getRecordingFolder() {
+
+        return Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_MOVIES + Constants.NAME_RECORDING_FOLDER);
+    }
+
+    @NonNull
+    private static SampleMuxer createMuxer(@NonNull File file) throws IOException {
+
+        if (Constants.PURE_JAVA_MUXER)
+            return new ProgressiveMp4Muxer(file, Constants.MP4_FASTSTART, Constants.MP4_CHECKPOINT_INTERVAL_US);
+        return new MediaMuxerAdapter(new MediaMuxer(
+                file.getAbsolutePath(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4
+        ));
     }
 
     /**
@@ -173,17 +1000,95 @@ public class ScreenRecorderService extends Service {
                 .build();
     }
 
+    /**
+     * Bound clients can send the same commands as start intents, without the round trip
+     * through {@code startForegroundService}, and be told when each has run; see
+     * {@link Constants#MSG_COMMAND}. They can also read the session metrics, see
+     * {@link Constants#MSG_GET_SESSION_METRICS}. Other apps need
+     * {@link Constants#PERMISSION_CONTROL_RECORDING} to bind.
+     */
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null; // This is a started service, not bound
+        return messenger.getBinder();
+    }
+
+    /**
+     * A recording and what it needs to finish its file.
+     */
+    private static final class FileSession extends RecordingSessions.Session<EncoderSelector.Quality> {
+
+        FileSession(
+                @NonNull String name,
+                @NonNull EncoderSelector.Quality quality,
+                @NonNull MuxerCoordinator coordinator,
+                long requestNanos,
+                boolean bound,
+                @NonNull File outputFile,
+                @Nullable SegmentingMuxer segmentingMuxer,
+                @Nullable LiveBlockUploader liveUploader
+        ) {
+
+            super(name, quality, coordinator, requestNanos);
+            this.bound = bound;
+            this.outputFile = outputFile;
+            this.segmentingMuxer = segmentingMuxer;
+            this.liveUploader = liveUploader;
+        }
+
+        // True if it was started over the bound control channel
+        final boolean bound;
+        final File outputFile;
+        final SegmentingMuxer segmentingMuxer;
+        final LiveBlockUploader liveUploader;
     }
 
-    private MediaProjection mediaProjection;
-    private ScreenMicRecorder screenMicRecorder;
-    private InternalAudioRecorder internalAudioRecorder;
-    private MuxerCoordinator muxerCoordinator;
-    private File outputFile;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper(), this::handleMessage);
+    private final Messenger messenger = new Messenger(handler);
+    private final Runnable releaseIdlePipeline = this::releasePipeline;
+    private final CommandQueue<Messenger> commands = new CommandQueue<>();
+    private boolean commandsPosted = false;
+    // Commands wait while this is set, until recovery of old recordings has finished
+    private boolean recovering = false;
+    // Shared by every session of this service instance
+    private final LatencyHistogram firstFrameAfterIntent = new LatencyHistogram();
+    private final LatencyHistogram firstFrameAfterBoundCommand = new LatencyHistogram();
+    private CapturePipeline pipeline;
+    // The screen capture grant, kept from the commands that carry it
+    private int grantResultCode;
+    private Intent grantData;
+    private EncoderSelector.Quality pipelineQuality;
+    // The pipeline as the sessions see it; it stays warm for a while after the last one stops
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private final RecordingSessions.Capture sharedPipeline = new RecordingSessions.Capture() {
+        @Override
+        public void add(@NonNull MuxerCoordinator coordinator) {
+            if (pipeline != null) pipeline.add(coordinator);
+        }
+
+        @Override
+        public void remove(@NonNull MuxerCoordinator coordinator) {
+            if (pipeline != null) pipeline.remove(coordinator);
+        }
+
+        @Override
+        public void release() {
+            onPipelineIdle();
+        }
+    };
+    private final RecordingSessions<EncoderSelector.Quality, FileSession> sessions =
+            new RecordingSessions<>(this::openCapture);
+    // Set while the pipeline also feeds the replay buffer
+    private MuxerCoordinator replayCoordinator;
+    private volatile ReplayBuffer replayBuffer;
+    // Metrics of the last finished session, reported while no session is running
+    private SessionMetrics lastSessionMetrics;
     private static final String TAG = "ScreenRecorderService";
+    // Closes stopped recordings and recovers unfinished ones, away from the main thread
+    private static final Executor FINISHER = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "RecordingFinisher"));
+    // Recordings handed to the finisher and not yet closed, by path
+    private static final Set<String> FINISHING = ConcurrentHashMap.newKeySet();
+    private static volatile boolean resumingUploads = false;
+    private static TranscodeScheduler transcodeScheduler;
 }
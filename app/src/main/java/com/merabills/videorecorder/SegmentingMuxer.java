@@ -0,0 +1,316 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link SampleMuxer} that splits a recording into a sequence of self-contained MP4 segments.
+ * Once the current segment reaches the configured duration or size, the next video keyframe
+ * opens a new muxer with the same tracks, so the encoders keep running untouched. Every sealed
+ * segment is handed to a {@link Listener} straight away and appended to a manifest that
+ * records the segment order. If the next segment cannot be opened, recording carries on in the
+ * current one and rotation is tried again at the next keyframe. A base name an earlier recording
+ * has used gets a number, so its segments, which may still be waiting for upload, are kept.
+ */
+public class SegmentingMuxer implements SampleMuxer {
+
+    /**
+     * Creates the muxer that writes one segment file.
+     */
+    public interface MuxerFactory {
+
+        @NonNull
+        SampleMuxer create(@NonNull File file) throws IOException;
+    }
+
+    public interface Listener {
+
+        /**
+         * Called on the muxer's writer thread once a segment file is complete.
+         */
+        void onSegmentSealed(@NonNull Segment segment);
+    }
+
+    public static final class Segment {
+
+        Segment(int index, @NonNull File file, long startUs, long endUs, long bytes) {
+
+            this.index = index;
+            this.file = file;
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.bytes = bytes;
+        }
+
+        public final int index;
+        @NonNull
+        public final File file;
+        public final long startUs;
+        public final long endUs;
+        /** Sample payload bytes written, excluding container overhead. */
+        public final long bytes;
+    }
+
+    /**
+     * @param directory        Where segment files and the manifest are created.
+     * @param baseName         Segments are named {@code baseName_partNNN.mp4}, or
+     *                         {@code baseName-N_partNNN.mp4} if an earlier recording used it.
+     * @param maxDurationUs    Rotate at the first keyframe at least this far into a segment.
+     * @param maxBytes         Rotate at the first keyframe once a segment holds this many bytes.
+     */
+    public SegmentingMuxer(
+            @NonNull final File directory,
+            @NonNull final String baseName,
+            final long maxDurationUs,
+            final long maxBytes,
+            @NonNull final MuxerFactory factory,
+            @NonNull final Listener listener
+    ) {
+
+        this.directory = directory;
+        this.baseName = baseName;
+        this.name = baseName;
+        this.maxDurationUs = maxDurationUs;
+        this.maxBytes = maxBytes;
+        this.factory = factory;
+        this.listener = listener;
+        this.manifestFile = getManifestFile(baseName);
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat format) {
+        return addTrack(format, isVideo(format));
+    }
+
+    /**
+     * Adds a track whose kind is already known; keyframes on video tracks are rotation points.
+     */
+    @VisibleForTesting
+    int addTrack(@Nullable MediaFormat format, boolean video) {
+
+        if (current != null) throw new IllegalStateException("Tracks must be added before start");
+        formats.add(format);
+        if (video && videoTrack == -1) videoTrack = formats.size() - 1;
+        return formats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+
+        try {
+            claimName();
+            current = openSegment(0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open the first segment", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(
+            int trackIndex,
+            @NonNull ByteBuffer data,
+            long presentationTimeUs,
+            int flags
+    ) throws IOException {
+
+        if (current == null) throw new IllegalStateException("Muxer not started");
+        if (trackIndex == videoTrack
+                && (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
+                && current.hasSamples
+                && (presentationTimeUs - current.startUs >= maxDurationUs || current.bytes >= maxBytes)) {
+            rotate(presentationTimeUs);
+        }
+
+        current.muxer.writeSampleData(current.trackIndices[trackIndex], data, presentationTimeUs, flags);
+        if (!current.hasSamples) {
+            current.hasSamples = true;
+            current.startUs = presentationTimeUs;
+        }
+        current.startUs = Math.min(current.startUs, presentationTimeUs);
+        current.endUs = Math.max(current.endUs, presentationTimeUs);
+        current.bytes += data.remaining();
+    }
+
+    @Override
+    public void stop() {
+
+        if (current == null) return;
+        final OpenSegment last = current;
+        current = null;
+        seal(last);
+        appendToManifest(MANIFEST_END + "\n");
+    }
+
+    @Override
+    public void release() {
+        // Every segment is released as it is sealed
+    }
+
+    /**
+     * The manifest listing this recording's segments; its name is only final once started.
+     */
+    @NonNull
+    public File getManifestFile() {
+        return manifestFile;
+    }
+
+    public int getSegmentCount() {
+        return nextSegmentIndex;
+    }
+
+    public int getManifestErrorCount() {
+        return manifestErrors;
+    }
+
+    /**
+     * Rotations that failed to open the next segment and so extended the current one.
+     */
+    public int getRotationErrorCount() {
+        return rotationErrors;
+    }
+
+    @NonNull
+    @VisibleForTesting
+    File segmentFile(final int index) {
+        return new File(directory, String.format(Locale.US, "%s_part%03d%s", name, index, Constants.EXTENSION_MP4));
+    }
+
+    /**
+     * Numbers the base name until no earlier recording's segments or manifest use it, then
+     * starts that name's manifest empty.
+     */
+    private void claimName() throws IOException {
+
+        for (int number = 2; segmentFile(0).exists() || manifestFile.exists(); number++) {
+            name = baseName + "-" + number;
+            manifestFile = getManifestFile(name);
+        }
+        new FileOutputStream(manifestFile).close();
+    }
+
+    @NonNull
+    private File getManifestFile(@NonNull final String base) {
+        return new File(directory, base + Constants.EXTENSION_SEGMENT_MANIFEST);
+    }
+
+    private void rotate(final long keyframeTimeUs) {
+
+        // Open the next segment first so a failure leaves the current one recording
+        final OpenSegment next;
+        try {
+            next = openSegment(nextSegmentIndex);
+        } catch (IOException | RuntimeException e) {
+            // The keyframe goes into the current segment, so what follows it stays decodable
+            Log.e(TAG, "Failed to open segment " + nextSegmentIndex + ", continuing in " + current.file.getName(), e);
+            rotationErrors++;
+            return;
+        }
+        final OpenSegment previous = current;
+        current = next;
+        previous.endUs = Math.max(previous.endUs, keyframeTimeUs);
+        seal(previous);
+    }
+
+    @NonNull
+    private OpenSegment openSegment(final int index) throws IOException {
+
+        final File file = segmentFile(index);
+        final SampleMuxer muxer = factory.create(file);
+        final int[] trackIndices = new int[formats.size()];
+        try {
+            for (int i = 0; i < trackIndices.length; i++)
+                trackIndices[i] = muxer.addTrack(formats.get(i));
+            muxer.start();
+        } catch (RuntimeException e) {
+            muxer.release();
+            throw e;
+        }
+        nextSegmentIndex = index + 1;
+        return new OpenSegment(index, file, muxer, trackIndices);
+    }
+
+    private void seal(@NonNull final OpenSegment segment) {
+
+        try {
+            segment.muxer.stop();
+        } finally {
+            segment.muxer.release();
+        }
+        final Segment sealed = new Segment(segment.index, segment.file, segment.startUs, segment.endUs, segment.bytes);
+        appendToManifest(String.format(Locale.US, "%d\t%s\t%d\t%d\t%d\n",
+                sealed.index, sealed.file.getName(), sealed.startUs, sealed.endUs, sealed.bytes));
+        listener.onSegmentSealed(sealed);
+    }
+
+    private void appendToManifest(@NonNull final String line) {
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(manifestFile, true), StandardCharsets.UTF_8)) {
+            writer.write(line);
+        } catch (IOException e) {
+            // The segments themselves are intact; only their listing is incomplete
+            manifestErrors++;
+        }
+    }
+
+    private static boolean isVideo(@Nullable final MediaFormat format) {
+
+        final String mime = format != null ? format.getString(MediaFormat.KEY_MIME) : null;
+        return mime != null && mime.startsWith("video/");
+    }
+
+    private static final class OpenSegment {
+
+        OpenSegment(int index, @NonNull File file, @NonNull SampleMuxer muxer, @NonNull int[] trackIndices) {
+
+            this.index = index;
+            this.file = file;
+            this.muxer = muxer;
+            this.trackIndices = trackIndices;
+        }
+
+        final int index;
+        final File file;
+        final SampleMuxer muxer;
+        final int[] trackIndices;
+        boolean hasSamples = false;
+        long startUs;
+        long endUs = Long.MIN_VALUE;
+        long bytes = 0;
+    }
+
+    // Written as the manifest's last line once the recording has ended cleanly
+    public static final String MANIFEST_END = "end";
+    private static final String TAG = "SegmentingMuxer";
+
+    private final File directory;
+    private final String baseName;
+    private final long maxDurationUs;
+    private final long maxBytes;
+    private final MuxerFactory factory;
+    private final Listener listener;
+    // The base name actually used, numbered if an earlier recording took baseName
+    private String name;
+    private File manifestFile;
+    private final List<MediaFormat> formats = new ArrayList<>();
+    private int videoTrack = -1;
+    private int nextSegmentIndex = 0;
+    private int manifestErrors = 0;
+    private int rotationErrors = 0;
+    private OpenSegment current;
+}
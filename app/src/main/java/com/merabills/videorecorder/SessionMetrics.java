@@ -0,0 +1,275 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Performance counters for one recording, filled in by its {@link MuxerCoordinator} and
+ * exported as a JSON report.
+ * <p>
+ * Each track is fed by its own encoder output thread and the muxer figures by the single
+ * writer thread, so every counter has one writer and recording a sample is a handful of
+ * ordered stores, with no atomic read-modify-writes. The report can be taken at any time,
+ * including while the recording is in progress; it may then lag the newest sample slightly.
+ */
+public class SessionMetrics {
+
+    /**
+     * Counters for one track, written by that track's encoder output thread.
+     */
+    public static final class TrackMetrics {
+
+        /**
+         * Samples the encoder produced, including those that were later dropped.
+         */
+        public long getSampleCount() {
+            return samples.get();
+        }
+
+        public long getKeyFrameCount() {
+            return keyFrames.get();
+        }
+
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.get();
+        }
+
+        /**
+         * Samples per second of presentation time, over the samples that reached the muxer.
+         */
+        public double getSampleRate() {
+
+            final long spanUs = lastWrittenUs.get() - firstWrittenUs.get();
+            final long written = this.written.get();
+            return written < 2 || spanUs <= 0 ? 0 : (written - 1) * 1e6 / spanUs;
+        }
+
+        /**
+         * Time from a sample's capture timestamp until the encoder handed it over.
+         */
+        @NonNull
+        public LatencyHistogram getEncoderLatency() {
+            return encoderLatency;
+        }
+
+        @Nullable
+        public String getMime() {
+            return mime;
+        }
+
+        private void appendJson(@NonNull final StringBuilder json) {
+
+            json.append("{\"mime\":").append(mime == null ? "null" : quote(mime))
+                    .append(",\"samples\":").append(samples.get())
+                    .append(",\"keyFrames\":").append(keyFrames.get())
+                    .append(",\"dropped\":").append(dropped.get())
+                    .append(",\"written\":").append(written.get())
+                    .append(",\"bytesWritten\":").append(bytesWritten.get())
+                    .append(",\"samplesPerSecond\":").append(format(getSampleRate()))
+                    .append(",\"encoderLatencyUs\":");
+            appendHistogram(json, encoderLatency);
+            json.append('}');
+        }
+
+        private volatile String mime;
+        // Owned by the encoder output thread
+        private final AtomicLong samples = new AtomicLong();
+        private final AtomicLong keyFrames = new AtomicLong();
+        private final LatencyHistogram encoderLatency = new LatencyHistogram(true);
+        private final AtomicLong newestQueuedUs = new AtomicLong(Long.MIN_VALUE);
+        // Skew measured when this track's samples are queued
+        private final LatencyHistogram avSkew = new LatencyHistogram(true);
+        // Owned by the writer thread
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private final AtomicLong firstWrittenUs = new AtomicLong(-1);
+        private final AtomicLong lastWrittenUs = new AtomicLong(-1);
+        // Both threads drop samples, but rarely
+        private final AtomicLong dropped = new AtomicLong();
+    }
+
+    public SessionMetrics(final int trackCount) {
+
+        tracks = new TrackMetrics[trackCount];
+        for (int i = 0; i < trackCount; i++)
+            tracks[i] = new TrackMetrics();
+    }
+
+    /**
+     * Names a track by its MIME type, which the report uses to pair video with audio.
+     */
+    public void setTrackMime(final int track, @Nullable final String mime) {
+
+        if (track < 0 || track >= tracks.length) return;
+        tracks[track].mime = mime;
+        if (mime == null) return;
+        if (videoTrack < 0 && mime.startsWith("video/")) videoTrack = track;
+        if (audioTrack < 0 && mime.startsWith("audio/")) audioTrack = track;
+    }
+
+    /**
+     * A sample left the encoder at {@code nowNanos}. Runs on the encoder's output thread.
+     */
+    public void onSampleQueued(
+            final int track,
+            final long presentationTimeUs,
+            final boolean keyFrame,
+            final long nowNanos
+    ) {
+
+        if (track < 0 || track >= tracks.length) return;
+        final TrackMetrics metrics = tracks[track];
+        increment(metrics.samples, 1);
+        if (keyFrame) increment(metrics.keyFrames, 1);
+        // Timestamps are on the monotonic clock, so this is capture-to-output time
+        final long latencyNanos = nowNanos - presentationTimeUs * 1000;
+        if (latencyNanos >= 0) metrics.encoderLatency.record(latencyNanos);
+        metrics.newestQueuedUs.lazySet(presentationTimeUs);
+
+        // Audio and video that leave their encoders together should carry close timestamps
+        final int video = videoTrack;
+        final int audio = audioTrack;
+        if (video < 0 || audio < 0 || (track != video && track != audio)) return;
+        final long otherUs = tracks[track == audio ? video : audio].newestQueuedUs.get();
+        if (otherUs != Long.MIN_VALUE) metrics.avSkew.record(Math.abs(presentationTimeUs - otherUs) * 1000);
+    }
+
+    public void onSampleDropped(final int track) {
+
+        if (track >= 0 && track < tracks.length) tracks[track].dropped.incrementAndGet();
+    }
+
+    /**
+     * The muxer took a sample in {@code writeNanos}. Runs on the writer thread.
+     */
+    public void onSampleWritten(final int track, final long presentationTimeUs, final int bytes, final long writeNanos) {
+
+        final TrackMetrics metrics = tracks[track];
+        increment(metrics.written, 1);
+        increment(metrics.bytesWritten, bytes);
+        if (metrics.firstWrittenUs.get() < 0) metrics.firstWrittenUs.lazySet(presentationTimeUs);
+        metrics.lastWrittenUs.lazySet(presentationTimeUs);
+        writeLatency.record(writeNanos);
+    }
+
+    /**
+     * Marks the end of the recording, for the report's duration.
+     */
+    public void finish(final long nowNanos) {
+
+        if (endNanos < 0) endNanos = nowNanos;
+    }
+
+    @NonNull
+    public TrackMetrics getTrack(final int track) {
+        return tracks[track];
+    }
+
+    public int getTrackCount() {
+        return tracks.length;
+    }
+
+    /**
+     * Distance between the newest audio and video timestamps each time one of them leaves
+     * its encoder, as of this call.
+     */
+    @NonNull
+    public LatencyHistogram getAvSkew() {
+
+        final LatencyHistogram avSkew = new LatencyHistogram();
+        for (final TrackMetrics track : tracks) avSkew.add(track.avSkew);
+        return avSkew;
+    }
+
+    /**
+     * Time the writer thread spends in each muxer write.
+     */
+    @NonNull
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public long getBytesWritten() {
+
+        long bytes = 0;
+        for (final TrackMetrics track : tracks) bytes += track.bytesWritten.get();
+        return bytes;
+    }
+
+    /**
+     * The report as a JSON object, with {@code upload} added as is if not null.
+     */
+    @NonNull
+    public String toJson(@Nullable final String upload) {
+
+        final long end = endNanos >= 0 ? endNanos : System.nanoTime();
+        final StringBuilder json = new StringBuilder(1024);
+        json.append("{\"durationMs\":").append((end - startNanos) / 1_000_000)
+                .append(",\"finished\":").append(endNanos >= 0)
+                .append(",\"bytesWritten\":").append(getBytesWritten())
+                .append(",\"tracks\":[");
+        for (int i = 0; i < tracks.length; i++) {
+            if (i > 0) json.append(',');
+            tracks[i].appendJson(json);
+        }
+        json.append("],\"avSkewUs\":");
+        appendHistogram(json, getAvSkew());
+        json.append(",\"muxerWriteLatencyUs\":");
+        appendHistogram(json, writeLatency);
+        if (upload != null) json.append(",\"upload\":").append(upload);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Count, mean and percentiles of {@code histogram}, in microseconds.
+     */
+    static void appendHistogram(@NonNull final StringBuilder json, @NonNull final LatencyHistogram histogram) {
+
+        json.append("{\"count\":").append(histogram.getCount())
+                .append(",\"mean\":").append(histogram.getMeanNanos() / 1000)
+                .append(",\"p50\":").append(histogram.getValueAtPercentile(50) / 1000)
+                .append(",\"p90\":").append(histogram.getValueAtPercentile(90) / 1000)
+                .append(",\"p99\":").append(histogram.getValueAtPercentile(99) / 1000)
+                .append(",\"max\":").append(histogram.getMaxNanos() / 1000)
+                .append('}');
+    }
+
+    @NonNull
+    static String quote(@NonNull final String value) {
+
+        final StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < 0x20) quoted.append(String.format(Locale.US, "\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Adds to a counter that only the calling thread ever updates.
+     */
+    private static void increment(@NonNull final AtomicLong counter, final long delta) {
+        counter.lazySet(counter.get() + delta);
+    }
+
+    @NonNull
+    private static String format(final double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final TrackMetrics[] tracks;
+    private final LatencyHistogram writeLatency = new LatencyHistogram(true);
+    private volatile int videoTrack = -1;
+    private volatile int audioTrack = -1;
+    private volatile long endNanos = -1;
+}
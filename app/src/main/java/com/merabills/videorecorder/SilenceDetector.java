@@ -0,0 +1,128 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Classifies a stream of 16-bit little endian PCM chunks as sound or silence.
+ * <p>
+ * Each chunk is measured in one pass for its peak and RMS level. A chunk is quiet when both
+ * are under their thresholds, the peak threshold sitting 12 dB above the RMS one so that a
+ * lone click is not mistaken for silence but dither is. The stream only becomes silent once
+ * it has been quiet for the hold time, so pauses between words are not cut into, and becomes
+ * sound again on the first loud chunk. The listener hears about each transition, stamped with
+ * the start of the quiet stretch or of the loud chunk.
+ * <p>
+ * Not thread-safe, and allocates nothing per chunk; intended to be driven by the encoder's
+ * input thread.
+ */
+public class SilenceDetector {
+
+    public interface Listener {
+
+        void onSilenceStarted(long presentationTimeUs);
+
+        void onSilenceEnded(long presentationTimeUs);
+    }
+
+    public SilenceDetector(final double rmsThresholdDbfs, final long holdUs, @Nullable final Listener listener) {
+
+        this.rmsThreshold = FULL_SCALE * Math.pow(10, rmsThresholdDbfs / 20);
+        this.peakThreshold = (int) Math.min(FULL_SCALE, rmsThreshold * CREST_FACTOR);
+        this.holdUs = holdUs;
+        this.listener = listener;
+    }
+
+    /**
+     * Measures one chunk and updates the state.
+     *
+     * @param pcm                  Samples, read from index {@code offset} without moving the
+     *                             position.
+     * @param samples              Samples in the chunk, across all channels.
+     * @param presentationTimeUs   Time of the chunk's first frame.
+     * @return true if the stream is silent after this chunk.
+     */
+    public boolean update(
+            @NonNull final ByteBuffer pcm,
+            final int offset,
+            final int samples,
+            final long presentationTimeUs
+    ) {
+
+        measure(pcm, offset, samples);
+        final boolean quiet = samples > 0
+                && lastPeak <= peakThreshold
+                && lastSumOfSquares <= rmsThreshold * rmsThreshold * samples;
+
+        if (!quiet) {
+            quietSinceUs = -1;
+            if (silent) {
+                silent = false;
+                if (listener != null) listener.onSilenceEnded(presentationTimeUs);
+            }
+            return false;
+        }
+        if (quietSinceUs < 0) quietSinceUs = presentationTimeUs;
+        if (!silent && presentationTimeUs - quietSinceUs >= holdUs) {
+            silent = true;
+            if (listener != null) listener.onSilenceStarted(quietSinceUs);
+        }
+        return silent;
+    }
+
+    public boolean isSilent() {
+        return silent;
+    }
+
+    /**
+     * Largest sample magnitude in the last chunk.
+     */
+    public int getLastPeak() {
+        return lastPeak;
+    }
+
+    /**
+     * RMS level of the last chunk in dB relative to full scale; negative infinity for zeros.
+     */
+    public double getLastRmsDbfs() {
+
+        if (lastSampleCount == 0 || lastSumOfSquares == 0) return Double.NEGATIVE_INFINITY;
+        return 20 * Math.log10(Math.sqrt((double) lastSumOfSquares / lastSampleCount) / FULL_SCALE);
+    }
+
+    /**
+     * Peak and sum of squares in a single pass. The loop has no data-dependent branches so
+     * it stays fast on noisy input.
+     */
+    private void measure(@NonNull final ByteBuffer pcm, final int offset, final int samples) {
+
+        pcm.order(ByteOrder.LITTLE_ENDIAN);
+        int peak = 0;
+        long sumOfSquares = 0;
+        for (int i = 0; i < samples; i++) {
+            final int value = pcm.getShort(offset + i * 2);
+            sumOfSquares += value * value;
+            peak = Math.max(peak, Math.abs(value));
+        }
+        lastPeak = peak;
+        lastSumOfSquares = sumOfSquares;
+        lastSampleCount = samples;
+    }
+
+    private static final double FULL_SCALE = 32768;
+    // 12 dB between the peak and RMS thresholds
+    private static final double CREST_FACTOR = 4;
+
+    private final double rmsThreshold;
+    private final int peakThreshold;
+    private final long holdUs;
+    private final Listener listener;
+    private boolean silent = false;
+    private long quietSinceUs = -1;
+    private int lastPeak;
+    private long lastSumOfSquares;
+    private int lastSampleCount;
+}
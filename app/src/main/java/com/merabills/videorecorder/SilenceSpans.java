@@ -0,0 +1,90 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects the silent stretches reported by a {@link SilenceDetector} so that they can be
+ * saved as metadata next to each recording. Each recording reads its own stretch with
+ * {@link #get}, so recordings may overlap, and the spans are {@link #prune}d once no recording
+ * can still need them.
+ * <p>
+ * Thread-safe: the detector reports from the encoder's input thread while recordings end on
+ * another.
+ */
+public class SilenceSpans implements SilenceDetector.Listener {
+
+    public static final class Span {
+
+        Span(final long startUs, final long endUs) {
+
+            this.startUs = startUs;
+            this.endUs = endUs;
+        }
+
+        public final long startUs;
+        public final long endUs;
+    }
+
+    @Override
+    public synchronized void onSilenceStarted(final long presentationTimeUs) {
+        openSinceUs = presentationTimeUs;
+    }
+
+    @Override
+    public synchronized void onSilenceEnded(final long presentationTimeUs) {
+
+        if (openSinceUs < 0) return;
+        if (presentationTimeUs > openSinceUs) closed.add(new Span(openSinceUs, presentationTimeUs));
+        openSinceUs = -1;
+    }
+
+    /**
+     * Returns the spans between {@code startUs} and {@code endUs}, cut at both ends, including
+     * any still open, without forgetting them.
+     */
+    @NonNull
+    public synchronized List<Span> get(final long startUs, final long endUs) {
+
+        final List<Span> spans = new ArrayList<>();
+        for (final Span span : closed)
+            if (span.startUs < endUs && span.endUs > startUs)
+                spans.add(new Span(Math.max(span.startUs, startUs), Math.min(span.endUs, endUs)));
+        if (openSinceUs >= 0 && openSinceUs < endUs)
+            spans.add(new Span(Math.max(openSinceUs, startUs), endUs));
+        return spans;
+    }
+
+    /**
+     * Forgets the spans that ended before {@code beforeUs}.
+     */
+    public synchronized void prune(final long beforeUs) {
+        closed.removeIf(span -> span.endUs < beforeUs);
+    }
+
+    /**
+     * One {@code start end} line per span, in microseconds from {@code originUs} and clamped
+     * at zero, followed by the total.
+     */
+    @NonNull
+    public static List<String> toLines(@NonNull final List<Span> spans, final long originUs) {
+
+        final List<String> lines = new ArrayList<>();
+        long totalUs = 0;
+        for (final Span span : spans) {
+            final long startUs = Math.max(0, span.startUs - originUs);
+            final long endUs = Math.max(0, span.endUs - originUs);
+            if (endUs <= startUs) continue;
+            lines.add(String.format(Locale.US, "%d %d", startUs, endUs));
+            totalUs += endUs - startUs;
+        }
+        lines.add("total " + totalUs);
+        return lines;
+    }
+
+    private final List<Span> closed = new ArrayList<>();
+    private long openSinceUs = -1;
+}
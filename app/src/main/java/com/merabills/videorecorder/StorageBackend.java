@@ -0,0 +1,39 @@
+package com.merabills.videorecorder;
+
+import android.os.Environment;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Where recordings are uploaded to; {@link Constants#UPLOAD_BACKEND} picks one per build.
+ */
+public enum StorageBackend {
+
+    /** Block blobs in an Azure Storage container. */
+    AZURE,
+    /** Multipart uploads to an S3-compatible endpoint. */
+    S3,
+    /** Files in a local directory, with no network involved. */
+    LOCAL;
+
+    @NonNull
+    public BlockStore createStore() {
+
+        switch (this) {
+            case S3:
+                return new S3MultipartStore(
+                        Constants.S3_ENDPOINT,
+                        Constants.S3_REGION,
+                        Constants.S3_BUCKET,
+                        Constants.S3_ACCESS_KEY_ID,
+                        Constants.S3_SECRET_ACCESS_KEY
+                );
+            case LOCAL:
+                return new LocalDirectoryStore(Environment.getExternalStoragePublicDirectory(
+                        Environment.DIRECTORY_MOVIES + Constants.NAME_LOCAL_UPLOAD_FOLDER));
+            case AZURE:
+            default:
+                return new AzureBlockStore(AzureUploader.createContainerClient());
+        }
+    }
+}
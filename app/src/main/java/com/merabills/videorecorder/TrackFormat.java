@@ -0,0 +1,103 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of an encoder's output format that a container writer needs, held in plain Java
+ * fields so that writers can be exercised in JVM tests without {@link MediaFormat}.
+ */
+public final class TrackFormat {
+
+    public TrackFormat(
+            @NonNull final String mime,
+            final int width,
+            final int height,
+            final int sampleRate,
+            final int channelCount,
+            @Nullable final byte[] csd0,
+            @Nullable final byte[] csd1
+    ) {
+
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.csd0 = csd0;
+        this.csd1 = csd1;
+    }
+
+    @NonNull
+    public static TrackFormat video(
+            @NonNull final String mime,
+            final int width,
+            final int height,
+            @Nullable final byte[] csd0,
+            @Nullable final byte[] csd1
+    ) {
+        return new TrackFormat(mime, width, height, 0, 0, csd0, csd1);
+    }
+
+    @NonNull
+    public static TrackFormat audio(
+            @NonNull final String mime,
+            final int sampleRate,
+            final int channelCount,
+            @Nullable final byte[] csd0
+    ) {
+        return new TrackFormat(mime, 0, 0, sampleRate, channelCount, csd0, null);
+    }
+
+    /**
+     * Reads an encoder's output format, as passed to {@code onOutputFormatChanged}.
+     */
+    @NonNull
+    public static TrackFormat from(@NonNull final MediaFormat format) {
+
+        return new TrackFormat(
+                format.getString(MediaFormat.KEY_MIME),
+                getInteger(format, MediaFormat.KEY_WIDTH),
+                getInteger(format, MediaFormat.KEY_HEIGHT),
+                getInteger(format, MediaFormat.KEY_SAMPLE_RATE),
+                getInteger(format, MediaFormat.KEY_CHANNEL_COUNT),
+                getBytes(format, "csd-0"),
+                getBytes(format, "csd-1")
+        );
+    }
+
+    public boolean isVideo() {
+        return mime.startsWith("video/");
+    }
+
+    private static int getInteger(@NonNull final MediaFormat format, @NonNull final String key) {
+        return format.containsKey(key) ? format.getInteger(key) : 0;
+    }
+
+    @Nullable
+    private static byte[] getBytes(@NonNull final MediaFormat format, @NonNull final String key) {
+
+        final ByteBuffer buffer = format.containsKey(key) ? format.getByteBuffer(key) : null;
+        if (buffer == null) return null;
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @NonNull
+    public final String mime;
+    public final int width;
+    public final int height;
+    public final int sampleRate;
+    public final int channelCount;
+    /** Codec specific data: SPS for AVC (Annex-B), AudioSpecificConfig for AAC. */
+    @Nullable
+    public final byte[] csd0;
+    /** PPS for AVC (Annex-B). */
+    @Nullable
+    public final byte[] csd1;
+}
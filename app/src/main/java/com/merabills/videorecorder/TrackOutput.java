@@ -0,0 +1,169 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Connects one long-lived encoder to whichever {@link MuxerCoordinator}s are recording at the
+ * moment, so that the encoder can keep running while output files come and go.
+ * <p>
+ * Each sample is encoded once and handed to every attached coordinator, which copies it, so
+ * concurrent recordings of the same capture cost no extra encoder. The encoder's output format
+ * is remembered and added as a track to every coordinator that is attached, so a new file can
+ * start without reconfiguring the codec. Samples produced while no coordinator is attached are
+ * dropped. A track that depends on earlier samples to decode is flagged to wait for a sync
+ * sample, separately for each coordinator, so each file starts with one.
+ */
+public class TrackOutput {
+
+    /**
+     * @param waitForSyncSample True for video, where samples before the first key frame of a
+     *                          file could not be decoded.
+     */
+    public TrackOutput(final boolean waitForSyncSample) {
+        this.waitForSyncSample = waitForSyncSample;
+    }
+
+    /**
+     * Called when the encoder reports its output format; adds the track to the attached
+     * coordinators, if any.
+     */
+    public synchronized void setFormat(@Nullable final MediaFormat format) {
+
+        this.format = format;
+        hasFormat = true;
+        final Target[] added = new Target[targets.length];
+        for (int i = 0; i < targets.length; i++)
+            added[i] = newTarget(targets[i].coordinator);
+        targets = added;
+    }
+
+    /**
+     * Directs output to {@code coordinator} alone, or drops it if null. A sample already on its
+     * way to a previous coordinator may still reach it, so stop that coordinator afterwards
+     * rather than before.
+     */
+    public synchronized void attach(@Nullable final MuxerCoordinator coordinator) {
+        targets = coordinator != null ? new Target[]{newTarget(coordinator)} : NO_TARGETS;
+    }
+
+    /**
+     * Directs output to {@code coordinator} as well as the ones already attached.
+     */
+    public synchronized void add(@NonNull final MuxerCoordinator coordinator) {
+
+        if (indexOf(coordinator) >= 0) return;
+        final Target[] added = Arrays.copyOf(targets, targets.length + 1);
+        added[targets.length] = newTarget(coordinator);
+        targets = added;
+    }
+
+    /**
+     * Stops directing output to {@code coordinator}; as with {@link #attach}, stop it only
+     * afterwards.
+     */
+    public synchronized void remove(@NonNull final MuxerCoordinator coordinator) {
+
+        final int index = indexOf(coordinator);
+        if (index < 0) return;
+        final Target[] remaining = new Target[targets.length - 1];
+        System.arraycopy(targets, 0, remaining, 0, index);
+        System.arraycopy(targets, index + 1, remaining, index, remaining.length - index);
+        targets = remaining;
+    }
+
+    /**
+     * Hands an encoded sample to every attached coordinator. Runs on the encoder's output
+     * thread.
+     *
+     * @return false if no coordinator took the sample.
+     */
+    public boolean write(@NonNull final ByteBuffer data, @NonNull final SampleInfo info) {
+
+        final boolean syncSample = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        boolean written = false;
+        for (final Target target : targets) {
+            if (target.trackIndex < 0) continue;
+            if (target.awaitingSyncSample) {
+                if (!syncSample) continue;
+                target.awaitingSyncSample = false;
+            }
+            // Each coordinator copies the sample and leaves data as it found it
+            written |= target.coordinator.writeSample(target.trackIndex, data, info.presentationTimeUs, info.flags);
+        }
+        return written;
+    }
+
+    /**
+     * How full the fullest attached coordinator's handoff ring is, from 0 to 1.
+     */
+    public double getBacklog() {
+
+        double backlog = 0;
+        for (final Target target : targets) {
+            final MuxerCoordinator coordinator = target.coordinator;
+            backlog = Math.max(backlog, (double) coordinator.getQueueDepth() / coordinator.getQueueCapacity());
+        }
+        return backlog;
+    }
+
+    public int getCoordinatorCount() {
+        return targets.length;
+    }
+
+    /**
+     * True while samples are being dropped for some coordinator because its file has not had
+     * a sync sample.
+     */
+    public boolean isAwaitingSyncSample() {
+
+        for (final Target target : targets)
+            if (target.trackIndex >= 0 && target.awaitingSyncSample) return true;
+        return false;
+    }
+
+    @NonNull
+    private Target newTarget(@NonNull final MuxerCoordinator coordinator) {
+
+        final Target target = new Target(coordinator, hasFormat ? coordinator.addTrack(format) : -1);
+        target.awaitingSyncSample = waitForSyncSample;
+        return target;
+    }
+
+    private int indexOf(@NonNull final MuxerCoordinator coordinator) {
+
+        for (int i = 0; i < targets.length; i++)
+            if (targets[i].coordinator == coordinator) return i;
+        return -1;
+    }
+
+    private static final class Target {
+
+        Target(@NonNull final MuxerCoordinator coordinator, final int trackIndex) {
+
+            this.coordinator = coordinator;
+            this.trackIndex = trackIndex;
+        }
+
+        final MuxerCoordinator coordinator;
+        // -1 until the encoder has reported its format
+        final int trackIndex;
+        // Written only by the output thread once the target is published
+        volatile boolean awaitingSyncSample;
+    }
+
+    private static final Target[] NO_TARGETS = new Target[0];
+
+    private final boolean waitForSyncSample;
+    // Guarded by this
+    private MediaFormat format;
+    private boolean hasFormat = false;
+    // Read by the output thread without locking; replaced as a whole
+    private volatile Target[] targets = NO_TARGETS;
+}
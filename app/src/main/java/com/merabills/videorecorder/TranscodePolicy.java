@@ -0,0 +1,154 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Decides whether a finished recording is worth re-encoding before it is uploaded.
+ * <p>
+ * Re-encoding costs battery and time to save data, so it is only considered on metered
+ * networks, for files large enough to matter, and when the battery can spare it. The target is
+ * a fixed video bitrate, lower still with HEVC where the device can encode it, and the pass is
+ * only run if the predicted file is smaller by at least the configured fraction.
+ */
+public class TranscodePolicy {
+
+    /**
+     * Device state when the decision is made.
+     */
+    public static final class Conditions {
+
+        public Conditions(
+                final boolean metered,
+                final boolean charging,
+                final int batteryPercent,
+                final int thermalStatus
+        ) {
+
+            this.metered = metered;
+            this.charging = charging;
+            this.batteryPercent = batteryPercent;
+            this.thermalStatus = thermalStatus;
+        }
+
+        public final boolean metered;
+        public final boolean charging;
+        public final int batteryPercent;
+        /** One of the {@code PowerManager.THERMAL_STATUS_*} levels; 0 when unknown. */
+        public final int thermalStatus;
+    }
+
+    /**
+     * What is known about the recording.
+     */
+    public static final class Recording {
+
+        public Recording(final long bytes, final long durationUs) {
+
+            this.bytes = bytes;
+            this.durationUs = durationUs;
+        }
+
+        public final long bytes;
+        public final long durationUs;
+    }
+
+    public static final class Decision {
+
+        Decision(
+                final boolean transcode,
+                @Nullable final String videoMime,
+                final int videoBitrate,
+                final long predictedBytes,
+                @NonNull final String reason
+        ) {
+
+            this.transcode = transcode;
+            this.videoMime = videoMime;
+            this.videoBitrate = videoBitrate;
+            this.predictedBytes = predictedBytes;
+            this.reason = reason;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return transcode
+                    ? String.format(Locale.US, "transcode to %s at %d bit/s, about %d bytes (%s)",
+                    videoMime, videoBitrate, predictedBytes, reason)
+                    : "upload as is (" + reason + ")";
+        }
+
+        public final boolean transcode;
+        /** Video format to encode; audio is copied unchanged. */
+        @Nullable
+        public final String videoMime;
+        public final int videoBitrate;
+        public final long predictedBytes;
+        @NonNull
+        public final String reason;
+    }
+
+    /**
+     * @param targetBitrate   AVC video bitrate of the re-encoded file.
+     * @param minSaving       Fraction of the file a pass must save to be worth running.
+     */
+    public TranscodePolicy(
+            final long minBytes,
+            final int minBatteryPercent,
+            final int targetBitrate,
+            final int audioBitrate,
+            final double minSaving
+    ) {
+
+        this.minBytes = minBytes;
+        this.minBatteryPercent = minBatteryPercent;
+        this.targetBitrate = targetBitrate;
+        this.audioBitrate = audioBitrate;
+        this.minSaving = minSaving;
+    }
+
+    /**
+     * @param hevcAvailable   Whether the device has an HEVC encoder to transcode with.
+     */
+    @NonNull
+    public Decision decide(
+            @NonNull final Conditions conditions,
+            @NonNull final Recording recording,
+            final boolean hevcAvailable
+    ) {
+
+        if (!conditions.metered) return skip("unmetered network");
+        if (recording.bytes < minBytes) return skip("small file");
+        if (recording.durationUs <= 0) return skip("unknown duration");
+        if (!conditions.charging && conditions.batteryPercent < minBatteryPercent) return skip("low battery");
+
+        final String mime = hevcAvailable ? MediaFormat.MIMETYPE_VIDEO_HEVC : MediaFormat.MIMETYPE_VIDEO_AVC;
+        final int videoBitrate = hevcAvailable ? (int) (targetBitrate * HEVC_BITRATE_FACTOR) : targetBitrate;
+        final long predictedBytes = (long) ((videoBitrate + (double) audioBitrate) * recording.durationUs / 8e6
+                * (1 + CONTAINER_OVERHEAD));
+        if (predictedBytes > recording.bytes * (1 - minSaving)) return skip("already compact");
+
+        return new Decision(true, mime, videoBitrate, predictedBytes, String.format(Locale.US,
+                "saves %d%%", Math.round(100 * (1 - (double) predictedBytes / recording.bytes))));
+    }
+
+    @NonNull
+    private static Decision skip(@NonNull final String reason) {
+        return new Decision(false, null, 0, 0, reason);
+    }
+
+    // Same saving as EncoderSelector assumes when it picks HEVC for recording
+    private static final double HEVC_BITRATE_FACTOR = 0.5;
+    private static final double CONTAINER_OVERHEAD = 0.02;
+
+    private final long minBytes;
+    private final int minBatteryPercent;
+    private final int targetBitrate;
+    private final int audioBitrate;
+    private final double minSaving;
+}
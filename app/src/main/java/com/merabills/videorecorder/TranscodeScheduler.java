@@ -0,0 +1,249 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the optional transcode pass over finished recordings, one at a time, on a single
+ * lowest-priority thread that exits when idle.
+ * <p>
+ * Each recording is probed and put to the {@link TranscodePolicy}. If it is worth it, the
+ * transcoder writes a temporary file that then replaces the recording, so the blob name and
+ * the upload queue are unaffected. While the device is warm the pass is slowed down, and while
+ * it is hot it is paused; a pass paused for too long is abandoned. Whatever happens, the
+ * listener gets a file to upload: the smaller one, or the untouched original.
+ */
+public class TranscodeScheduler {
+
+    public interface ConditionsSource {
+
+        @NonNull
+        TranscodePolicy.Conditions current();
+    }
+
+    /**
+     * Told when a recording is ready to upload; called on the transcode thread.
+     */
+    public interface Listener {
+
+        void onReady(@NonNull File file, @NonNull Result result);
+    }
+
+    public enum Outcome {
+        /** The policy decided against a pass. */
+        SKIPPED,
+        TRANSCODED,
+        /** The pass failed, was abandoned or did not make the file smaller. */
+        FAILED
+    }
+
+    public static final class Result {
+
+        Result(
+                @NonNull final Outcome outcome,
+                @Nullable final TranscodePolicy.Decision decision,
+                final long bytesBefore,
+                final long bytesAfter,
+                final long elapsedNanos,
+                final long pausedNanos,
+                @Nullable final Exception error
+        ) {
+
+            this.outcome = outcome;
+            this.decision = decision;
+            this.bytesBefore = bytesBefore;
+            this.bytesAfter = bytesAfter;
+            this.elapsedNanos = elapsedNanos;
+            this.pausedNanos = pausedNanos;
+            this.error = error;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s, %d -> %d bytes in %d ms (%d ms paused): %s",
+                    outcome, bytesBefore, bytesAfter, elapsedNanos / 1_000_000, pausedNanos / 1_000_000,
+                    error != null ? error.getMessage() : decision);
+        }
+
+        @NonNull
+        public final Outcome outcome;
+        @Nullable
+        public final TranscodePolicy.Decision decision;
+        public final long bytesBefore;
+        public final long bytesAfter;
+        public final long elapsedNanos;
+        public final long pausedNanos;
+        @Nullable
+        public final Exception error;
+    }
+
+    /**
+     * @param throttleThermalStatus   From this thermal status on the pass is slowed down.
+     * @param pauseThermalStatus      From this thermal status on the pass waits for the device to
+     *                                cool.
+     * @param maxPauseMs              A pass that has waited this long in total is abandoned.
+     */
+    public TranscodeScheduler(
+            @NonNull final TranscodePolicy policy,
+            @NonNull final ConditionsSource conditions,
+            @NonNull final Transcoder transcoder,
+            @NonNull final Listener listener,
+            final int throttleThermalStatus,
+            final int pauseThermalStatus,
+            final long maxPauseMs
+    ) {
+
+        this.policy = policy;
+        this.conditions = conditions;
+        this.transcoder = transcoder;
+        this.listener = listener;
+        this.throttleThermalStatus = throttleThermalStatus;
+        this.pauseThermalStatus = pauseThermalStatus;
+        this.maxPauseNanos = TimeUnit.MILLISECONDS.toNanos(maxPauseMs);
+
+        executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, THREAD_NAME);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues {@code recording} for the pass. The listener is told when it can be uploaded.
+     */
+    @NonNull
+    public Future<Result> submit(@NonNull final File recording) {
+        return executor.submit(() -> run(recording));
+    }
+
+    /**
+     * Recordings waiting for the transcode thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting recordings and waits for queued ones.
+     */
+    @VisibleForTesting
+    boolean shutdown(final long timeoutMs) throws InterruptedException {
+
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @NonNull
+    private Result run(@NonNull final File recording) {
+
+        final long startNanos = System.nanoTime();
+        final long bytesBefore = recording.length();
+        final TranscodePolicy.Decision decision;
+        try {
+            decision = policy.decide(conditions.current(), transcoder.probe(recording),
+                    transcoder.canEncode(MediaFormat.MIMETYPE_VIDEO_HEVC));
+        } catch (IOException | RuntimeException e) {
+            return finish(recording, new Result(Outcome.FAILED, null, bytesBefore, bytesBefore,
+                    System.nanoTime() - startNanos, 0, e));
+        }
+        if (!decision.transcode) {
+            return finish(recording, new Result(Outcome.SKIPPED, decision, bytesBefore, bytesBefore,
+                    System.nanoTime() - startNanos, 0, null));
+        }
+
+        final File output = new File(recording.getPath() + TEMPORARY_SUFFIX);
+        final ThermalThrottle throttle = new ThermalThrottle();
+        Exception error = null;
+        try {
+            transcoder.transcode(recording, output, decision, throttle);
+            final long bytesAfter = output.length();
+            if (bytesAfter == 0 || bytesAfter >= bytesBefore)
+                throw new IOException("Transcoded file is not smaller: " + bytesAfter + " bytes");
+            if (!output.renameTo(recording)) throw new IOException("Failed to replace " + recording);
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = e;
+        }
+        if (error != null) {
+            //noinspection ResultOfMethodCallIgnored
+            output.delete();
+        }
+        return finish(recording, new Result(error == null ? Outcome.TRANSCODED : Outcome.FAILED, decision,
+                bytesBefore, recording.length(), System.nanoTime() - startNanos, throttle.pausedNanos, error));
+    }
+
+    @NonNull
+    private Result finish(@NonNull final File recording, @NonNull final Result result) {
+
+        listener.onReady(recording, result);
+        return result;
+    }
+
+    /**
+     * Reads the thermal status at most every {@link #THERMAL_POLL_NANOS}, sleeps a little at each
+     * checkpoint while the device is warm, and waits while it is hot.
+     */
+    private final class ThermalThrottle implements Transcoder.Throttle {
+
+        @Override
+        public void checkpoint() throws IOException, InterruptedException {
+
+            if (Thread.interrupted()) throw new InterruptedException();
+            final long now = System.nanoTime();
+            if (now - lastPollNanos >= THERMAL_POLL_NANOS) {
+                thermalStatus = conditions.current().thermalStatus;
+                lastPollNanos = now;
+            }
+            if (thermalStatus >= pauseThermalStatus) {
+                final long pauseStart = now;
+                while (thermalStatus >= pauseThermalStatus) {
+                    if (pausedNanos + System.nanoTime() - pauseStart > maxPauseNanos)
+                        throw new IOException("Device stayed too hot to transcode");
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(THERMAL_POLL_NANOS));
+                    thermalStatus = conditions.current().thermalStatus;
+                }
+                lastPollNanos = System.nanoTime();
+                pausedNanos += lastPollNanos - pauseStart;
+            } else if (thermalStatus >= throttleThermalStatus) {
+                Thread.sleep(THROTTLE_SLEEP_MS);
+            }
+        }
+
+        private long lastPollNanos = Long.MIN_VALUE / 2;
+        private int thermalStatus;
+        private long pausedNanos = 0;
+    }
+
+    @VisibleForTesting
+    static final long THERMAL_POLL_NANOS = 100_000_000;
+    // Per checkpoint while warm; transcoders check in once per frame
+    private static final long THROTTLE_SLEEP_MS = 10;
+    private static final long IDLE_SECONDS = 30;
+    private static final String THREAD_NAME = "TranscodeThread";
+    private static final String TEMPORARY_SUFFIX = ".transcoding";
+
+    private final TranscodePolicy policy;
+    private final ConditionsSource conditions;
+    private final Transcoder transcoder;
+    private final Listener listener;
+    private final int throttleThermalStatus;
+    private final int pauseThermalStatus;
+    private final long maxPauseNanos;
+    private final ThreadPoolExecutor executor;
+}
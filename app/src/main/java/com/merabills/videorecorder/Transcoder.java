@@ -0,0 +1,42 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The codec work of a transcode pass, kept behind an interface so that scheduling and policy
+ * can be tested off the device.
+ */
+public interface Transcoder {
+
+    /**
+     * Lets a running pass be slowed down or paused, e.g. while the device is hot.
+     */
+    interface Throttle {
+
+        /**
+         * Called between units of work; may block for a while.
+         *
+         * @throws IOException if the pass should be abandoned.
+         */
+        void checkpoint() throws IOException, InterruptedException;
+    }
+
+    @NonNull
+    TranscodePolicy.Recording probe(@NonNull File input) throws IOException;
+
+    boolean canEncode(@NonNull String videoMime);
+
+    /**
+     * Writes {@code input} to {@code output} with its video re-encoded as {@code decision}
+     * says and its other tracks copied.
+     */
+    void transcode(
+            @NonNull File input,
+            @NonNull File output,
+            @NonNull TranscodePolicy.Decision decision,
+            @NonNull Throttle throttle
+    ) throws IOException, InterruptedException;
+}
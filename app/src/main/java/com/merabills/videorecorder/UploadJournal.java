@@ -0,0 +1,82 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Small append-only file recording which blocks of an upload have been staged, so that an
+ * upload interrupted by a network failure or process death resumes where it stopped.
+ * <p>
+ * The first line identifies the upload (blob name, file length and modification time, block
+ * size); a journal that does not match the upload being started is discarded. Every following
+ * line is the index of one staged block, synced to disk before the block counts as done.
+ */
+public class UploadJournal {
+
+    public UploadJournal(
+            @NonNull final File journalFile,
+            @NonNull final String blobName,
+            @NonNull final File source,
+            final int blockSize
+    ) {
+
+        this.log = new AppendOnlyLog(journalFile);
+        this.header = HEADER_VERSION + "\t" + blobName + "\t" + source.length() + "\t"
+                + source.lastModified() + "\t" + blockSize;
+    }
+
+    /**
+     * Loads the blocks already staged by a previous attempt at the same upload, and opens the
+     * journal for appending.
+     */
+    @NonNull
+    public synchronized BitSet open() throws IOException {
+
+        final BitSet staged = new BitSet();
+        final List<String> lines = log.open();
+        if (lines.isEmpty() || !header.equals(lines.get(0))) {
+            log.rewrite(Collections.singletonList(header));
+            return staged;
+        }
+        for (int i = 1; i < lines.size(); i++) {
+            try {
+                staged.set(Integer.parseInt(lines.get(i)));
+            } catch (NumberFormatException corrupt) {
+                // Not a block index; ignore the line
+            }
+        }
+        return staged;
+    }
+
+    public synchronized void recordStaged(final int blockIndex) throws IOException {
+        log.append(Integer.toString(blockIndex));
+    }
+
+    /**
+     * Closes the journal and deletes it; called once the upload has been committed.
+     */
+    public synchronized void complete() throws IOException {
+        log.delete();
+    }
+
+    /**
+     * Closes the journal and deletes it, so the next attempt stages every block again.
+     */
+    public synchronized void discard() throws IOException {
+        log.delete();
+    }
+
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    private static final String HEADER_VERSION = "v1";
+
+    private final AppendOnlyLog log;
+    private final String header;
+}
@@ -0,0 +1,443 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide owner of everything uploads share: one cached {@link BlockStore} for the
+ * configured {@link StorageBackend}, metered so that backends report alike, a small pool of
+ * upload workers fed from a priority queue, and a pool that stages blocks for every upload,
+ * live or not.
+ * <p>
+ * Queued uploads are ordered shortest file first, then most recently modified first, so a
+ * short recording is not stuck behind an hour-long one. Both pools let their threads die when
+ * idle, so an idle process holds no upload threads however often the service restarts.
+ * Once an {@link UploadQueue} is attached, every upload is recorded in it before it is
+ * queued, so uploads interrupted by the process dying are picked up again at the next start.
+ */
+public class UploadManager {
+
+    public interface StoreFactory {
+
+        @NonNull
+        BlockStore create();
+    }
+
+    /**
+     * Told about every upload that ends; called on an upload worker.
+     */
+    public interface Listener {
+
+        void onUploadFinished(
+                @NonNull File file,
+                @NonNull String blobName,
+                @Nullable BlockBlobUploader.Result result,
+                @Nullable IOException error
+        );
+    }
+
+    @NonNull
+    public static synchronized UploadManager getInstance() {
+
+        if (instance == null) {
+            instance = new UploadManager(
+                    Constants.UPLOAD_BACKEND::createStore,
+                    Constants.UPLOAD_WORKERS,
+                    Constants.UPLOAD_CONCURRENCY,
+                    Constants.UPLOAD_BLOCK_SIZE,
+                    Constants.UPLOAD_MAX_RETRIES,
+                    Constants.UPLOAD_RETRY_DELAY_MS
+            );
+        }
+        return instance;
+    }
+
+    /**
+     * @param workers            Uploads that run at the same time.
+     * @param blockConcurrency   Blocks staged at the same time, across all uploads.
+     */
+    public UploadManager(
+            @NonNull final StoreFactory storeFactory,
+            final int workers,
+            final int blockConcurrency,
+            final int blockSize,
+            final int maxRetries,
+            final long retryDelayMs
+    ) {
+
+        this.storeFactory = storeFactory;
+        this.blockConcurrency = blockConcurrency;
+        this.blockSize = blockSize;
+        this.maxRetries = maxRetries;
+        this.retryDelayMs = retryDelayMs;
+
+        uploadExecutor = new ThreadPoolExecutor(workers, workers, IDLE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), namedThreads("UploadWorker"));
+        uploadExecutor.allowCoreThreadTimeOut(true);
+        blockExecutor = new ThreadPoolExecutor(blockConcurrency, blockConcurrency, IDLE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), namedThreads("UploadBlock"));
+        blockExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setListener(@Nullable final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Makes uploads durable: every upload queued from now on is first recorded in
+     * {@code queue}, and the entries it already holds are submitted straight away.
+     */
+    public synchronized void attachQueue(@NonNull final UploadQueue queue) throws IOException {
+
+        this.queue = queue;
+        submitQueued(null);
+    }
+
+    public boolean hasQueue() {
+        return queue != null;
+    }
+
+    /**
+     * Queues {@code file} for upload as {@code blobName}. Progress is journalled next to the
+     * file, so a failed upload resumes where it stopped when it is queued again. With a
+     * durable queue attached, the upload also survives the process being killed.
+     */
+    @NonNull
+    public synchronized Future<BlockBlobUploader.Result> enqueue(
+            @NonNull final File file,
+            @NonNull final String blobName
+    ) {
+
+        final UploadQueue durable = queue;
+        if (durable != null) {
+            try {
+                final Future<BlockBlobUploader.Result> future = submitQueued(durable.enqueue(file, blobName));
+                if (future != null) return future;
+            } catch (IOException e) {
+                // Still upload, just without a durable record
+            }
+        }
+        return submit(file.length(), file.lastModified(), file, blobName, () -> upload(file, blobName));
+    }
+
+    /**
+     * Queues the final commit of a live upload ahead of everything else, since the rest of
+     * the file is already in storage. If any live block failed, the whole file is uploaded.
+     */
+    @NonNull
+    public Future<BlockBlobUploader.Result> enqueueLiveFinish(
+            @NonNull final LiveBlockUploader uploader,
+            @NonNull final File file,
+            @NonNull final String blobName
+    ) {
+
+        final UploadQueue durable = queue;
+        final UploadQueue.Entry entry = recordDurably(file, blobName);
+        return submit(0, Long.MAX_VALUE, file, blobName, () -> {
+            try {
+                if (entry != null) durable.markCommitting(entry);
+                final BlockBlobUploader.Result result = uploader.finish();
+                if (entry != null) durable.markCommitted(entry);
+                return result;
+            } catch (IOException e) {
+                return entry != null ? uploadEntry(durable, entry) : upload(file, blobName);
+            }
+        });
+    }
+
+    /**
+     * Uploads one entry taken from a durable queue and records the outcome in it. If a commit
+     * of the entry was in flight and the blob now holds a file of the same size, the previous
+     * process committed it before it could record that, so the entry is completed without
+     * uploading again. A blob of the same size alone proves nothing, as names are reused.
+     */
+    @NonNull
+    public BlockBlobUploader.Result uploadEntry(
+            @NonNull final UploadQueue queue,
+            @NonNull final UploadQueue.Entry entry
+    ) throws IOException {
+
+        if (!entry.file.exists()) {
+            queue.markRemoved(entry);
+            throw new FileNotFoundException(entry.file.getPath());
+        }
+        if (entry.isCommitInFlight() && getStore().getBlobSize(entry.blobName) == entry.file.length()) {
+            queue.markCommitted(entry);
+            return new BlockBlobUploader.Result(0, 0, 0, 0, 0);
+        }
+
+        final BlockBlobUploader.Result result;
+        try {
+            result = upload(entry.file, entry.blobName, () -> queue.markCommitting(entry));
+        } catch (IOException e) {
+            queue.markFailed(entry);
+            throw e;
+        }
+        queue.markCommitted(entry);
+        return result;
+    }
+
+    /**
+     * Uploads on the calling thread, sharing the block pool with queued uploads.
+     */
+    @NonNull
+    public BlockBlobUploader.Result upload(@NonNull final File file, @NonNull final String blobName)
+            throws IOException {
+        return upload(file, blobName, null);
+    }
+
+    @NonNull
+    private BlockBlobUploader.Result upload(
+            @NonNull final File file,
+            @NonNull final String blobName,
+            @Nullable final BlockBlobUploader.CommitListener listener
+    ) throws IOException {
+
+        final File journalFile = new File(file.getPath() + Constants.EXTENSION_UPLOAD_JOURNAL);
+        return new BlockBlobUploader(getStore(), blockExecutor, blockSize, blockConcurrency, maxRetries, retryDelayMs)
+                .upload(file, blobName, journalFile, listener);
+    }
+
+    /**
+     * The shared store, created on first use.
+     */
+    @NonNull
+    public BlockStore getStore() {
+        return getStoreMetrics();
+    }
+
+    /**
+     * Throughput and latency of every call made to the shared store.
+     */
+    @NonNull
+    public MeteredBlockStore getStoreMetrics() {
+
+        MeteredBlockStore current = store;
+        if (current == null) {
+            synchronized (this) {
+                if (store == null) store = new MeteredBlockStore(storeFactory.create());
+                current = store;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Pool for staging blocks, also used by live uploads.
+     */
+    @NonNull
+    public Executor getBlockExecutor() {
+        return blockExecutor;
+    }
+
+    /**
+     * Uploads waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return uploadExecutor.getQueue().size();
+    }
+
+    /**
+     * Total size of the files being uploaded right now.
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Time from starting an upload to its commit.
+     */
+    @NonNull
+    public LatencyCounter getUploadLatency() {
+        return uploadLatency;
+    }
+
+    /**
+     * Time uploads spend queued before a worker picks them up.
+     */
+    @NonNull
+    public LatencyCounter getQueueLatency() {
+        return queueLatency;
+    }
+
+    /**
+     * Stops accepting uploads and waits for queued ones to finish.
+     */
+    @VisibleForTesting
+    boolean shutdown(final long timeoutMs) throws InterruptedException {
+
+        uploadExecutor.shutdown();
+        final boolean uploadsDone = uploadExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        blockExecutor.shutdown();
+        return uploadsDone && blockExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Submits every entry waiting in the durable queue.
+     *
+     * @return the future of {@code wanted}, if it was among them.
+     */
+    @Nullable
+    private Future<BlockBlobUploader.Result> submitQueued(@Nullable final UploadQueue.Entry wanted)
+            throws IOException {
+
+        final UploadQueue durable = queue;
+        Future<BlockBlobUploader.Result> wantedFuture = null;
+        UploadQueue.Entry entry;
+        while ((entry = durable.take()) != null) {
+            final UploadQueue.Entry taken = entry;
+            final Future<BlockBlobUploader.Result> future = submit(taken.file.length(), taken.file.lastModified(),
+                    taken.file, taken.blobName, () -> uploadEntry(durable, taken));
+            if (taken == wanted) wantedFuture = future;
+        }
+        return wantedFuture;
+    }
+
+    /**
+     * Records an upload that is handled outside the durable queue's own submission, so that
+     * it is retried in full if the process dies first.
+     */
+    @Nullable
+    private synchronized UploadQueue.Entry recordDurably(@NonNull final File file, @NonNull final String blobName) {
+
+        final UploadQueue durable = queue;
+        if (durable == null) return null;
+        try {
+            submitQueued(null);
+            durable.enqueue(file, blobName);
+            return durable.take();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    private Future<BlockBlobUploader.Result> submit(
+            final long sizeBytes,
+            final long lastModified,
+            @NonNull final File file,
+            @NonNull final String blobName,
+            @NonNull final Callable<BlockBlobUploader.Result> job
+    ) {
+
+        final long queuedNanos = System.nanoTime();
+        final UploadTask task = new UploadTask(sizeBytes, lastModified, sequence.getAndIncrement(), () -> {
+            final long startNanos = System.nanoTime();
+            queueLatency.record(startNanos - queuedNanos);
+            final long bytes = file.length();
+            inFlightBytes.addAndGet(bytes);
+            try {
+                final BlockBlobUploader.Result result = job.call();
+                completed.incrementAndGet();
+                notifyFinished(file, blobName, result, null);
+                return result;
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                notifyFinished(file, blobName, null,
+                        e instanceof IOException ? (IOException) e : new IOException("Upload failed", e));
+                throw e;
+            } finally {
+                inFlightBytes.addAndGet(-bytes);
+                uploadLatency.record(System.nanoTime() - startNanos);
+            }
+        });
+        uploadExecutor.execute(task);
+        return task;
+    }
+
+    private void notifyFinished(
+            @NonNull final File file,
+            @NonNull final String blobName,
+            @Nullable final BlockBlobUploader.Result result,
+            @Nullable final IOException error
+    ) {
+
+        final Listener current = listener;
+        if (current != null) current.onUploadFinished(file, blobName, result, error);
+    }
+
+    @NonNull
+    private static ThreadFactory namedThreads(@NonNull final String prefix) {
+
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, prefix + "-" + count.incrementAndGet());
+    }
+
+    /**
+     * Queue entry ordered by file size, then most recent first, then submission order.
+     */
+    private static final class UploadTask extends FutureTask<BlockBlobUploader.Result>
+            implements Comparable<UploadTask> {
+
+        UploadTask(
+                final long sizeBytes,
+                final long lastModified,
+                final long sequence,
+                @NonNull final Callable<BlockBlobUploader.Result> job
+        ) {
+
+            super(job);
+            this.sizeBytes = sizeBytes;
+            this.lastModified = lastModified;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@NonNull UploadTask other) {
+
+            if (sizeBytes != other.sizeBytes) return Long.compare(sizeBytes, other.sizeBytes);
+            if (lastModified != other.lastModified) return Long.compare(other.lastModified, lastModified);
+            return Long.compare(sequence, other.sequence);
+        }
+
+        final long sizeBytes;
+        final long lastModified;
+        final long sequence;
+    }
+
+    // Threads of an idle pool exit after this long
+    private static final long IDLE_SECONDS = 30;
+
+    private static UploadManager instance;
+
+    private final StoreFactory storeFactory;
+    private final int blockConcurrency;
+    private final int blockSize;
+    private final int maxRetries;
+    private final long retryDelayMs;
+    private final ThreadPoolExecutor uploadExecutor;
+    private final ThreadPoolExecutor blockExecutor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final LatencyCounter uploadLatency = new LatencyCounter();
+    private final LatencyCounter queueLatency = new LatencyCounter();
+    private volatile MeteredBlockStore store;
+    private volatile Listener listener;
+    private volatile UploadQueue queue;
+}
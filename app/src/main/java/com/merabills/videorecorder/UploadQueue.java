@@ -0,0 +1,285 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durable queue of files waiting to be uploaded, kept in an {@link AppendOnlyLog} so that no
+ * recording is forgotten when the process is killed or the device reboots.
+ * <p>
+ * Each state change is one synced record: {@code Q} queued (with path and blob name),
+ * {@code U} uploading, {@code K} committing, {@code C} committed, {@code F} failed, {@code R}
+ * removed because the file is gone. Enqueueing, taking and completing an entry each cost one
+ * append, and so does committing it. On {@link #open} the log is replayed; entries that were
+ * uploading, committing or failed go back on the queue, and a log with many superseded records
+ * is compacted. A crash can land after the blob was committed but before {@code C} was
+ * written; only then does {@link Entry#isCommitInFlight} hold, and the uploader may check
+ * whether the blob already holds the file instead of uploading it again.
+ */
+public class UploadQueue {
+
+    public enum State {QUEUED, UPLOADING, COMMITTED, FAILED, REMOVED, COMMITTING}
+
+    public static final class Entry {
+
+        Entry(final long id, @NonNull final File file, @NonNull final String blobName) {
+
+            this.id = id;
+            this.file = file;
+            this.blobName = blobName;
+        }
+
+        @NonNull
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Whether a commit of this entry was started, so the blob may already hold the file.
+         */
+        public boolean isCommitInFlight() {
+            return commitInFlight;
+        }
+
+        public final long id;
+        @NonNull
+        public final File file;
+        @NonNull
+        public final String blobName;
+        private State state = State.QUEUED;
+        private boolean commitInFlight = false;
+    }
+
+    public UploadQueue(@NonNull final File logFile) {
+        this(new AppendOnlyLog(logFile));
+    }
+
+    public UploadQueue(@NonNull final AppendOnlyLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Replays the log. Entries left uploading, committing or failed by the previous process are
+     * queued again, ahead of anything enqueued from now on.
+     */
+    public synchronized void open() throws IOException {
+
+        entries.clear();
+        byPath.clear();
+        queue.clear();
+        final List<String> lines = log.open();
+        int records = 0;
+        for (final String line : lines) {
+            if (replay(line)) records++;
+        }
+
+        for (final Entry entry : entries.values()) {
+            if (entry.state == State.UPLOADING || entry.state == State.COMMITTING || entry.state == State.FAILED)
+                entry.state = State.QUEUED;
+            if (entry.state == State.QUEUED) queue.addLast(entry);
+        }
+        if (lines.isEmpty() || !HEADER.equals(lines.get(0))
+                || records > COMPACTION_FACTOR * entries.size() + COMPACTION_SLACK) {
+            compact();
+        }
+    }
+
+    /**
+     * Adds {@code file} to the back of the queue, unless it is already waiting or uploading.
+     */
+    @NonNull
+    public synchronized Entry enqueue(@NonNull final File file, @NonNull final String blobName) throws IOException {
+
+        final Entry existing = byPath.get(file.getPath());
+        if (existing != null && (existing.state == State.QUEUED || existing.state == State.UPLOADING
+                || existing.state == State.COMMITTING))
+            return existing;
+
+        final Entry entry = new Entry(nextId, file, blobName);
+        log.append("Q\t" + entry.id + "\t" + checkField(blobName) + "\t" + checkField(file.getPath()));
+        nextId++;
+        add(entry);
+        queue.addLast(entry);
+        return entry;
+    }
+
+    /**
+     * Removes the entry at the front of the queue and marks it uploading, or returns null if
+     * the queue is empty.
+     */
+    @Nullable
+    public synchronized Entry take() throws IOException {
+
+        final Entry entry = queue.peekFirst();
+        if (entry == null) return null;
+        transition(entry, State.UPLOADING);
+        queue.pollFirst();
+        return entry;
+    }
+
+    /**
+     * Records that the entry's blob is about to be committed; must be durable before the
+     * commit is sent.
+     */
+    public synchronized void markCommitting(@NonNull final Entry entry) throws IOException {
+        transition(entry, State.COMMITTING);
+    }
+
+    public synchronized void markCommitted(@NonNull final Entry entry) throws IOException {
+        transition(entry, State.COMMITTED);
+    }
+
+    /**
+     * Records a failed upload; the entry is retried when the queue is next opened.
+     */
+    public synchronized void markFailed(@NonNull final Entry entry) throws IOException {
+        transition(entry, State.FAILED);
+    }
+
+    public synchronized void markRemoved(@NonNull final Entry entry) throws IOException {
+
+        queue.remove(entry);
+        transition(entry, State.REMOVED);
+    }
+
+    /**
+     * Queues every file in {@code folder} accepted by {@code filter} that the queue has never
+     * seen, and removes pending entries whose file no longer exists.
+     *
+     * @return the number of files added.
+     */
+    public synchronized int reconcile(@NonNull final File folder, @NonNull final FileFilter filter) throws IOException {
+
+        for (final Entry entry : new ArrayList<>(entries.values()))
+            if (entry.state != State.COMMITTED && entry.state != State.REMOVED
+                    && entry.state != State.UPLOADING && entry.state != State.COMMITTING && !entry.file.exists())
+                markRemoved(entry);
+
+        final File[] files = folder.listFiles(filter);
+        if (files == null) return 0;
+        int added = 0;
+        for (final File file : files) {
+            final Entry known = byPath.get(file.getPath());
+            if (known != null && known.state != State.REMOVED) continue;
+            enqueue(file, file.getName());
+            added++;
+        }
+        return added;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Every entry the queue knows about, in the order they were first enqueued.
+     */
+    @NonNull
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    private void transition(@NonNull final Entry entry, @NonNull final State state) throws IOException {
+
+        log.append(RECORD_TYPES[state.ordinal()] + "\t" + entry.id);
+        entry.state = state;
+        if (state == State.COMMITTING) entry.commitInFlight = true;
+    }
+
+    /**
+     * Applies one log line; returns false for the header or a line that is not a record.
+     */
+    private boolean replay(@NonNull final String line) {
+
+        final String[] fields = line.split("\t", -1);
+        try {
+            if (fields[0].equals("Q") && fields.length == 4) {
+                final long id = Long.parseLong(fields[1]);
+                add(new Entry(id, new File(fields[3]), fields[2]));
+                nextId = Math.max(nextId, id + 1);
+                return true;
+            }
+            for (int type = 1; type < RECORD_TYPES.length; type++) {
+                if (!fields[0].equals(RECORD_TYPES[type]) || fields.length != 2) continue;
+                final Entry entry = entries.get(Long.parseLong(fields[1]));
+                if (entry != null) {
+                    entry.state = State.values()[type];
+                    if (entry.state == State.COMMITTING) entry.commitInFlight = true;
+                }
+                return true;
+            }
+        } catch (NumberFormatException corrupt) {
+            // Fall through and ignore the line
+        }
+        return false;
+    }
+
+    private void add(@NonNull final Entry entry) {
+
+        entries.put(entry.id, entry);
+        byPath.put(entry.file.getPath(), entry);
+    }
+
+    /**
+     * Rewrites the log with one Q record per live entry, plus its state if not queued, or a
+     * K record if a commit of it was started. Removed entries, and committed ones whose file
+     * has been deleted, are dropped.
+     */
+    private void compact() throws IOException {
+
+        final List<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        final List<Long> dropped = new ArrayList<>();
+        for (final Entry entry : entries.values()) {
+            if (entry.state == State.REMOVED || (entry.state == State.COMMITTED && !entry.file.exists())) {
+                dropped.add(entry.id);
+                continue;
+            }
+            lines.add("Q\t" + entry.id + "\t" + entry.blobName + "\t" + entry.file.getPath());
+            if (entry.state != State.QUEUED)
+                lines.add(RECORD_TYPES[entry.state.ordinal()] + "\t" + entry.id);
+            else if (entry.commitInFlight)
+                lines.add(RECORD_TYPES[State.COMMITTING.ordinal()] + "\t" + entry.id);
+        }
+        log.rewrite(lines);
+        for (final Long id : dropped) {
+            final Entry entry = entries.remove(id);
+            if (byPath.get(entry.file.getPath()) == entry) byPath.remove(entry.file.getPath());
+        }
+    }
+
+    @NonNull
+    private static String checkField(@NonNull final String value) {
+
+        if (value.indexOf('\t') >= 0 || value.indexOf('\n') >= 0)
+            throw new IllegalArgumentException("Tabs and newlines are not allowed: " + value);
+        return value;
+    }
+
+    private static final String HEADER = "uploadqueue-v1";
+    // Indexed by State ordinal
+    private static final String[] RECORD_TYPES = {"Q", "U", "C", "F", "R", "K"};
+    // Compact once superseded records outnumber live entries by this much
+    private static final int COMPACTION_FACTOR = 2;
+    private static final int COMPACTION_SLACK = 64;
+
+    private final AppendOnlyLog log;
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, Entry> byPath = new HashMap<>();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private long nextId = 0;
+}
@@ -0,0 +1,148 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Simulates long captures in which the audio sample clock drifts against the monotonic clock
+ * and reads complete with scheduler jitter, and checks the generated PTS against the instant
+ * each chunk's first frame was really captured.
+ */
+public class AudioTimestampGeneratorTest {
+
+    @Test
+    public void jitterNeverReachesTheTimestamps() {
+
+        final AudioTimestampGenerator generator = new AudioTimestampGenerator(SAMPLE_RATE);
+        final Random random = new Random(1);
+        generator.anchor(0, START_NANOS);
+
+        long previous = 0;
+        for (int chunk = 0; chunk < 10_000; chunk++) {
+            final long frameIndex = (long) chunk * CHUNK_FRAMES;
+            final long jitterNanos = (long) (random.nextDouble() * 20_000_000);
+            final long completion = START_NANOS + (frameIndex + CHUNK_FRAMES) * 1_000_000_000L / SAMPLE_RATE
+                    + LATENCY_NANOS + jitterNanos;
+            final long presentationTimeUs = generator.onChunkRead(CHUNK_FRAMES, completion);
+
+            // Up to 20 ms of jitter moves consecutive timestamps by no more than the slew limit
+            if (chunk > 0)
+                assertEquals(CHUNK_US, presentationTimeUs - previous, 100);
+            else
+                assertEquals(START_NANOS / 1000, presentationTimeUs);
+            previous = presentationTimeUs;
+        }
+    }
+
+    @Test
+    public void driftStaysUnderOneFrameOverHoursOfFastClock() {
+        assertDriftBounded(+120, true);
+    }
+
+    @Test
+    public void driftStaysUnderOneFrameOverHoursOfSlowClock() {
+        assertDriftBounded(-120, true);
+    }
+
+    @Test
+    public void driftStaysUnderOneFrameWhenAnchoredFromTheFirstRead() {
+        assertDriftBounded(-80, false);
+    }
+
+    @Test
+    public void catchesUpAfterLostFramesAndStaysMonotonic() {
+
+        final AudioTimestampGenerator generator = new AudioTimestampGenerator(SAMPLE_RATE);
+        generator.anchor(0, START_NANOS);
+
+        long captured = 0;
+        long previous = Long.MIN_VALUE;
+        long maxErrorAfterRecoveryUs = 0;
+        for (int chunk = 0; chunk < 2_000; chunk++) {
+            // An overrun at chunk 500 silently loses half a second of audio
+            if (chunk == 500) captured += SAMPLE_RATE / 2;
+            final long trueStartUs = START_NANOS / 1000 + captured * 1_000_000 / SAMPLE_RATE;
+            captured += CHUNK_FRAMES;
+            final long completion = START_NANOS + captured * 1_000_000_000L / SAMPLE_RATE + LATENCY_NANOS;
+
+            final long presentationTimeUs = generator.onChunkRead(CHUNK_FRAMES, completion);
+            assertTrue(presentationTimeUs > previous);
+            previous = presentationTimeUs;
+            if (chunk > 600)
+                maxErrorAfterRecoveryUs = Math.max(maxErrorAfterRecoveryUs, Math.abs(presentationTimeUs - trueStartUs));
+        }
+        assertTrue("error after overrun " + maxErrorAfterRecoveryUs + " us",
+                maxErrorAfterRecoveryUs < AAC_FRAME_US);
+    }
+
+    @Test
+    public void neverGoesBackwardsWhenTheClockStepsBack() {
+
+        final AudioTimestampGenerator generator = new AudioTimestampGenerator(
+                SAMPLE_RATE, 50_000, 1_000_000, 100_000);
+        generator.anchor(0, START_NANOS);
+
+        long previous = Long.MIN_VALUE;
+        long completion = START_NANOS;
+        for (int chunk = 0; chunk < 1_000; chunk++) {
+            completion += chunk == 100 ? -400_000_000 : CHUNK_FRAMES * 1_000_000_000L / SAMPLE_RATE;
+            final long presentationTimeUs = generator.onChunkRead(CHUNK_FRAMES, completion);
+            assertTrue(presentationTimeUs > previous);
+            previous = presentationTimeUs;
+        }
+    }
+
+    /**
+     * @param driftPpm    How much faster (positive) the sample clock runs than the monotonic clock.
+     * @param useAnchor   Whether an exact {@code AudioRecord.getTimestamp} anchor is available.
+     */
+    private static void assertDriftBounded(final int driftPpm, final boolean useAnchor) {
+
+        final AudioTimestampGenerator generator = new AudioTimestampGenerator(SAMPLE_RATE);
+        final Random random = new Random(driftPpm);
+        if (useAnchor) generator.anchor(0, START_NANOS);
+
+        // Real capture rate as seen from the monotonic clock
+        final double framesPerSecond = SAMPLE_RATE * (1 + driftPpm / 1e6);
+        final long chunks = HOURS * 3600L * SAMPLE_RATE / CHUNK_FRAMES;
+
+        long frames = 0;
+        long previous = Long.MIN_VALUE;
+        long firstErrorUs = 0;
+        long maxDriftUs = 0;
+        for (long chunk = 0; chunk < chunks; chunk++) {
+            final long trueStartUs = START_NANOS / 1000 + (long) (frames * 1e6 / framesPerSecond);
+            frames += CHUNK_FRAMES;
+            final long trueEndNanos = START_NANOS + (long) (frames * 1e9 / framesPerSecond);
+
+            // Mostly 0-15 ms of scheduling delay, with an occasional 80 ms stall
+            long jitterNanos = (long) (random.nextDouble() * 15_000_000);
+            if (random.nextInt(200) == 0) jitterNanos += 80_000_000;
+
+            final long presentationTimeUs = generator.onChunkRead(CHUNK_FRAMES, trueEndNanos + LATENCY_NANOS + jitterNanos);
+            assertTrue("timestamps must increase", presentationTimeUs > previous);
+            previous = presentationTimeUs;
+
+            final long errorUs = presentationTimeUs - trueStartUs;
+            if (chunk == 0) firstErrorUs = errorUs;
+            maxDriftUs = Math.max(maxDriftUs, Math.abs(errorUs - firstErrorUs));
+        }
+
+        // Uncorrected, this much drift would be 120 ppm * 3 h = 1.3 s
+        assertTrue("drift reached " + maxDriftUs + " us", maxDriftUs < AAC_FRAME_US);
+        if (useAnchor) assertEquals(0, firstErrorUs);
+    }
+
+    private static final int SAMPLE_RATE = 44_100;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final long CHUNK_US = CHUNK_FRAMES * 1_000_000L / SAMPLE_RATE;
+    // One AAC access unit
+    private static final long AAC_FRAME_US = 1024L * 1_000_000 / SAMPLE_RATE;
+    private static final long START_NANOS = 5_000_000_000_000L;
+    private static final long LATENCY_NANOS = 12_000_000;
+    private static final int HOURS = 3;
+}
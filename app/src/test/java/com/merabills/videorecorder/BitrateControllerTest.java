@@ -0,0 +1,137 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BitrateControllerTest {
+
+    @Test
+    public void staticScreenLowersTheBitrate() {
+
+        final Simulation simulation = new Simulation(MAX_BITRATE, 150_000, 60);
+        simulation.run(30);
+
+        assertTrue("bitrate " + controller(simulation).getBitrate(),
+                controller(simulation).getBitrate() <= 400_000);
+        assertEquals(30, controller(simulation).getFrameRate());
+    }
+
+    @Test
+    public void busyScreenRaisesTheBitrateToTheMaximum() {
+
+        final Simulation simulation = new Simulation(MIN_BITRATE, 10_000_000, 60);
+        final int intervals = simulation.runUntil(() -> controller(simulation).getBitrate() == MAX_BITRATE, 30);
+
+        assertTrue("took " + intervals + " intervals", intervals <= 12);
+        assertEquals(30, controller(simulation).getFrameRate());
+    }
+
+    @Test
+    public void slowEncoderGetsFewerFrames() {
+
+        // The device can only encode 18 frames per second
+        final Simulation simulation = new Simulation(MAX_BITRATE, 4_000_000, 18);
+        simulation.run(20);
+        long worstLagUs = 0;
+        int frameRateTotal = 0;
+        for (int i = 0; i < 60; i++) {
+            simulation.run(1);
+            worstLagUs = Math.max(worstLagUs, simulation.lagUs);
+            frameRateTotal += controller(simulation).getFrameRate();
+        }
+
+        assertTrue("lag " + worstLagUs, worstLagUs < 600_000);
+        assertTrue("mean frame rate " + frameRateTotal / 60.0, frameRateTotal / 60.0 <= 22);
+    }
+
+    @Test
+    public void muxerBacklogCutsTheBitrate() {
+
+        final BitrateController controller = new BitrateController(
+                MIN_BITRATE, MAX_BITRATE, MAX_BITRATE, MIN_FRAME_RATE, 30);
+        int previous = controller.getBitrate();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(controller.update(1_000_000, MAX_BITRATE / 8, 30_000, 0.8));
+            assertTrue(controller.getBitrate() < previous);
+            previous = controller.getBitrate();
+        }
+        assertTrue(controller.getFrameRate() < 30);
+    }
+
+    @Test
+    public void steadyContentSettlesWithoutOscillating() {
+
+        final Simulation simulation = new Simulation(MAX_BITRATE, 2_000_000, 60);
+        simulation.run(20);
+        final int changesBefore = simulation.changes;
+        simulation.run(60);
+
+        assertTrue("changes " + (simulation.changes - changesBefore), simulation.changes - changesBefore <= 2);
+    }
+
+    @Test
+    public void staysWithinBounds() {
+
+        final Simulation simulation = new Simulation(MAX_BITRATE, 0, 5);
+        for (int i = 0; i < 100; i++) {
+            // Alternate long static and busy stretches on a weak device
+            simulation.complexityBps = (i / 10) % 2 == 0 ? 0 : 50_000_000;
+            simulation.run(1);
+            final BitrateController controller = controller(simulation);
+            assertTrue(controller.getBitrate() >= MIN_BITRATE && controller.getBitrate() <= MAX_BITRATE);
+            assertTrue(controller.getFrameRate() >= MIN_FRAME_RATE && controller.getFrameRate() <= 30);
+        }
+    }
+
+    private static BitrateController controller(final Simulation simulation) {
+        return simulation.controller;
+    }
+
+    /**
+     * One-second steps of a VBR encoder that spends what the content needs up to its target,
+     * and queues frames when asked for more than it can encode.
+     */
+    private static final class Simulation {
+
+        Simulation(final int initialBitrate, final long complexityBps, final int capacityFps) {
+
+            this.controller = new BitrateController(MIN_BITRATE, MAX_BITRATE, initialBitrate, MIN_FRAME_RATE, 30);
+            this.complexityBps = complexityBps;
+            this.capacityFps = capacityFps;
+        }
+
+        void run(final int intervals) {
+
+            for (int i = 0; i < intervals; i++) {
+                final int frameRate = controller.getFrameRate();
+                final long bits = Math.min(controller.getBitrate(), complexityBps * frameRate / 30);
+                queuedFrames = Math.max(0, queuedFrames + frameRate - capacityFps);
+                lagUs = BASE_LAG_US + queuedFrames * 1_000_000L / capacityFps;
+                if (controller.update(1_000_000, bits / 8, lagUs, 0)) changes++;
+            }
+        }
+
+        int runUntil(final java.util.function.BooleanSupplier done, final int maxIntervals) {
+
+            for (int i = 1; i <= maxIntervals; i++) {
+                run(1);
+                if (done.getAsBoolean()) return i;
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        final BitrateController controller;
+        final int capacityFps;
+        long complexityBps;
+        long queuedFrames = 0;
+        long lagUs = 0;
+        int changes = 0;
+    }
+
+    private static final int MIN_BITRATE = 300_000;
+    private static final int MAX_BITRATE = 5_000_000;
+    private static final int MIN_FRAME_RATE = 5;
+    private static final long BASE_LAG_US = 20_000;
+}
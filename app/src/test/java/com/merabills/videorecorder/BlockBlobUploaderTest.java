@@ -0,0 +1,227 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class BlockBlobUploaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void stagesBlocksInParallelUpToTheConcurrencyLimit() throws Exception {
+
+        final byte[] content = randomBytes(10 * BLOCK_SIZE + 123);
+        final File file = writeFile(content);
+        final FakeBlockStore store = new FakeBlockStore(20);
+
+        final BlockBlobUploader.Result result = newUploader(store, 0).upload(file, BLOB, journal(file));
+
+        assertArrayEquals(content, store.getCommitted(BLOB));
+        assertEquals(11, result.blocksStaged);
+        assertEquals(0, result.blocksResumed);
+        assertEquals(content.length, result.bytesUploaded);
+        assertEquals(CONCURRENCY, store.getMaxConcurrentStages());
+        assertFalse("journal is deleted after commit", journal(file).exists());
+    }
+
+    @Test
+    public void parallelUploadIsFasterThanSequential() throws Exception {
+
+        final File file = writeFile(randomBytes(16 * BLOCK_SIZE));
+
+        final BlockBlobUploader.Result sequential = new BlockBlobUploader(
+                new FakeBlockStore(20), executor, BLOCK_SIZE, 1, 0, 0
+        ).upload(file, BLOB, journal(file));
+        final BlockBlobUploader.Result parallel = newUploader(new FakeBlockStore(20), 0)
+                .upload(file, BLOB, journal(file));
+
+        assertTrue("Sequential: " + sequential + ", parallel: " + parallel,
+                parallel.elapsedNanos * 2 < sequential.elapsedNanos);
+    }
+
+    @Test
+    public void retriesTransientFailures() throws Exception {
+
+        final byte[] content = randomBytes(6 * BLOCK_SIZE);
+        final File file = writeFile(content);
+        final FakeBlockStore store = new FakeBlockStore(0);
+        // Every block fails twice before succeeding
+        store.setFailurePlan((blockId, attempt) -> attempt < 2);
+
+        final BlockBlobUploader.Result result = newUploader(store, 3).upload(file, BLOB, journal(file));
+
+        assertArrayEquals(content, store.getCommitted(BLOB));
+        assertEquals(12, result.retries);
+        assertEquals(18, store.getStageCalls());
+    }
+
+    @Test
+    public void resumesOnlyTheMissingBlocksAfterAFailure() throws Exception {
+
+        final byte[] content = randomBytes(12 * BLOCK_SIZE + 7);
+        final File file = writeFile(content);
+        final FakeBlockStore store = new FakeBlockStore(0);
+        final String failingBlock = BlockBlobUploader.blockId(9);
+        store.setFailurePlan((blockId, attempt) -> blockId.equals(failingBlock));
+
+        try {
+            newUploader(store, 2).upload(file, BLOB, journal(file));
+            fail("Upload should fail once retries are exhausted");
+        } catch (IOException expected) {
+            // The journal survives for the next attempt
+        }
+        assertTrue(journal(file).exists());
+        assertNull(store.getCommitted(BLOB));
+
+        // A fresh uploader, as after a process restart, only stages what is missing
+        store.setFailurePlan((blockId, attempt) -> false);
+        final int callsBefore = store.getStageCalls();
+        final BlockBlobUploader.Result result = newUploader(store, 2).upload(file, BLOB, journal(file));
+
+        assertArrayEquals(content, store.getCommitted(BLOB));
+        assertEquals(13, result.blocksStaged + result.blocksResumed);
+        assertTrue(result.blocksResumed >= 9);
+        assertEquals(result.blocksStaged, store.getStageCalls() - callsBefore);
+        assertFalse(journal(file).exists());
+    }
+
+    @Test
+    public void restartsWhenTheFileChanged() throws Exception {
+
+        final File file = writeFile(randomBytes(4 * BLOCK_SIZE));
+        final File journal = journal(file);
+        writeJournal(journal, "v1\t" + BLOB + "\t1\t1\t" + BLOCK_SIZE + "\n0\n1\n2\n3\n");
+
+        final FakeBlockStore store = new FakeBlockStore(0);
+        final BlockBlobUploader.Result result = newUploader(store, 0).upload(file, BLOB, journal);
+
+        assertEquals(0, result.blocksResumed);
+        assertEquals(4, result.blocksStaged);
+    }
+
+    @Test
+    public void ignoresATornJournalLine() throws Exception {
+
+        final byte[] content = randomBytes(4 * BLOCK_SIZE);
+        final File file = writeFile(content);
+        final File journal = journal(file);
+        final String header = "v1\t" + BLOB + "\t" + file.length() + "\t" + file.lastModified()
+                + "\t" + BLOCK_SIZE + "\n";
+        // Block 0 was really staged; "3" was being written when the process died
+        writeJournal(journal, header + "0\n3");
+
+        final FakeBlockStore store = new FakeBlockStore(0);
+        store.stageBlock(BLOB, BlockBlobUploader.blockId(0),
+                ByteBuffer.wrap(content, 0, BLOCK_SIZE));
+
+        final BlockBlobUploader.Result result = newUploader(store, 0).upload(file, BLOB, journal);
+
+        assertArrayEquals(content, store.getCommitted(BLOB));
+        assertEquals(1, result.blocksResumed);
+        assertEquals(3, result.blocksStaged);
+    }
+
+    @Test
+    public void stagesEverythingAgainWhenJournaledBlocksAreGone() throws Exception {
+
+        final byte[] content = randomBytes(4 * BLOCK_SIZE);
+        final File file = writeFile(content);
+        final File journal = journal(file);
+        // Staged by an earlier attempt, then dropped by the store before being committed
+        writeJournal(journal, "v1\t" + BLOB + "\t" + file.length() + "\t" + file.lastModified()
+                + "\t" + BLOCK_SIZE + "\n0\n1\n");
+
+        final FakeBlockStore store = new FakeBlockStore(0);
+        final BlockBlobUploader.Result result = newUploader(store, 0).upload(file, BLOB, journal);
+
+        assertArrayEquals(content, store.getCommitted(BLOB));
+        assertEquals(0, result.blocksResumed);
+        assertEquals(4, result.blocksStaged);
+        assertEquals(6, store.getStageCalls());
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void discardsTheJournalWhenTheCommitFails() throws Exception {
+
+        final File file = writeFile(randomBytes(4 * BLOCK_SIZE));
+        final FakeBlockStore store = new FakeBlockStore(0) {
+            @Override
+            public synchronized void commitBlockList(@NonNull String blobName, @NonNull List<String> blockIds)
+                    throws IOException {
+                throw new IOException("InvalidBlockList");
+            }
+        };
+
+        try {
+            newUploader(store, 0).upload(file, BLOB, journal(file));
+            fail("The commit should fail");
+        } catch (IOException expected) {
+            // Retried later from the start
+        }
+        assertFalse(journal(file).exists());
+        assertEquals(4, store.getStageCalls());
+    }
+
+    private BlockBlobUploader newUploader(final FakeBlockStore store, final int maxRetries) {
+        return new BlockBlobUploader(store, executor, BLOCK_SIZE, CONCURRENCY, maxRetries, 1);
+    }
+
+    private File writeFile(final byte[] content) throws IOException {
+
+        final File file = folder.newFile();
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(content);
+        }
+        return file;
+    }
+
+    private static void writeJournal(final File journal, final String text) throws IOException {
+        Files.write(journal.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static File journal(final File file) {
+        return new File(file.getPath() + Constants.EXTENSION_UPLOAD_JOURNAL);
+    }
+
+    private static byte[] randomBytes(final int length) {
+
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static final String BLOB = "recording.mp4";
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int CONCURRENCY = 4;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+}
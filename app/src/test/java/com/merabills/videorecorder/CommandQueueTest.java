@@ -0,0 +1,110 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CommandQueueTest {
+
+    @Test
+    public void restartsCollapseIntoTheLastFile() {
+
+        assertFalse(queue.offer(Constants.VALUE_RESTART, "a.mp4", null, 10, false, null));
+        assertTrue(queue.offer(Constants.VALUE_RESTART, "b.mp4", null, 20, true, "first"));
+        assertTrue(queue.offer(Constants.VALUE_RESTART, "c.mp4", "LOW", 30, true, "second"));
+
+        final List<CommandQueue.Command<String>> commands = queue.drain();
+        assertEquals(1, commands.size());
+        final CommandQueue.Command<String> command = commands.get(0);
+        assertEquals(Constants.VALUE_RESTART, command.getAction());
+        assertEquals("c.mp4", command.getFileName());
+        assertEquals("LOW", command.getVideoQuality());
+        assertEquals(3, command.getCount());
+        // Timed from the first request, over the path it came by
+        assertEquals(10, command.requestNanos);
+        assertFalse(command.bound);
+        assertEquals(Arrays.asList("first", "second"), command.getReplyTo());
+        assertEquals(2, queue.getCoalescedCount());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void aRestartReplacesTheStartsBeforeIt() {
+
+        queue.offer(START, "a.mp4", null, 10, false, null);
+        queue.offer(START, "b.mp4", null, 20, false, null);
+        queue.offer(Constants.VALUE_RESTART, "c.mp4", null, 30, false, null);
+
+        final List<CommandQueue.Command<String>> commands = queue.drain();
+        assertEquals(2, commands.size());
+        assertEquals("a.mp4", commands.get(0).getFileName());
+        assertEquals(Constants.VALUE_RESTART, commands.get(1).getAction());
+        assertEquals("c.mp4", commands.get(1).getFileName());
+        assertEquals(20, commands.get(1).requestNanos);
+    }
+
+    @Test
+    public void startsOfDifferentFilesAllRun() {
+
+        // Several recordings can run at once
+        assertFalse(queue.offer(START, "archive.mp4", "HIGH", 10, false, null));
+        assertFalse(queue.offer(START, "preview.mp4", "HIGH", 20, false, null));
+        assertTrue(queue.offer(START, "preview.mp4", "HIGH", 30, false, null));
+        assertFalse(queue.offer(START, "preview.mp4", "LOW", 40, false, null));
+
+        final List<CommandQueue.Command<String>> commands = queue.drain();
+        assertEquals(3, commands.size());
+        assertEquals(2, commands.get(1).getCount());
+        assertEquals("LOW", commands.get(2).getVideoQuality());
+    }
+
+    @Test
+    public void stopsOnlyMergeForTheSameFile() {
+
+        queue.offer(START, "a.mp4", null, 10, false, null);
+        queue.offer(Constants.VALUE_STOP, "a.mp4", null, 20, false, null);
+        queue.offer(Constants.VALUE_STOP, "a.mp4", null, 30, false, null);
+        queue.offer(Constants.VALUE_STOP, "b.mp4", null, 40, false, null);
+
+        final List<CommandQueue.Command<String>> commands = queue.drain();
+        assertEquals(3, commands.size());
+        assertEquals(START, commands.get(0).getAction());
+        assertEquals(Constants.VALUE_STOP, commands.get(1).getAction());
+        assertEquals(2, commands.get(1).getCount());
+        assertEquals("b.mp4", commands.get(2).getFileName());
+        assertEquals(1, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void dumpsNeverMerge() {
+
+        assertFalse(queue.offer(Constants.VALUE_DUMP_REPLAY, "a.mp4", null, 10, true, "first"));
+        assertFalse(queue.offer(Constants.VALUE_DUMP_REPLAY, "a.mp4", null, 20, true, "second"));
+
+        final List<CommandQueue.Command<String>> commands = queue.drain();
+        assertEquals(2, commands.size());
+        assertEquals(Collections.singletonList("first"), commands.get(0).getReplyTo());
+        assertEquals(Collections.singletonList("second"), commands.get(1).getReplyTo());
+        assertEquals(0, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void drainingStartsAFreshRun() {
+
+        queue.offer(Constants.VALUE_RESTART, "a.mp4", null, 10, false, null);
+        queue.drain();
+        assertFalse(queue.offer(Constants.VALUE_RESTART, "b.mp4", null, 20, false, null));
+        assertEquals(20, queue.drain().get(0).requestNanos);
+    }
+
+    // Any action that is not one of the named ones starts a recording
+    private static final String START = "start";
+
+    private final CommandQueue<String> queue = new CommandQueue<>();
+}
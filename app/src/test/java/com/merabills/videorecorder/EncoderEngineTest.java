@@ -0,0 +1,182 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives both {@link EncoderEngine} implementations against {@link FakeEncoderCodec}.
+ */
+public class EncoderEngineTest {
+
+    @Test
+    public void pollingEngineEncodesRawInput() throws Exception {
+        assertRawInputEncoded(EncoderEngine.Mode.POLLING);
+    }
+
+    @Test
+    public void callbackEngineEncodesRawInput() throws Exception {
+        assertRawInputEncoded(EncoderEngine.Mode.CALLBACK);
+    }
+
+    @Test
+    public void pollingEngineDrainsSurfaceInput() throws Exception {
+        assertSurfaceInputDrained(EncoderEngine.Mode.POLLING);
+    }
+
+    @Test
+    public void callbackEngineDrainsSurfaceInput() throws Exception {
+        assertSurfaceInputDrained(EncoderEngine.Mode.CALLBACK);
+    }
+
+    @Test
+    public void callbackEngineHandlesOutputOnTheCallbackThread() throws Exception {
+
+        final FakeEncoderCodec codec = new FakeEncoderCodec(16, 1024);
+        final RecordingListener listener = new RecordingListener(10);
+        final EncoderEngine engine = EncoderEngine.create(EncoderEngine.Mode.CALLBACK, "video");
+        engine.attach(codec, listener, null);
+        engine.start();
+        for (int i = 0; i < 10; i++)
+            codec.renderFrame(i * 33_333L, 100, 0);
+        assertTrue(listener.await());
+        engine.stop();
+        codec.shutdown();
+
+        assertEquals(Collections.singleton(FakeEncoderCodec.CALLBACK_THREAD_NAME), listener.threadNames);
+    }
+
+    @Test
+    public void codecConfigBuffersAreNotDelivered() throws Exception {
+
+        for (final EncoderEngine.Mode mode : EncoderEngine.Mode.values()) {
+            final FakeEncoderCodec codec = new FakeEncoderCodec(4, 1024);
+            final RecordingListener listener = new RecordingListener(2);
+            final EncoderEngine engine = EncoderEngine.create(mode, "video");
+            engine.attach(codec, listener, null);
+            engine.start();
+            codec.renderFrame(0, 30, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            codec.renderFrame(0, 100, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+            codec.renderFrame(33_333, 100, 0);
+            assertTrue(listener.await());
+            engine.stop();
+            codec.shutdown();
+
+            assertEquals(mode.name(), 2, listener.samples.size());
+            assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, listener.samples.get(0).flags);
+        }
+    }
+
+    private static void assertRawInputEncoded(final EncoderEngine.Mode mode) throws Exception {
+
+        final int chunks = 500;
+        final FakeEncoderCodec codec = new FakeEncoderCodec(4, 4096);
+        final RecordingListener listener = new RecordingListener(chunks);
+        final EncoderEngine engine = EncoderEngine.create(mode, "audio");
+
+        final long[] nextPresentationTimeUs = {0};
+        engine.attach(codec, listener, (buffer, info) -> {
+            buffer.put(new byte[4096]);
+            info.set(0, 4096, nextPresentationTimeUs[0], 0);
+            nextPresentationTimeUs[0] += 23_220;
+        });
+        engine.start();
+        assertTrue(mode + " timed out", listener.await());
+        engine.stop();
+        codec.shutdown();
+
+        assertEquals(1, listener.formatChanges);
+        assertTrue(listener.formatChangedBeforeFirstSample);
+        long previous = -1;
+        for (final SampleInfo sample : listener.samples.subList(0, chunks)) {
+            assertEquals(1024, sample.size);
+            assertTrue(sample.presentationTimeUs > previous);
+            previous = sample.presentationTimeUs;
+        }
+        assertEquals(0, codec.getOutputsInFlight());
+        assertTrue(codec.getQueuedInputs() >= chunks);
+    }
+
+    private static void assertSurfaceInputDrained(final EncoderEngine.Mode mode) throws Exception {
+
+        final int frames = 200;
+        final FakeEncoderCodec codec = new FakeEncoderCodec(8, 4096);
+        final RecordingListener listener = new RecordingListener(frames);
+        final EncoderEngine engine = EncoderEngine.create(mode, "video");
+        engine.attach(codec, listener, null);
+        engine.start();
+
+        for (int i = 0; i < frames; i++) {
+            // Back off while every output buffer is held, as a real encoder would stall
+            while (codec.getReleasedOutputs() + 8 <= i)
+                Thread.sleep(1);
+            codec.renderFrame(i * 33_333L, 2000, i % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+        assertTrue(mode + " timed out", listener.await());
+        engine.stop();
+        codec.shutdown();
+
+        assertEquals(frames, listener.samples.size());
+        assertEquals(frames, codec.getReleasedOutputs());
+        for (int i = 0; i < frames; i++) {
+            assertEquals(i * 33_333L, listener.samples.get(i).presentationTimeUs);
+            assertEquals((byte) (i * 33_333L), listener.firstBytes.get(i).byteValue());
+        }
+    }
+
+    private static final class RecordingListener implements EncoderEngine.Listener {
+
+        RecordingListener(final int expectedSamples) {
+            this.done = new CountDownLatch(expectedSamples);
+        }
+
+        @Override
+        public synchronized void onOutputFormatChanged(@NonNull MediaFormat format) {
+            formatChanges++;
+        }
+
+        @Override
+        public synchronized void onEncodedSample(@NonNull ByteBuffer data, @NonNull SampleInfo info) {
+
+            if (samples.isEmpty()) formatChangedBeforeFirstSample = formatChanges == 1;
+            final SampleInfo copy = new SampleInfo();
+            copy.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            samples.add(copy);
+            firstBytes.add(data.get(data.position()));
+            threadNames.add(Thread.currentThread().getName());
+            assertEquals(info.size, data.remaining());
+            done.countDown();
+        }
+
+        @Override
+        public void onError(@NonNull Exception error) {
+            throw new AssertionError(error);
+        }
+
+        boolean await() throws InterruptedException {
+            return done.await(10, TimeUnit.SECONDS);
+        }
+
+        final CountDownLatch done;
+        final List<SampleInfo> samples = Collections.synchronizedList(new ArrayList<>());
+        final List<Byte> firstBytes = Collections.synchronizedList(new ArrayList<>());
+        final Set<String> threadNames = Collections.synchronizedSet(new HashSet<>());
+        int formatChanges = 0;
+        boolean formatChangedBeforeFirstSample = false;
+    }
+}
@@ -0,0 +1,182 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the selection against capability snapshots recorded on real and emulated devices.
+ */
+public class EncoderSelectorTest {
+
+    @Test
+    public void flagshipUsesHardwareHevcAtHalfTheBitrate() throws IOException {
+
+        final EncoderSelector.VideoConfig config = selectVideo("flagship.txt", 1080, 2400, 440, ALL_MIMES);
+
+        assertEquals("c2.qti.hevc.encoder", config.codecName);
+        assertEquals(MediaFormat.MIMETYPE_VIDEO_HEVC, config.mime);
+        assertEquals(720, config.width);
+        assertEquals(1600, config.height);
+        assertEquals(293, config.densityDpi);
+        assertEquals(CodecProfileLevel.HEVCProfileMain, config.profile);
+        // 34.6M luma samples per second is just over what level 3.1 allows
+        assertEquals(CodecProfileLevel.HEVCMainTierLevel4, config.level);
+        assertEquals(EncoderSelector.bitrateFor(MediaFormat.MIMETYPE_VIDEO_AVC, 720, 1600, 30,
+                EncoderSelector.Quality.MEDIUM) / 2, config.bitrate);
+    }
+
+    @Test
+    public void avcOnlyMuxerGetsHardwareAvcHighProfile() throws IOException {
+
+        final EncoderSelector.VideoConfig config = selectVideo("flagship.txt", 1080, 2400, 440,
+                Collections.singletonList(MediaFormat.MIMETYPE_VIDEO_AVC));
+
+        assertEquals("c2.qti.avc.encoder", config.codecName);
+        assertEquals(CodecProfileLevel.AVCProfileHigh, config.profile);
+        // 4500 macroblocks per frame needs level 3.2
+        assertEquals(CodecProfileLevel.AVCLevel32, config.level);
+        assertEquals(720 * 1600 * 30 / 10, config.bitrate);
+    }
+
+    @Test
+    public void budgetPhoneShrinksUntilTheHardwareEncoderAcceptsTheSize() throws IOException {
+
+        final EncoderSelector.VideoConfig config = selectVideo("budget.txt", 720, 1600, 320, ALL_MIMES);
+
+        // Software HEVC is never picked over hardware AVC
+        assertEquals("OMX.MTK.VIDEO.ENCODER.AVC", config.codecName);
+        assertEquals(464, config.width);
+        assertEquals(1040, config.height);
+        assertEquals(0, config.width % 16);
+        assertEquals(210, config.densityDpi);
+        assertEquals(CodecProfileLevel.AVCProfileMain, config.profile);
+        assertEquals(CodecProfileLevel.AVCLevel31, config.level);
+        // Aspect ratio survives the shrinking
+        assertEquals(1600.0 / 720, (double) config.height / config.width, 0.02);
+    }
+
+    @Test
+    public void emulatorFallsBackToSoftwareAvcBaseline() throws IOException {
+
+        final EncoderSelector.VideoConfig config = selectVideo("emulator.txt", 1080, 1920, 420, ALL_MIMES);
+
+        assertEquals("c2.android.avc.encoder", config.codecName);
+        assertEquals(720, config.width);
+        assertEquals(1280, config.height);
+        assertEquals(CodecProfileLevel.AVCProfileBaseline, config.profile);
+        assertEquals(CodecProfileLevel.AVCLevel31, config.level);
+    }
+
+    @Test
+    public void neverUpscalesASmallDisplay() throws IOException {
+
+        final EncoderSelector.VideoConfig config = selectVideo("flagship.txt", 480, 854, 240, ALL_MIMES);
+        assertEquals(480, config.width);
+        assertEquals(854, config.height);
+        assertEquals(240, config.densityDpi);
+    }
+
+    @Test
+    public void lowMaxLevelLimitsTheSize() {
+
+        final EncoderCapabilities.Codec codec = new EncoderCapabilities.Codec("avc", MediaFormat.MIMETYPE_VIDEO_AVC, true);
+        codec.profileLevels.put(CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel31);
+        final EncoderCapabilities capabilities = new EncoderCapabilities("test", Collections.singletonList(codec));
+
+        final EncoderSelector.VideoConfig config = EncoderSelector.selectVideo(capabilities, 1080, 2400, 440,
+                EncoderSelector.Quality.HIGH, 30, ALL_MIMES);
+        assertEquals("avc", config.codecName);
+        assertTrue(config.width < 1080);
+        assertTrue(EncoderSelector.requiredLevel(config.mime, config.width, config.height, 30)
+                <= CodecProfileLevel.AVCLevel31);
+    }
+
+    @Test
+    public void noUsableEncoderLeavesTheChoiceToThePlatform() {
+
+        final EncoderCapabilities empty = new EncoderCapabilities("test", new ArrayList<>());
+        final EncoderSelector.VideoConfig video = EncoderSelector.selectVideo(empty, 1080, 2340, 440,
+                EncoderSelector.Quality.MEDIUM, 30, ALL_MIMES);
+        assertNull(video.codecName);
+        assertEquals(MediaFormat.MIMETYPE_VIDEO_AVC, video.mime);
+        assertEquals(720, video.width);
+        assertEquals(1552, video.height);
+        assertEquals(0, video.profile);
+
+        final EncoderSelector.AudioConfig audio = EncoderSelector.selectAudio(empty, 2, 128_000);
+        assertNull(audio.codecName);
+        assertEquals(44_100, audio.sampleRate);
+    }
+
+    @Test
+    public void audioPrefers48kHz() throws IOException {
+
+        final EncoderSelector.AudioConfig flagship = EncoderSelector.selectAudio(load("flagship.txt"), 2, 128_000);
+        assertEquals("c2.android.aac.encoder", flagship.codecName);
+        assertEquals(48_000, flagship.sampleRate);
+        assertEquals(128_000, flagship.bitrate);
+
+        final EncoderSelector.AudioConfig budget = EncoderSelector.selectAudio(load("budget.txt"), 2, 128_000);
+        assertEquals(44_100, budget.sampleRate);
+    }
+
+    @Test
+    public void snapshotSurvivesARoundTrip() throws IOException {
+
+        final EncoderCapabilities original = load("flagship.txt");
+        final List<String> lines = original.toLines();
+        final EncoderCapabilities parsed = EncoderCapabilities.fromLines(lines);
+
+        assertEquals(original.getFingerprint(), parsed.getFingerprint());
+        assertEquals(5, parsed.getCodecs().size());
+        assertEquals(lines, parsed.toLines());
+        final EncoderCapabilities.Codec aac = parsed.getCodecs().get(4);
+        assertTrue(aac.isSampleRateSupported(48_000));
+        assertEquals(6, aac.maxChannels);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedSnapshots() {
+        EncoderCapabilities.fromLines(Collections.singletonList("codec name=x mime=video/avc width=wide"));
+    }
+
+    private static EncoderSelector.VideoConfig selectVideo(
+            final String fixture,
+            final int width,
+            final int height,
+            final int densityDpi,
+            final List<String> mimes
+    ) throws IOException {
+
+        return EncoderSelector.selectVideo(load(fixture), width, height, densityDpi,
+                EncoderSelector.Quality.MEDIUM, 30, mimes);
+    }
+
+    private static EncoderCapabilities load(final String fixture) throws IOException {
+
+        final List<String> lines = new ArrayList<>();
+        try (InputStream input = EncoderSelectorTest.class.getResourceAsStream("/encoder_capabilities/" + fixture);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+        }
+        return EncoderCapabilities.fromLines(lines);
+    }
+
+    private static final List<String> ALL_MIMES = List.of(MediaFormat.MIMETYPE_VIDEO_HEVC, MediaFormat.MIMETYPE_VIDEO_AVC);
+}
@@ -0,0 +1,121 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory {@link BlockStore} with latency and failure injection, for JVM tests.
+ */
+public class FakeBlockStore implements BlockStore {
+
+    /**
+     * Decides whether a stage call fails; {@code attempt} counts calls for that block from 0.
+     */
+    public interface FailurePlan {
+        boolean shouldFail(String blockId, int attempt);
+    }
+
+    public FakeBlockStore(final long stageLatencyMs) {
+        this.stageLatencyMs = stageLatencyMs;
+    }
+
+    public void setFailurePlan(@NonNull final FailurePlan failurePlan) {
+        this.failurePlan = failurePlan;
+    }
+
+    @Override
+    public void stageBlock(
+            @NonNull String blobName,
+            @NonNull String blockId,
+            @NonNull ByteBuffer data
+    ) throws IOException {
+
+        final int concurrent = inFlight.incrementAndGet();
+        maxConcurrent.accumulateAndGet(concurrent, Math::max);
+        try {
+            final int attempt;
+            synchronized (this) {
+                attempt = attempts.merge(blockId, 1, Integer::sum) - 1;
+                stageCalls++;
+            }
+            if (stageLatencyMs > 0) Thread.sleep(stageLatencyMs);
+            if (failurePlan.shouldFail(blockId, attempt))
+                throw new IOException("Injected failure staging " + blockId);
+
+            final byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            synchronized (this) {
+                staged.put(blobName + "/" + blockId, bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void commitBlockList(@NonNull String blobName, @NonNull List<String> blockIds)
+            throws IOException {
+
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (final String blockId : blockIds) {
+            final byte[] bytes = staged.get(blobName + "/" + blockId);
+            if (bytes == null) throw new IOException("Block " + blockId + " was never staged");
+            content.write(bytes, 0, bytes.length);
+        }
+        committed.put(blobName, content.toByteArray());
+        commitHistory.add(content.toByteArray());
+        commitCounts.merge(blobName, 1, Integer::sum);
+    }
+
+    public synchronized int getCommitCount(@NonNull final String blobName) {
+        return commitCounts.getOrDefault(blobName, 0);
+    }
+
+    @Override
+    public synchronized long getBlobSize(@NonNull String blobName) {
+
+        final byte[] content = committed.get(blobName);
+        return content == null ? -1 : content.length;
+    }
+
+    /**
+     * Content of every successful commit, in order.
+     */
+    public synchronized List<byte[]> getCommitHistory() {
+        return new ArrayList<>(commitHistory);
+    }
+
+    public synchronized byte[] getCommitted(@NonNull final String blobName) {
+        return committed.get(blobName);
+    }
+
+    public synchronized int getStageCalls() {
+        return stageCalls;
+    }
+
+    public int getMaxConcurrentStages() {
+        return maxConcurrent.get();
+    }
+
+    private final long stageLatencyMs;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private final Map<String, byte[]> staged = new HashMap<>();
+    private final Map<String, byte[]> committed = new HashMap<>();
+    private final List<byte[]> commitHistory = new ArrayList<>();
+    private final Map<String, Integer> commitCounts = new HashMap<>();
+    private volatile FailurePlan failurePlan = (blockId, attempt) -> false;
+    private int stageCalls = 0;
+}
@@ -0,0 +1,230 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory {@link EncoderCodec} for JVM tests. Each queued input buffer, or each frame
+ * "rendered" to its input surface, becomes one output buffer a quarter of the input size with
+ * the same timestamp. Supports both the synchronous dequeue API and asynchronous callbacks,
+ * which are delivered on a single thread named {@link #CALLBACK_THREAD_NAME}.
+ */
+public class FakeEncoderCodec implements EncoderCodec {
+
+    public static final String CALLBACK_THREAD_NAME = "FakeCodecCallbackThread";
+
+    public FakeEncoderCodec(final int bufferCount, final int bufferCapacity) {
+
+        inputBuffers = new ByteBuffer[bufferCount];
+        outputBuffers = new ByteBuffer[bufferCount];
+        outputInfos = new SampleInfo[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            inputBuffers[i] = ByteBuffer.allocateDirect(bufferCapacity);
+            outputBuffers[i] = ByteBuffer.allocateDirect(bufferCapacity);
+            outputInfos[i] = new SampleInfo();
+            freeInputs.add(i);
+            freeOutputs.add(i);
+        }
+    }
+
+    @Override
+    public synchronized void setCallback(@Nullable Callback callback) {
+
+        if (started) throw new IllegalStateException("setCallback after start");
+        this.callback = callback;
+        if (callback != null && callbackExecutor == null)
+            callbackExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, CALLBACK_THREAD_NAME));
+    }
+
+    @Override
+    public synchronized void start() {
+
+        started = true;
+        if (callback != null) {
+            Integer index;
+            while ((index = freeInputs.poll()) != null) {
+                final int free = index;
+                post(() -> callback.onInputBufferAvailable(free));
+            }
+        }
+    }
+
+    /**
+     * Simulates a frame arriving on the encoder's input surface.
+     */
+    public synchronized void renderFrame(final long presentationTimeUs, final int size, final int flags) {
+        produceOutput(size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+
+        checkSynchronous();
+        awaitWhile(() -> freeInputs.isEmpty(), timeoutUs);
+        final Integer index = freeInputs.poll();
+        return index == null ? MediaCodec.INFO_TRY_AGAIN_LATER : index;
+    }
+
+    @Nullable
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int index) {
+        return inputBuffers[index];
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+
+        if (!started) throw new IllegalStateException("codec not started");
+        queuedInputs++;
+        if (size > 0) produceOutput(Math.max(1, size / 4), presentationTimeUs, flags);
+        if (callback != null) post(() -> callback.onInputBufferAvailable(index));
+        else freeInputs.add(index);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(@NonNull SampleInfo info, long timeoutUs) {
+
+        checkSynchronous();
+        awaitWhile(() -> readyOutputs.isEmpty(), timeoutUs);
+        final Integer index = readyOutputs.peek();
+        if (index == null) return MediaCodec.INFO_TRY_AGAIN_LATER;
+        if (!formatReported) {
+            formatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        readyOutputs.poll();
+        final SampleInfo ready = outputInfos[index];
+        info.set(ready.offset, ready.size, ready.presentationTimeUs, ready.flags);
+        outputsInFlight++;
+        return index;
+    }
+
+    @Nullable
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        return outputBuffers[index];
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+
+        outputsInFlight--;
+        releasedOutputs++;
+        freeOutputs.add(index);
+        notifyAll();
+    }
+
+    @NonNull
+    @Override
+    @SuppressWarnings("ConstantConditions")
+    public MediaFormat getOutputFormat() {
+        // The platform MediaFormat cannot be instantiated on the JVM
+        return null;
+    }
+
+    /**
+     * Runs any callbacks already posted, then stops the callback thread.
+     */
+    public void shutdown() throws InterruptedException {
+
+        final ExecutorService executor;
+        synchronized (this) {
+            executor = callbackExecutor;
+        }
+        if (executor == null) return;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    public synchronized int getOutputsInFlight() {
+        return outputsInFlight;
+    }
+
+    public synchronized long getReleasedOutputs() {
+        return releasedOutputs;
+    }
+
+    public synchronized long getQueuedInputs() {
+        return queuedInputs;
+    }
+
+    private void produceOutput(final int size, final long presentationTimeUs, final int flags) {
+
+        final Integer index = freeOutputs.poll();
+        if (index == null) {
+            droppedOutputs++;
+            return;
+        }
+        final ByteBuffer output = outputBuffers[index];
+        output.clear();
+        for (int i = 0; i < size; i++)
+            output.put(i, (byte) presentationTimeUs);
+        outputInfos[index].set(0, size, presentationTimeUs, flags);
+
+        if (callback == null) {
+            readyOutputs.add(index);
+            notifyAll();
+            return;
+        }
+        final SampleInfo info = new SampleInfo();
+        info.set(0, size, presentationTimeUs, flags);
+        final boolean reportFormat = !formatReported;
+        formatReported = true;
+        outputsInFlight++;
+        post(() -> {
+            if (reportFormat) callback.onOutputFormatChanged(getOutputFormat());
+            callback.onOutputBufferAvailable(index, info);
+        });
+    }
+
+    private void post(final Runnable runnable) {
+        callbackExecutor.execute(runnable);
+    }
+
+    private void checkSynchronous() {
+        if (callback != null) throw new IllegalStateException("codec is in asynchronous mode");
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private void awaitWhile(final Condition condition, final long timeoutUs) {
+
+        final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+        try {
+            while (condition.holds()) {
+                final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) return;
+                wait(remainingMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final ByteBuffer[] inputBuffers;
+    private final ByteBuffer[] outputBuffers;
+    private final SampleInfo[] outputInfos;
+    private final ArrayDeque<Integer> freeInputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> freeOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> readyOutputs = new ArrayDeque<>();
+    private Callback callback;
+    private ExecutorService callbackExecutor;
+    private boolean started = false;
+    private boolean formatReported = false;
+    private int outputsInFlight = 0;
+    private long releasedOutputs = 0;
+    private long queuedInputs = 0;
+    private long droppedOutputs = 0;
+}
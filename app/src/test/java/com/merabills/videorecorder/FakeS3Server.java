@@ -0,0 +1,335 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for an S3-compatible endpoint that implements just the multipart upload
+ * calls, for JVM tests. It checks that requests carry a SigV4 authorization but does not
+ * verify the signature itself.
+ */
+public class FakeS3Server implements Closeable {
+
+    /**
+     * @param minPartSize    Parts other than the last that are smaller fail the completion.
+     * @param partsPerPage   Parts returned per ListParts page.
+     */
+    public FakeS3Server(@NonNull final String bucket, final int minPartSize, final int partsPerPage)
+            throws IOException {
+
+        this.bucket = bucket;
+        this.minPartSize = minPartSize;
+        this.partsPerPage = partsPerPage;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @NonNull
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Makes the next {@code count} part uploads fail with HTTP 500.
+     */
+    public void failNextParts(final int count) {
+        partFailures.set(count);
+    }
+
+    /**
+     * Forgets every uploaded part, as if they had expired.
+     */
+    public synchronized void dropParts() {
+
+        for (final Upload upload : uploads.values())
+            upload.parts.clear();
+    }
+
+    public synchronized byte[] getObject(@NonNull final String key) {
+        return objects.get(key);
+    }
+
+    public synchronized int getCreatedUploadCount() {
+        return createdUploads;
+    }
+
+    public synchronized int getPartRequestCount() {
+        return partRequests;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(@NonNull final HttpExchange exchange) throws IOException {
+
+        try {
+            final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authorization == null || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=")
+                    || exchange.getRequestHeaders().getFirst("x-amz-date") == null) {
+                respond(exchange, 403, "<Error><Code>AccessDenied</Code></Error>");
+                return;
+            }
+            final String path = exchange.getRequestURI().getPath();
+            final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            final byte[] body = readAll(exchange.getRequestBody());
+            if (!path.startsWith("/" + bucket)) {
+                respond(exchange, 404, "<Error><Code>NoSuchBucket</Code></Error>");
+                return;
+            }
+            final String key = path.length() > bucket.length() + 2 ? path.substring(bucket.length() + 2) : "";
+            final String method = exchange.getRequestMethod();
+
+            if (method.equals("HEAD")) {
+                headObject(exchange, key);
+            } else if (method.equals("POST") && query.containsKey("uploads")) {
+                respond(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + createUpload(key)
+                        + "</UploadId></InitiateMultipartUploadResult>");
+            } else if (method.equals("PUT") && query.containsKey("partNumber")) {
+                uploadPart(exchange, key, query, body);
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                completeUpload(exchange, key, query.get("uploadId"), new String(body, StandardCharsets.UTF_8));
+            } else if (method.equals("GET") && key.isEmpty() && query.containsKey("uploads")) {
+                respond(exchange, 200, listUploads(query.getOrDefault("prefix", "")));
+            } else if (method.equals("GET") && query.containsKey("uploadId")) {
+                listParts(exchange, query);
+            } else {
+                respond(exchange, 400, "<Error><Code>NotImplemented</Code></Error>");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized void headObject(@NonNull final HttpExchange exchange, @NonNull final String key)
+            throws IOException {
+
+        final byte[] object = objects.get(key);
+        if (object == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Length", Integer.toString(object.length));
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    @NonNull
+    private synchronized String createUpload(@NonNull final String key) {
+
+        final String uploadId = "upload-" + ++createdUploads;
+        uploads.put(uploadId, new Upload(key));
+        return uploadId;
+    }
+
+    private void uploadPart(
+            @NonNull final HttpExchange exchange,
+            @NonNull final String key,
+            @NonNull final Map<String, String> query,
+            @NonNull final byte[] body
+    ) throws IOException {
+
+        synchronized (this) {
+            partRequests++;
+        }
+        if (partFailures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+            respond(exchange, 500, "<Error><Code>InternalError</Code></Error>");
+            return;
+        }
+        final String etag = "\"" + md5(body) + "\"";
+        synchronized (this) {
+            final Upload upload = uploads.get(query.get("uploadId"));
+            if (upload == null || !upload.key.equals(key)) {
+                respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                return;
+            }
+            upload.parts.put(Integer.parseInt(query.get("partNumber")), new Part(body, etag));
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private synchronized void completeUpload(
+            @NonNull final HttpExchange exchange,
+            @NonNull final String key,
+            @NonNull final String uploadId,
+            @NonNull final String request
+    ) throws IOException {
+
+        final Upload upload = uploads.get(uploadId);
+        if (upload == null || !upload.key.equals(key)) {
+            respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+            return;
+        }
+        final Map<Integer, String> listed = new LinkedHashMap<>();
+        final Matcher matcher = Pattern.compile(
+                "<Part><PartNumber>(\\d+)</PartNumber><ETag>(.*?)</ETag></Part>").matcher(request);
+        while (matcher.find())
+            listed.put(Integer.parseInt(matcher.group(1)), matcher.group(2).replace("&quot;", "\""));
+
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        int remaining = listed.size();
+        for (final Map.Entry<Integer, String> entry : listed.entrySet()) {
+            final Part part = upload.parts.get(entry.getKey());
+            if (part == null || !part.etag.equals(entry.getValue())) {
+                // Real servers report some completion errors in a 200 response
+                respond(exchange, 200, "<Error><Code>InvalidPart</Code></Error>");
+                return;
+            }
+            if (--remaining > 0 && part.data.length < minPartSize) {
+                respond(exchange, 400, "<Error><Code>EntityTooSmall</Code></Error>");
+                return;
+            }
+            content.write(part.data, 0, part.data.length);
+        }
+        objects.put(key, content.toByteArray());
+        uploads.remove(uploadId);
+        respond(exchange, 200, "<CompleteMultipartUploadResult><Key>" + key + "</Key></CompleteMultipartUploadResult>");
+    }
+
+    @NonNull
+    private synchronized String listUploads(@NonNull final String prefix) {
+
+        final StringBuilder xml = new StringBuilder("<ListMultipartUploadsResult>");
+        for (final Map.Entry<String, Upload> entry : uploads.entrySet())
+            if (entry.getValue().key.startsWith(prefix))
+                xml.append("<Upload><Key>").append(entry.getValue().key).append("</Key><UploadId>")
+                        .append(entry.getKey()).append("</UploadId></Upload>");
+        return xml.append("</ListMultipartUploadsResult>").toString();
+    }
+
+    private synchronized void listParts(@NonNull final HttpExchange exchange, @NonNull final Map<String, String> query)
+            throws IOException {
+
+        final Upload upload = uploads.get(query.get("uploadId"));
+        if (upload == null) {
+            respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+            return;
+        }
+        final int marker = Integer.parseInt(query.getOrDefault("part-number-marker", "0"));
+        final StringBuilder xml = new StringBuilder("<ListPartsResult>");
+        int listed = 0;
+        int last = marker;
+        boolean truncated = false;
+        for (final Map.Entry<Integer, Part> entry : upload.parts.tailMap(marker + 1).entrySet()) {
+            if (listed == partsPerPage) {
+                truncated = true;
+                break;
+            }
+            xml.append("<Part><PartNumber>").append(entry.getKey()).append("</PartNumber><ETag>")
+                    .append(entry.getValue().etag.replace("\"", "&quot;")).append("</ETag></Part>");
+            last = entry.getKey();
+            listed++;
+        }
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) xml.append("<NextPartNumberMarker>").append(last).append("</NextPartNumberMarker>");
+        respond(exchange, 200, xml.append("</ListPartsResult>").toString());
+    }
+
+    private static void respond(@NonNull final HttpExchange exchange, final int status, @NonNull final String body)
+            throws IOException {
+
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    @NonNull
+    private static Map<String, String> parseQuery(final String rawQuery) {
+
+        final Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) return query;
+        for (final String parameter : rawQuery.split("&")) {
+            final int equals = parameter.indexOf('=');
+            final String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            final String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    @NonNull
+    private static byte[] readAll(@NonNull final InputStream input) throws IOException {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[64 * 1024];
+        int read;
+        while ((read = input.read(chunk)) > 0)
+            bytes.write(chunk, 0, read);
+        return bytes.toByteArray();
+    }
+
+    @NonNull
+    private static String md5(@NonNull final byte[] data) {
+
+        try {
+            final StringBuilder hex = new StringBuilder();
+            for (final byte b : MessageDigest.getInstance("MD5").digest(data))
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Upload {
+
+        Upload(@NonNull final String key) {
+            this.key = key;
+        }
+
+        final String key;
+        final TreeMap<Integer, Part> parts = new TreeMap<>();
+    }
+
+    private static final class Part {
+
+        Part(@NonNull final byte[] data, @NonNull final String etag) {
+
+            this.data = data;
+            this.etag = etag;
+        }
+
+        final byte[] data;
+        final String etag;
+    }
+
+    private final String bucket;
+    private final int minPartSize;
+    private final int partsPerPage;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger partFailures = new AtomicInteger();
+    private final Map<String, Upload> uploads = new LinkedHashMap<>();
+    private final Map<String, byte[]> objects = new HashMap<>();
+    private int createdUploads = 0;
+    private int partRequests = 0;
+}
@@ -0,0 +1,90 @@
+package com.merabills.videorecorder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory {@link SampleMuxer} that records every call, for JVM tests.
+ */
+public class FakeSampleMuxer implements SampleMuxer {
+
+    public static final class Sample {
+
+        Sample(int trackIndex, byte[] data, long presentationTimeUs, int flags) {
+
+            this.trackIndex = trackIndex;
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+
+        public final int trackIndex;
+        public final byte[] data;
+        public final long presentationTimeUs;
+        public final int flags;
+    }
+
+    @Override
+    public synchronized int addTrack(@NonNull MediaFormat format) {
+
+        if (started) throw new IllegalStateException("addTrack after start");
+        return trackCount++;
+    }
+
+    @Override
+    public synchronized void start() {
+        started = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(
+            int trackIndex,
+            @NonNull ByteBuffer data,
+            long presentationTimeUs,
+            int flags
+    ) {
+
+        if (!started) throw new IllegalStateException("writeSampleData before start");
+        final byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        samples.add(new Sample(trackIndex, copy, presentationTimeUs, flags));
+    }
+
+    @Override
+    public synchronized void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public synchronized void release() {
+        released = true;
+    }
+
+    public synchronized List<Sample> getSamples() {
+        return Collections.unmodifiableList(new ArrayList<>(samples));
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    public synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    private final List<Sample> samples = new ArrayList<>();
+    private int trackCount = 0;
+    private boolean started = false;
+    private boolean stopped = false;
+    private boolean released = false;
+}
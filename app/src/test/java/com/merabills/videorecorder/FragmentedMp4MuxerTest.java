@@ -0,0 +1,208 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class FragmentedMp4MuxerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void liveUploadCommitsReconstructTheFile() throws Exception {
+
+        final File file = folder.newFile("live.mp4");
+        final FakeBlockStore store = new FakeBlockStore(1);
+        final LiveBlockUploader uploader = new LiveBlockUploader(
+                store, executor, file, BLOB, 16 * 1024, 2, 1);
+        final FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file, 2_000_000, uploader);
+        final int video = muxer.addTrack(TrackFormat.video(Mp4Boxes.MIME_AVC, 720, 1280,
+                annexB(SPS), annexB(PPS)));
+        final int audio = muxer.addTrack(TrackFormat.audio(Mp4Boxes.MIME_AAC, 44_100, 2, AUDIO_CONFIG));
+        muxer.start();
+
+        // 10 s of 30 fps video with a keyframe every second, plus 44.1 kHz AAC
+        final Random random = new Random(7);
+        final List<byte[]> videoSamples = new ArrayList<>();
+        final List<byte[]> audioSamples = new ArrayList<>();
+        final List<Long> videoTimesUs = new ArrayList<>();
+        int audioFrames = 0;
+        for (int i = 0; i < 300; i++) {
+            final long videoUs = i * 1_000_000L / 30;
+            while (audioFrames * 1024L * 1_000_000 / 44_100 <= videoUs) {
+                final byte[] aac = randomBytes(random, 100 + random.nextInt(200));
+                audioSamples.add(aac);
+                muxer.writeSampleData(audio, ByteBuffer.wrap(aac),
+                        BASE_US + audioFrames++ * 1024L * 1_000_000 / 44_100, 0);
+            }
+            final boolean key = i % 30 == 0;
+            final byte[] nal = randomBytes(random, 200 + random.nextInt(2000));
+            nal[0] = (byte) (key ? 0x65 : 0x41);
+            videoSamples.add(nal);
+            videoTimesUs.add(videoUs);
+            muxer.writeSampleData(video, ByteBuffer.wrap(annexB(nal)), BASE_US + videoUs,
+                    key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+        muxer.stop();
+        muxer.release();
+
+        // Most of the recording is already committed before the session is finished
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (uploader.getCommittedBytes() < file.length() / 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertTrue(uploader.getCommittedBytes() >= file.length() / 2);
+        uploader.finish();
+
+        final byte[] content = Files.readAllBytes(file.toPath());
+        assertArrayEquals(content, store.getCommitted(BLOB));
+
+        // Every intermediate commit is a prefix of the file that ends on a box boundary
+        final List<byte[]> commits = store.getCommitHistory();
+        assertTrue("expected incremental commits, got " + commits.size(), commits.size() >= 3);
+        for (final byte[] commit : commits) {
+            assertArrayEquals(Arrays.copyOf(content, commit.length), commit);
+            Mp4Parser.parse(commit, 0, commit.length);
+        }
+
+        final List<Mp4Parser.Box> boxes = Mp4Parser.parse(content, 0, content.length);
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        final Mp4Parser.Box stsd = Mp4Parser.find(content, boxes.get(1),
+                "trak", "mdia", "minf", "stbl", "stsd");
+        assertNotNull(stsd);
+        assertEquals(5, muxer.getFragmentCount());
+        assertEquals(2 + 2 * muxer.getFragmentCount(), boxes.size());
+
+        final Reconstructed videoTrack = new Reconstructed();
+        final Reconstructed audioTrack = new Reconstructed();
+        for (int f = 0; f < muxer.getFragmentCount(); f++) {
+            final Mp4Parser.Box moof = boxes.get(2 + 2 * f);
+            final Mp4Parser.Box mdat = boxes.get(3 + 2 * f);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", mdat.type);
+            final Mp4Parser.Box mfhd = Mp4Parser.find(content, moof, "mfhd");
+            assertEquals(f + 1, Mp4Parser.u32(content, mfhd.payloadOffset() + 4));
+
+            for (final Mp4Parser.Box traf : Mp4Parser.all(content, moof, "traf")) {
+                final Mp4Parser.Box tfhd = Mp4Parser.find(content, traf, "tfhd");
+                final long trackId = Mp4Parser.u32(content, tfhd.payloadOffset() + 4);
+                final Reconstructed track = trackId == 1 ? videoTrack : audioTrack;
+                final int firstSample = track.samples.size();
+                track.read(content, moof, traf, mdat);
+                if (trackId == 1)
+                    assertEquals("fragments start on keyframes",
+                            Mp4Boxes.SAMPLE_FLAGS_SYNC, track.flags.get(firstSample).intValue());
+            }
+        }
+
+        assertEquals(videoSamples.size(), videoTrack.samples.size());
+        for (int i = 0; i < videoSamples.size(); i++) {
+            final byte[] nal = videoSamples.get(i);
+            final byte[] expected = ByteBuffer.allocate(4 + nal.length).putInt(nal.length).put(nal).array();
+            assertArrayEquals(expected, videoTrack.samples.get(i));
+            assertEquals(videoTimesUs.get(i) * 90_000 / 1_000_000, videoTrack.decodeTimes.get(i), 1);
+        }
+        assertEquals(audioSamples.size(), audioTrack.samples.size());
+        for (int i = 0; i < audioSamples.size(); i++) {
+            assertArrayEquals(audioSamples.get(i), audioTrack.samples.get(i));
+            assertEquals(i * 1024L, audioTrack.decodeTimes.get(i), 2);
+        }
+    }
+
+    /**
+     * Samples of one track, rebuilt from the trun boxes and the mdat they point into.
+     */
+    private static final class Reconstructed {
+
+        void read(
+                final byte[] content,
+                final Mp4Parser.Box moof,
+                final Mp4Parser.Box traf,
+                final Mp4Parser.Box mdat
+        ) {
+
+            final Mp4Parser.Box tfdt = Mp4Parser.find(content, traf, "tfdt");
+            final Mp4Parser.Box trun = Mp4Parser.find(content, traf, "trun");
+            long decodeTime = Mp4Parser.u64(content, tfdt.payloadOffset() + 4);
+            if (!decodeTimes.isEmpty())
+                assertEquals("fragments are contiguous", nextDecodeTime, decodeTime);
+
+            final int count = (int) Mp4Parser.u32(content, trun.payloadOffset() + 4);
+            int dataOffset = moof.offset + (int) Mp4Parser.u32(content, trun.payloadOffset() + 8);
+            int entry = trun.payloadOffset() + 12;
+            for (int i = 0; i < count; i++) {
+                final long duration = Mp4Parser.u32(content, entry);
+                final int size = (int) Mp4Parser.u32(content, entry + 4);
+                flags.add((int) Mp4Parser.u32(content, entry + 8));
+                entry += 12;
+
+                assertTrue(dataOffset >= mdat.payloadOffset() && dataOffset + size <= mdat.end());
+                samples.add(Arrays.copyOfRange(content, dataOffset, dataOffset + size));
+                decodeTimes.add(decodeTime);
+                dataOffset += size;
+                decodeTime += duration;
+            }
+            nextDecodeTime = decodeTime;
+        }
+
+        final List<byte[]> samples = new ArrayList<>();
+        final List<Long> decodeTimes = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+        long nextDecodeTime;
+    }
+
+    private static byte[] annexB(final byte[] nal) {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(nal, 0, nal.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(final Random random, final int length) {
+
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        // Keep payloads free of accidental start codes
+        for (int i = 0; i < bytes.length; i++)
+            if (bytes[i] == 0) bytes[i] = 1;
+        return bytes;
+    }
+
+    private static final String BLOB = "live.mp4";
+    // Arbitrary monotonic-clock origin, as the encoders produce
+    private static final long BASE_US = 5_000_000_000L;
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x38, (byte) 0x80};
+    private static final byte[] AUDIO_CONFIG = {0x12, 0x10};
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+}
@@ -0,0 +1,145 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+public class FrameChangeDetectorTest {
+
+    @Test
+    public void firstFrameIsEntirelyChanged() {
+
+        final FrameChangeDetector detector = newDetector();
+        assertEquals(detector.getBlockCount(), detector.update(frame(0), ROW_STRIDE, 4));
+    }
+
+    @Test
+    public void staticScreenHasNoChangedBlocks() {
+
+        final FrameChangeDetector detector = newDetector();
+        detector.update(frame(0), ROW_STRIDE, 4);
+        assertEquals(0, detector.update(frame(0), ROW_STRIDE, 4));
+    }
+
+    @Test
+    public void ignoresLowBitNoise() {
+
+        final FrameChangeDetector detector = newDetector();
+        final ByteBuffer frame = frame(0);
+        detector.update(frame, ROW_STRIDE, 4);
+
+        // Dithering flips the lowest bit of a channel; the quantised luma must not move
+        final ByteBuffer noisy = frame(0);
+        for (int i = 0; i < noisy.capacity(); i += 4) noisy.put(i, (byte) (noisy.get(i) ^ 1));
+        assertEquals(0, detector.update(noisy, ROW_STRIDE, 4));
+    }
+
+    @Test
+    public void smallChangeTouchesFewBlocks() {
+
+        final FrameChangeDetector detector = newDetector();
+        detector.update(frame(0), ROW_STRIDE, 4);
+
+        // A blinking cursor-sized rectangle
+        final ByteBuffer frame = frame(0);
+        fill(frame, 400, 600, 24, 24, (byte) 0xFF);
+        final int changed = detector.update(frame, ROW_STRIDE, 4);
+        assertTrue("changed " + changed, changed >= 1 && changed <= 4);
+
+        detector.reset();
+        assertEquals(detector.getBlockCount(), detector.update(frame, ROW_STRIDE, 4));
+    }
+
+    @Test
+    public void scrollingChangesMostBlocks() {
+
+        final FrameChangeDetector detector = newDetector();
+        detector.update(frame(0), ROW_STRIDE, 4);
+        final int changed = detector.update(frame(8), ROW_STRIDE, 4);
+        assertTrue("changed " + changed, changed > detector.getBlockCount() * 9 / 10);
+    }
+
+    @Test
+    public void honoursRowPadding() {
+
+        final int paddedStride = ROW_STRIDE + 64;
+        final ByteBuffer padded = ByteBuffer.allocateDirect(paddedStride * HEIGHT);
+        final ByteBuffer frame = frame(0);
+        for (int y = 0; y < HEIGHT; y++) {
+            frame.limit((y + 1) * ROW_STRIDE).position(y * ROW_STRIDE);
+            padded.position(y * paddedStride);
+            padded.put(frame);
+        }
+        final FrameChangeDetector detector = newDetector();
+        detector.update(padded, paddedStride, 4);
+
+        // Garbage in the padding is never sampled
+        for (int y = 0; y < HEIGHT; y++) padded.put(y * paddedStride + ROW_STRIDE, (byte) y);
+        assertEquals(0, detector.update(padded, paddedStride, 4));
+    }
+
+    @Test
+    public void costPerFrame() {
+
+        final FrameChangeDetector detector = newDetector();
+        final ByteBuffer[] frames = {frame(0), frame(8)};
+        for (int i = 0; i < WARMUP_FRAMES; i++) detector.update(frames[i & 1], ROW_STRIDE, 4);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) detector.update(frames[i & 1], ROW_STRIDE, 4);
+        final long nanosPerFrame = (System.nanoTime() - start) / FRAMES;
+
+        // A small fraction of the 33 ms frame budget, with plenty of room for a slow machine
+        assertTrue(String.format(Locale.US, "FrameChangeDetector %dx%d: %d us/frame",
+                WIDTH, HEIGHT, nanosPerFrame / 1000), nanosPerFrame < 5_000_000);
+    }
+
+    private static FrameChangeDetector newDetector() {
+        return new FrameChangeDetector(WIDTH, HEIGHT, Constants.FRAME_GATE_SAMPLE_STEP, Constants.FRAME_GATE_BLOCK_SIZE);
+    }
+
+    /**
+     * A screen of text-like noise, scrolled up by {@code scrollRows} pixels.
+     */
+    private static ByteBuffer frame(final int scrollRows) {
+
+        final Random random = new Random(11);
+        final byte[] rows = new byte[(HEIGHT + scrollRows) * ROW_STRIDE];
+        for (int i = 0; i < rows.length; i += 4) {
+            final byte value = (byte) (random.nextBoolean() ? 0xF0 : 0x20);
+            rows[i] = value;
+            rows[i + 1] = value;
+            rows[i + 2] = value;
+            rows[i + 3] = (byte) 0xFF;
+        }
+        final ByteBuffer frame = ByteBuffer.allocateDirect(HEIGHT * ROW_STRIDE);
+        frame.put(rows, scrollRows * ROW_STRIDE, HEIGHT * ROW_STRIDE).clear();
+        return frame;
+    }
+
+    private static void fill(
+            final ByteBuffer frame,
+            final int x,
+            final int y,
+            final int width,
+            final int height,
+            final byte value
+    ) {
+
+        for (int row = y; row < y + height; row++)
+            for (int column = x; column < x + width; column++)
+                for (int channel = 0; channel < 3; channel++)
+                    frame.put(row * ROW_STRIDE + column * 4 + channel, value);
+    }
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 1280;
+    private static final int ROW_STRIDE = WIDTH * 4;
+    private static final int WARMUP_FRAMES = 200;
+    private static final int FRAMES = 300;
+}
@@ -0,0 +1,72 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrameGatePolicyTest {
+
+    @Test
+    public void staticScreenSendsOnlyKeepAliveFrames() {
+
+        final FrameGatePolicy policy = new FrameGatePolicy(2_000_000, 30);
+        int sent = 0;
+        // Ten seconds of an unchanging screen at 60 fps; the first frame is always sent
+        for (int i = 0; i < 600; i++)
+            if (policy.shouldEncode(i * 1_000_000L / 60, i == 0 ? 100 : 0)) sent++;
+
+        assertEquals(5, sent);
+        assertEquals(595, policy.getUnchangedDroppedCount());
+    }
+
+    @Test
+    public void changingScreenIsLimitedToTheFrameRate() {
+
+        final FrameGatePolicy policy = new FrameGatePolicy(2_000_000, 30);
+        int sent = 0;
+        for (int i = 0; i < 60; i++)
+            if (policy.shouldEncode(i * 1_000_000L / 60, 10)) sent++;
+        assertEquals(30, sent, 1);
+
+        policy.setFrameRate(10);
+        sent = 0;
+        for (int i = 60; i < 120; i++)
+            if (policy.shouldEncode(i * 1_000_000L / 60, 10)) sent++;
+        assertEquals(10, sent, 1);
+        assertEquals(0, policy.getUnchangedDroppedCount());
+    }
+
+    @Test
+    public void changeDroppedByTheLimiterIsSentWithTheNextFrame() {
+
+        final FrameGatePolicy policy = new FrameGatePolicy(2_000_000, 30);
+        assertTrue(policy.shouldEncode(0, 100));
+        // Too soon after the previous frame, so the limiter drops it
+        assertFalse(policy.shouldEncode(5_000, 3));
+        assertEquals(1, policy.getRateDroppedCount());
+        // Nothing changed since, but this frame still carries the earlier change
+        assertTrue(policy.shouldEncode(40_000, 0));
+        assertFalse(policy.shouldEncode(80_000, 0));
+    }
+
+    @Test
+    public void lastChangeOfABurstIsFlushedOnceTheLimitAllows() {
+
+        final FrameGatePolicy policy = new FrameGatePolicy(2_000_000, 30);
+        assertTrue(policy.shouldEncode(0, 100));
+        assertFalse(policy.shouldEncode(16_667, 7));
+        assertTrue(policy.hasPendingChange());
+
+        // No frame follows, so the dropped one must be sent when the limiter next accepts
+        final long delayUs = policy.getFlushDelayUs(16_667);
+        assertTrue("delay " + delayUs, delayUs > 0 && delayUs <= 33_333 - 16_667);
+        assertFalse(policy.flush(16_667));
+        assertTrue(policy.flush(16_667 + delayUs));
+        assertFalse(policy.hasPendingChange());
+        assertEquals(2, policy.getSentCount());
+        assertEquals(0, policy.getRateDroppedCount());
+        assertFalse(policy.flush(1_000_000));
+    }
+}
@@ -0,0 +1,68 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class FrameRateLimiterTest {
+
+    @Test
+    public void keepsTheTargetRateFromAFasterSource() {
+
+        assertEquals(10, kept(new FrameRateLimiter(10), 60, 0), 1);
+        assertEquals(15, kept(new FrameRateLimiter(15), 30, 0), 1);
+        assertEquals(30, kept(new FrameRateLimiter(30), 30, 0), 1);
+    }
+
+    @Test
+    public void toleratesCaptureJitter() {
+
+        // 30 fps capture with up to 3 ms of jitter must not lose frames at a 30 fps target
+        assertEquals(30, kept(new FrameRateLimiter(30), 30, 3_000), 1);
+        final int kept = kept(new FrameRateLimiter(20), 60, 3_000);
+        assertTrue("kept " + kept, kept >= 19 && kept <= 21);
+    }
+
+    @Test
+    public void followsRateChanges() {
+
+        final FrameRateLimiter limiter = new FrameRateLimiter(30);
+        assertEquals(30, kept(limiter, 30, 0), 1);
+        limiter.setFrameRate(5);
+        assertEquals(5, kept(limiter, 30, 0), 1);
+    }
+
+    @Test
+    public void delayEndsWhenTheNextFrameWouldBeKept() {
+
+        final FrameRateLimiter limiter = new FrameRateLimiter(30);
+        assertEquals(0, limiter.getDelayUs(0));
+        assertTrue(limiter.accept(0));
+        final long delayUs = limiter.getDelayUs(10_000);
+        assertTrue("delay " + delayUs, delayUs > 0);
+        assertFalse(limiter.accept(10_000 + delayUs - 1));
+        assertEquals(0, limiter.getDelayUs(10_000 + delayUs));
+        assertTrue(limiter.accept(10_000 + delayUs));
+    }
+
+    /**
+     * Frames kept out of one second of a {@code sourceRate} stream.
+     */
+    private int kept(final FrameRateLimiter limiter, final int sourceRate, final int jitterUs) {
+
+        int kept = 0;
+        for (int i = 0; i < sourceRate; i++) {
+            final long jitter = jitterUs == 0 ? 0 : random.nextInt(2 * jitterUs) - jitterUs;
+            if (limiter.accept(timeUs + i * 1_000_000L / sourceRate + jitter)) kept++;
+        }
+        timeUs += 1_000_000;
+        return kept;
+    }
+
+    private final Random random = new Random(5);
+    private long timeUs = 10_000_000;
+}
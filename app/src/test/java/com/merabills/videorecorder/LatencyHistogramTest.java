@@ -0,0 +1,89 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueInOrder() {
+
+        int previous = -1;
+        for (long value = 0; value < 100_000; value++) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(LatencyHistogram.highestValueIn(index) >= value);
+            previous = index;
+        }
+        final int last = LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueIn(last));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1_000_000; nanos++)
+            histogram.record(nanos * 1000);
+
+        assertEquals(1_000_000, histogram.getCount());
+        assertEquals(1_000_000_000L, histogram.getMaxNanos());
+        assertEquals(500_000_000L, histogram.getValueAtPercentile(50), 500_000_000L * 0.04);
+        assertEquals(990_000_000L, histogram.getValueAtPercentile(99), 990_000_000L * 0.04);
+        assertEquals(1_000_000_000L, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Random random = new Random(3);
+        for (int i = 0; i < 1000; i++)
+            histogram.record(random.nextInt(10));
+        histogram.record(42);
+
+        assertEquals(42, histogram.getValueAtPercentile(100));
+        assertTrue(histogram.getValueAtPercentile(50) < 10);
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void countsEveryValueRecordedConcurrently() throws Exception {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) histogram.record(i);
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) thread.join();
+
+        assertEquals(400_000, histogram.getCount());
+        assertEquals(99_999, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void singleWriterHistogramsAddUpToOne() {
+
+        final LatencyHistogram low = new LatencyHistogram(true);
+        final LatencyHistogram high = new LatencyHistogram(true);
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            low.record(nanos);
+            high.record(nanos + 1000);
+        }
+
+        final LatencyHistogram both = new LatencyHistogram();
+        both.add(low);
+        both.add(high);
+        assertEquals(2000, both.getCount());
+        assertEquals(2000, both.getMaxNanos());
+        assertEquals(1000, both.getMeanNanos());
+        assertEquals(1000, both.getValueAtPercentile(50), 1000 * 0.04);
+    }
+}
@@ -0,0 +1,125 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class LocalDirectoryStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void uploadsBlocksInParallelAndMeasuresThem() throws Exception {
+
+        final File target = folder.newFolder("target");
+        final MeteredBlockStore store = new MeteredBlockStore(new LocalDirectoryStore(target));
+        final byte[] content = randomBytes(10 * BLOCK_SIZE + 17);
+        final File file = folder.newFile();
+        Files.write(file.toPath(), content);
+
+        final BlockBlobUploader.Result result = new BlockBlobUploader(store, executor, BLOCK_SIZE, 4, 0, 0)
+                .upload(file, "day/recording.mp4", new File(file.getPath() + ".upload"));
+
+        assertArrayEquals(content, Files.readAllBytes(new File(target, "day/recording.mp4").toPath()));
+        assertEquals(11, result.blocksStaged);
+        assertEquals(content.length, store.getStagedBytes());
+        assertEquals(11, store.getStageLatency().getCount());
+        assertEquals(1, store.getCommitLatency().getCount());
+        assertEquals(0, store.getFailureCount());
+        assertTrue(store.getMegabytesPerSecondPerStage() > 0);
+        // Only the blob is left once the upload has committed it
+        final String[] staged = new File(target, ".staging").list();
+        assertEquals(0, staged == null ? 0 : staged.length);
+    }
+
+    @Test
+    public void extendsACommittedBlobAndDropsUnlistedBlocks() throws Exception {
+
+        final LocalDirectoryStore store = new LocalDirectoryStore(folder.getRoot());
+        store.stageBlock(BLOB, id(0), ByteBuffer.wrap(new byte[]{1, 2}));
+        store.stageBlock(BLOB, id(1), ByteBuffer.wrap(new byte[]{3}));
+        store.stageBlock(BLOB, id(2), ByteBuffer.wrap(new byte[]{9}));
+        store.commitBlockList(BLOB, List.of(id(0), id(1)));
+        assertEquals(3, store.getBlobSize(BLOB));
+
+        store.stageBlock(BLOB, id(2), ByteBuffer.wrap(new byte[]{4, 5}));
+        store.commitBlockList(BLOB, List.of(id(0), id(1), id(2)));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, Files.readAllBytes(new File(folder.getRoot(), BLOB).toPath()));
+
+        store.commitBlockList(BLOB, List.of(id(0)));
+        try {
+            store.commitBlockList(BLOB, List.of(id(0), id(1)));
+            fail("Blocks left out of a commit are discarded");
+        } catch (IOException expected) {
+            // Expected
+        }
+        assertEquals(2, store.getBlobSize(BLOB));
+    }
+
+    @Test
+    public void finalCommitDeletesTheStagedBlocks() throws Exception {
+
+        final LocalDirectoryStore store = new LocalDirectoryStore(folder.getRoot());
+        store.stageBlock(BLOB, id(0), ByteBuffer.wrap(new byte[]{1, 2}));
+        store.commitBlockList(BLOB, List.of(id(0)));
+        store.stageBlock(BLOB, id(1), ByteBuffer.wrap(new byte[]{3}));
+        store.commitFinalBlockList(BLOB, List.of(id(0), id(1)));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(new File(folder.getRoot(), BLOB).toPath()));
+        final String[] staged = new File(folder.getRoot(), ".staging").list();
+        assertEquals(0, staged == null ? 0 : staged.length);
+    }
+
+    @Test
+    public void keepsBlobsInsideTheDirectory() throws Exception {
+
+        final LocalDirectoryStore store = new LocalDirectoryStore(folder.newFolder("target"));
+        assertEquals(-1, store.getBlobSize(BLOB));
+        for (final String name : new String[]{"../escape.mp4", "a//b.mp4", ".staging/x"}) {
+            try {
+                store.commitBlockList(name, List.of());
+                fail(name + " is not a valid blob name");
+            } catch (IOException expected) {
+                // Expected
+            }
+        }
+        assertEquals(-1, new LocalDirectoryStore(folder.getRoot()).getBlobSize("escape.mp4"));
+    }
+
+    private static String id(final int index) {
+        return BlockBlobUploader.blockId(index);
+    }
+
+    private static byte[] randomBytes(final int length) {
+
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static final String BLOB = "recording.mp4";
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+}
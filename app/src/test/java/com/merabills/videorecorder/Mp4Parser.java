@@ -0,0 +1,108 @@
+package com.merabills.videorecorder;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal ISO BMFF box reader for checking the structure of files written in tests.
+ */
+public final class Mp4Parser {
+
+    public static final class Box {
+
+        Box(@NonNull String type, int offset, long size, int headerSize) {
+
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        public int payloadOffset() {
+            return offset + headerSize;
+        }
+
+        public int end() {
+            return (int) (offset + size);
+        }
+
+        public final String type;
+        public final int offset;
+        public final long size;
+        public final int headerSize;
+    }
+
+    private Mp4Parser() {
+    }
+
+    /**
+     * Boxes laid end to end in {@code [start, end)}; throws if they do not exactly fill it.
+     */
+    @NonNull
+    public static List<Box> parse(@NonNull final byte[] data, final int start, final int end) {
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final List<Box> boxes = new ArrayList<>();
+        int offset = start;
+        while (offset < end) {
+            if (end - offset < 8) throw new IllegalStateException("Truncated box header at " + offset);
+            long size = buffer.getInt(offset) & 0xFFFFFFFFL;
+            final String type = new String(data, offset + 4, 4, StandardCharsets.US_ASCII);
+            int headerSize = 8;
+            if (size == 1) {
+                size = buffer.getLong(offset + 8);
+                headerSize = 16;
+            }
+            if (size < headerSize || offset + size > end)
+                throw new IllegalStateException("Bad size for " + type + " at " + offset);
+            boxes.add(new Box(type, offset, size, headerSize));
+            offset += (int) size;
+        }
+        return boxes;
+    }
+
+    @NonNull
+    public static List<Box> children(@NonNull final byte[] data, @NonNull final Box parent) {
+        return parse(data, parent.payloadOffset(), parent.end());
+    }
+
+    /**
+     * First descendant reached by following {@code path} of box types, or null.
+     */
+    public static Box find(@NonNull final byte[] data, @NonNull final Box parent, @NonNull final String... path) {
+
+        Box current = parent;
+        for (final String type : path) {
+            Box next = null;
+            for (final Box child : children(data, current))
+                if (child.type.equals(type)) {
+                    next = child;
+                    break;
+                }
+            if (next == null) return null;
+            current = next;
+        }
+        return current;
+    }
+
+    @NonNull
+    public static List<Box> all(@NonNull final byte[] data, @NonNull final Box parent, @NonNull final String type) {
+
+        final List<Box> matches = new ArrayList<>();
+        for (final Box child : children(data, parent))
+            if (child.type.equals(type)) matches.add(child);
+        return matches;
+    }
+
+    public static long u32(@NonNull final byte[] data, final int offset) {
+        return ByteBuffer.wrap(data).getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    public static long u64(@NonNull final byte[] data, final int offset) {
+        return ByteBuffer.wrap(data).getLong(offset);
+    }
+}
@@ -0,0 +1,94 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class MpscRingTest {
+
+    @Test
+    public void offerFailsWhenFullAndSucceedsAfterPoll() {
+
+        final MpscRing<Integer> ring = new MpscRing<>(3);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++)
+            assertTrue(ring.offer(i));
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++)
+            assertEquals(Integer.valueOf(i), ring.poll());
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void preallocatedSlotsAreFilledInPlaceAndReused() {
+
+        final MpscRing<long[]> ring = new MpscRing<>(2, () -> new long[1]);
+        final long first = ring.claim();
+        final long[] slot = ring.get(first);
+        slot[0] = 7;
+        // Claimed but not yet published, so the consumer cannot see it
+        assertNull(ring.peek());
+        ring.publish(first);
+        assertEquals(1, ring.claim());
+        assertEquals(-1, ring.claim());
+
+        assertEquals(7, ring.peek()[0]);
+        ring.advance();
+        // The same element comes round again on the next lap
+        assertSame(slot, ring.get(ring.claim()));
+    }
+
+    @Test
+    public void everyElementFromConcurrentProducersIsDeliveredOnceInPerProducerOrder()
+            throws Exception {
+
+        final int producers = 4;
+        final int perProducer = 50_000;
+        final MpscRing<Long> ring = new MpscRing<>(1024);
+        final CountDownLatch go = new CountDownLatch(1);
+
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final long id = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long i = 0; i < perProducer; i++)
+                    while (!ring.offer((id << 32) | i))
+                        Thread.yield();
+            });
+            threads[p].start();
+        }
+        go.countDown();
+
+        final long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            final Long value = ring.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            final int producer = (int) (value >>> 32);
+            assertEquals(next[producer]++, value & 0xffffffffL);
+            received++;
+        }
+        for (final Thread thread : threads)
+            thread.join();
+        assertNull(ring.poll());
+    }
+}
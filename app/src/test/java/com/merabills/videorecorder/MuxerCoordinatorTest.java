@@ -0,0 +1,305 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MuxerCoordinatorTest {
+
+    @Test
+    public void samplesBeforeStartAreFlushedInTimestampOrder() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(
+                muxer, 2, 1024 * 1024, MuxerCoordinator.DropPolicy.DROP_OLDEST);
+
+        final int video = coordinator.addTrack(null);
+        assertTrue(coordinator.writeSample(video, sample(1), 100, 1));
+        assertTrue(coordinator.writeSample(video, sample(2), 300, 0));
+        coordinator.awaitIdle();
+        assertFalse(muxer.isStarted());
+
+        final int audio = coordinator.addTrack(null);
+        assertTrue(coordinator.writeSample(audio, sample(3), 200, 0));
+        coordinator.stopMuxer();
+
+        final List<FakeSampleMuxer.Sample> written = muxer.getSamples();
+        assertEquals(3, written.size());
+        assertEquals(100, written.get(0).presentationTimeUs);
+        assertEquals(1, written.get(0).flags);
+        assertEquals(200, written.get(1).presentationTimeUs);
+        assertEquals(300, written.get(2).presentationTimeUs);
+        assertEquals(0, coordinator.getQueuedBytes());
+        assertTrue(muxer.isStopped());
+    }
+
+    @Test
+    public void queuedSampleIsACopyOfTheCallersBuffer() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 1);
+
+        final ByteBuffer codecBuffer = ByteBuffer.allocate(16);
+        codecBuffer.put(new byte[]{7, 7, 7, 7}).flip();
+        coordinator.writeSample(0, codecBuffer, 0, 0);
+        assertEquals(0, codecBuffer.position());
+
+        // The encoder reuses its buffer as soon as writeSample returns
+        codecBuffer.clear();
+        codecBuffer.put(new byte[]{9, 9, 9, 9});
+        coordinator.addTrack(null);
+        coordinator.stopMuxer();
+
+        assertEquals(7, muxer.getSamples().get(0).data[0]);
+    }
+
+    @Test
+    public void dropOldestEvictsFromTheHeadOfTheQueue() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(
+                muxer, 1, 100, MuxerCoordinator.DropPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < 5; i++)
+            assertTrue(coordinator.writeSample(0, sample(40), i, 0));
+        coordinator.awaitIdle();
+        assertEquals(3, coordinator.getDroppedSampleCount());
+        assertEquals(80, coordinator.getQueuedBytes());
+
+        coordinator.addTrack(null);
+        coordinator.stopMuxer();
+        final List<FakeSampleMuxer.Sample> written = muxer.getSamples();
+        assertEquals(2, written.size());
+        assertEquals(3, written.get(0).presentationTimeUs);
+        assertEquals(4, written.get(1).presentationTimeUs);
+    }
+
+    @Test
+    public void dropNewestRejectsTheIncomingSample() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(
+                muxer, 1, 100, MuxerCoordinator.DropPolicy.DROP_NEWEST);
+
+        assertTrue(coordinator.writeSample(0, sample(60), 0, 0));
+        assertTrue(coordinator.writeSample(0, sample(60), 1, 0));
+        coordinator.awaitIdle();
+        assertEquals(1, coordinator.getDroppedSampleCount());
+
+        coordinator.addTrack(null);
+        coordinator.stopMuxer();
+        assertEquals(1, muxer.getSamples().size());
+        assertEquals(0, muxer.getSamples().get(0).presentationTimeUs);
+    }
+
+    @Test
+    public void stopReleasesQueuedSamplesWhenTheMuxerNeverStarted() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 2);
+
+        coordinator.addTrack(null);
+        coordinator.writeSample(0, sample(10), 0, 0);
+        coordinator.stopMuxer();
+        assertTrue(muxer.getSamples().isEmpty());
+
+        assertEquals(0, coordinator.getQueuedBytes());
+        assertFalse(coordinator.writeSample(0, sample(10), 1, 0));
+        assertFalse(muxer.isStopped());
+    }
+
+    @Test
+    public void producersNeverSleepWhileTheMuxerIsStarting() throws Exception {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(
+                muxer, 2, 64L * 1024 * 1024, MuxerCoordinator.DropPolicy.DROP_OLDEST, 8192, 250_000);
+        final int samplesPerTrack = 2_000;
+
+        final CountDownLatch preStartDone = new CountDownLatch(2);
+        final CountDownLatch tracksAdded = new CountDownLatch(1);
+        final Thread video = producer(coordinator, 0, samplesPerTrack, preStartDone, tracksAdded);
+        final Thread audio = producer(coordinator, 1, samplesPerTrack, preStartDone, tracksAdded);
+
+        final AtomicBoolean sawSleep = new AtomicBoolean();
+        final AtomicBoolean watching = new AtomicBoolean(true);
+        final Thread watcher = new Thread(() -> {
+            while (watching.get()) {
+                if (isSleeping(video) || isSleeping(audio)) sawSleep.set(true);
+                Thread.onSpinWait();
+            }
+        });
+        watcher.start();
+        video.start();
+        audio.start();
+
+        // Both producers finish their first half without the muxer having started
+        preStartDone.await();
+        assertFalse(muxer.isStarted());
+        coordinator.addTrack(null);
+        coordinator.addTrack(null);
+        tracksAdded.countDown();
+
+        video.join();
+        audio.join();
+        watching.set(false);
+        watcher.join();
+        coordinator.stopMuxer();
+
+        assertFalse("a producer thread slept or waited", sawSleep.get());
+        assertEquals(2 * samplesPerTrack, muxer.getSamples().size());
+        assertEquals(0, coordinator.getDroppedSampleCount());
+    }
+
+    @Test
+    public void tracksAreInterleavedByTimestampWithinTheReorderWindow() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(
+                muxer, 2, 1024 * 1024, MuxerCoordinator.DropPolicy.DROP_OLDEST, 256, 100_000);
+        coordinator.addTrack(null);
+        coordinator.addTrack(null);
+
+        // Audio reaches the coordinator up to 60 ms behind video, inside the 100 ms window
+        int videoFrames = 0;
+        int audioFrames = 0;
+        for (long nowUs = 0; nowUs < 1_000_000; nowUs += 1_000) {
+            while (videoFrames * 33_333L <= nowUs)
+                coordinator.writeSample(0, sample(100), videoFrames++ * 33_333L, 0);
+            while (audioFrames * 23_220L <= nowUs - 60_000)
+                coordinator.writeSample(1, sample(10), audioFrames++ * 23_220L, 0);
+        }
+        coordinator.stopMuxer();
+
+        final List<FakeSampleMuxer.Sample> written = muxer.getSamples();
+        assertEquals(videoFrames + audioFrames, written.size());
+        long previous = Long.MIN_VALUE;
+        for (final FakeSampleMuxer.Sample sample : written) {
+            assertTrue(sample.presentationTimeUs >= previous);
+            previous = sample.presentationTimeUs;
+        }
+    }
+
+    @Test
+    public void decodeOrderIsPreservedWithinATrack() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 1);
+        coordinator.addTrack(null);
+
+        // I P B B: presentation order differs from decode order
+        final long[] decodeOrder = {0, 99_999, 33_333, 66_666};
+        for (final long presentationTimeUs : decodeOrder)
+            coordinator.writeSample(0, sample(8), presentationTimeUs, 0);
+        coordinator.stopMuxer();
+
+        final List<FakeSampleMuxer.Sample> written = muxer.getSamples();
+        for (int i = 0; i < decodeOrder.length; i++)
+            assertEquals(decodeOrder[i], written.get(i).presentationTimeUs);
+    }
+
+    @Test
+    public void enqueueStatisticsAreReported() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 1);
+        for (int i = 0; i < 10; i++)
+            coordinator.writeSample(0, sample(64), i, 0);
+        coordinator.awaitIdle();
+
+        assertEquals(10, coordinator.getEnqueueLatency().getCount());
+        assertTrue(coordinator.getEnqueueLatency().getMaxNanos() > 0);
+        assertEquals(0, coordinator.getQueueDepth());
+        assertEquals(10, coordinator.getPendingSampleCount());
+        coordinator.stopMuxer();
+    }
+
+    @Test
+    public void handoffAllocatesNothingOnceWarm() {
+
+        final MuxerCoordinator coordinator = new MuxerCoordinator(new FakeSampleMuxer(), 1);
+        coordinator.addTrack(null);
+        final ByteBuffer codecBuffer = ByteBuffer.allocateDirect(4096);
+        // Fill the buffer pool and let the JIT compile the path first
+        handOff(coordinator, codecBuffer, 20_000);
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        handOff(coordinator, codecBuffer, 1_000);
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        coordinator.stopMuxer();
+
+        assertEquals("bytes allocated by 1000 handoffs", 0, allocated);
+    }
+
+    private static void handOff(final MuxerCoordinator coordinator, final ByteBuffer codecBuffer, final int count) {
+
+        for (int i = 0; i < count; i++) {
+            codecBuffer.clear().limit(1000 + i % 3000);
+            assertTrue(coordinator.writeSample(0, codecBuffer, i * 1000L, 0));
+            // Waiting for the writer keeps the buffer pool from running dry
+            coordinator.awaitIdle();
+        }
+    }
+
+    private static Thread producer(
+            final MuxerCoordinator coordinator,
+            final int track,
+            final int count,
+            final CountDownLatch preStartDone,
+            final CountDownLatch tracksAdded
+    ) {
+
+        return new Thread(() -> {
+            final ByteBuffer codecBuffer = ByteBuffer.allocateDirect(512);
+            for (int i = 0; i < count; i++) {
+                if (i == count / 2) {
+                    preStartDone.countDown();
+                    awaitQuietly(tracksAdded);
+                }
+                codecBuffer.clear().limit(256 + track);
+                coordinator.writeSample(track, codecBuffer, i * 1000L, 0);
+            }
+        });
+    }
+
+    private static boolean isSleeping(final Thread thread) {
+
+        if (!isWaiting(thread)) return false;
+        final StackTraceElement[] stack = thread.getStackTrace();
+        if (!isWaiting(thread)) return false;
+        // Only a wait inside the coordinator counts; the test's own latch is outside it
+        for (final StackTraceElement frame : stack)
+            if (frame.getClassName().equals(MuxerCoordinator.class.getName())) return true;
+        return false;
+    }
+
+    private static boolean isWaiting(final Thread thread) {
+
+        final Thread.State state = thread.getState();
+        return state == Thread.State.TIMED_WAITING || state == Thread.State.WAITING;
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ByteBuffer sample(final int size) {
+        return ByteBuffer.wrap(new byte[size]);
+    }
+}
@@ -0,0 +1,210 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Compares the old capture loop (read into a heap array, then copy into the codec buffer)
+ * with {@link PcmReader}, which reads straight into the codec's direct buffer.
+ */
+public class PcmCaptureBenchmarkTest {
+
+    @Test
+    public void readerFillsWholeFramesFromTheBufferCapacity() {
+
+        final FakePcmSource source = new FakePcmSource();
+        final PcmReader reader = new PcmReader(source, 4, 1 << 20);
+        final ByteBuffer input = ByteBuffer.allocateDirect(4098);
+        input.position(100);
+
+        assertEquals(4096, reader.readInto(input));
+        assertEquals(0, input.position());
+        assertEquals(4096, input.limit());
+    }
+
+    @Test
+    public void readerHonoursTheChunkCap() {
+
+        final PcmReader reader = new PcmReader(new FakePcmSource(), 4, 1026);
+        assertEquals(1024, reader.readInto(ByteBuffer.allocateDirect(8192)));
+    }
+
+    @Test
+    public void directPathCopiesLessAndAllocatesNothingPerChunk() {
+
+        final ByteBuffer codecInput = ByteBuffer.allocateDirect(CODEC_INPUT_CAPACITY);
+        final FakePcmSource source = new FakePcmSource();
+        final PcmReader reader = new PcmReader(source, 4, CODEC_INPUT_CAPACITY);
+        final byte[] tempBuffer = new byte[4096];
+
+        // Warm both paths up so the JIT has compiled them before measuring
+        runHeapCopyPath(source, codecInput, tempBuffer, WARMUP_CHUNKS);
+        runDirectPath(reader, codecInput, WARMUP_CHUNKS);
+
+        final Result before = measure("heap copy", () -> runHeapCopyPath(source, codecInput, tempBuffer, CHUNKS));
+        final Result after = measure("direct read", () -> runDirectPath(reader, codecInput, CHUNKS));
+        System.out.println(before);
+        System.out.println(after);
+
+        // Once warmed up, the direct path allocates nothing at all
+        if (after.allocatedBytes >= 0)
+            assertEquals("direct path allocated " + after.allocatedBytes + " bytes", 0, after.allocatedBytes);
+        assertEquals(0, after.gcCount);
+    }
+
+    private static long runHeapCopyPath(
+            final FakePcmSource source,
+            final ByteBuffer codecInput,
+            final byte[] tempBuffer,
+            final int chunks
+    ) {
+
+        long total = 0;
+        for (int i = 0; i < chunks; i++) {
+            codecInput.clear();
+            final int read = source.read(tempBuffer, 0, tempBuffer.length);
+            codecInput.put(tempBuffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    private static long runDirectPath(
+            final PcmReader reader,
+            final ByteBuffer codecInput,
+            final int chunks
+    ) {
+
+        long total = 0;
+        for (int i = 0; i < chunks; i++)
+            total += reader.readInto(codecInput);
+        return total;
+    }
+
+    private interface Loop {
+        long run();
+    }
+
+    private static Result measure(final String name, final Loop loop) {
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long gcBefore = gcCount();
+        final long allocatedBefore = allocatedBytes(threads);
+        final long start = System.nanoTime();
+        final long bytes = loop.run();
+        final long elapsed = System.nanoTime() - start;
+        final long allocatedAfter = allocatedBytes(threads);
+        return new Result(
+                name,
+                bytes * 1_000_000_000.0 / elapsed,
+                gcCount() - gcBefore,
+                allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore
+        );
+    }
+
+    private static long gcCount() {
+
+        long count = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long allocatedBytes(final ThreadMXBean threads) {
+
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        return -1;
+    }
+
+    private static final class Result {
+
+        Result(String name, double bytesPerSecond, long gcCount, long allocatedBytes) {
+
+            this.name = name;
+            this.bytesPerSecond = bytesPerSecond;
+            this.gcCount = gcCount;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-12s %8.1f MB/s  gc=%d  allocated=%d B",
+                    name, bytesPerSecond / (1024 * 1024), gcCount, allocatedBytes);
+        }
+
+        final String name;
+        final double bytesPerSecond;
+        final long gcCount;
+        final long allocatedBytes;
+    }
+
+    /**
+     * Emits a repeating 16-bit stereo tone, copying from a prebuilt period the way
+     * AudioRecord copies from its ring buffer.
+     */
+    private static final class FakePcmSource implements PcmSource {
+
+        FakePcmSource() {
+
+            for (int frame = 0; frame < PERIOD_FRAMES; frame++) {
+                final short value = (short) (Math.sin(2 * Math.PI * frame / PERIOD_FRAMES) * 12000);
+                for (int channel = 0; channel < 2; channel++) {
+                    heapPeriod[frame * 4 + channel * 2] = (byte) value;
+                    heapPeriod[frame * 4 + channel * 2 + 1] = (byte) (value >> 8);
+                }
+            }
+            directPeriod.put(heapPeriod).flip();
+        }
+
+        @Override
+        public int read(@NonNull ByteBuffer buffer, int sizeInBytes) {
+
+            // Like AudioRecord, leave the caller's position and limit untouched
+            final int position = buffer.position();
+            final int limit = buffer.limit();
+            final int size = Math.min(sizeInBytes, buffer.capacity());
+            buffer.clear();
+            for (int written = 0; written < size; ) {
+                final int chunk = Math.min(size - written, heapPeriod.length - offset);
+                directPeriod.limit(offset + chunk).position(offset);
+                buffer.put(directPeriod);
+                written += chunk;
+                offset = (offset + chunk) % heapPeriod.length;
+            }
+            buffer.limit(limit).position(position);
+            return size;
+        }
+
+        int read(byte[] buffer, int offsetInBytes, int sizeInBytes) {
+
+            for (int written = 0; written < sizeInBytes; ) {
+                final int chunk = Math.min(sizeInBytes - written, heapPeriod.length - offset);
+                System.arraycopy(heapPeriod, offset, buffer, offsetInBytes + written, chunk);
+                written += chunk;
+                offset = (offset + chunk) % heapPeriod.length;
+            }
+            return sizeInBytes;
+        }
+
+        private static final int PERIOD_FRAMES = 441;
+        private final byte[] heapPeriod = new byte[PERIOD_FRAMES * 4];
+        private final ByteBuffer directPeriod = ByteBuffer.allocateDirect(PERIOD_FRAMES * 4);
+        private int offset = 0;
+    }
+
+    private static final int CODEC_INPUT_CAPACITY = 4096;
+    private static final int WARMUP_CHUNKS = 20_000;
+    private static final int CHUNKS = 100_000;
+}
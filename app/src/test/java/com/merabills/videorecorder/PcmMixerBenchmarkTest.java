@@ -0,0 +1,106 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Throughput of {@link PcmMixer} on synthetic 48 kHz stereo PCM, next to a straightforward
+ * float mix with {@code tanh} clipping that reads and writes the byte buffers sample by sample.
+ */
+public class PcmMixerBenchmarkTest {
+
+    @Test
+    public void mixesFarFasterThanRealTimeWithoutAllocating() {
+
+        final PcmMixer mixer = new PcmMixer(2, CHANNELS, CHUNK_FRAMES);
+        synthesize(mixer.getSourceBuffer(0), 440, 20000);
+        synthesize(mixer.getSourceBuffer(1), 180, 16000);
+        final ByteBuffer playback = toBytes(mixer.getSourceBuffer(0));
+        final ByteBuffer microphone = toBytes(mixer.getSourceBuffer(1));
+        final ByteBuffer codecInput = ByteBuffer.allocateDirect(CHUNK_FRAMES * CHANNELS * 2);
+
+        // Warm both paths up so the JIT has compiled them before measuring
+        runNaive(playback, microphone, codecInput, WARMUP_CHUNKS);
+        runMixer(mixer, codecInput, WARMUP_CHUNKS);
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long start = System.nanoTime();
+        runNaive(playback, microphone, codecInput, CHUNKS);
+        final long naiveNanos = System.nanoTime() - start;
+
+        final long allocatedBefore = allocatedBytes(threads);
+        start = System.nanoTime();
+        runMixer(mixer, codecInput, CHUNKS);
+        final long mixerNanos = System.nanoTime() - start;
+        final long allocated = allocatedBytes(threads) - allocatedBefore;
+
+        final double audioSeconds = (double) CHUNKS * CHUNK_FRAMES / SAMPLE_RATE;
+        System.out.println(String.format(Locale.US, "naive float mix %8.0fx real time", audioSeconds * 1e9 / naiveNanos));
+        System.out.println(String.format(Locale.US, "PcmMixer        %8.0fx real time, allocated=%d B",
+                audioSeconds * 1e9 / mixerNanos, allocated));
+
+        // Generous bound so a slow or shared machine does not fail the build
+        assertTrue(audioSeconds * 1e9 / mixerNanos > 50);
+        if (allocatedBefore >= 0) assertTrue("allocated " + allocated + " bytes", allocated < 16 * 1024);
+    }
+
+    private static void runMixer(final PcmMixer mixer, final ByteBuffer codecInput, final int chunks) {
+
+        for (int i = 0; i < chunks; i++)
+            mixer.mixInto(codecInput, CHUNK_FRAMES);
+    }
+
+    private static void runNaive(
+            final ByteBuffer playback,
+            final ByteBuffer microphone,
+            final ByteBuffer codecInput,
+            final int chunks
+    ) {
+
+        codecInput.order(ByteOrder.LITTLE_ENDIAN);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            for (int i = 0; i < CHUNK_FRAMES * CHANNELS; i++) {
+                final float sum = (playback.getShort(i * 2) + microphone.getShort(i * 2)) / 32768f;
+                codecInput.putShort(i * 2, (short) (Math.tanh(sum) * 32767));
+            }
+        }
+    }
+
+    private static void synthesize(final short[] samples, final int frequency, final int amplitude) {
+
+        for (int frame = 0; frame < samples.length / CHANNELS; frame++) {
+            final short value = (short) (Math.sin(2 * Math.PI * frequency * frame / SAMPLE_RATE) * amplitude);
+            for (int channel = 0; channel < CHANNELS; channel++)
+                samples[frame * CHANNELS + channel] = value;
+        }
+    }
+
+    private static ByteBuffer toBytes(final short[] samples) {
+
+        final ByteBuffer bytes = ByteBuffer.allocateDirect(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < samples.length; i++) bytes.putShort(i * 2, samples[i]);
+        return bytes;
+    }
+
+    private static long allocatedBytes(final ThreadMXBean threads) {
+
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        return -1;
+    }
+
+    private static final int SAMPLE_RATE = 48_000;
+    private static final int CHANNELS = 2;
+    // 20 ms, a typical AAC input buffer
+    private static final int CHUNK_FRAMES = 960;
+    private static final int WARMUP_CHUNKS = 5_000;
+    private static final int CHUNKS = 5_000;
+}
@@ -0,0 +1,85 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class PcmMixerTest {
+
+    @Test
+    public void sumsSourcesBelowTheKnee() {
+
+        final PcmMixer mixer = new PcmMixer(2, 2, 4);
+        fill(mixer.getSourceBuffer(0), 1000, -2000, 3000, -4000);
+        fill(mixer.getSourceBuffer(1), 100, 200, -300, 400);
+
+        final ByteBuffer out = ByteBuffer.allocateDirect(64);
+        assertEquals(8, mixer.mixInto(out, 2));
+        assertEquals(0, out.position());
+        assertEquals(8, out.limit());
+
+        final ByteBuffer littleEndian = out.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(1100, littleEndian.getShort(0));
+        assertEquals(-1800, littleEndian.getShort(2));
+        assertEquals(2700, littleEndian.getShort(4));
+        assertEquals(-3600, littleEndian.getShort(6));
+        assertEquals(0, mixer.getClippedSampleCount());
+    }
+
+    @Test
+    public void appliesGains() {
+
+        final PcmMixer mixer = new PcmMixer(2, 1, 2);
+        mixer.setGain(0, 0.5f);
+        mixer.setGain(1, 2.0f);
+        fill(mixer.getSourceBuffer(0), 8000, -8000);
+        fill(mixer.getSourceBuffer(1), 1000, 1000);
+
+        final ByteBuffer out = ByteBuffer.allocate(4);
+        mixer.mixInto(out, 2);
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(6000, out.getShort(0));
+        assertEquals(-2000, out.getShort(2));
+    }
+
+    @Test
+    public void loudOverlapIsCompressedNotWrapped() {
+
+        final PcmMixer mixer = new PcmMixer(2, 1, 2);
+        fill(mixer.getSourceBuffer(0), 30000, -30000);
+        fill(mixer.getSourceBuffer(1), 30000, -30000);
+
+        final ByteBuffer out = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        mixer.mixInto(out, 2);
+        final short loud = out.getShort(0);
+        assertTrue("mixed " + loud, loud > PcmMixer.KNEE && loud < Short.MAX_VALUE);
+        assertEquals(-loud, out.getShort(2));
+        assertEquals(2, mixer.getClippedSampleCount());
+    }
+
+    @Test
+    public void softClipIsContinuousAndMonotonic() {
+
+        assertEquals(PcmMixer.KNEE, PcmMixer.softClip(PcmMixer.KNEE));
+        // Slope is still close to 1 just above the knee
+        assertEquals(PcmMixer.KNEE + 100, PcmMixer.softClip(PcmMixer.KNEE + 100), 2);
+        int previous = PcmMixer.softClip(0);
+        for (int value = 1; value <= 4 * Short.MAX_VALUE; value++) {
+            final int clipped = PcmMixer.softClip(value);
+            assertTrue(clipped >= previous);
+            assertTrue(clipped < Short.MAX_VALUE);
+            assertEquals(-clipped, PcmMixer.softClip(-value));
+            previous = clipped;
+        }
+    }
+
+    private static void fill(final short[] buffer, final int... values) {
+
+        for (int i = 0; i < values.length; i++)
+            buffer[i] = (short) values[i];
+    }
+}
@@ -0,0 +1,126 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PcmRingTest {
+
+    @Test
+    public void readsTheFramesCoveringATimeWindow() {
+
+        // 1 kHz keeps one frame per millisecond
+        final PcmRing ring = new PcmRing(1000, 1, 100);
+        ring.write(ramp(0, 20), 20, 1, 50_000);
+
+        final short[] out = new short[10];
+        assertEquals(10, ring.read(out, 10, 55_000, 0));
+        assertEquals(5, out[0]);
+        assertEquals(14, out[9]);
+    }
+
+    @Test
+    public void fillsMissingSpansWithSilence() {
+
+        final PcmRing ring = new PcmRing(1000, 1, 100);
+        final short[] out = new short[10];
+        assertEquals(0, ring.read(out, 10, 0, 0));
+
+        ring.write(ramp(1, 10), 10, 1, 100_000);
+        // Starts before the first captured frame and ends after the last one
+        assertEquals(5, ring.read(out, 10, 95_000 + 10_000, 0));
+        assertEquals(6, out[0]);
+        assertEquals(10, out[4]);
+        assertEquals(0, out[5]);
+
+        final short[] early = new short[5];
+        fill(early, 7);
+        assertEquals(3, ring.read(early, 5, 98_000, 0));
+        assertEquals(0, early[1]);
+        assertEquals(1, early[2]);
+    }
+
+    @Test
+    public void overwrittenFramesAreSilence() {
+
+        final PcmRing ring = new PcmRing(1000, 1, 10);
+        ring.write(ramp(0, 30), 30, 1, 0);
+
+        final short[] out = new short[10];
+        assertEquals(5, ring.read(out, 10, 15_000, 0));
+        assertEquals(0, out[4]);
+        assertEquals(20, out[5]);
+    }
+
+    @Test
+    public void duplicatesMonoIntoStereo() {
+
+        final PcmRing ring = new PcmRing(1000, 2, 16);
+        ring.write(new short[]{3, -4, 5}, 3, 1, 0);
+
+        final short[] out = new short[6];
+        assertEquals(3, ring.read(out, 3, 0, 0));
+        assertEquals(3, out[0]);
+        assertEquals(3, out[1]);
+        assertEquals(-4, out[2]);
+        assertEquals(5, out[5]);
+    }
+
+    @Test
+    public void averagesStereoIntoMono() {
+
+        final PcmRing ring = new PcmRing(1000, 1, 16);
+        ring.write(new short[]{100, 300, -50, -150}, 2, 2, 0);
+
+        final short[] out = new short[2];
+        ring.read(out, 2, 0, 0);
+        assertEquals(200, out[0]);
+        assertEquals(-100, out[1]);
+    }
+
+    @Test
+    public void reanchorsAfterAGapInCapture() {
+
+        final PcmRing ring = new PcmRing(1000, 1, 1000);
+        ring.write(ramp(0, 10), 10, 1, 0);
+        // Next chunk small jitter: stays on the frame clock
+        ring.write(ramp(10, 10), 10, 1, 12_000);
+        assertEquals(0, ring.getReanchorCount());
+        // An overrun lost 100 ms of capture
+        ring.write(ramp(20, 10), 10, 1, 120_000);
+        assertEquals(1, ring.getReanchorCount());
+
+        final short[] out = new short[10];
+        assertEquals(10, ring.read(out, 10, 120_000, 0));
+        assertEquals(20, out[0]);
+    }
+
+    @Test
+    public void waitsForTheProducerToCatchUp() throws InterruptedException {
+
+        final PcmRing ring = new PcmRing(1000, 1, 100);
+        ring.write(ramp(0, 10), 10, 1, 0);
+
+        final AtomicLong filled = new AtomicLong();
+        final Thread consumer = new Thread(() -> filled.set(ring.read(new short[20], 20, 0, 2_000_000_000L)));
+        consumer.start();
+        Thread.sleep(20);
+        ring.write(ramp(10, 10), 10, 1, 10_000);
+        consumer.join();
+        assertEquals(20, filled.get());
+    }
+
+    private static short[] ramp(final int start, final int count) {
+
+        final short[] samples = new short[count];
+        for (int i = 0; i < count; i++) samples[i] = (short) (start + i);
+        return samples;
+    }
+
+    private static void fill(final short[] samples, final int value) {
+
+        for (int i = 0; i < samples.length; i++) samples[i] = (short) value;
+    }
+}
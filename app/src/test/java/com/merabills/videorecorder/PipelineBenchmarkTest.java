@@ -0,0 +1,406 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput, latency and allocation of the recording pipeline on the JVM: synthetic encoders
+ * whose sample sizes follow AVC and AAC output, an in-memory muxer, and {@link FakeS3Server}
+ * as the blob store. Each benchmark prints one line; the assertions only catch gross
+ * regressions, as timings on a shared machine vary. PCM processing has its own benchmarks.
+ */
+public class PipelineBenchmarkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+
+        executor.shutdownNow();
+        if (server != null) server.close();
+    }
+
+    @Test
+    public void pollingEngineDrainsIntoTheMuxer() throws Exception {
+        assertDrained(EncoderEngine.Mode.POLLING);
+    }
+
+    @Test
+    public void callbackEngineDrainsIntoTheMuxer() throws Exception {
+        assertDrained(EncoderEngine.Mode.CALLBACK);
+    }
+
+    /**
+     * Encoder threads handing samples straight to {@link MuxerCoordinator#writeSample} as fast
+     * as the writer takes them, timing every call.
+     */
+    @Test
+    public void handoffStaysFastUnderLoad() throws Exception {
+
+        final CountingMuxer muxer = new CountingMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 2);
+        coordinator.addTrack(null);
+        coordinator.addTrack(null);
+        final int[] videoSizes = avcSampleSizes(HANDOFF_VIDEO_SAMPLES, new Random(1));
+        final int[] audioSizes = aacSampleSizes(HANDOFF_AUDIO_SAMPLES, new Random(2));
+
+        // Warm up so the JIT has compiled the handoff before measuring
+        new Producer(coordinator, VIDEO, videoSizes, VIDEO_FRAME_US, new LatencyHistogram()).run();
+        coordinator.awaitIdle();
+
+        // Recording is lock-free, so both threads share one histogram
+        final LatencyHistogram latency = new LatencyHistogram();
+        final Producer video = new Producer(coordinator, VIDEO, videoSizes, VIDEO_FRAME_US, latency);
+        final Producer audio = new Producer(coordinator, AUDIO, audioSizes, AUDIO_FRAME_US, latency);
+        final Thread videoThread = new Thread(video, "VideoProducer");
+        final Thread audioThread = new Thread(audio, "AudioProducer");
+        final long startNanos = System.nanoTime();
+        videoThread.start();
+        audioThread.start();
+        videoThread.join();
+        audioThread.join();
+        coordinator.awaitIdle();
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        coordinator.stopMuxer();
+
+        final long samples = HANDOFF_VIDEO_SAMPLES + HANDOFF_AUDIO_SAMPLES;
+        final double allocatedPerSample = (double) (video.allocatedBytes + audio.allocatedBytes) / samples;
+        System.out.println(String.format(Locale.US,
+                "Handoff: %.0f samples/s, %.1f MB/s, p50 %.1f us, p99 %.1f us, max %.1f us, "
+                        + "%d ring full, allocated %.0f B/sample",
+                samples * 1e9 / elapsedNanos,
+                (video.bytes + audio.bytes) * 1e3 / elapsedNanos,
+                latency.getValueAtPercentile(50) / 1e3,
+                latency.getValueAtPercentile(99) / 1e3,
+                latency.getMaxNanos() / 1e3,
+                video.ringFull + audio.ringFull,
+                allocatedPerSample));
+
+        // Including the warm-up
+        assertEquals(samples + HANDOFF_VIDEO_SAMPLES, muxer.samples.get());
+        assertTrue(latency.getValueAtPercentile(99) < 5_000_000);
+        assertTrue(allocatedPerSample < 1024);
+    }
+
+    /**
+     * A finished recording going up as a multipart upload to a local S3 server.
+     */
+    @Test
+    public void uploadsToTheFakeServer() throws Exception {
+
+        server = new FakeS3Server(BUCKET, S3MultipartStore.MIN_PART_SIZE, 1000);
+        final byte[] content = new byte[UPLOAD_PARTS * S3MultipartStore.MIN_PART_SIZE];
+        new Random(3).nextBytes(content);
+        final File file = folder.newFile("recording.mp4");
+        Files.write(file.toPath(), content);
+        final S3MultipartStore store = new S3MultipartStore(server.getEndpoint(), "us-east-1", BUCKET, "key", "secret");
+
+        final BlockBlobUploader.Result result = new BlockBlobUploader(
+                store, executor, S3MultipartStore.MIN_PART_SIZE, 4, 0, 0
+        ).upload(file, "recording.mp4", new File(file.getPath() + ".upload"));
+
+        System.out.println(String.format(Locale.US, "Upload: %.1f MB/s (%s)",
+                result.bytesUploaded * 1e3 / result.elapsedNanos, result));
+        assertEquals(content.length, result.bytesUploaded);
+        assertEquals(UPLOAD_PARTS, result.blocksStaged);
+    }
+
+    /**
+     * Feeds a minute of synthetic screen video and audio through two fake codecs driven by
+     * {@code mode}, their {@link TrackOutput}s and a {@link MuxerCoordinator}, as the
+     * recorders do, and checks that every sample reaches the muxer.
+     */
+    private static void assertDrained(@NonNull final EncoderEngine.Mode mode) throws Exception {
+
+        final int[] videoSizes = avcSampleSizes(DRAIN_SECONDS * 30, new Random(4));
+        final int[] audioSizes = aacSampleSizes((int) (DRAIN_SECONDS * 1_000_000L / AUDIO_FRAME_US), new Random(5));
+        final CountingMuxer muxer = new CountingMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 2);
+        final Track video = new Track(mode, "video", true, MAX_AVC_SAMPLE_BYTES);
+        final Track audio = new Track(mode, "audio", false, 4096);
+        video.output.attach(coordinator);
+        audio.output.attach(coordinator);
+
+        final long allocatedBefore = allocatedBytes();
+        final long startNanos = System.nanoTime();
+        int v = 0;
+        int a = 0;
+        while (v < videoSizes.length || a < audioSizes.length) {
+            // Interleaved by timestamp, as the two encoders would produce them
+            final long videoUs = (long) v * VIDEO_FRAME_US;
+            final long audioUs = (long) a * AUDIO_FRAME_US;
+            if (a >= audioSizes.length || (v < videoSizes.length && videoUs <= audioUs)) {
+                video.render(videoUs, videoSizes[v], v % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                v++;
+            } else {
+                audio.render(audioUs, audioSizes[a], 0);
+                a++;
+            }
+        }
+        video.awaitDrained();
+        audio.awaitDrained();
+        coordinator.awaitIdle();
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final long allocated = allocatedBytes() - allocatedBefore;
+        video.stop();
+        audio.stop();
+        coordinator.stopMuxer();
+
+        final long samples = videoSizes.length + audioSizes.length;
+        System.out.println(String.format(Locale.US,
+                "%s drain: %d samples in %.0f ms, %.0f samples/s, %.1f MB/s, allocated %.0f B/sample",
+                mode, samples, elapsedNanos / 1e6, samples * 1e9 / elapsedNanos,
+                muxer.bytes.get() * 1e3 / elapsedNanos, (double) allocated / samples));
+
+        assertEquals(samples, muxer.samples.get());
+        assertEquals(sum(videoSizes) + sum(audioSizes), muxer.bytes.get());
+        assertEquals(0, coordinator.getDroppedSampleCount());
+        // Ten minutes of recording a second is plenty; the field runs at 1x
+        assertTrue(samples * 1e9 / elapsedNanos > 10 * samples / DRAIN_SECONDS);
+    }
+
+    /**
+     * Screen video at about 2 Mbit/s: a key frame every second around eight times the size of
+     * the frames between, with log-normal spread, as a static screen with bursts of motion
+     * gives.
+     */
+    @NonNull
+    private static int[] avcSampleSizes(final int count, @NonNull final Random random) {
+
+        final double meanBytes = 2_000_000 / 8.0 / 30;
+        final double deltaBytes = meanBytes * 30 / (29 + 8);
+        final int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            final double typical = i % 30 == 0 ? 8 * deltaBytes : deltaBytes;
+            final double size = typical * Math.exp(0.5 * random.nextGaussian() - 0.125);
+            sizes[i] = (int) Math.max(64, Math.min(MAX_AVC_SAMPLE_BYTES, size));
+        }
+        return sizes;
+    }
+
+    /**
+     * AAC at 128 kbit/s and 48 kHz: 1024 samples a frame, so about 341 bytes give or take a
+     * few percent.
+     */
+    @NonNull
+    private static int[] aacSampleSizes(final int count, @NonNull final Random random) {
+
+        final double meanBytes = 128_000 / 8.0 * AUDIO_FRAME_US / 1_000_000;
+        final int[] sizes = new int[count];
+        for (int i = 0; i < count; i++)
+            sizes[i] = (int) Math.max(8, meanBytes * (1 + 0.05 * random.nextGaussian()));
+        return sizes;
+    }
+
+    private static long sum(@NonNull final int[] values) {
+
+        long sum = 0;
+        for (final int value : values) sum += value;
+        return sum;
+    }
+
+    /**
+     * Bytes allocated so far by every live thread.
+     */
+    private static long allocatedBytes() {
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (final long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            if (allocated > 0) total += allocated;
+        return total;
+    }
+
+    /**
+     * One encoder as a recorder runs it: a codec, the engine draining it and the output it
+     * writes to. Frames are "rendered" no faster than the engine returns output buffers.
+     */
+    private static final class Track implements EncoderEngine.Listener {
+
+        Track(
+                @NonNull final EncoderEngine.Mode mode,
+                @NonNull final String name,
+                final boolean video,
+                final int maxSampleBytes
+        ) {
+
+            this.codec = new FakeEncoderCodec(BUFFERS, maxSampleBytes);
+            this.engine = EncoderEngine.create(mode, name);
+            this.output = new TrackOutput(video);
+            engine.attach(codec, this, null);
+            engine.start();
+        }
+
+        void render(final long presentationTimeUs, final int size, final int flags) {
+
+            while (rendered - codec.getReleasedOutputs() >= BUFFERS) Thread.onSpinWait();
+            codec.renderFrame(presentationTimeUs, size, flags);
+            rendered++;
+        }
+
+        void awaitDrained() {
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (codec.getReleasedOutputs() < rendered) {
+                if (System.nanoTime() > deadline) throw new AssertionError("Encoder output was not drained");
+                Thread.onSpinWait();
+            }
+        }
+
+        void stop() throws InterruptedException {
+
+            engine.stop();
+            codec.shutdown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaFormat format) {
+            output.setFormat(format);
+        }
+
+        @Override
+        public void onEncodedSample(@NonNull ByteBuffer data, @NonNull SampleInfo info) {
+            output.write(data, info);
+        }
+
+        @Override
+        public void onError(@NonNull Exception error) {
+            throw new AssertionError(error);
+        }
+
+        final FakeEncoderCodec codec;
+        final EncoderEngine engine;
+        final TrackOutput output;
+        // Only touched by the rendering thread
+        private long rendered = 0;
+    }
+
+    /**
+     * An encoder thread that hands its samples to the coordinator, retrying while the ring is
+     * full, and times every {@link MuxerCoordinator#writeSample} call.
+     */
+    private static final class Producer implements Runnable {
+
+        Producer(
+                @NonNull final MuxerCoordinator coordinator,
+                final int track,
+                @NonNull final int[] sizes,
+                final long frameUs,
+                @NonNull final LatencyHistogram latency
+        ) {
+
+            this.coordinator = coordinator;
+            this.track = track;
+            this.sizes = sizes;
+            this.frameUs = frameUs;
+            this.latency = latency;
+            this.data = ByteBuffer.allocateDirect(MAX_AVC_SAMPLE_BYTES);
+        }
+
+        @Override
+        public void run() {
+
+            final com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            final long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < sizes.length; i++) {
+                final int flags = track == VIDEO && i % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                data.clear().limit(sizes[i]);
+                while (true) {
+                    final long start = System.nanoTime();
+                    final boolean written = coordinator.writeSample(track, data, i * frameUs, flags);
+                    latency.record(System.nanoTime() - start);
+                    if (written) break;
+                    ringFull++;
+                    Thread.onSpinWait();
+                }
+                bytes += sizes[i];
+            }
+            allocatedBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+        }
+
+        private final MuxerCoordinator coordinator;
+        private final int track;
+        private final int[] sizes;
+        private final long frameUs;
+        private final ByteBuffer data;
+        private final LatencyHistogram latency;
+        long bytes = 0;
+        long ringFull = 0;
+        long allocatedBytes = 0;
+    }
+
+    /**
+     * Muxer that only counts what it is given, so the benchmarks measure the pipeline rather
+     * than a file.
+     */
+    private static final class CountingMuxer implements SampleMuxer {
+
+        @Override
+        public int addTrack(@NonNull MediaFormat format) {
+            return tracks++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, @NonNull ByteBuffer data, long presentationTimeUs, int flags) {
+
+            samples.incrementAndGet();
+            bytes.addAndGet(data.remaining());
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        final AtomicLong samples = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        private int tracks = 0;
+    }
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long VIDEO_FRAME_US = 33_333;
+    // 1024 AAC samples at 48 kHz
+    private static final long AUDIO_FRAME_US = 21_333;
+    private static final int MAX_AVC_SAMPLE_BYTES = 256 * 1024;
+    private static final int BUFFERS = 8;
+    private static final int DRAIN_SECONDS = 60;
+    private static final int HANDOFF_VIDEO_SAMPLES = 20_000;
+    private static final int HANDOFF_AUDIO_SAMPLES = 30_000;
+    private static final int UPLOAD_PARTS = 4;
+    private static final String BUCKET = "videos";
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private FakeS3Server server;
+}
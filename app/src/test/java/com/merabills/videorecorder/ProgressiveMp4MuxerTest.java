@@ -0,0 +1,488 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class ProgressiveMp4MuxerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sampleTablesPointAtEverySample() throws Exception {
+
+        final File file = folder.newFile("progressive.mp4");
+        final Recording recording = record(file, false, 300);
+
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final List<Mp4Parser.Box> boxes = Mp4Parser.parse(content, 0, content.length);
+        assertEquals(Arrays.asList("ftyp", "free", "mdat", "moov"), typesOf(boxes));
+        assertTracks(content, boxes.get(3), boxes.get(2), recording);
+        assertNoSidecarFiles(file);
+    }
+
+    @Test
+    public void faststartMovesTheMoovBoxFirst() throws Exception {
+
+        final File file = folder.newFile("faststart.mp4");
+        final Recording recording = record(file, true, 300);
+
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final List<Mp4Parser.Box> boxes = Mp4Parser.parse(content, 0, content.length);
+        assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat"), typesOf(boxes));
+        assertTracks(content, boxes.get(1), boxes.get(3), recording);
+        assertNoSidecarFiles(file);
+    }
+
+    @Test
+    public void boxTreesMatchTheGoldenFiles() throws Exception {
+
+        for (final boolean faststart : new boolean[]{false, true}) {
+            final File file = folder.newFile(faststart ? "golden-faststart.mp4" : "golden.mp4");
+            record(file, faststart, 60);
+            final byte[] content = Files.readAllBytes(file.toPath());
+            final StringBuilder tree = new StringBuilder();
+            dump(content, Mp4Parser.parse(content, 0, content.length), "", tree);
+            assertEquals(readResource(faststart ? "faststart.txt" : "progressive.txt"), tree.toString());
+        }
+    }
+
+    @Test
+    public void unfinishedFileHasAnOpenEndedMdat() throws Exception {
+
+        final File file = folder.newFile("unfinished.mp4");
+        final ProgressiveMp4Muxer muxer = new ProgressiveMp4Muxer(file, true, CHECKPOINT_INTERVAL_US);
+        final int video = muxer.addTrack(videoFormat());
+        muxer.start();
+        muxer.writeSampleData(video, ByteBuffer.wrap(annexB(new byte[]{0x65, 1, 2})), BASE_US,
+                MediaCodec.BUFFER_FLAG_KEY_FRAME);
+
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final List<Mp4Parser.Box> boxes = Mp4Parser.parse(content, 0, 40);
+        assertEquals(Arrays.asList("ftyp", "free"), typesOf(boxes));
+        // Size 0: the box runs to the end of the file, however much has been written
+        assertEquals(0, Mp4Parser.u32(content, 40));
+        assertEquals("mdat", new String(content, 44, 4, StandardCharsets.US_ASCII));
+        // The first sample is a checkpoint, so it is on disk already
+        assertEquals(48 + 4 + 3, content.length);
+        assertTrue(ProgressiveMp4Muxer.getIndexFile(file).exists());
+
+        muxer.release();
+        assertNoSidecarFiles(file);
+    }
+
+    @Test
+    public void finishingAllocatesTheSameWhateverTheLength() throws Exception {
+
+        final long shortRecording = measureStop(folder.newFile("short.mp4"), 1_000);
+        final long longRecording = measureStop(folder.newFile("long.mp4"), 100_000);
+        final String message = "Finishing allocated " + shortRecording + " bytes for 1000 samples, "
+                + longRecording + " bytes for 100000";
+
+        // Sample tables are streamed from the index file, not built in memory
+        assertTrue(message, longRecording < 256 * 1024);
+        assertTrue(message, longRecording < shortRecording + 64 * 1024);
+    }
+
+    @Test
+    public void recoversAKilledRecordingUpToItsLastCheckpoint() throws Exception {
+
+        final File file = folder.newFile("killed.mp4");
+        final ProgressiveMp4Muxer muxer = new ProgressiveMp4Muxer(file, true, CHECKPOINT_INTERVAL_US);
+        final Recording recording = write(muxer, 300);
+        final File copy = copyOnDisk(file, "recovered.mp4");
+        muxer.release();
+
+        assertTrue(ProgressiveMp4Muxer.recover(copy));
+
+        final Recording recovered = assertRecovered(copy, recording);
+        // Only what was written after the last checkpoint, at 9 s, is lost
+        assertTrue(recovered.video.size() >= 271);
+        assertNoSidecarFiles(copy);
+    }
+
+    @Test
+    public void recoveryStopsAtTheFirstIncompleteSample() throws Exception {
+
+        final File file = folder.newFile("truncated.mp4");
+        final ProgressiveMp4Muxer muxer = new ProgressiveMp4Muxer(file, false, CHECKPOINT_INTERVAL_US);
+        final Recording recording = write(muxer, 300);
+        final File index = ProgressiveMp4Muxer.getIndexFile(file);
+        final long length = file.length();
+        final long indexLength = index.length();
+
+        final Random random = new Random(11);
+        for (int attempt = 0; attempt < 5; attempt++) {
+            // Cut the media anywhere, and the index in the middle of a record
+            final File copy = copyOnDisk(file, "truncated-" + attempt + ".mp4");
+            final int mediaCut = 1 + random.nextInt((int) length - 100);
+            truncate(copy, length - mediaCut);
+            truncate(ProgressiveMp4Muxer.getIndexFile(copy), indexLength - 1 - random.nextInt(8 * 1024));
+
+            assertTrue(ProgressiveMp4Muxer.recover(copy));
+
+            final Recording recovered = assertRecovered(copy, recording);
+            assertTrue(copy.length() < length - mediaCut + 64 * 1024);
+            assertTrue(recovered.video.size() + recovered.audio.size() > 0);
+            assertNoSidecarFiles(copy);
+        }
+        muxer.release();
+    }
+
+    @Test
+    public void recoveryGivesUpOnRecordingsWithoutSamples() throws Exception {
+
+        final File empty = folder.newFile("empty.mp4");
+        final ProgressiveMp4Muxer muxer = new ProgressiveMp4Muxer(empty, false, CHECKPOINT_INTERVAL_US);
+        muxer.addTrack(videoFormat());
+        muxer.start();
+        final File copy = copyOnDisk(empty, "empty-copy.mp4");
+        muxer.release();
+
+        assertFalse(ProgressiveMp4Muxer.recover(copy));
+        assertFalse(copy.exists());
+        assertNoSidecarFiles(copy);
+
+        // An index cut inside its track formats says nothing about the media
+        final File headless = folder.newFile("headless.mp4");
+        Files.write(ProgressiveMp4Muxer.getIndexFile(headless).toPath(), new byte[]{0x50, 0x4D, 0x58, 0x31, 1, 0});
+        assertFalse(ProgressiveMp4Muxer.recover(headless));
+        assertNoSidecarFiles(headless);
+    }
+
+    @Test
+    public void recoveryLeavesAFinishedFaststartFileAlone() throws Exception {
+
+        final File file = folder.newFile("finished.mp4");
+        record(file, true, 30);
+        final byte[] finished = Files.readAllBytes(file.toPath());
+        // Killed after the copy replaced the recording, before the index was deleted
+        Files.write(ProgressiveMp4Muxer.getIndexFile(file).toPath(), new byte[]{0x50, 0x4D, 0x58, 0x31, 0});
+
+        assertTrue(ProgressiveMp4Muxer.recover(file));
+
+        assertArrayEquals(finished, Files.readAllBytes(file.toPath()));
+        assertNoSidecarFiles(file);
+    }
+
+    /**
+     * Checks that {@code file} is a finished, moov-last MP4 holding a prefix of each track of
+     * {@code recording}, and returns that prefix.
+     */
+    private static Recording assertRecovered(final File file, final Recording recording) throws IOException {
+
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final List<Mp4Parser.Box> boxes = Mp4Parser.parse(content, 0, content.length);
+        assertEquals(Arrays.asList("ftyp", "free", "mdat", "moov"), typesOf(boxes));
+        final List<Mp4Parser.Box> traks = Mp4Parser.all(content, boxes.get(3), "trak");
+        final Recording recovered = new Recording();
+        final int videoCount = sampleCount(content, traks.get(0));
+        recovered.video.addAll(recording.video.subList(0, videoCount));
+        recovered.keyFrames.addAll(recording.keyFrames.subList(0, videoCount));
+        recovered.audio.addAll(recording.audio.subList(0, sampleCount(content, traks.get(1))));
+        assertTracks(content, boxes.get(3), boxes.get(2), recovered);
+        return recovered;
+    }
+
+    private static int sampleCount(final byte[] content, final Mp4Parser.Box trak) {
+
+        final Mp4Parser.Box stsz = Mp4Parser.find(content, trak, "mdia", "minf", "stbl", "stsz");
+        assertNotNull(stsz);
+        return (int) Mp4Parser.u32(content, stsz.payloadOffset() + 8);
+    }
+
+    /**
+     * Copies a recording and its index as they are on disk, as a killed process leaves them.
+     */
+    private File copyOnDisk(final File file, final String name) throws IOException {
+
+        final File copy = new File(folder.getRoot(), name);
+        Files.copy(file.toPath(), copy.toPath());
+        Files.copy(ProgressiveMp4Muxer.getIndexFile(file).toPath(), ProgressiveMp4Muxer.getIndexFile(copy).toPath());
+        return copy;
+    }
+
+    private static void truncate(final File file, final long length) throws IOException {
+
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.setLength(length);
+        }
+    }
+
+    /**
+     * Bytes the calling thread allocates in {@code stop()}, after writing {@code samples}
+     * video samples.
+     */
+    private static long measureStop(final File file, final int samples) throws Exception {
+
+        final ProgressiveMp4Muxer muxer = new ProgressiveMp4Muxer(file, false, CHECKPOINT_INTERVAL_US, new SampleBufferPool(1024 * 1024));
+        final int video = muxer.addTrack(videoFormat());
+        muxer.start();
+        final ByteBuffer sample = ByteBuffer.wrap(new byte[]{0x41, 1, 2, 3, 4, 5, 6, 7});
+        for (int i = 0; i < samples; i++) {
+            sample.rewind();
+            muxer.writeSampleData(video, sample, BASE_US + i * 33_333L,
+                    i % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        muxer.stop();
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final Mp4Parser.Box moov = Mp4Parser.parse(content, 0, content.length).get(3);
+        final Mp4Parser.Box stsz = Mp4Parser.find(content, moov, "trak", "mdia", "minf", "stbl", "stsz");
+        assertNotNull(stsz);
+        assertEquals(samples, Mp4Parser.u32(content, stsz.payloadOffset() + 8));
+        return allocated;
+    }
+
+    /**
+     * Writes {@code frames} frames of 30 fps video with a keyframe every second, and AAC audio
+     * that starts 100 ms after the video.
+     */
+    private static Recording record(final File file, final boolean faststart, final int frames) throws IOException {
+
+        final ProgressiveMp4Muxer muxer = new ProgressiveMp4Muxer(file, faststart, CHECKPOINT_INTERVAL_US);
+        final Recording recording = write(muxer, frames);
+        muxer.stop();
+        muxer.release();
+        return recording;
+    }
+
+    private static Recording write(final ProgressiveMp4Muxer muxer, final int frames) throws IOException {
+
+        final int video = muxer.addTrack(videoFormat());
+        final int audio = muxer.addTrack(TrackFormat.audio(Mp4Boxes.MIME_AAC, 44_100, 2, AUDIO_CONFIG));
+        muxer.start();
+        // The codec config comes through the format, not the sample tables
+        muxer.writeSampleData(video, ByteBuffer.wrap(annexB(SPS)), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+
+        final Recording recording = new Recording();
+        final Random random = new Random(7);
+        int audioFrames = 0;
+        for (int i = 0; i < frames; i++) {
+            final long videoUs = i * 1_000_000L / 30;
+            while (AUDIO_DELAY_US + audioFrames * 1024L * 1_000_000 / 44_100 <= videoUs) {
+                final byte[] aac = randomBytes(random, 100 + random.nextInt(200));
+                recording.audio.add(aac);
+                muxer.writeSampleData(audio, ByteBuffer.wrap(aac),
+                        BASE_US + AUDIO_DELAY_US + audioFrames++ * 1024L * 1_000_000 / 44_100, 0);
+            }
+            final boolean key = i % 30 == 0;
+            final byte[] nal = randomBytes(random, 200 + random.nextInt(2000));
+            nal[0] = (byte) (key ? 0x65 : 0x41);
+            // Keyframes carry a second NAL unit, behind a 3-byte start code
+            final byte[] sei = {0x06, 5, 1, (byte) 0x80};
+            final byte[] annexB = key ? concat(annexB(sei), new byte[]{0, 0, 1}, nal) : annexB(nal);
+            recording.video.add(key ? concat(lengthPrefixed(sei), lengthPrefixed(nal)) : lengthPrefixed(nal));
+            recording.keyFrames.add(key);
+            muxer.writeSampleData(video, ByteBuffer.wrap(annexB), BASE_US + videoUs,
+                    key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+        return recording;
+    }
+
+    private static void assertTracks(
+            final byte[] content,
+            final Mp4Parser.Box moov,
+            final Mp4Parser.Box mdat,
+            final Recording recording
+    ) {
+
+        final List<Mp4Parser.Box> traks = Mp4Parser.all(content, moov, "trak");
+        assertEquals(2, traks.size());
+
+        final Mp4Parser.Box videoTables = Mp4Parser.find(content, traks.get(0), "mdia", "minf", "stbl");
+        assertSamples(recording.video, readSamples(content, videoTables, mdat));
+        final Mp4Parser.Box stss = Mp4Parser.find(content, videoTables, "stss");
+        assertNotNull(stss);
+        final long syncCount = Mp4Parser.u32(content, stss.payloadOffset() + 4);
+        for (int i = 0; i < syncCount; i++) {
+            final long sampleNumber = Mp4Parser.u32(content, stss.payloadOffset() + 8 + 4 * i);
+            assertTrue(recording.keyFrames.get((int) sampleNumber - 1));
+        }
+        assertEquals(recording.keyFrames.stream().filter(key -> key).count(), syncCount);
+        // 30 fps on a 90 kHz clock
+        assertEquals(recording.video.size() * 3000L, totalDuration(content, videoTables), 2);
+        assertNull(Mp4Parser.find(content, traks.get(0), "edts"));
+
+        final Mp4Parser.Box audioTables = Mp4Parser.find(content, traks.get(1), "mdia", "minf", "stbl");
+        assertSamples(recording.audio, readSamples(content, audioTables, mdat));
+        assertNull("every AAC frame is a sync sample", Mp4Parser.find(content, audioTables, "stss"));
+        assertEquals(recording.audio.size() * 1024L, totalDuration(content, audioTables), 2);
+        final Mp4Parser.Box elst = Mp4Parser.find(content, traks.get(1), "edts", "elst");
+        assertNotNull(elst);
+        assertEquals(2, Mp4Parser.u32(content, elst.payloadOffset() + 4));
+        assertEquals(AUDIO_DELAY_US / 1000, Mp4Parser.u32(content, elst.payloadOffset() + 8));
+        assertEquals(0xFFFFFFFFL, Mp4Parser.u32(content, elst.payloadOffset() + 12));
+    }
+
+    /**
+     * Samples of one track, found through its stco, stsc and stsz boxes.
+     */
+    private static List<byte[]> readSamples(final byte[] content, final Mp4Parser.Box stbl, final Mp4Parser.Box mdat) {
+
+        final Mp4Parser.Box stco = Mp4Parser.find(content, stbl, "stco");
+        final Mp4Parser.Box stsc = Mp4Parser.find(content, stbl, "stsc");
+        final Mp4Parser.Box stsz = Mp4Parser.find(content, stbl, "stsz");
+        assertNotNull(stco);
+        assertNotNull(stsc);
+        assertNotNull(stsz);
+
+        final int chunkCount = (int) Mp4Parser.u32(content, stco.payloadOffset() + 4);
+        final int runCount = (int) Mp4Parser.u32(content, stsc.payloadOffset() + 4);
+        final List<byte[]> samples = new ArrayList<>();
+        int sample = 0;
+        for (int chunk = 1, run = 0; chunk <= chunkCount; chunk++) {
+            if (run + 1 < runCount && Mp4Parser.u32(content, stsc.payloadOffset() + 8 + 12 * (run + 1)) == chunk)
+                run++;
+            final long perChunk = Mp4Parser.u32(content, stsc.payloadOffset() + 12 + 12 * run);
+            int offset = (int) Mp4Parser.u32(content, stco.payloadOffset() + 8 + 4 * (chunk - 1));
+            for (int i = 0; i < perChunk; i++) {
+                final int size = (int) Mp4Parser.u32(content, stsz.payloadOffset() + 12 + 4 * sample++);
+                assertTrue(offset >= mdat.payloadOffset() && offset + size <= mdat.end());
+                samples.add(Arrays.copyOfRange(content, offset, offset + size));
+                offset += size;
+            }
+        }
+        assertEquals(Mp4Parser.u32(content, stsz.payloadOffset() + 8), sample);
+        return samples;
+    }
+
+    private static void assertSamples(final List<byte[]> expected, final List<byte[]> actual) {
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertArrayEquals("sample " + i, expected.get(i), actual.get(i));
+    }
+
+    private static long totalDuration(final byte[] content, final Mp4Parser.Box stbl) {
+
+        final Mp4Parser.Box stts = Mp4Parser.find(content, stbl, "stts");
+        assertNotNull(stts);
+        long total = 0;
+        final long entries = Mp4Parser.u32(content, stts.payloadOffset() + 4);
+        for (int i = 0; i < entries; i++) {
+            final int entry = stts.payloadOffset() + 8 + 8 * i;
+            final long duration = Mp4Parser.u32(content, entry + 4);
+            assertTrue(duration > 0);
+            total += Mp4Parser.u32(content, entry) * duration;
+        }
+        return total;
+    }
+
+    private static void dump(
+            final byte[] content,
+            final List<Mp4Parser.Box> boxes,
+            final String indent,
+            final StringBuilder tree
+    ) {
+
+        for (final Mp4Parser.Box box : boxes) {
+            tree.append(indent).append(box.type).append(' ').append(box.size).append('\n');
+            if (CONTAINERS.contains(box.type))
+                dump(content, Mp4Parser.children(content, box), indent + "  ", tree);
+        }
+    }
+
+    private static String readResource(final String name) throws IOException {
+
+        try (InputStream input = ProgressiveMp4MuxerTest.class.getResourceAsStream("/progressive_mp4/" + name)) {
+            assertNotNull(name, input);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) > 0) out.write(buffer, 0, read);
+            return out.toString(StandardCharsets.UTF_8.name());
+        }
+    }
+
+    private static void assertNoSidecarFiles(final File file) {
+
+        final String[] names = file.getParentFile().list();
+        assertNotNull(names);
+        for (final String name : names)
+            assertFalse(name, name.startsWith(file.getName() + "."));
+    }
+
+    private static List<String> typesOf(final List<Mp4Parser.Box> boxes) {
+
+        final List<String> types = new ArrayList<>();
+        for (final Mp4Parser.Box box : boxes) types.add(box.type);
+        return types;
+    }
+
+    private static TrackFormat videoFormat() {
+        return TrackFormat.video(Mp4Boxes.MIME_AVC, 720, 1280, annexB(SPS), annexB(PPS));
+    }
+
+    private static byte[] annexB(final byte[] nal) {
+        return concat(new byte[]{0, 0, 0, 1}, nal);
+    }
+
+    private static byte[] lengthPrefixed(final byte[] nal) {
+        return ByteBuffer.allocate(4 + nal.length).putInt(nal.length).put(nal).array();
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(final Random random, final int length) {
+
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        // Keep payloads free of accidental start codes
+        for (int i = 0; i < bytes.length; i++)
+            if (bytes[i] == 0) bytes[i] = 1;
+        return bytes;
+    }
+
+    private static final class Recording {
+
+        final List<byte[]> video = new ArrayList<>();
+        final List<Boolean> keyFrames = new ArrayList<>();
+        final List<byte[]> audio = new ArrayList<>();
+    }
+
+    private static final List<String> CONTAINERS =
+            Arrays.asList("moov", "trak", "edts", "mdia", "minf", "dinf", "stbl");
+    // Arbitrary monotonic-clock origin, as the encoders produce
+    private static final long BASE_US = 5_000_000_000L;
+    private static final long AUDIO_DELAY_US = 100_000;
+    private static final long CHECKPOINT_INTERVAL_US = 1_000_000;
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x38, (byte) 0x80};
+    private static final byte[] AUDIO_CONFIG = {0x12, 0x10};
+}
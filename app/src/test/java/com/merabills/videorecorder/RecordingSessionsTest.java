@@ -0,0 +1,356 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives {@link RecordingSessions} with captures made of {@link FakeEncoderCodec}s, so each
+ * encoded sample really goes through an {@link EncoderEngine} and a {@link TrackOutput}.
+ */
+public class RecordingSessionsTest {
+
+    @After
+    public void shutDownCaptures() throws Exception {
+
+        for (final FakeCapture capture : opened) capture.shutdown();
+    }
+
+    @Test
+    public void sessionsWithTheSameParametersShareOneEncoder() throws Exception {
+
+        final FakeSampleMuxer archive = new FakeSampleMuxer();
+        final FakeSampleMuxer preview = new FakeSampleMuxer();
+        sessions.start(session("archive", "HIGH", archive));
+        sessions.start(session("preview", "HIGH", preview));
+
+        assertEquals(1, opened.size());
+        assertEquals(1, sessions.getCaptureCount());
+        assertEquals(2, sessions.getCaptureUsers("HIGH"));
+        final FakeCapture capture = opened.get(0);
+        encodeSeconds(capture, 0, 2);
+
+        assertSame(sessions.get("archive"), sessions.stop("archive"));
+        assertFalse(capture.released);
+        assertSame(sessions.get("preview"), sessions.stop("preview"));
+        assertTrue(capture.released);
+
+        // One encode, two identical files
+        assertEquals(60, capture.encoded.get());
+        assertSameSamples(archive.getSamples(), preview.getSamples());
+        assertEquals(60, archive.getSamples().size());
+        assertTrue(archive.isStopped() && archive.isReleased());
+        assertTrue(preview.isStopped() && preview.isReleased());
+        assertEquals(0, sessions.getCaptureCount());
+        assertEquals(1, sessions.getCapturesOpened());
+    }
+
+    @Test
+    public void differentParametersGetTheirOwnEncoders() throws Exception {
+
+        final FakeSampleMuxer high = new FakeSampleMuxer();
+        final FakeSampleMuxer low = new FakeSampleMuxer();
+        sessions.start(session("archive", "HIGH", high));
+        sessions.start(session("preview", "LOW", low));
+
+        assertEquals(2, sessions.getCaptureCount());
+        encodeSeconds(opened.get(0), 0, 1);
+        encodeSeconds(opened.get(1), 0, 2);
+        sessions.stopAll();
+
+        assertEquals(30, high.getSamples().size());
+        assertEquals(60, low.getSamples().size());
+        assertTrue(opened.get(0).released);
+        assertTrue(opened.get(1).released);
+        assertTrue(sessions.isEmpty());
+    }
+
+    @Test
+    public void aSessionJoiningMidStreamStartsOnAKeyFrame() throws Exception {
+
+        final FakeSampleMuxer first = new FakeSampleMuxer();
+        final FakeSampleMuxer second = new FakeSampleMuxer();
+        sessions.start(session("first", "HIGH", first));
+        final FakeCapture capture = opened.get(0);
+        // Half a second in, between key frames
+        encodeFrames(capture, 0, 15);
+
+        sessions.start(session("second", "HIGH", second));
+        encodeFrames(capture, 15, 45);
+        sessions.stopAll();
+
+        assertEquals(45, first.getSamples().size());
+        // Frames 15 to 29 could not be decoded on their own
+        final List<FakeSampleMuxer.Sample> joined = second.getSamples();
+        assertEquals(15, joined.size());
+        assertEquals(frameTimeUs(30), joined.get(0).presentationTimeUs);
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, joined.get(0).flags);
+        assertEquals(1, sessions.getCapturesOpened());
+    }
+
+    @Test
+    public void stoppedSessionsGetNothingMore() throws Exception {
+
+        final FakeSampleMuxer stopped = new FakeSampleMuxer();
+        final FakeSampleMuxer running = new FakeSampleMuxer();
+        sessions.start(session("stopped", "HIGH", stopped));
+        sessions.start(session("running", "HIGH", running));
+        final FakeCapture capture = opened.get(0);
+        encodeFrames(capture, 0, 30);
+
+        sessions.stop("stopped");
+        assertNull(sessions.stop("stopped"));
+        assertEquals(1, capture.output.getCoordinatorCount());
+        encodeFrames(capture, 30, 60);
+        sessions.stopAll();
+
+        assertEquals(30, stopped.getSamples().size());
+        assertEquals(60, running.getSamples().size());
+        assertEquals(2, sessions.getSessionsStarted());
+        assertEquals(2, sessions.getSessionsStopped());
+    }
+
+    @Test
+    public void detachingLeavesTheFileForTheCallerToClose() throws Exception {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        sessions.start(session("archive", "HIGH", muxer));
+        final FakeCapture capture = opened.get(0);
+        encodeSeconds(capture, 0, 1);
+
+        final RecordingSessions.Session<String> detached = sessions.detach("archive");
+        assertTrue(capture.released);
+        assertTrue(sessions.isEmpty());
+        assertFalse(muxer.isStopped());
+
+        detached.getCoordinator().stopMuxer();
+        assertTrue(muxer.isStopped() && muxer.isReleased());
+        assertEquals(30, muxer.getSamples().size());
+        assertEquals(1, sessions.getSessionsStopped());
+    }
+
+    @Test
+    public void refusedSessionsLeaveNothingBehind() throws Exception {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        sessions.start(session("archive", "HIGH", muxer));
+        try {
+            sessions.start(session("archive", "HIGH", new FakeSampleMuxer()));
+            fail("A second session with the same name should be refused");
+        } catch (IllegalStateException expected) {
+            // The running one is untouched
+        }
+        failOpen = true;
+        final RecordingSessions.Session<String> unavailable = session("preview", "LOW", new FakeSampleMuxer());
+        try {
+            sessions.start(unavailable);
+            fail("The capture should have failed to open");
+        } catch (IOException expected) {
+            unavailable.getCoordinator().stopMuxer();
+        }
+
+        assertEquals(1, sessions.size());
+        assertEquals(1, sessions.getCaptureCount());
+        assertEquals(1, sessions.getCaptureUsers("HIGH"));
+        assertEquals(0, sessions.getCaptureUsers("LOW"));
+        assertEquals(1, opened.get(0).output.getCoordinatorCount());
+        sessions.stopAll();
+        assertTrue(opened.get(0).released);
+    }
+
+    @Test
+    public void aSessionThatCannotAttachLeavesNothingBehind() throws Exception {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        sessions.start(session("archive", "HIGH", muxer));
+        failAdd = true;
+        final RecordingSessions.Session<String> preview = session("preview", "HIGH", new FakeSampleMuxer());
+        try {
+            sessions.start(preview);
+            fail("Attaching to the shared capture should have failed");
+        } catch (IllegalStateException expected) {
+            // The running session keeps the capture
+            preview.getCoordinator().stopMuxer();
+        }
+        final RecordingSessions.Session<String> low = session("low", "LOW", new FakeSampleMuxer());
+        try {
+            sessions.start(low);
+            fail("Attaching to a new capture should have failed");
+        } catch (IllegalStateException expected) {
+            // The capture opened for it is released again
+            low.getCoordinator().stopMuxer();
+        }
+
+        assertEquals(1, sessions.size());
+        assertEquals(1, sessions.getCaptureUsers("HIGH"));
+        assertEquals(0, sessions.getCaptureUsers("LOW"));
+        assertEquals(1, sessions.getCaptureCount());
+        assertTrue(opened.get(1).released);
+        assertEquals(1, sessions.getSessionsStarted());
+        failAdd = false;
+        sessions.stopAll();
+        assertTrue(opened.get(0).released);
+    }
+
+    @Test
+    public void accountsForTheBytesSessionsHold() throws Exception {
+
+        // Without a format the coordinators cannot start, so everything written waits in them
+        final MuxerCoordinator waiting = new MuxerCoordinator(new FakeSampleMuxer(), 2);
+        sessions.start(new RecordingSessions.Session<>("waiting", "HIGH", waiting, 0));
+        final FakeCapture capture = opened.get(0);
+        encodeFrames(capture, 0, 10);
+        waiting.awaitIdle();
+
+        assertEquals(10 * FRAME_BYTES, sessions.getQueuedBytes());
+        sessions.stopAll();
+        assertEquals(0, sessions.getQueuedBytes());
+        assertTrue(capture.released);
+    }
+
+    @NonNull
+    private static RecordingSessions.Session<String> session(
+            final String name,
+            final String quality,
+            final FakeSampleMuxer muxer
+    ) {
+        return new RecordingSessions.Session<>(name, quality, new MuxerCoordinator(muxer, 1), System.nanoTime());
+    }
+
+    private static void encodeSeconds(final FakeCapture capture, final int fromSecond, final int toSecond)
+            throws InterruptedException {
+        encodeFrames(capture, fromSecond * 30, toSecond * 30);
+    }
+
+    /**
+     * Renders 30 fps video with a key frame every second and waits until the encoder has handed
+     * every frame to its output.
+     */
+    private static void encodeFrames(final FakeCapture capture, final int fromFrame, final int toFrame)
+            throws InterruptedException {
+
+        for (int frame = fromFrame; frame < toFrame; frame++) {
+            final long expected = capture.encoded.get() + 1;
+            capture.codec.renderFrame(frameTimeUs(frame), FRAME_BYTES,
+                    frame % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            // The fake codec has a handful of buffers, so keep at most one in flight
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (capture.encoded.get() < expected) {
+                if (System.nanoTime() > deadline) throw new AssertionError("Frame " + frame + " was not encoded");
+                LockSupport.parkNanos(100_000);
+            }
+        }
+    }
+
+    private static long frameTimeUs(final int frame) {
+        return frame * 1_000_000L / 30;
+    }
+
+    private static void assertSameSamples(
+            final List<FakeSampleMuxer.Sample> expected,
+            final List<FakeSampleMuxer.Sample> actual
+    ) {
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).presentationTimeUs, actual.get(i).presentationTimeUs);
+            assertEquals(expected.get(i).flags, actual.get(i).flags);
+            assertArrayEquals(expected.get(i).data, actual.get(i).data);
+        }
+    }
+
+    /**
+     * A video encoder feeding a {@link TrackOutput}, as {@link ScreenMicRecorder} does.
+     */
+    private final class FakeCapture implements RecordingSessions.Capture, EncoderEngine.Listener {
+
+        FakeCapture(final String name) {
+
+            engine.attach(codec, this, null);
+            engine.start();
+            this.name = name;
+        }
+
+        @Override
+        public void add(@NonNull MuxerCoordinator coordinator) {
+
+            if (failAdd) throw new IllegalStateException("Capture is shutting down");
+            output.add(coordinator);
+        }
+
+        @Override
+        public void remove(@NonNull MuxerCoordinator coordinator) {
+            output.remove(coordinator);
+        }
+
+        @Override
+        public void release() {
+
+            assertEquals(name + " released with coordinators attached", 0, output.getCoordinatorCount());
+            released = true;
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaFormat format) {
+            output.setFormat(format);
+        }
+
+        @Override
+        public void onEncodedSample(@NonNull ByteBuffer data, @NonNull SampleInfo info) {
+
+            output.write(data, info);
+            encoded.incrementAndGet();
+        }
+
+        @Override
+        public void onError(@NonNull Exception error) {
+            throw new AssertionError(error);
+        }
+
+        void shutdown() throws InterruptedException {
+
+            engine.stop();
+            codec.shutdown();
+        }
+
+        final FakeEncoderCodec codec = new FakeEncoderCodec(4, 4096);
+        final EncoderEngine engine = EncoderEngine.create(EncoderEngine.Mode.CALLBACK, "video");
+        final TrackOutput output = new TrackOutput(true);
+        final AtomicLong encoded = new AtomicLong();
+        final String name;
+        volatile boolean released = false;
+    }
+
+    private static final int FRAME_BYTES = 400;
+
+    private final List<FakeCapture> opened = new ArrayList<>();
+    private boolean failOpen = false;
+    private boolean failAdd = false;
+    private final RecordingSessions<String, RecordingSessions.Session<String>> sessions =
+            new RecordingSessions<>(quality -> {
+                if (failOpen) throw new IOException("No capture at " + quality);
+                final FakeCapture capture = new FakeCapture(quality);
+                opened.add(capture);
+                return capture;
+            });
+}
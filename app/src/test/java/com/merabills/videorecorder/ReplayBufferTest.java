@@ -0,0 +1,270 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.media.MediaCodec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class ReplayBufferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dumpStartsAtTheKeyFrameBeforeTheWindow() throws Exception {
+
+        final ReplayBuffer buffer = ReplayBuffer.inMemory(4 * 1024 * 1024, 4096);
+        final List<Written> written = writeSeconds(buffer, 10, 1000);
+
+        final int count = buffer.dump(folder.newFile("replay.mp4"), 3_000_000, file -> muxer);
+
+        // The newest sample is just before 10 s, so the window opens just before 7 s
+        final FakeSampleMuxer.Sample first = muxer.getSamples().get(0);
+        assertEquals(VIDEO, first.trackIndex);
+        assertEquals(6_000_000, first.presentationTimeUs);
+        assertTrue((first.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        assertDumped(written, count);
+        assertTrue(muxer.isStopped());
+        assertTrue(muxer.isReleased());
+    }
+
+    @Test
+    public void keepsOnlyWhatFitsInTheStore() throws Exception {
+
+        final ReplayBuffer buffer = ReplayBuffer.inMemory(256 * 1024, 4096);
+        final List<Written> written = writeSeconds(buffer, 20, 1500);
+
+        // 55 KB/s, so a little over 4.5 s fits
+        assertTrue(buffer.getBufferedDurationUs() < 5_000_000);
+        assertTrue(buffer.getBufferedDurationUs() > 4_000_000);
+
+        final int count = buffer.dump(folder.newFile("replay.mp4"), 60_000_000, file -> muxer);
+
+        // Only the oldest key frame still held can start the file
+        assertEquals(16_000_000, muxer.getSamples().get(0).presentationTimeUs);
+        assertDumped(written, count);
+    }
+
+    @Test
+    public void keepsAtMostMaxSamples() throws Exception {
+
+        final ReplayBuffer buffer = ReplayBuffer.inMemory(4 * 1024 * 1024, 200);
+        final List<Written> written = writeSeconds(buffer, 10, 100);
+
+        assertEquals(200, buffer.getSampleCount());
+        final int count = buffer.dump(folder.newFile("replay.mp4"), 60_000_000, file -> muxer);
+        // 80 samples a second, so the oldest held is from about 7.5 s
+        assertEquals(8_000_000, muxer.getSamples().get(0).presentationTimeUs);
+        assertDumped(written, count);
+    }
+
+    @Test
+    public void mappedStoreKeepsTheSameSamples() throws Exception {
+
+        final ReplayBuffer buffer = ReplayBuffer.mapped(folder.newFile("replay.bin"), 256 * 1024, 4096);
+        final List<Written> written = writeSeconds(buffer, 10, 1500);
+
+        final int count = buffer.dump(folder.newFile("replay.mp4"), 1_000_000, file -> muxer);
+
+        assertEquals(8_000_000, muxer.getSamples().get(0).presentationTimeUs);
+        assertDumped(written, count);
+    }
+
+    @Test
+    public void failedDumpsLeaveNoFile() throws Exception {
+
+        final ReplayBuffer buffer = ReplayBuffer.inMemory(64 * 1024, 64);
+        final File file = folder.newFile("replay.mp4");
+        assertDumpFails(buffer, file, "Replay buffer is empty");
+
+        // Audio alone has no key frame to start video on
+        buffer.addTrack(null, true);
+        buffer.addTrack(null, false);
+        buffer.writeSampleData(AUDIO, ByteBuffer.wrap(new byte[100]), 0, 0);
+        assertDumpFails(buffer, file, "No key frame in the replay buffer");
+
+        buffer.writeSampleData(VIDEO, ByteBuffer.wrap(new byte[100]), 0, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        buffer.release();
+        assertEquals(0, buffer.getSampleCount());
+        assertDumpFails(buffer, file, "Replay buffer is empty");
+    }
+
+    @Test
+    public void writerCarriesOnWhileADumpRuns() throws Exception {
+
+        final ReplayBuffer buffer = ReplayBuffer.inMemory(8 * 1024 * 1024, 8192);
+        final List<Written> written = writeSeconds(buffer, 10, 1000);
+
+        // Keep writing, as the coordinator's writer thread would, while a slow muxer saves the window
+        final AtomicBoolean dumping = new AtomicBoolean(true);
+        final AtomicLong writtenDuringDump = new AtomicLong();
+        final AtomicLong slowestWriteNanos = new AtomicLong();
+        final Thread writer = new Thread(() -> {
+            final ByteBuffer sample = ByteBuffer.wrap(new byte[1000]);
+            long ptsUs = 10_000_000;
+            while (dumping.get()) {
+                final long start = System.nanoTime();
+                sample.rewind();
+                buffer.writeSampleData(AUDIO, sample, ptsUs += 1000, 0);
+                slowestWriteNanos.accumulateAndGet(System.nanoTime() - start, Math::max);
+                writtenDuringDump.incrementAndGet();
+                LockSupport.parkNanos(100_000);
+            }
+        });
+        final FakeSampleMuxer slowMuxer = new FakeSampleMuxer() {
+            @Override
+            public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+
+                super.writeSampleData(trackIndex, data, presentationTimeUs, flags);
+                LockSupport.parkNanos(200_000);
+            }
+        };
+        writer.start();
+        final int count;
+        try {
+            count = buffer.dump(folder.newFile("replay.mp4"), 5_000_000, file -> slowMuxer);
+        } finally {
+            dumping.set(false);
+            writer.join();
+        }
+
+        assertTrue("Wrote " + writtenDuringDump.get() + " samples during the dump",
+                writtenDuringDump.get() > 100);
+        assertTrue("Slowest write took " + slowestWriteNanos.get() / 1000 + " us",
+                slowestWriteNanos.get() < 50_000_000);
+        // The dump covers what was there when it started, not everything that arrived meanwhile
+        final List<FakeSampleMuxer.Sample> samples = slowMuxer.getSamples();
+        assertEquals(count, samples.size());
+        int arrivedLater = 0;
+        for (final FakeSampleMuxer.Sample sample : samples)
+            if (sample.presentationTimeUs > 10_000_000) arrivedLater++;
+        assertTrue(arrivedLater < writtenDuringDump.get());
+        assertEquals(written.get(written.size() - 1).presentationTimeUs,
+                samples.get(samples.size() - 1 - arrivedLater).presentationTimeUs);
+    }
+
+    @Test
+    public void writingDoesNotAllocate() {
+
+        final ReplayBuffer buffer = ReplayBuffer.inMemory(2 * 1024 * 1024, 1024);
+        buffer.addTrack(null, true);
+        final ByteBuffer sample = ByteBuffer.wrap(new byte[1200]);
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            sample.rewind();
+            buffer.writeSampleData(VIDEO, sample, i * 33_333L, i % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("Writing 100000 samples allocated " + allocated + " bytes", allocated < 64 * 1024);
+        assertEquals(1024, buffer.getSampleCount());
+    }
+
+    /**
+     * Writes 30 fps video with a key frame every second and 50 audio samples a second, each
+     * sample filled with its own sequence number.
+     */
+    private static List<Written> writeSeconds(final ReplayBuffer buffer, final int seconds, final int videoBytes) {
+
+        buffer.addTrack(null, true);
+        buffer.addTrack(null, false);
+        final List<Written> written = new ArrayList<>();
+        for (int frame = 0; frame < seconds * 30; frame++) {
+            final long videoUs = frame * 1_000_000L / 30;
+            if (frame % 3 == 0) {
+                for (int a = 0; a < 5; a++)
+                    write(buffer, written, AUDIO, 200, videoUs + a * 20_000, 0);
+            }
+            write(buffer, written, VIDEO, videoBytes, videoUs, frame % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+        return written;
+    }
+
+    private static void write(
+            final ReplayBuffer buffer,
+            final List<Written> written,
+            final int track,
+            final int size,
+            final long ptsUs,
+            final int flags
+    ) {
+
+        final byte[] data = new byte[size];
+        final int sequence = written.size();
+        for (int i = 0; i < size; i++) data[i] = (byte) (sequence + i);
+        written.add(new Written(track, data, ptsUs, flags));
+        buffer.writeSampleData(track, ByteBuffer.wrap(data), ptsUs, flags);
+    }
+
+    /**
+     * The muxer got the last {@code count} samples written, unchanged.
+     */
+    private void assertDumped(final List<Written> written, final int count) {
+
+        final List<FakeSampleMuxer.Sample> samples = muxer.getSamples();
+        assertEquals(count, samples.size());
+        final int offset = written.size() - count;
+        for (int i = 0; i < count; i++) {
+            final Written expected = written.get(offset + i);
+            final FakeSampleMuxer.Sample actual = samples.get(i);
+            assertEquals(expected.track, actual.trackIndex);
+            assertEquals(expected.presentationTimeUs, actual.presentationTimeUs);
+            assertEquals(expected.flags, actual.flags);
+            assertArrayEquals("sample " + (offset + i), expected.data, actual.data);
+        }
+    }
+
+    private static void assertDumpFails(final ReplayBuffer buffer, final File file, final String message)
+            throws IOException {
+
+        try {
+            buffer.dump(file, 1_000_000, output -> new FakeSampleMuxer());
+            fail("Dump should have failed");
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+        }
+        assertFalse(file.exists() && file.length() > 0);
+    }
+
+    private static final class Written {
+
+        Written(final int track, final byte[] data, final long presentationTimeUs, final int flags) {
+
+            this.track = track;
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+
+        final int track;
+        final byte[] data;
+        final long presentationTimeUs;
+        final int flags;
+    }
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private final FakeSampleMuxer muxer = new FakeSampleMuxer();
+}
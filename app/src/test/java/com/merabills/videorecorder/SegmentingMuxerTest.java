@@ -0,0 +1,217 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SegmentingMuxerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+
+        muxers.clear();
+        sealed.clear();
+    }
+
+    @Test
+    public void rotatesOnTheFirstKeyframePastTheDuration() throws Exception {
+
+        final SegmentingMuxer muxer = newMuxer(2_000_000, Long.MAX_VALUE);
+        final int video = muxer.addTrack(null, true);
+        final int audio = muxer.addTrack(null, false);
+        muxer.start();
+
+        // 7 s of 30 fps video with a keyframe every 1.5 s, plus audio
+        final int frames = 210;
+        int audioFrames = 0;
+        for (int i = 0; i < frames; i++) {
+            final long videoUs = i * 33_333L;
+            while (audioFrames * 23_220L <= videoUs)
+                muxer.writeSampleData(audio, sample(10), audioFrames++ * 23_220L, 0);
+            muxer.writeSampleData(video, sample(100), videoUs, i % 45 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+        muxer.stop();
+        muxer.release();
+
+        // Keyframes at 0, 1.5, 3, 4.5, 6 s: rotations at 3 s and 6 s
+        assertEquals(3, sealed.size());
+        assertEquals(3, muxers.size());
+        long total = 0;
+        for (final FakeSampleMuxer segment : muxers.values()) {
+            assertTrue(segment.isStopped() && segment.isReleased());
+            final FakeSampleMuxer.Sample first = firstOnTrack(segment, video);
+            assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, first.flags);
+            total += segment.getSamples().size();
+        }
+        assertEquals(frames + audioFrames, total);
+        assertEquals(90 * 33_333L, firstOnTrack(muxers.get(muxer.segmentFile(1)), video).presentationTimeUs);
+        assertEquals(180 * 33_333L, firstOnTrack(muxers.get(muxer.segmentFile(2)), video).presentationTimeUs);
+    }
+
+    @Test
+    public void rotatesOnSize() throws Exception {
+
+        final SegmentingMuxer muxer = newMuxer(Long.MAX_VALUE, 1_000);
+        final int video = muxer.addTrack(null, true);
+        muxer.start();
+        for (int i = 0; i < 40; i++)
+            muxer.writeSampleData(video, sample(100), i * 33_333L, i % 5 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxer.stop();
+
+        // 1000 bytes is reached after 10 frames, and keyframes fall every 5
+        assertEquals(4, sealed.size());
+        for (final SegmentingMuxer.Segment segment : sealed)
+            assertEquals(1_000, segment.bytes);
+    }
+
+    @Test
+    public void segmentsAreHandedOverAsSoonAsTheyAreSealed() throws Exception {
+
+        final SegmentingMuxer muxer = newMuxer(990_000, Long.MAX_VALUE);
+        final int video = muxer.addTrack(null, true);
+        muxer.start();
+
+        for (int i = 0; i < 31; i++)
+            muxer.writeSampleData(video, sample(10), i * 33_333L, i % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        // The keyframe at 1 s sealed the first segment while recording continues
+        assertEquals(1, sealed.size());
+        assertEquals(0, sealed.get(0).index);
+        assertTrue(muxers.get(sealed.get(0).file).isStopped());
+        assertEquals(0, sealed.get(0).startUs);
+        assertEquals(30 * 33_333L, sealed.get(0).endUs);
+        muxer.stop();
+    }
+
+    @Test
+    public void manifestListsSegmentsInOrderAndMarksTheEnd() throws Exception {
+
+        final SegmentingMuxer muxer = newMuxer(990_000, Long.MAX_VALUE);
+        final int video = muxer.addTrack(null, true);
+        muxer.start();
+        for (int i = 0; i < 100; i++)
+            muxer.writeSampleData(video, sample(10), i * 33_333L, i % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxer.stop();
+
+        final List<String> lines = Files.readAllLines(muxer.getManifestFile().toPath(), StandardCharsets.UTF_8);
+        assertEquals(5, lines.size());
+        for (int i = 0; i < 4; i++) {
+            final String[] fields = lines.get(i).split("\t");
+            assertEquals(String.valueOf(i), fields[0]);
+            assertEquals("session_part00" + i + ".mp4", fields[1]);
+        }
+        assertEquals(SegmentingMuxer.MANIFEST_END, lines.get(4));
+    }
+
+    @Test
+    public void reusedBaseNameKeepsTheEarlierRecording() throws Exception {
+
+        final SegmentingMuxer first = record(2);
+        final File firstManifest = first.getManifestFile();
+        final List<String> firstLines = Files.readAllLines(firstManifest.toPath(), StandardCharsets.UTF_8);
+        final SegmentingMuxer second = record(3);
+
+        // The earlier segments may still be queued for upload, so the second recording is numbered
+        assertEquals(firstLines, Files.readAllLines(firstManifest.toPath(), StandardCharsets.UTF_8));
+        assertEquals(new File(folder.getRoot(), "session-2.segments"), second.getManifestFile());
+        assertEquals(new File(folder.getRoot(), "session-2_part000.mp4"), second.segmentFile(0));
+        final List<String> lines = Files.readAllLines(second.getManifestFile().toPath(), StandardCharsets.UTF_8);
+        assertEquals(4, lines.size());
+        assertEquals("session-2_part000.mp4", lines.get(0).split("\t")[1]);
+        assertEquals(SegmentingMuxer.MANIFEST_END, lines.get(3));
+        assertEquals(5, muxers.size());
+    }
+
+    @Test
+    public void failingToOpenTheNextSegmentKeepsRecordingIntoTheCurrentOne() throws Exception {
+
+        final boolean[] failNext = {false};
+        final SegmentingMuxer muxer = new SegmentingMuxer(
+                folder.getRoot(), "session", 1_000_000, Long.MAX_VALUE,
+                file -> {
+                    if (failNext[0]) throw new IOException("disk full");
+                    return track(file);
+                },
+                sealed::add);
+        final int video = muxer.addTrack(null, true);
+        muxer.start();
+        muxer.writeSampleData(video, sample(10), 0, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+
+        failNext[0] = true;
+        muxer.writeSampleData(video, sample(10), 2_000_000, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        failNext[0] = false;
+        muxer.writeSampleData(video, sample(10), 2_033_333, 0);
+
+        // The keyframe that could not start a segment stays in the current one
+        final List<FakeSampleMuxer.Sample> current = muxers.get(muxer.segmentFile(0)).getSamples();
+        assertEquals(3, current.size());
+        assertEquals(2_000_000, current.get(1).presentationTimeUs);
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, current.get(1).flags);
+        assertEquals(1, muxer.getRotationErrorCount());
+
+        // The next keyframe tries again
+        muxer.writeSampleData(video, sample(10), 3_000_000, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        muxer.stop();
+
+        assertEquals(2, sealed.size());
+        assertEquals(3, muxers.get(muxer.segmentFile(0)).getSamples().size());
+        assertEquals(1, muxers.get(muxer.segmentFile(1)).getSamples().size());
+    }
+
+    /**
+     * Records {@code segments} one-second segments as {@code session}.
+     */
+    private SegmentingMuxer record(final int segments) throws IOException {
+
+        final SegmentingMuxer muxer = newMuxer(990_000, Long.MAX_VALUE);
+        final int video = muxer.addTrack(null, true);
+        muxer.start();
+        for (int i = 0; i < segments * 30; i++)
+            muxer.writeSampleData(video, sample(10), i * 33_333L, i % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxer.stop();
+        return muxer;
+    }
+
+    private SegmentingMuxer newMuxer(final long maxDurationUs, final long maxBytes) {
+        return new SegmentingMuxer(folder.getRoot(), "session", maxDurationUs, maxBytes, this::track, sealed::add);
+    }
+
+    private FakeSampleMuxer track(final File file) {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        muxers.put(file, muxer);
+        return muxer;
+    }
+
+    private static FakeSampleMuxer.Sample firstOnTrack(final FakeSampleMuxer muxer, final int track) {
+
+        for (final FakeSampleMuxer.Sample sample : muxer.getSamples())
+            if (sample.trackIndex == track) return sample;
+        throw new AssertionError("no samples on track " + track);
+    }
+
+    private static ByteBuffer sample(final int size) {
+        return ByteBuffer.wrap(new byte[size]);
+    }
+
+    private final Map<File, FakeSampleMuxer> muxers = new LinkedHashMap<>();
+    private final List<SegmentingMuxer.Segment> sealed = new ArrayList<>();
+}
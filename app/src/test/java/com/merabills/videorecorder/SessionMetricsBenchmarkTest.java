@@ -0,0 +1,138 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Cost of the per-sample metrics against the hot path they instrument: encoder threads handing
+ * a recording's mix of video frames and small audio frames to
+ * {@link MuxerCoordinator#writeSample}, and the writer thread passing them on to the muxer.
+ * Both sides are timed after a warm-up, keeping the best of several runs, so a busy machine or
+ * a late JIT cannot push the ratio around.
+ */
+public class SessionMetricsBenchmarkTest {
+
+    @Test
+    public void costsUnderOnePercentOfTheHandoff() {
+
+        final MuxerCoordinator coordinator = new MuxerCoordinator(new NullMuxer(), 2, 64L * 1024 * 1024,
+                MuxerCoordinator.DropPolicy.DROP_NEWEST, 4096, 0);
+        coordinator.addTrack(null);
+        coordinator.addTrack(null);
+        final ByteBuffer video = ByteBuffer.allocateDirect(VIDEO_BYTES);
+        final ByteBuffer audio = ByteBuffer.allocateDirect(AUDIO_BYTES);
+        final SessionMetrics metrics = new SessionMetrics(2);
+        metrics.setTrackMime(VIDEO, "video/avc");
+        metrics.setTrackMime(AUDIO, "audio/mp4a-latm");
+
+        // Warm up so the JIT has compiled both paths before measuring
+        handOff(coordinator, video, audio);
+        recordMetrics(metrics);
+
+        double handOffNanos = Double.MAX_VALUE;
+        double metricsNanos = Double.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            handOffNanos = Math.min(handOffNanos, handOff(coordinator, video, audio));
+            metricsNanos = Math.min(metricsNanos, recordMetrics(metrics));
+        }
+        coordinator.stopMuxer();
+
+        // The handoff records metrics too, so compare against what it costs without them
+        final double overhead = 100 * metricsNanos / (handOffNanos - metricsNanos);
+        assertTrue(String.format(Locale.US,
+                        "SessionMetrics %.1f ns/sample against a writeSample of %.0f ns: overhead %.2f%%",
+                        metricsNanos, handOffNanos, overhead),
+                overhead < 1);
+    }
+
+    /**
+     * Hands a few seconds of a recording to the coordinator and waits for the writer.
+     *
+     * @return nanoseconds per sample.
+     */
+    private static double handOff(final MuxerCoordinator coordinator, final ByteBuffer video, final ByteBuffer audio) {
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < SAMPLES; i++) {
+            final ByteBuffer data = isVideo(i) ? video : audio;
+            data.clear();
+            while (!coordinator.writeSample(isVideo(i) ? VIDEO : AUDIO, data, presentationTimeUs(i), 0))
+                Thread.yield();
+        }
+        coordinator.awaitIdle();
+        return (double) (System.nanoTime() - start) / SAMPLES;
+    }
+
+    /**
+     * What the coordinator records for the same samples.
+     *
+     * @return nanoseconds per sample.
+     */
+    private static double recordMetrics(final SessionMetrics metrics) {
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < SAMPLES; i++) {
+            final int track = isVideo(i) ? VIDEO : AUDIO;
+            final long ptsUs = presentationTimeUs(i);
+            metrics.onSampleQueued(track, ptsUs, (i & 127) == 0, ptsUs * 1000 + 5_000_000);
+            metrics.onSampleWritten(track, ptsUs, isVideo(i) ? VIDEO_BYTES : AUDIO_BYTES, 2_000);
+        }
+        return (double) (System.nanoTime() - start) / SAMPLES;
+    }
+
+    /**
+     * Samples alternate as a recording's do: about 30 video frames to 47 AAC frames a second.
+     */
+    private static boolean isVideo(final int sample) {
+        return sample % 5 == 0 || sample % 5 == 3;
+    }
+
+    private static long presentationTimeUs(final int sample) {
+        return sample * 13_000L;
+    }
+
+    /**
+     * Muxer that takes samples without looking at them, so only the handoff is timed.
+     */
+    private static final class NullMuxer implements SampleMuxer {
+
+        @Override
+        public int addTrack(@NonNull MediaFormat format) {
+            return tracks++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, @NonNull ByteBuffer data, long presentationTimeUs, int flags) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        private int tracks = 0;
+    }
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    // An AVC frame at 5 Mbit/s and 30 fps, and an AAC frame at 128 kbit/s
+    private static final int VIDEO_BYTES = 21 * 1024;
+    private static final int AUDIO_BYTES = 340;
+    private static final int SAMPLES = 100_000;
+    private static final int RUNS = 10;
+}
@@ -0,0 +1,117 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class SessionMetricsTest {
+
+    @Test
+    public void countsSamplesPerTrack() {
+
+        final SessionMetrics metrics = new SessionMetrics(2);
+        metrics.setTrackMime(0, "video/avc");
+        metrics.setTrackMime(1, "audio/mp4a-latm");
+
+        // One second of 30 fps video, 2 ms from capture to encoder output
+        for (int frame = 0; frame < 31; frame++) {
+            final long ptsUs = 1_000_000 + frame * 1_000_000L / 30;
+            metrics.onSampleQueued(0, ptsUs, frame % 30 == 0, ptsUs * 1000 + 2_000_000);
+            metrics.onSampleWritten(0, ptsUs, 1000, 50_000);
+        }
+        metrics.onSampleDropped(0);
+
+        final SessionMetrics.TrackMetrics video = metrics.getTrack(0);
+        assertEquals(31, video.getSampleCount());
+        assertEquals(2, video.getKeyFrameCount());
+        assertEquals(1, video.getDroppedCount());
+        assertEquals(31_000, video.getBytesWritten());
+        assertEquals(30.0, video.getSampleRate(), 0.01);
+        assertEquals(2_000_000, video.getEncoderLatency().getMaxNanos());
+        assertEquals(31, metrics.getWriteLatency().getCount());
+        assertEquals(31_000, metrics.getBytesWritten());
+        assertEquals(0, metrics.getTrack(1).getSampleCount());
+    }
+
+    @Test
+    public void measuresAudioVideoSkew() {
+
+        final SessionMetrics metrics = new SessionMetrics(2);
+        metrics.setTrackMime(0, "audio/mp4a-latm");
+        metrics.setTrackMime(1, "video/hevc");
+
+        // Audio runs 40 ms behind video
+        metrics.onSampleQueued(1, 1_000_000, true, 0);
+        metrics.onSampleQueued(0, 960_000, false, 0);
+        metrics.onSampleQueued(1, 1_033_000, false, 0);
+
+        assertEquals(2, metrics.getAvSkew().getCount());
+        assertEquals(73_000_000, metrics.getAvSkew().getMaxNanos());
+        assertEquals(40_000_000, metrics.getAvSkew().getValueAtPercentile(50), 40_000_000 * 0.04);
+    }
+
+    @Test
+    public void skewNeedsBothKindsOfTrack() {
+
+        final SessionMetrics metrics = new SessionMetrics(2);
+        metrics.onSampleQueued(0, 1_000, false, 0);
+        metrics.onSampleQueued(1, 2_000, false, 0);
+
+        assertEquals(0, metrics.getAvSkew().getCount());
+    }
+
+    @Test
+    public void reportsAsJson() {
+
+        final SessionMetrics metrics = new SessionMetrics(1);
+        metrics.setTrackMime(0, "video/\"avc\"");
+        metrics.onSampleQueued(0, 0, true, 1_000);
+        metrics.onSampleWritten(0, 0, 10, 3_000);
+
+        final String running = metrics.toJson(null);
+        assertTrue(running, running.contains("\"finished\":false"));
+        assertFalse(running, running.contains("\"upload\""));
+
+        metrics.finish(System.nanoTime());
+        final String json = metrics.toJson("{\"stagedBytes\":5}");
+        assertTrue(json, json.startsWith("{\"durationMs\":"));
+        assertTrue(json, json.contains("\"finished\":true"));
+        assertTrue(json, json.contains("\"tracks\":[{\"mime\":\"video/\\\"avc\\\"\",\"samples\":1,\"keyFrames\":1"));
+        assertTrue(json, json.contains("\"muxerWriteLatencyUs\":{\"count\":1,\"mean\":3,"));
+        assertTrue(json, json.endsWith(",\"upload\":{\"stagedBytes\":5}}"));
+        assertEquals(count(json, '{'), count(json, '}'));
+        assertEquals(count(json, '['), count(json, ']'));
+    }
+
+    @Test
+    public void coordinatorFillsInTheMetrics() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 1);
+        coordinator.addTrack(null);
+
+        assertTrue(coordinator.writeSample(0, ByteBuffer.allocate(100), 0, 1));
+        assertTrue(coordinator.writeSample(0, ByteBuffer.allocate(50), 33_000, 0));
+        coordinator.stopMuxer();
+        assertFalse(coordinator.writeSample(0, ByteBuffer.allocate(10), 66_000, 0));
+
+        final SessionMetrics metrics = coordinator.getMetrics();
+        assertEquals(3, metrics.getTrack(0).getSampleCount() + metrics.getTrack(0).getDroppedCount());
+        assertEquals(1, metrics.getTrack(0).getKeyFrameCount());
+        assertEquals(1, metrics.getTrack(0).getDroppedCount());
+        assertEquals(150, metrics.getBytesWritten());
+        assertEquals(2, metrics.getWriteLatency().getCount());
+        assertTrue(metrics.toJson(null).contains("\"finished\":true"));
+    }
+
+    private static int count(final String text, final char c) {
+
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) if (text.charAt(i) == c) count++;
+        return count;
+    }
+}
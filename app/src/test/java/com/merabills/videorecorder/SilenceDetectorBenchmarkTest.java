@@ -0,0 +1,67 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Cost of {@link SilenceDetector} per sample on 48 kHz stereo noise, which exercises every
+ * branch of the measurement, in a direct buffer like the codec's.
+ */
+public class SilenceDetectorBenchmarkTest {
+
+    @Test
+    public void measuresFarFasterThanRealTimeWithoutAllocating() {
+
+        final ByteBuffer pcm = ByteBuffer.allocateDirect(CHUNK_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+        final Random random = new Random(7);
+        for (int i = 0; i < CHUNK_SAMPLES; i++) pcm.putShort(i * 2, (short) random.nextInt(65_536));
+        final SilenceDetector detector = new SilenceDetector(-60, 500_000, null);
+
+        // Warm up so the JIT has compiled the loop before measuring
+        run(detector, pcm, CHUNKS);
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long allocatedBefore = allocatedBytes(threads);
+        final long start = System.nanoTime();
+        run(detector, pcm, CHUNKS);
+        final long nanos = System.nanoTime() - start;
+        final long allocated = allocatedBytes(threads) - allocatedBefore;
+
+        final double nanosPerSample = (double) nanos / CHUNKS / CHUNK_SAMPLES;
+        final double realTime = (double) CHUNKS * CHUNK_SAMPLES / CHANNELS / SAMPLE_RATE * 1e9 / nanos;
+        System.out.println(String.format(Locale.US, "SilenceDetector %.2f ns/sample, %.0fx real time, allocated=%d B",
+                nanosPerSample, realTime, allocated));
+
+        // Generous bound so a slow or shared machine does not fail the build
+        assertTrue(realTime > 100);
+        if (allocatedBefore >= 0) assertTrue("allocated " + allocated + " bytes", allocated < 16 * 1024);
+    }
+
+    private static void run(final SilenceDetector detector, final ByteBuffer pcm, final int chunks) {
+
+        for (int i = 0; i < chunks; i++)
+            detector.update(pcm, 0, CHUNK_SAMPLES, i * 20_000L);
+    }
+
+    private static long allocatedBytes(final ThreadMXBean threads) {
+
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        return -1;
+    }
+
+    private static final int SAMPLE_RATE = 48_000;
+    private static final int CHANNELS = 2;
+    // 20 ms
+    private static final int CHUNK_SAMPLES = 960 * CHANNELS;
+    private static final int CHUNKS = 10_000;
+}
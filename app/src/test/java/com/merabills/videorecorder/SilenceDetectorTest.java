@@ -0,0 +1,188 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class SilenceDetectorTest {
+
+    @Test
+    public void becomesSilentOnlyAfterTheHold() {
+
+        final List<String> events = new ArrayList<>();
+        final SilenceDetector detector = new SilenceDetector(-60, 500_000, recorder(events));
+        final ByteBuffer zeros = chunk(0, 0);
+
+        long pts = 1_000_000;
+        for (int i = 0; i < 25; i++, pts += CHUNK_US)
+            assertFalse(detector.update(zeros, 0, CHUNK_SAMPLES, pts));
+        // 25 chunks of 20 ms reach the 500 ms hold on the next one
+        assertTrue(detector.update(zeros, 0, CHUNK_SAMPLES, pts));
+        assertEquals(List.of("start 1000000"), events);
+    }
+
+    @Test
+    public void ditherCountsAsSilence() {
+
+        final SilenceDetector detector = new SilenceDetector(-60, 0, null);
+
+        assertTrue(detector.update(noise(8, 1), 0, CHUNK_SAMPLES, 0));
+        assertTrue(detector.getLastRmsDbfs() < -60);
+    }
+
+    @Test
+    public void aClickOrSpeechIsNotSilence() {
+
+        final SilenceDetector detector = new SilenceDetector(-60, 0, null);
+
+        final ByteBuffer click = chunk(0, 0);
+        click.putShort(100, (short) 2_000);
+        assertFalse(detector.update(click, 0, CHUNK_SAMPLES, 0));
+        assertEquals(2_000, detector.getLastPeak());
+        assertFalse(detector.update(chunk(3_000, 440), 0, CHUNK_SAMPLES, 0));
+    }
+
+    @Test
+    public void soundEndsSilenceAtOnceAndRestartsTheHold() {
+
+        final List<String> events = new ArrayList<>();
+        final SilenceDetector detector = new SilenceDetector(-60, 40_000, recorder(events));
+        final ByteBuffer zeros = chunk(0, 0);
+
+        detector.update(zeros, 0, CHUNK_SAMPLES, 0);
+        detector.update(zeros, 0, CHUNK_SAMPLES, 20_000);
+        assertTrue(detector.update(zeros, 0, CHUNK_SAMPLES, 40_000));
+        assertFalse(detector.update(chunk(3_000, 440), 0, CHUNK_SAMPLES, 60_000));
+        assertFalse(detector.update(zeros, 0, CHUNK_SAMPLES, 80_000));
+        assertFalse(detector.update(zeros, 0, CHUNK_SAMPLES, 100_000));
+        assertTrue(detector.update(zeros, 0, CHUNK_SAMPLES, 120_000));
+        assertEquals(List.of("start 0", "end 60000", "start 80000"), events);
+    }
+
+    @Test
+    public void reportsLevelsInDbfs() {
+
+        final SilenceDetector detector = new SilenceDetector(-60, 0, null);
+
+        detector.update(chunk(0, 0), 0, CHUNK_SAMPLES, 0);
+        assertEquals(Double.NEGATIVE_INFINITY, detector.getLastRmsDbfs(), 0);
+        // A full scale sine has an RMS 3 dB below full scale
+        detector.update(chunk(32_767, 1_000), 0, CHUNK_SAMPLES, 0);
+        assertEquals(-3.01, detector.getLastRmsDbfs(), 0.05);
+    }
+
+    @Test
+    public void spansAreCutToEachRecording() {
+
+        final SilenceSpans spans = new SilenceSpans();
+        spans.onSilenceStarted(1_000);
+        spans.onSilenceEnded(3_000);
+        spans.onSilenceStarted(5_000);
+
+        // The closed span is cut at the start and the open one at the end
+        final List<SilenceSpans.Span> first = spans.get(2_000, 6_000);
+        assertEquals(2, first.size());
+        assertEquals(2_000, first.get(0).startUs);
+        assertEquals(3_000, first.get(0).endUs);
+        assertEquals(5_000, first.get(1).startUs);
+        assertEquals(6_000, first.get(1).endUs);
+
+        // An overlapping recording reads the same spans, cut to its own stretch
+        spans.onSilenceEnded(9_000);
+        final List<SilenceSpans.Span> second = spans.get(4_000, 10_000);
+        assertEquals(1, second.size());
+        assertEquals(5_000, second.get(0).startUs);
+        assertEquals(9_000, second.get(0).endUs);
+
+        // A span cut at both ends
+        final List<SilenceSpans.Span> inside = spans.get(6_000, 8_000);
+        assertEquals(1, inside.size());
+        assertEquals(6_000, inside.get(0).startUs);
+        assertEquals(8_000, inside.get(0).endUs);
+
+        assertEquals(List.of("1000 2000", "4000 5000", "total 2000"), SilenceSpans.toLines(first, 1_000));
+    }
+
+    @Test
+    public void openSpanStartsNoLaterThanTheRecording() {
+
+        final SilenceSpans spans = new SilenceSpans();
+        spans.onSilenceStarted(1_000);
+
+        final List<SilenceSpans.Span> open = spans.get(4_000, 7_000);
+        assertEquals(1, open.size());
+        assertEquals(4_000, open.get(0).startUs);
+        assertEquals(7_000, open.get(0).endUs);
+        // Silence that starts after the recording ends is not part of it
+        assertEquals(0, spans.get(0, 1_000).size());
+    }
+
+    @Test
+    public void prunedSpansAreForgotten() {
+
+        final SilenceSpans spans = new SilenceSpans();
+        spans.onSilenceStarted(1_000);
+        spans.onSilenceEnded(3_000);
+        spans.onSilenceStarted(5_000);
+        spans.onSilenceEnded(7_000);
+        spans.onSilenceStarted(9_000);
+
+        spans.prune(4_000);
+        final List<SilenceSpans.Span> left = spans.get(0, 10_000);
+        assertEquals(2, left.size());
+        assertEquals(5_000, left.get(0).startUs);
+        assertEquals(9_000, left.get(1).startUs);
+
+        // Neither a span ending exactly there nor the open one is pruned
+        spans.prune(7_000);
+        assertEquals(2, spans.get(0, 10_000).size());
+        spans.prune(10_000);
+        final List<SilenceSpans.Span> open = spans.get(0, 10_000);
+        assertEquals(1, open.size());
+        assertEquals(9_000, open.get(0).startUs);
+    }
+
+    private static SilenceDetector.Listener recorder(final List<String> events) {
+
+        return new SilenceDetector.Listener() {
+            @Override
+            public void onSilenceStarted(long presentationTimeUs) {
+                events.add("start " + presentationTimeUs);
+            }
+
+            @Override
+            public void onSilenceEnded(long presentationTimeUs) {
+                events.add("end " + presentationTimeUs);
+            }
+        };
+    }
+
+    private static ByteBuffer chunk(final int amplitude, final int frequency) {
+
+        final ByteBuffer bytes = ByteBuffer.allocate(CHUNK_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < CHUNK_SAMPLES; i++)
+            bytes.putShort(i * 2, (short) (Math.sin(2 * Math.PI * frequency * i / 48_000) * amplitude));
+        return bytes;
+    }
+
+    private static ByteBuffer noise(final int amplitude, final long seed) {
+
+        final Random random = new Random(seed);
+        final ByteBuffer bytes = ByteBuffer.allocate(CHUNK_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < CHUNK_SAMPLES; i++)
+            bytes.putShort(i * 2, (short) (random.nextInt(2 * amplitude + 1) - amplitude));
+        return bytes;
+    }
+
+    // 20 ms of 48 kHz mono
+    private static final int CHUNK_SAMPLES = 960;
+    private static final long CHUNK_US = 20_000;
+}
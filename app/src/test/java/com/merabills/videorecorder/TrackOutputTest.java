@@ -0,0 +1,95 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class TrackOutputTest {
+
+    @Test
+    public void dropsOutputWhileDetached() {
+
+        final TrackOutput output = new TrackOutput(false);
+        output.setFormat(null);
+        assertFalse(output.write(sample(), info(0, 0)));
+    }
+
+    @Test
+    public void addsTheTrackOnceTheFormatIsKnown() {
+
+        final FakeSampleMuxer muxer = new FakeSampleMuxer();
+        final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 1);
+        final TrackOutput output = new TrackOutput(false);
+
+        output.attach(coordinator);
+        assertFalse(output.write(sample(), info(0, 0)));
+        output.setFormat(null);
+        assertTrue(output.write(sample(), info(10, 0)));
+        coordinator.stopMuxer();
+
+        assertEquals(1, muxer.getSamples().size());
+        assertEquals(10, muxer.getSamples().get(0).presentationTimeUs);
+        assertTrue(coordinator.getFirstSampleNanos() > 0);
+    }
+
+    @Test
+    public void everyFileStartsWithAKeyFrameWhileEncodersKeepRunning() {
+
+        final TrackOutput video = new TrackOutput(true);
+        final TrackOutput audio = new TrackOutput(false);
+        video.setFormat(null);
+        audio.setFormat(null);
+
+        long timeUs = 0;
+        for (int file = 0; file < 3; file++) {
+            final FakeSampleMuxer muxer = new FakeSampleMuxer();
+            final MuxerCoordinator coordinator = new MuxerCoordinator(muxer, 2);
+            video.attach(coordinator);
+            audio.attach(coordinator);
+            assertTrue(video.isAwaitingSyncSample());
+
+            // The requested key frame shows up a few frames after the switch
+            for (int frame = 0; frame < 30; frame++, timeUs += 33_333) {
+                final int flags = frame == 3 || frame == 20 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                assertEquals(frame >= 3, video.write(sample(), info(timeUs, flags)));
+                assertTrue(audio.write(sample(), info(timeUs, 0)));
+            }
+            assertFalse(video.isAwaitingSyncSample());
+
+            video.attach(null);
+            audio.attach(null);
+            // Output between files goes nowhere
+            assertFalse(video.write(sample(), info(timeUs, MediaCodec.BUFFER_FLAG_KEY_FRAME)));
+            coordinator.stopMuxer();
+
+            final List<FakeSampleMuxer.Sample> written = muxer.getSamples();
+            assertEquals(27 + 30, written.size());
+            FakeSampleMuxer.Sample firstVideo = null;
+            for (final FakeSampleMuxer.Sample sample : written) {
+                if (sample.trackIndex == 0) {
+                    firstVideo = sample;
+                    break;
+                }
+            }
+            assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, firstVideo.flags);
+        }
+    }
+
+    private static ByteBuffer sample() {
+        return ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+    }
+
+    private static SampleInfo info(final long presentationTimeUs, final int flags) {
+
+        final SampleInfo info = new SampleInfo();
+        info.set(0, 4, presentationTimeUs, flags);
+        return info;
+    }
+}
@@ -0,0 +1,87 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+public class TranscodePolicyTest {
+
+    @Test
+    public void transcodesLargeRecordingsOnMeteredNetworks() {
+
+        final TranscodePolicy.Decision decision = policy.decide(metered(80, false), recording(), false);
+
+        assertTrue(decision.toString(), decision.transcode);
+        assertEquals(MediaFormat.MIMETYPE_VIDEO_AVC, decision.videoMime);
+        assertEquals(1_000_000, decision.videoBitrate);
+        // 60 s at 1.064 Mbit/s plus 2% container overhead
+        assertEquals(8_139_600, decision.predictedBytes, 1);
+    }
+
+    @Test
+    public void prefersHevcAtHalfTheBitrate() {
+
+        final TranscodePolicy.Decision decision = policy.decide(metered(80, false), recording(), true);
+
+        assertTrue(decision.transcode);
+        assertEquals(MediaFormat.MIMETYPE_VIDEO_HEVC, decision.videoMime);
+        assertEquals(500_000, decision.videoBitrate);
+    }
+
+    @Test
+    public void skipsUnmeteredNetworks() {
+
+        final TranscodePolicy.Decision decision =
+                policy.decide(new TranscodePolicy.Conditions(false, false, 80, 0), recording(), true);
+
+        assertFalse(decision.transcode);
+        assertEquals("unmetered network", decision.reason);
+    }
+
+    @Test
+    public void skipsSmallAndUnknownRecordings() {
+
+        assertEquals("small file", policy.decide(metered(80, false),
+                new TranscodePolicy.Recording(MIN_BYTES - 1, DURATION_US), true).reason);
+        assertEquals("unknown duration", policy.decide(metered(80, false),
+                new TranscodePolicy.Recording(RECORDING_BYTES, 0), true).reason);
+    }
+
+    @Test
+    public void skipsOnLowBatteryUnlessCharging() {
+
+        assertEquals("low battery", policy.decide(metered(MIN_BATTERY - 1, false), recording(), true).reason);
+        assertTrue(policy.decide(metered(MIN_BATTERY - 1, true), recording(), true).transcode);
+    }
+
+    @Test
+    public void skipsRecordingsThatAreAlreadyCompact() {
+
+        // 60 s at about 1.5 Mbit/s: an AVC pass would save well under 30%
+        final TranscodePolicy.Decision decision = policy.decide(metered(80, false),
+                new TranscodePolicy.Recording(11_500_000, DURATION_US), false);
+
+        assertFalse(decision.transcode);
+        assertEquals("already compact", decision.reason);
+    }
+
+    private static TranscodePolicy.Conditions metered(final int batteryPercent, final boolean charging) {
+        return new TranscodePolicy.Conditions(true, charging, batteryPercent, 0);
+    }
+
+    private static TranscodePolicy.Recording recording() {
+        return new TranscodePolicy.Recording(RECORDING_BYTES, DURATION_US);
+    }
+
+    private static final long MIN_BYTES = 4 * 1024 * 1024;
+    private static final int MIN_BATTERY = 30;
+    private static final long DURATION_US = 60_000_000;
+    // 60 s at 4 Mbit/s
+    private static final long RECORDING_BYTES = 30_000_000;
+
+    private final TranscodePolicy policy = new TranscodePolicy(MIN_BYTES, MIN_BATTERY, 1_000_000, 64_000, 0.3);
+}
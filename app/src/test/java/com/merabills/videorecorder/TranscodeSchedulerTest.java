@@ -0,0 +1,238 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TranscodeSchedulerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws Exception {
+        assertTrue(scheduler.shutdown(5000));
+    }
+
+    @Test
+    public void replacesTheRecordingWithTheSmallerFile() throws Exception {
+
+        final File recording = writeFile("a.mp4", RECORDING_BYTES);
+
+        final TranscodeScheduler.Result result = scheduler.submit(recording).get();
+
+        assertEquals(TranscodeScheduler.Outcome.TRANSCODED, result.outcome);
+        assertNull(result.error);
+        assertEquals(RECORDING_BYTES, result.bytesBefore);
+        assertEquals(OUTPUT_BYTES, result.bytesAfter);
+        assertEquals(OUTPUT_BYTES, recording.length());
+        assertNoTemporaryFiles();
+        assertEquals(1, ready.size());
+        assertEquals(recording, ready.get(0));
+    }
+
+    @Test
+    public void uploadsAsIsWhenThePolicySaysSo() throws Exception {
+
+        metered = false;
+        final File recording = writeFile("a.mp4", RECORDING_BYTES);
+
+        final TranscodeScheduler.Result result = scheduler.submit(recording).get();
+
+        assertEquals(TranscodeScheduler.Outcome.SKIPPED, result.outcome);
+        assertNotNull(result.decision);
+        assertEquals("unmetered network", result.decision.reason);
+        assertEquals(0, transcoder.passes);
+        assertEquals(RECORDING_BYTES, recording.length());
+        assertEquals(1, ready.size());
+    }
+
+    @Test
+    public void keepsTheOriginalWhenThePassFails() throws Exception {
+
+        transcoder.failure = new IOException("Codec error");
+        final File recording = writeFile("a.mp4", RECORDING_BYTES);
+
+        final TranscodeScheduler.Result result = scheduler.submit(recording).get();
+
+        assertEquals(TranscodeScheduler.Outcome.FAILED, result.outcome);
+        assertEquals("Codec error", result.error.getMessage());
+        assertArrayEquals(new byte[RECORDING_BYTES], Files.readAllBytes(recording.toPath()));
+        assertNoTemporaryFiles();
+        assertEquals(1, ready.size());
+    }
+
+    @Test
+    public void keepsTheOriginalWhenThePassDoesNotShrinkIt() throws Exception {
+
+        transcoder.outputBytes = RECORDING_BYTES + 1;
+        final File recording = writeFile("a.mp4", RECORDING_BYTES);
+
+        final TranscodeScheduler.Result result = scheduler.submit(recording).get();
+
+        assertEquals(TranscodeScheduler.Outcome.FAILED, result.outcome);
+        assertEquals(RECORDING_BYTES, recording.length());
+        assertEquals(RECORDING_BYTES, result.bytesAfter);
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void pausesWhileTheDeviceIsHot() throws Exception {
+
+        final long pollMs = TimeUnit.NANOSECONDS.toMillis(TranscodeScheduler.THERMAL_POLL_NANOS);
+        transcoder.onCheckpoint = checkpoint -> {
+            if (checkpoint != 2) return;
+            thermalStatus = PAUSE_STATUS;
+            coolDownAfter(3 * pollMs);
+            // Let the next checkpoint read the new status
+            sleep(pollMs);
+        };
+        final File recording = writeFile("a.mp4", RECORDING_BYTES);
+
+        final TranscodeScheduler.Result result = scheduler.submit(recording).get();
+
+        assertEquals(TranscodeScheduler.Outcome.TRANSCODED, result.outcome);
+        assertTrue(result.pausedNanos > 0);
+        assertTrue(result.pausedNanos < TimeUnit.MILLISECONDS.toNanos(MAX_PAUSE_MS));
+        assertTrue(result.elapsedNanos >= result.pausedNanos);
+    }
+
+    @Test
+    public void abandonsThePassWhenTheDeviceStaysHot() throws Exception {
+
+        thermalStatus = PAUSE_STATUS;
+        final File recording = writeFile("a.mp4", RECORDING_BYTES);
+
+        final long start = System.nanoTime();
+        final TranscodeScheduler.Result result = scheduler.submit(recording).get();
+
+        assertEquals(TranscodeScheduler.Outcome.FAILED, result.outcome);
+        assertNotNull(result.error);
+        assertEquals("Device stayed too hot to transcode", result.error.getMessage());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(MAX_PAUSE_MS));
+        assertEquals(RECORDING_BYTES, recording.length());
+        assertNoTemporaryFiles();
+    }
+
+    private void coolDownAfter(final long ms) {
+
+        final Thread thread = new Thread(() -> {
+            sleep(ms);
+            thermalStatus = 0;
+        });
+        thread.start();
+    }
+
+    private static void sleep(final long ms) {
+
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void assertNoTemporaryFiles() {
+
+        final String[] names = folder.getRoot().list();
+        assertNotNull(names);
+        for (final String name : names)
+            assertFalse(name, name.endsWith(".transcoding"));
+    }
+
+    private File writeFile(final String name, final int length) throws IOException {
+
+        final File file = folder.newFile(name);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[length]);
+        }
+        return file;
+    }
+
+    private interface CheckpointHook {
+
+        void onCheckpoint(int checkpoint);
+    }
+
+    /**
+     * Writes a zero-filled output of the configured size, calling the throttle once per
+     * pretend frame.
+     */
+    private static final class FakeTranscoder implements Transcoder {
+
+        @NonNull
+        @Override
+        public TranscodePolicy.Recording probe(@NonNull final File input) {
+            return new TranscodePolicy.Recording(input.length(), DURATION_US);
+        }
+
+        @Override
+        public boolean canEncode(@NonNull final String videoMime) {
+            return true;
+        }
+
+        @Override
+        public void transcode(
+                @NonNull final File input,
+                @NonNull final File output,
+                @NonNull final TranscodePolicy.Decision decision,
+                @NonNull final Throttle throttle
+        ) throws IOException, InterruptedException {
+
+            passes++;
+            try (FileOutputStream stream = new FileOutputStream(output)) {
+                for (int frame = 0; frame < FRAMES; frame++) {
+                    throttle.checkpoint();
+                    if (onCheckpoint != null) onCheckpoint.onCheckpoint(frame);
+                    stream.write(new byte[outputBytes / FRAMES]);
+                }
+                if (failure != null) throw failure;
+            }
+        }
+
+        private static final int FRAMES = 10;
+
+        volatile int passes = 0;
+        volatile int outputBytes = OUTPUT_BYTES;
+        volatile IOException failure;
+        volatile CheckpointHook onCheckpoint;
+    }
+
+    // Big enough for the policy, with plenty to save at 1 Mbit/s over 10 s
+    private static final int RECORDING_BYTES = 5_000_000;
+    private static final int OUTPUT_BYTES = 1_000_000;
+    private static final long DURATION_US = 10_000_000;
+    private static final int THROTTLE_STATUS = 2;
+    private static final int PAUSE_STATUS = 3;
+    private static final long MAX_PAUSE_MS = 500;
+
+    private volatile boolean metered = true;
+    private volatile int thermalStatus = 0;
+    private final List<File> ready = Collections.synchronizedList(new ArrayList<>());
+    private final FakeTranscoder transcoder = new FakeTranscoder();
+    private final TranscodeScheduler scheduler = new TranscodeScheduler(
+            new TranscodePolicy(1024 * 1024, 30, 1_000_000, 64_000, 0.3),
+            () -> new TranscodePolicy.Conditions(metered, false, 80, thermalStatus),
+            transcoder,
+            (file, result) -> ready.add(file),
+            THROTTLE_STATUS, PAUSE_STATUS, MAX_PAUSE_MS);
+}
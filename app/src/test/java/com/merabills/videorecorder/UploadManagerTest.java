@@ -0,0 +1,143 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UploadManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws Exception {
+        manager.shutdown(5000);
+    }
+
+    @Test
+    public void runsShortAndRecentUploadsFirst() throws Exception {
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        manager.setListener((file, blobName, result, error) -> {
+            order.add(blobName);
+            threads.add(Thread.currentThread().getName());
+        });
+
+        // Occupy the only worker, then queue the rest behind it
+        final Future<BlockBlobUploader.Result> first = manager.enqueue(writeFile("long", 20 * BLOCK_SIZE, 0), "long");
+        while (manager.getInFlightBytes() == 0)
+            Thread.sleep(1);
+        manager.enqueue(writeFile("medium", 8 * BLOCK_SIZE, 0), "medium");
+        manager.enqueue(writeFile("short-old", BLOCK_SIZE, 1_000_000), "short-old");
+        manager.enqueue(writeFile("short-new", BLOCK_SIZE, 2_000_000), "short-new");
+        final Future<BlockBlobUploader.Result> last =
+                manager.enqueue(writeFile("tiny", 100, 0), "tiny");
+
+        assertEquals(4, manager.getQueueDepth());
+        assertEquals(20 * BLOCK_SIZE, manager.getInFlightBytes());
+        first.get();
+        last.get();
+        while (order.size() < 5)
+            Thread.sleep(1);
+
+        assertEquals(Arrays.asList("long", "tiny", "short-new", "short-old", "medium"), order);
+        for (final String name : threads)
+            assertTrue(name, name.startsWith("UploadWorker-"));
+        assertEquals(0, manager.getQueueDepth());
+        assertEquals(0, manager.getInFlightBytes());
+        assertEquals(5, manager.getCompletedCount());
+        assertEquals(5, manager.getUploadLatency().getCount());
+        assertEquals(5, manager.getQueueLatency().getCount());
+    }
+
+    @Test
+    public void sharesOneStoreAcrossUploads() throws Exception {
+
+        final byte[] content = new byte[3 * BLOCK_SIZE + 1];
+        new Random(1).nextBytes(content);
+        final File file = writeFile("a", 0, 0);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(content);
+        }
+
+        manager.enqueue(file, "a").get();
+        manager.enqueue(writeFile("b", BLOCK_SIZE, 0), "b").get();
+        manager.upload(writeFile("c", BLOCK_SIZE, 0), "c");
+
+        assertEquals(1, storesCreated.get());
+        assertArrayEquals(content, store.getCommitted("a"));
+    }
+
+    @Test
+    public void reportsFailures() throws Exception {
+
+        final List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+        manager.setListener((file, blobName, result, error) -> errors.add(error));
+        store.setFailurePlan((blockId, attempt) -> true);
+
+        try {
+            manager.enqueue(writeFile("broken", BLOCK_SIZE, 0), "broken").get();
+            fail("Upload should fail");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        assertEquals(1, manager.getFailedCount());
+        assertEquals(1, errors.size());
+        assertNotNull(errors.get(0));
+    }
+
+    @Test
+    public void shutdownStopsEveryThread() throws Exception {
+
+        manager.enqueue(writeFile("a", 2 * BLOCK_SIZE, 0), "a").get();
+        assertTrue(manager.shutdown(5000));
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().startsWith("UploadWorker-") && !thread.getName().startsWith("UploadBlock-"))
+                continue;
+            // A pool terminates just before its last thread has finished exiting
+            thread.join(1000);
+            assertFalse(thread.getName(), thread.isAlive());
+        }
+    }
+
+    private File writeFile(final String name, final int length, final long lastModified) throws IOException {
+
+        final File file = folder.newFile(name);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[length]);
+        }
+        if (lastModified > 0 && !file.setLastModified(lastModified))
+            throw new IOException("Cannot set modification time");
+        return file;
+    }
+
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    private final AtomicInteger storesCreated = new AtomicInteger();
+    private final FakeBlockStore store = new FakeBlockStore(2);
+    private final UploadManager manager = new UploadManager(() -> {
+        storesCreated.incrementAndGet();
+        return store;
+    }, 1, 2, BLOCK_SIZE, 0, 1);
+}
@@ -0,0 +1,322 @@
+package com.merabills.videorecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class UploadQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void survivesReopening() throws Exception {
+
+        final File log = new File(folder.getRoot(), "queue.log");
+        UploadQueue queue = new UploadQueue(log);
+        queue.open();
+        final UploadQueue.Entry a = queue.enqueue(new File("/a.mp4"), "a.mp4");
+        final UploadQueue.Entry b = queue.enqueue(new File("/b.mp4"), "b.mp4");
+        queue.enqueue(new File("/c.mp4"), "c.mp4");
+        assertEquals(a, queue.take());
+        queue.markCommitted(a);
+        assertEquals(b, queue.take());
+        queue.close();
+
+        // b was uploading when the process died, so it is queued again ahead of c
+        queue = new UploadQueue(log);
+        queue.open();
+        assertEquals(2, queue.getQueuedCount());
+        assertEquals("b.mp4", queue.take().blobName);
+        assertEquals("c.mp4", queue.take().blobName);
+        assertNull(queue.take());
+        assertEquals(UploadQueue.State.COMMITTED, queue.getEntries().get(0).getState());
+    }
+
+    @Test
+    public void compactsSupersededRecords() throws Exception {
+
+        final File log = new File(folder.getRoot(), "queue.log");
+        final File recording = folder.newFile("kept.mp4");
+        UploadQueue queue = new UploadQueue(log);
+        queue.open();
+        for (int i = 0; i < 200; i++) {
+            final UploadQueue.Entry entry = queue.enqueue(new File("/gone" + i + ".mp4"), "gone" + i);
+            queue.take();
+            queue.markCommitted(entry);
+        }
+        queue.enqueue(recording, "kept.mp4");
+        queue.close();
+        final long before = log.length();
+
+        queue = new UploadQueue(log);
+        queue.open();
+        assertTrue(log.length() < before / 10);
+        assertEquals(1, queue.getEntries().size());
+        assertEquals("kept.mp4", queue.take().blobName);
+    }
+
+    /**
+     * Kills the process at every durable step in turn, restarts it, and checks that every
+     * recording ends up committed exactly once with the right content.
+     */
+    @Test
+    public void uploadsEveryFileExactlyOnceWhateverStepTheProcessDiesAt() throws Exception {
+
+        boolean crashed = true;
+        int crashStep = 1;
+        for (; crashed; crashStep++) {
+            final File root = folder.newFolder("run" + crashStep);
+            final File recordings = new File(root, "recordings");
+            assertTrue(recordings.mkdir());
+            final File log = new File(root, "queue.log");
+            final byte[][] contents = {randomBytes(10_000), randomBytes(3_000), randomBytes(5_000)};
+            final File[] files = new File[contents.length];
+            for (int i = 0; i < files.length; i++)
+                files[i] = writeFile(new File(recordings, "rec" + i + ".mp4"), contents[i]);
+            final FakeBlockStore store = new FakeBlockStore(0);
+
+            // First process: rec0 and rec1 are queued as they finish; rec2 never is
+            final Killer killer = new Killer(crashStep);
+            crashed = false;
+            try {
+                runProcess(killer, store, log, queue -> {
+                    queue.enqueue(files[0], files[0].getName());
+                    queue.enqueue(files[1], files[1].getName());
+                });
+            } catch (Crash crash) {
+                crashed = true;
+            }
+
+            // Restart: replay the queue and reconcile it against the folder
+            runProcess(new Killer(0), store, log, queue -> queue.reconcile(recordings, MP4_FILES));
+
+            for (int i = 0; i < files.length; i++) {
+                final String name = files[i].getName();
+                assertEquals("crash at step " + crashStep + ": commits of " + name, 1, store.getCommitCount(name));
+                assertArrayEquals(contents[i], store.getCommitted(name));
+            }
+            final UploadQueue reopened = new UploadQueue(log);
+            reopened.open();
+            assertEquals(0, reopened.getQueuedCount());
+            reopened.close();
+        }
+        assertTrue("expected every durable step to be exercised, got " + crashStep, crashStep > 12);
+    }
+
+    @Test
+    public void uploadsAgainOverAnEqualSizedBlobUnlessACommitWasInFlight() throws Exception {
+
+        final File log = new File(folder.getRoot(), "queue.log");
+        final byte[] content = randomBytes(5_000);
+        final File file = writeFile(folder.newFile("rec.mp4"), content);
+        final FakeBlockStore store = new FakeBlockStore(0);
+        // An earlier recording under the same name, of the same length
+        store.stageBlock("rec.mp4", BlockBlobUploader.blockId(0), ByteBuffer.wrap(randomBytes(5_000)));
+        store.commitBlockList("rec.mp4", Arrays.asList(BlockBlobUploader.blockId(0)));
+
+        final UploadManager manager = new UploadManager(() -> store, 1, 2, BLOCK_SIZE, 0, 1);
+        try {
+            final UploadQueue queue = new UploadQueue(log);
+            queue.open();
+            queue.enqueue(file, "rec.mp4");
+            final UploadQueue.Entry entry = queue.take();
+            assertFalse(entry.isCommitInFlight());
+            manager.uploadEntry(queue, entry);
+            queue.close();
+
+            assertArrayEquals(content, store.getCommitted("rec.mp4"));
+            assertEquals(2, store.getCommitCount("rec.mp4"));
+            assertTrue(entry.isCommitInFlight());
+            assertEquals(UploadQueue.State.COMMITTED, entry.getState());
+        } finally {
+            manager.shutdown(5000);
+        }
+    }
+
+    @Test
+    public void remembersACommitInFlightAcrossCompaction() throws Exception {
+
+        final File log = new File(folder.getRoot(), "queue.log");
+        UploadQueue queue = new UploadQueue(log);
+        queue.open();
+        final UploadQueue.Entry entry = queue.enqueue(folder.newFile("rec.mp4"), "rec.mp4");
+        queue.take();
+        queue.markCommitting(entry);
+        for (int i = 0; i < 200; i++) {
+            final UploadQueue.Entry other = queue.enqueue(new File("/gone" + i + ".mp4"), "gone" + i);
+            queue.take();
+            queue.markCommitted(other);
+        }
+        queue.close();
+
+        // The process died mid-commit; reopening compacts the log, and then again
+        for (int i = 0; i < 2; i++) {
+            queue = new UploadQueue(log);
+            queue.open();
+            assertEquals(1, queue.getQueuedCount());
+            assertTrue(queue.getEntries().get(0).isCommitInFlight());
+            queue.close();
+        }
+    }
+
+    private interface Setup {
+        void run(UploadQueue queue) throws IOException;
+    }
+
+    private static void runProcess(
+            @NonNull final Killer killer,
+            @NonNull final FakeBlockStore store,
+            @NonNull final File log,
+            @NonNull final Setup setup
+    ) throws Exception {
+
+        final UploadManager manager = new UploadManager(() -> new KillableStore(store, killer),
+                1, 2, BLOCK_SIZE, 0, 1);
+        try {
+            final UploadQueue queue = new UploadQueue(new KillableLog(log, killer));
+            queue.open();
+            setup.run(queue);
+            UploadQueue.Entry entry;
+            while ((entry = queue.take()) != null) {
+                try {
+                    manager.uploadEntry(queue, entry);
+                } catch (IOException e) {
+                    killer.check();
+                    throw e;
+                }
+            }
+            queue.close();
+        } finally {
+            manager.shutdown(5000);
+        }
+    }
+
+    /**
+     * Thrown to abandon a simulated process mid-step.
+     */
+    private static final class Crash extends Error {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Counts durable steps and kills the process at the chosen one; once dead, every later
+     * step fails too.
+     */
+    private static final class Killer {
+
+        Killer(final int crashStep) {
+            this.stepsLeft = crashStep;
+        }
+
+        synchronized boolean step() {
+
+            if (dead) throw new Crash();
+            if (stepsLeft > 0 && --stepsLeft == 0) dead = true;
+            return dead;
+        }
+
+        synchronized void check() {
+            if (dead) throw new Crash();
+        }
+
+        private int stepsLeft;
+        private boolean dead = false;
+    }
+
+    /**
+     * Log whose fatal write only gets half of its record onto disk.
+     */
+    private static final class KillableLog extends AppendOnlyLog {
+
+        KillableLog(final File file, final Killer killer) {
+
+            super(file);
+            this.killer = killer;
+        }
+
+        @Override
+        void write(@NonNull byte[] record) throws IOException {
+
+            if (killer.step()) {
+                super.write(Arrays.copyOf(record, record.length / 2));
+                throw new Crash();
+            }
+            super.write(record);
+        }
+
+        private final Killer killer;
+    }
+
+    private static final class KillableStore implements BlockStore {
+
+        KillableStore(final FakeBlockStore store, final Killer killer) {
+
+            this.store = store;
+            this.killer = killer;
+        }
+
+        @Override
+        public void stageBlock(@NonNull String blobName, @NonNull String blockId, @NonNull ByteBuffer data)
+                throws IOException {
+
+            if (killer.step()) throw new Crash();
+            store.stageBlock(blobName, blockId, data);
+        }
+
+        @Override
+        public void commitBlockList(@NonNull String blobName, @NonNull List<String> blockIds) throws IOException {
+
+            if (killer.step()) throw new Crash();
+            store.commitBlockList(blobName, blockIds);
+        }
+
+        @Override
+        public long getBlobSize(@NonNull String blobName) {
+
+            if (killer.step()) throw new Crash();
+            return store.getBlobSize(blobName);
+        }
+
+        private final FakeBlockStore store;
+        private final Killer killer;
+    }
+
+    private static File writeFile(final File file, final byte[] content) throws IOException {
+
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(content);
+        }
+        return file;
+    }
+
+    private byte[] randomBytes(final int length) {
+
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final FileFilter MP4_FILES = file -> file.getName().endsWith(Constants.EXTENSION_MP4);
+
+    private final Random random = new Random(3);
+}